@@ -19,70 +19,79 @@ class CompatDBHelper @Inject constructor(
 ) {
 
     fun dbChangeDisposable(): Disposable = repository
-        .changeObservable()
+        .changeFeed(CHANGE_WINDOW)
         .doOnSubscribe {
             rxBus.send(EventNewBG(null))
         }
         .subscribe {
             /**
+             * Changes of single transaction (new BG, bolus, TBR) come immediately,
+             * following burst of transactions (history sync, NS catch-up) is coalesced to one event per table.
              * GlucoseValues can come in batch
              * oldest one should be used for invalidation, newest one for for triggering Loop.
              * Thus we need to collect both
              *
              */
             var newestGlucoseValue: GlucoseValue? = null
-            it.filterIsInstance<GlucoseValue>().lastOrNull()?.let { gv ->
+            it.of<GlucoseValue>().maxByOrNull { gv -> gv.timestamp }?.let { gv ->
                 aapsLogger.debug(LTag.DATABASE, "Firing EventNewBg $gv")
                 rxBus.send(EventNewBG(gv))
                 newestGlucoseValue = gv
             }
-            it.filterIsInstance<GlucoseValue>().map { gv -> gv.timestamp }.minOrNull()?.let { timestamp ->
+            it.oldestTimestamp(GlucoseValue::class.java)?.let { timestamp ->
                 aapsLogger.debug(LTag.DATABASE, "Firing EventNewHistoryData $newestGlucoseValue")
                 rxBus.send(EventNewHistoryData(timestamp, true, newestGlucoseValue))
             }
-            it.filterIsInstance<Carbs>().map { t -> t.timestamp }.minOrNull()?.let { timestamp ->
+            it.oldestTimestamp(Carbs::class.java)?.let { timestamp ->
                 aapsLogger.debug(LTag.DATABASE, "Firing EventTreatmentChange $timestamp")
                 rxBus.send(EventTreatmentChange())
                 rxBus.send(EventNewHistoryData(timestamp, false))
             }
-            it.filterIsInstance<Bolus>().map { t -> t.timestamp }.minOrNull()?.let { timestamp ->
+            it.oldestTimestamp(Bolus::class.java)?.let { timestamp ->
                 aapsLogger.debug(LTag.DATABASE, "Firing EventTreatmentChange $timestamp")
                 rxBus.send(EventTreatmentChange())
                 rxBus.send(EventNewHistoryData(timestamp, false))
             }
-            it.filterIsInstance<TemporaryBasal>().map { t -> t.timestamp }.minOrNull()?.let { timestamp ->
+            it.oldestTimestamp(TemporaryBasal::class.java)?.let { timestamp ->
                 aapsLogger.debug(LTag.DATABASE, "Firing EventTempBasalChange $timestamp")
                 rxBus.send(EventTempBasalChange())
                 rxBus.send(EventNewHistoryData(timestamp, false))
             }
-            it.filterIsInstance<ExtendedBolus>().map { t -> t.timestamp }.minOrNull()?.let { timestamp ->
+            it.oldestTimestamp(ExtendedBolus::class.java)?.let { timestamp ->
                 aapsLogger.debug(LTag.DATABASE, "Firing EventExtendedBolusChange $timestamp")
                 rxBus.send(EventExtendedBolusChange())
                 rxBus.send(EventNewHistoryData(timestamp, false))
             }
-            it.filterIsInstance<TemporaryTarget>().firstOrNull()?.let { tt ->
+            it.of<TemporaryTarget>().firstOrNull()?.let { tt ->
                 aapsLogger.debug(LTag.DATABASE, "Firing EventTempTargetChange $tt")
                 rxBus.send(EventTempTargetChange())
             }
-            it.filterIsInstance<TherapyEvent>().firstOrNull()?.let { te ->
+            it.of<TherapyEvent>().firstOrNull()?.let { te ->
                 aapsLogger.debug(LTag.DATABASE, "Firing EventTherapyEventChange $te")
                 rxBus.send(EventTherapyEventChange())
             }
-            it.filterIsInstance<Food>().firstOrNull()?.let { food ->
+            it.of<Food>().firstOrNull()?.let { food ->
                 aapsLogger.debug(LTag.DATABASE, "Firing EventFoodDatabaseChanged $food")
                 rxBus.send(EventFoodDatabaseChanged())
             }
-            it.filterIsInstance<ProfileSwitch>().firstOrNull()?.let { ps ->
+            it.of<ProfileSwitch>().firstOrNull()?.let { ps ->
                 aapsLogger.debug(LTag.DATABASE, "Firing EventProfileSwitchChanged $ps")
                 rxBus.send(EventProfileSwitchChanged())
             }
-            it.filterIsInstance<EffectiveProfileSwitch>().firstOrNull()?.let { eps ->
+            // updated entries come with historic copy of previous values
+            it.of<EffectiveProfileSwitch>().lastOrNull { eps -> eps.referenceId == null }?.let { eps ->
                 aapsLogger.debug(LTag.DATABASE, "Firing EventEffectiveProfileSwitchChanged $eps")
                 rxBus.send(EventEffectiveProfileSwitchChanged(eps))
             }
-            it.filterIsInstance<OfflineEvent>().firstOrNull()?.let { oe ->
+            it.of<OfflineEvent>().firstOrNull()?.let { oe ->
                 aapsLogger.debug(LTag.DATABASE, "Firing EventOfflineChange $oe")
                 rxBus.send(EventOfflineChange())
             }
         }
-}
\ No newline at end of file
+
+    companion object {
+
+        // time to collect changes of transactions following an emitted one (history sync, NS catch-up)
+        const val CHANGE_WINDOW = 500L
+    }
+}
@@ -3,6 +3,7 @@ package info.nightscout.androidaps.di
 import dagger.Module
 import dagger.android.ContributesAndroidInjector
 import info.nightscout.androidaps.plugins.general.food.FoodPlugin
+import info.nightscout.androidaps.plugins.general.maintenance.DatabaseRetention
 import info.nightscout.androidaps.plugins.general.maintenance.ImportExportPrefsImpl
 import info.nightscout.androidaps.plugins.general.nsclient.NSClientAddAckWorker
 import info.nightscout.androidaps.plugins.general.nsclient.NSClientAddUpdateWorker
@@ -32,4 +33,6 @@ abstract class WorkersModule {
     @ContributesAndroidInjector abstract fun contributesNSClientMbgWorker(): NSClientMbgWorker
     @ContributesAndroidInjector abstract fun contributesFoodWorker(): FoodPlugin.FoodWorker
     @ContributesAndroidInjector abstract fun contributesCsvExportWorker(): ImportExportPrefsImpl.CsvExportWorker
+    @ContributesAndroidInjector abstract fun contributesRetentionWorker(): DatabaseRetention.RetentionWorker
+    @ContributesAndroidInjector abstract fun contributesIncrementalVacuumWorker(): DatabaseRetention.IncrementalVacuumWorker
 }
\ No newline at end of file
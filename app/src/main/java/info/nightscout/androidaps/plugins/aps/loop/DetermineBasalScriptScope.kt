@@ -0,0 +1,92 @@
+package info.nightscout.androidaps.plugins.aps.loop
+
+import info.nightscout.androidaps.plugins.aps.logger.LoggerCallback
+import org.mozilla.javascript.Context
+import org.mozilla.javascript.ContextFactory
+import org.mozilla.javascript.Scriptable
+import org.mozilla.javascript.ScriptableObject
+import java.io.IOException
+import java.nio.charset.StandardCharsets
+
+/**
+ * Determine-basal scripts compiled and executed once into sealed scope shared by all loop runs
+ *
+ * Every invocation gets fresh child scope for its parameters and logger.
+ * Rhino dynamic scope is used so globals read or written by shared functions
+ * are resolved in the child scope of the running invocation.
+ */
+class DetermineBasalScriptScope private constructor(scriptReader: ScriptReader, determineBasalFile: String, setTempBasalFile: String) {
+
+    private val sharedScope: ScriptableObject
+
+    init {
+        val rhino = enterContext()
+        try {
+            val scope = rhino.initStandardObjects(null, true)
+            //register logger callback for console.log and console.error
+            ScriptableObject.defineClass(scope, LoggerCallback::class.java)
+            rhino.compileString(readFile(scriptReader, "OpenAPSAMA/loggerhelper.js"), "JavaScript", 0, null).exec(rhino, scope)
+
+            //set module parent
+            rhino.evaluateString(scope, "var module = {\"parent\":Boolean(1)};", "JavaScript", 0, null)
+            rhino.evaluateString(scope, "var round_basal = function round_basal(basal, profile) { return basal; };", "JavaScript", 0, null)
+            rhino.evaluateString(scope, "require = function() {return round_basal;};", "JavaScript", 0, null)
+
+            //generate functions "determine_basal" and "setTempBasal"
+            rhino.compileString(readFile(scriptReader, determineBasalFile), "JavaScript", 0, null).exec(rhino, scope)
+            rhino.compileString(readFile(scriptReader, setTempBasalFile), "setTempBasal.js", 0, null).exec(rhino, scope)
+            scope.sealObject()
+            sharedScope = scope
+        } finally {
+            Context.exit()
+        }
+    }
+
+    /**
+     * Create scope for one invocation. Must be called inside of [enterContext] and Context.exit()
+     */
+    fun newScope(rhino: Context): Scriptable {
+        val scope = rhino.newObject(sharedScope)
+        scope.prototype = sharedScope
+        scope.parentScope = null
+        // new logger clears buffers of previous run
+        val myLogger = rhino.newObject(sharedScope, "LoggerCallback", null)
+        scope.put("console2", scope, myLogger)
+        return scope
+    }
+
+    companion object {
+
+        private val contextFactory = object : ContextFactory() {
+            override fun hasFeature(cx: Context, featureIndex: Int): Boolean =
+                featureIndex == Context.FEATURE_DYNAMIC_SCOPE || super.hasFeature(cx, featureIndex)
+        }
+
+        private val scopes = HashMap<String, DetermineBasalScriptScope>()
+
+        /**
+         * Scope with compiled scripts, created on first use
+         */
+        @Throws(IOException::class)
+        fun get(scriptReader: ScriptReader, determineBasalFile: String, setTempBasalFile: String): DetermineBasalScriptScope =
+            synchronized(scopes) {
+                scopes.getOrPut("$determineBasalFile|$setTempBasalFile") { DetermineBasalScriptScope(scriptReader, determineBasalFile, setTempBasalFile) }
+            }
+
+        fun enterContext(): Context =
+            contextFactory.enterContext().also {
+                // Turn off optimization to make Rhino Android compatible
+                it.optimizationLevel = -1
+            }
+
+        @Throws(IOException::class)
+        private fun readFile(scriptReader: ScriptReader, filename: String): String {
+            val bytes = scriptReader.readFile(filename)
+            var string = String(bytes, StandardCharsets.UTF_8)
+            if (string.startsWith("#!/usr/bin/env node")) {
+                string = string.substring(20)
+            }
+            return string
+        }
+    }
+}
@@ -15,6 +15,7 @@ import info.nightscout.androidaps.interfaces.ProfileFunction
 import info.nightscout.shared.logging.AAPSLogger
 import info.nightscout.shared.logging.LTag
 import info.nightscout.androidaps.plugins.aps.logger.LoggerCallback
+import info.nightscout.androidaps.plugins.aps.loop.DetermineBasalScriptScope
 import info.nightscout.androidaps.plugins.aps.loop.APSResult
 import info.nightscout.androidaps.plugins.aps.loop.ScriptReader
 import info.nightscout.androidaps.plugins.aps.openAPSSMB.SMBDefaults
@@ -28,7 +29,6 @@ import org.mozilla.javascript.*
 import org.mozilla.javascript.Function
 import java.io.IOException
 import java.lang.reflect.InvocationTargetException
-import java.nio.charset.StandardCharsets
 import javax.inject.Inject
 import kotlin.math.min
 
@@ -67,26 +67,9 @@ class DetermineBasalAdapterAMAJS internal constructor(scriptReader: ScriptReader
         aapsLogger.debug(LTag.APS, "Meal data:      " + mealData.toString().also { mealDataParam = it })
         aapsLogger.debug(LTag.APS, "Autosens data:  $autosensData")
         var determineBasalResultAMA: DetermineBasalResultAMA? = null
-        val rhino = Context.enter()
-        val scope: Scriptable = rhino.initStandardObjects()
-        // Turn off optimization to make Rhino Android compatible
-        rhino.optimizationLevel = -1
+        val rhino = DetermineBasalScriptScope.enterContext()
         try {
-
-            //register logger callback for console.log and console.error
-            ScriptableObject.defineClass(scope, LoggerCallback::class.java)
-            val myLogger = rhino.newObject(scope, "LoggerCallback", null)
-            scope.put("console2", scope, myLogger)
-            rhino.evaluateString(scope, readFile("OpenAPSAMA/loggerhelper.js"), "JavaScript", 0, null)
-
-            //set module parent
-            rhino.evaluateString(scope, "var module = {\"parent\":Boolean(1)};", "JavaScript", 0, null)
-            rhino.evaluateString(scope, "var round_basal = function round_basal(basal, profile) { return basal; };", "JavaScript", 0, null)
-            rhino.evaluateString(scope, "require = function() {return round_basal;};", "JavaScript", 0, null)
-
-            //generate functions "determine_basal" and "setTempBasal"
-            rhino.evaluateString(scope, readFile("OpenAPSAMA/determine-basal.js"), "JavaScript", 0, null)
-            rhino.evaluateString(scope, readFile("OpenAPSAMA/basal-set-temp.js"), "setTempBasal.js", 0, null)
+            val scope = DetermineBasalScriptScope.get(mScriptReader, "OpenAPSAMA/determine-basal.js", "OpenAPSAMA/basal-set-temp.js").newScope(rhino)
             val determineBasalObj = scope["determine_basal", scope]
             val setTempBasalFunctionsObj = scope["tempBasalFunctions", scope]
 
@@ -221,15 +204,6 @@ class DetermineBasalAdapterAMAJS internal constructor(scriptReader: ScriptReader
         return NativeJSON.parse(rhino, scope, jsonArray.toString()) { _: Context?, _: Scriptable?, _: Scriptable?, objects: Array<Any?> -> objects[1] }
     }
 
-    @Throws(IOException::class) private fun readFile(filename: String): String {
-        val bytes = mScriptReader.readFile(filename)
-        var string = String(bytes, StandardCharsets.UTF_8)
-        if (string.startsWith("#!/usr/bin/env node")) {
-            string = string.substring(20)
-        }
-        return string
-    }
-
     init {
         injector.androidInjector().inject(this)
         mScriptReader = scriptReader
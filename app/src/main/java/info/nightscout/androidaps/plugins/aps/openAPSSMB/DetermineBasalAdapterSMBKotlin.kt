@@ -0,0 +1,181 @@
+package info.nightscout.androidaps.plugins.aps.openAPSSMB
+
+import dagger.android.HasAndroidInjector
+import info.nightscout.androidaps.R
+import info.nightscout.androidaps.data.IobTotal
+import info.nightscout.androidaps.data.MealData
+import info.nightscout.androidaps.extensions.convertedToAbsolute
+import info.nightscout.androidaps.extensions.getPassedDurationToTimeInMinutes
+import info.nightscout.androidaps.extensions.plannedRemainingMinutes
+import info.nightscout.androidaps.interfaces.*
+import info.nightscout.shared.logging.AAPSLogger
+import info.nightscout.shared.logging.LTag
+import info.nightscout.androidaps.plugins.aps.loop.APSResult
+import info.nightscout.androidaps.plugins.configBuilder.ConstraintChecker
+import info.nightscout.androidaps.plugins.iob.iobCobCalculator.GlucoseStatus
+import info.nightscout.shared.SafeParse
+import info.nightscout.androidaps.utils.resources.ResourceHelper
+import info.nightscout.shared.sharedPreferences.SP
+import org.json.JSONObject
+import javax.inject.Inject
+
+/**
+ * Same inputs as [DetermineBasalAdapterSMBJS] but calculated by [DetermineBasalSMB]
+ * without JavaScript engine and without passing data through JSON
+ */
+class DetermineBasalAdapterSMBKotlin internal constructor(private val injector: HasAndroidInjector) : DetermineBasalAdapterInterface {
+
+    @Inject lateinit var aapsLogger: AAPSLogger
+    @Inject lateinit var constraintChecker: ConstraintChecker
+    @Inject lateinit var sp: SP
+    @Inject lateinit var rh: ResourceHelper
+    @Inject lateinit var profileFunction: ProfileFunction
+    @Inject lateinit var iobCobCalculator: IobCobCalculator
+    @Inject lateinit var activePlugin: ActivePlugin
+
+    private lateinit var profile: OapsProfile
+    private lateinit var glucoseStatus: GlucoseStatus
+    private lateinit var iobData: Array<IobTotal>
+    private lateinit var mealData: MealData
+    private lateinit var currentTemp: CurrentTemp
+    private var autosensDataRatio = 1.0
+    private var microBolusAllowed = false
+    private var smbAlwaysAllowed = false
+    private var currentTime: Long = 0
+    private var saveCgmSource = false
+
+    override var currentTempParam: String? = null
+    override var iobDataParam: String? = null
+    override var glucoseStatusParam: String? = null
+    override var profileParam: String? = null
+    override var mealDataParam: String? = null
+    override var scriptDebug = ""
+
+    @Suppress("SpellCheckingInspection")
+    override operator fun invoke(): APSResult {
+        aapsLogger.debug(LTag.APS, ">>> Invoking determine_basal <<<")
+        aapsLogger.debug(LTag.APS, "Glucose status: " + glucoseStatusJson().also { glucoseStatusParam = it })
+        aapsLogger.debug(LTag.APS, "IOB data:       " + iobCobCalculator.convertToJSONArray(iobData).toString().also { iobDataParam = it })
+        aapsLogger.debug(LTag.APS, "Current temp:   " + currentTemp.json().toString().also { currentTempParam = it })
+        aapsLogger.debug(LTag.APS, "Profile:        " + profile.json().toString().also { profileParam = it })
+        aapsLogger.debug(LTag.APS, "Meal data:      " + mealDataJson().also { mealDataParam = it })
+        aapsLogger.debug(LTag.APS, "Autosens data:  {\"ratio\":$autosensDataRatio}")
+        aapsLogger.debug(LTag.APS, "Reservoir data: " + "undefined")
+        aapsLogger.debug(LTag.APS, "MicroBolusAllowed:  $microBolusAllowed")
+        aapsLogger.debug(LTag.APS, "SMBAlwaysAllowed:  $smbAlwaysAllowed")
+        aapsLogger.debug(LTag.APS, "CurrentTime: $currentTime")
+        aapsLogger.debug(LTag.APS, "isSaveCgmSource: $saveCgmSource")
+
+        val determineBasal = DetermineBasalSMB()
+        val result = determineBasal.determine_basal(
+            glucoseStatus, currentTemp, iobData, profile, autosensDataRatio, mealData,
+            microBolusAllowed, currentTime, saveCgmSource
+        ).json()
+        scriptDebug = determineBasal.scriptDebug
+        aapsLogger.debug(LTag.APS, scriptDebug)
+        aapsLogger.debug(LTag.APS, "Result: $result")
+        return DetermineBasalResultSMB(injector, result)
+    }
+
+    @Suppress("SpellCheckingInspection")
+    override fun setData(
+        profile: Profile,
+        maxIob: Double,
+        maxBasal: Double,
+        minBg: Double,
+        maxBg: Double,
+        targetBg: Double,
+        basalRate: Double,
+        iobArray: Array<IobTotal>,
+        glucoseStatus: GlucoseStatus,
+        mealData: MealData,
+        autosensDataRatio: Double,
+        tempTargetSet: Boolean,
+        microBolusAllowed: Boolean,
+        uamAllowed: Boolean,
+        advancedFiltering: Boolean,
+        isSaveCgmSource: Boolean
+    ) {
+        val pump = activePlugin.activePump
+        val smbEnabled = sp.getBoolean(R.string.key_use_smb, false)
+        this.profile = OapsProfile(
+            max_iob = maxIob,
+            max_daily_basal = profile.getMaxDailyBasal(),
+            max_basal = maxBasal,
+            min_bg = minBg,
+            max_bg = maxBg,
+            target_bg = targetBg,
+            carb_ratio = profile.getIc(),
+            sens = profile.getIsfMgdl(),
+            max_daily_safety_multiplier = sp.getInt(R.string.key_openapsama_max_daily_safety_multiplier, 3),
+            current_basal_safety_multiplier = sp.getDouble(R.string.key_openapsama_current_basal_safety_multiplier, 4.0),
+            high_temptarget_raises_sensitivity = false,
+            low_temptarget_lowers_sensitivity = false,
+            sensitivity_raises_target = sp.getBoolean(R.string.key_sensitivity_raises_target, SMBDefaults.sensitivity_raises_target),
+            resistance_lowers_target = sp.getBoolean(R.string.key_resistance_lowers_target, SMBDefaults.resistance_lowers_target),
+            adv_target_adjustments = SMBDefaults.adv_target_adjustments,
+            exercise_mode = SMBDefaults.exercise_mode,
+            half_basal_exercise_target = SMBDefaults.half_basal_exercise_target,
+            maxCOB = SMBDefaults.maxCOB,
+            skip_neutral_temps = pump.setNeutralTempAtFullHour(),
+            remainingCarbsCap = SMBDefaults.remainingCarbsCap,
+            enableUAM = uamAllowed,
+            A52_risk_enable = SMBDefaults.A52_risk_enable,
+            SMBInterval = sp.getInt(R.string.key_smbinterval, SMBDefaults.SMBInterval),
+            enableSMB_with_COB = smbEnabled && sp.getBoolean(R.string.key_enableSMB_with_COB, false),
+            enableSMB_with_temptarget = smbEnabled && sp.getBoolean(R.string.key_enableSMB_with_temptarget, false),
+            allowSMB_with_high_temptarget = smbEnabled && sp.getBoolean(R.string.key_allowSMB_with_high_temptarget, false),
+            enableSMB_always = smbEnabled && sp.getBoolean(R.string.key_enableSMB_always, false) && advancedFiltering,
+            enableSMB_after_carbs = smbEnabled && sp.getBoolean(R.string.key_enableSMB_after_carbs, false) && advancedFiltering,
+            maxSMBBasalMinutes = sp.getInt(R.string.key_smbmaxminutes, SMBDefaults.maxSMBBasalMinutes),
+            maxUAMSMBBasalMinutes = sp.getInt(R.string.key_uamsmbmaxminutes, SMBDefaults.maxUAMSMBBasalMinutes),
+            //set the min SMB amount to be the amount set by the pump.
+            bolus_increment = pump.pumpDescription.bolusStep,
+            carbsReqThreshold = sp.getInt(R.string.key_carbsReqThreshold, SMBDefaults.carbsReqThreshold),
+            current_basal = basalRate,
+            temptargetSet = tempTargetSet,
+            autosens_max = SafeParse.stringToDouble(sp.getString(R.string.key_openapsama_autosens_max, "1.2")),
+            out_units = if (profileFunction.getUnits() == GlucoseUnit.MMOL) "mmol/L" else null
+        )
+        val now = System.currentTimeMillis()
+        val tb = iobCobCalculator.getTempBasalIncludingConvertedExtended(now)
+        currentTemp = CurrentTemp(
+            duration = tb?.plannedRemainingMinutes ?: 0,
+            rate = tb?.convertedToAbsolute(now, profile) ?: 0.0,
+            // as we have non default temps longer than 30 mintues
+            minutesrunning = tb?.getPassedDurationToTimeInMinutes(now)
+        )
+        iobData = iobArray
+        this.glucoseStatus =
+            if (sp.getBoolean(R.string.key_always_use_shortavg, false)) glucoseStatus.copy(delta = glucoseStatus.shortAvgDelta)
+            else glucoseStatus
+        this.mealData = mealData
+        this.autosensDataRatio = if (constraintChecker.isAutosensModeEnabled().value()) autosensDataRatio else 1.0
+        this.microBolusAllowed = microBolusAllowed
+        smbAlwaysAllowed = advancedFiltering
+        currentTime = now
+        saveCgmSource = isSaveCgmSource
+    }
+
+    private fun glucoseStatusJson(): String = JSONObject()
+        .put("glucose", glucoseStatus.glucose)
+        .put("noise", glucoseStatus.noise)
+        .put("delta", glucoseStatus.delta)
+        .put("short_avgdelta", glucoseStatus.shortAvgDelta)
+        .put("long_avgdelta", glucoseStatus.longAvgDelta)
+        .put("date", glucoseStatus.date)
+        .toString()
+
+    private fun mealDataJson(): String = JSONObject()
+        .put("carbs", mealData.carbs)
+        .put("mealCOB", mealData.mealCOB)
+        .put("slopeFromMaxDeviation", mealData.slopeFromMaxDeviation)
+        .put("slopeFromMinDeviation", mealData.slopeFromMinDeviation)
+        .put("lastBolusTime", mealData.lastBolusTime)
+        .put("lastCarbTime", mealData.lastCarbTime)
+        .toString()
+
+    init {
+        injector.androidInjector().inject(this)
+    }
+}
@@ -0,0 +1,104 @@
+package info.nightscout.androidaps.plugins.aps.openAPSSMB
+
+import org.json.JSONObject
+
+/**
+ * Profile part of determine-basal input
+ *
+ * Names follow keys of JSON object consumed by determine-basal.js
+ */
+@Suppress("SpellCheckingInspection", "PropertyName")
+data class OapsProfile(
+    val max_iob: Double,
+    val max_daily_basal: Double,
+    val max_basal: Double,
+    val min_bg: Double,
+    val max_bg: Double,
+    val target_bg: Double,
+    val carb_ratio: Double,
+    val sens: Double,
+    val max_daily_safety_multiplier: Int,
+    val current_basal_safety_multiplier: Double,
+    val high_temptarget_raises_sensitivity: Boolean,
+    val low_temptarget_lowers_sensitivity: Boolean,
+    val sensitivity_raises_target: Boolean,
+    val resistance_lowers_target: Boolean,
+    val adv_target_adjustments: Boolean,
+    val exercise_mode: Boolean,
+    val half_basal_exercise_target: Int,
+    val maxCOB: Int,
+    val skip_neutral_temps: Boolean,
+    val remainingCarbsCap: Int,
+    val enableUAM: Boolean,
+    val A52_risk_enable: Boolean,
+    val SMBInterval: Int,
+    val enableSMB_with_COB: Boolean,
+    val enableSMB_with_temptarget: Boolean,
+    val allowSMB_with_high_temptarget: Boolean,
+    val enableSMB_always: Boolean,
+    val enableSMB_after_carbs: Boolean,
+    val maxSMBBasalMinutes: Int,
+    val maxUAMSMBBasalMinutes: Int,
+    val bolus_increment: Double,
+    val carbsReqThreshold: Int,
+    val current_basal: Double,
+    val temptargetSet: Boolean,
+    val autosens_max: Double,
+    val out_units: String? = null
+) {
+
+    fun json(): JSONObject = JSONObject()
+        .put("max_iob", max_iob)
+        .put("type", "current")
+        .put("max_daily_basal", max_daily_basal)
+        .put("max_basal", max_basal)
+        .put("min_bg", min_bg)
+        .put("max_bg", max_bg)
+        .put("target_bg", target_bg)
+        .put("carb_ratio", carb_ratio)
+        .put("sens", sens)
+        .put("max_daily_safety_multiplier", max_daily_safety_multiplier)
+        .put("current_basal_safety_multiplier", current_basal_safety_multiplier)
+        .put("high_temptarget_raises_sensitivity", high_temptarget_raises_sensitivity)
+        .put("low_temptarget_lowers_sensitivity", low_temptarget_lowers_sensitivity)
+        .put("sensitivity_raises_target", sensitivity_raises_target)
+        .put("resistance_lowers_target", resistance_lowers_target)
+        .put("adv_target_adjustments", adv_target_adjustments)
+        .put("exercise_mode", exercise_mode)
+        .put("half_basal_exercise_target", half_basal_exercise_target)
+        .put("maxCOB", maxCOB)
+        .put("skip_neutral_temps", skip_neutral_temps)
+        .put("remainingCarbsCap", remainingCarbsCap)
+        .put("enableUAM", enableUAM)
+        .put("A52_risk_enable", A52_risk_enable)
+        .put("SMBInterval", SMBInterval)
+        .put("enableSMB_with_COB", enableSMB_with_COB)
+        .put("enableSMB_with_temptarget", enableSMB_with_temptarget)
+        .put("allowSMB_with_high_temptarget", allowSMB_with_high_temptarget)
+        .put("enableSMB_always", enableSMB_always)
+        .put("enableSMB_after_carbs", enableSMB_after_carbs)
+        .put("maxSMBBasalMinutes", maxSMBBasalMinutes)
+        .put("maxUAMSMBBasalMinutes", maxUAMSMBBasalMinutes)
+        .put("bolus_increment", bolus_increment)
+        .put("carbsReqThreshold", carbsReqThreshold)
+        .put("current_basal", current_basal)
+        .put("temptargetSet", temptargetSet)
+        .put("autosens_max", autosens_max)
+        .also { if (out_units != null) it.put("out_units", out_units) }
+}
+
+/**
+ * Currently running temporary basal as seen by determine-basal
+ */
+data class CurrentTemp(
+    val duration: Int,
+    val rate: Double,
+    val minutesrunning: Int? = null
+) {
+
+    fun json(): JSONObject = JSONObject()
+        .put("temp", "absolute")
+        .put("duration", duration)
+        .put("rate", rate)
+        .also { if (minutesrunning != null) it.put("minutesrunning", minutesrunning) }
+}
@@ -228,5 +228,7 @@ class OpenAPSSMBPlugin @Inject constructor(
         return value
     }
 
-    fun provideDetermineBasalAdapter(): DetermineBasalAdapterInterface = DetermineBasalAdapterSMBJS(ScriptReader(context), injector)
+    fun provideDetermineBasalAdapter(): DetermineBasalAdapterInterface =
+        if (sp.getBoolean(R.string.key_openapssmb_native_engine, false)) DetermineBasalAdapterSMBKotlin(injector)
+        else DetermineBasalAdapterSMBJS(ScriptReader(context), injector)
 }
\ No newline at end of file
@@ -0,0 +1,87 @@
+package info.nightscout.androidaps.plugins.aps.openAPSSMB
+
+import org.json.JSONArray
+import org.json.JSONObject
+import java.text.SimpleDateFormat
+import java.util.*
+
+/**
+ * Requested temp, result of [DetermineBasalSMB]
+ *
+ * Serialized to the same JSON as returned by determine-basal.js
+ * so it can be consumed by [DetermineBasalResultSMB], overview graph and NS upload.
+ */
+@Suppress("SpellCheckingInspection", "PropertyName")
+class RT {
+
+    var error: String? = null
+    var temp: String? = null
+    var bg: Double? = null
+    var tick: String? = null
+    var eventualBG: Double? = null
+    var targetBG: Double? = null
+    var insulinReq: Double? = null
+    var deliverAt: Long? = null
+    var sensitivityRatio: Double? = null
+    var predBGs: PredBGs? = null
+    var COB: Double? = null
+    var IOB: Double? = null
+    val reason = StringBuilder()
+    var carbsReq: Double? = null
+    var carbsReqWithin: Int? = null
+    var units: Double? = null
+    var duration: Int? = null
+    var rate: Double? = null
+
+    class PredBGs {
+
+        var IOB: List<Double>? = null
+        var ZT: List<Double>? = null
+        var COB: List<Double>? = null
+        var UAM: List<Double>? = null
+
+        fun json(): JSONObject = JSONObject().also { json ->
+            IOB?.let { json.put("IOB", it.jsonArray()) }
+            ZT?.let { json.put("ZT", it.jsonArray()) }
+            COB?.let { json.put("COB", it.jsonArray()) }
+            UAM?.let { json.put("UAM", it.jsonArray()) }
+        }
+
+        private fun List<Double>.jsonArray(): JSONArray = JSONArray().also { array -> forEach { array.put(jsonNumber(it)) } }
+    }
+
+    fun json(): JSONObject = JSONObject().also { json ->
+        error?.let { json.put("error", it) }
+        temp?.let { json.put("temp", it) }
+        bg?.let { json.put("bg", jsonNumber(it)) }
+        // JS keeps "+" prefixed tick as string, negative tick as number
+        tick?.let { json.put("tick", if (it.startsWith("+")) it else jsonNumber(it.toDouble())) }
+        eventualBG?.let { json.put("eventualBG", jsonNumber(it)) }
+        targetBG?.let { json.put("targetBG", jsonNumber(it)) }
+        insulinReq?.let { json.put("insulinReq", jsonNumber(it)) }
+        deliverAt?.let { json.put("deliverAt", isoFormat().format(Date(it))) }
+        sensitivityRatio?.let { json.put("sensitivityRatio", jsonNumber(it)) }
+        predBGs?.let { json.put("predBGs", it.json()) }
+        COB?.let { json.put("COB", jsonNumber(it)) }
+        IOB?.let { json.put("IOB", jsonNumber(it)) }
+        if (reason.isNotEmpty()) json.put("reason", reason.toString())
+        carbsReq?.let { json.put("carbsReq", jsonNumber(it)) }
+        carbsReqWithin?.let { json.put("carbsReqWithin", it) }
+        units?.let { json.put("units", jsonNumber(it)) }
+        duration?.let { json.put("duration", it) }
+        rate?.let { json.put("rate", jsonNumber(it)) }
+    }
+
+    companion object {
+
+        // JSON.stringify writes integral numbers without fraction and non finite numbers as null
+        fun jsonNumber(value: Double): Any = when {
+            value.isNaN() || value.isInfinite()                 -> JSONObject.NULL
+            value == Math.rint(value) && Math.abs(value) < 1e15 -> value.toLong()
+            else                                                -> value
+        }
+
+        // Date.toISOString()
+        private fun isoFormat() = SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US).also { it.timeZone = TimeZone.getTimeZone("UTC") }
+    }
+}
@@ -0,0 +1,97 @@
+package info.nightscout.androidaps.plugins.configBuilder
+
+import info.nightscout.androidaps.interfaces.Profile
+import java.util.concurrent.ConcurrentSkipListMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Profiles by time, bounded by [maxSize]
+ *
+ * Reads don't take a lock. Least recently used entries are evicted when cache grows over [maxSize].
+ * Writes are rejected if cache has been invalidated since caller read [generation]
+ * to prevent storing profile loaded before profile switch change.
+ */
+class ProfileCache(private val maxSize: Int = 30000) {
+
+    private class Entry(val profile: Profile, @Volatile var lastUse: Long)
+
+    private val entries = ConcurrentSkipListMap<Long, Entry>()
+    private val lock = Any()
+    @Volatile private var size = 0
+    private val clock = AtomicLong()
+    private val hitCounter = AtomicLong()
+    private val missCounter = AtomicLong()
+
+    @Volatile var generation = 0L
+        private set
+
+    val hits: Long get() = hitCounter.get()
+    val misses: Long get() = missCounter.get()
+
+    operator fun get(time: Long): Profile? {
+        val entry = entries[time]
+        if (entry == null) {
+            missCounter.incrementAndGet()
+            return null
+        }
+        hitCounter.incrementAndGet()
+        entry.lastUse = clock.incrementAndGet()
+        return entry.profile
+    }
+
+    /**
+     * Store [profile] unless cache was invalidated after [generation] has been read
+     */
+    fun put(time: Long, profile: Profile, generation: Long) {
+        synchronized(lock) {
+            if (generation != this.generation) return
+            if (entries.put(time, Entry(profile, clock.incrementAndGet())) == null) size++
+            if (size > maxSize) evict()
+        }
+    }
+
+    /**
+     * Remove profiles cached for time after [from]
+     * @return number of removed profiles
+     */
+    fun invalidateAfter(from: Long): Int {
+        synchronized(lock) {
+            generation++
+            var removed = 0
+            val tail = entries.tailMap(from, false).keys
+            val iterator = tail.iterator()
+            while (iterator.hasNext()) {
+                iterator.next()
+                iterator.remove()
+                removed++
+            }
+            size -= removed
+            return removed
+        }
+    }
+
+    fun clear() {
+        synchronized(lock) {
+            generation++
+            entries.clear()
+            size = 0
+        }
+    }
+
+    fun stats(): String {
+        val hits = hitCounter.get()
+        val misses = missCounter.get()
+        val ratio = if (hits + misses > 0) hits * 100 / (hits + misses) else 0
+        return "Profile cache size: $size hits: $hits misses: $misses ($ratio% hits)"
+    }
+
+    // must be called with lock held
+    private fun evict() {
+        // drop oldest 10 % at once to keep eviction rare
+        val toRemove = size - maxSize * 9 / 10
+        entries.entries
+            .sortedBy { it.value.lastUse }
+            .take(toRemove)
+            .forEach { if (entries.remove(it.key, it.value)) size-- }
+    }
+}
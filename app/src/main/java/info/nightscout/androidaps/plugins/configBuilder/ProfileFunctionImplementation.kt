@@ -1,6 +1,5 @@
 package info.nightscout.androidaps.plugins.configBuilder
 
-import androidx.collection.LongSparseArray
 import info.nightscout.androidaps.Constants
 import info.nightscout.androidaps.core.R
 import info.nightscout.androidaps.data.ProfileSealed
@@ -43,7 +42,7 @@ class ProfileFunctionImplementation @Inject constructor(
     private val deviceStatusData: DeviceStatusData
 ) : ProfileFunction {
 
-    val cache = LongSparseArray<Profile>()
+    val cache = ProfileCache()
 
     private val disposable = CompositeDisposable()
 
@@ -53,16 +52,8 @@ class ProfileFunctionImplementation @Inject constructor(
             .observeOn(aapsSchedulers.io)
             .subscribe(
                 {
-                    synchronized(cache) {
-                        for (index in cache.size() - 1 downTo 0) {
-                            if (cache.keyAt(index) > it.startDate) {
-                                aapsLogger.debug(LTag.AUTOSENS, "Removing from profileCache: " + dateUtil.dateAndTimeAndSecondsString(cache.keyAt(index)))
-                                cache.removeAt(index)
-                            } else {
-                                break
-                            }
-                        }
-                    }
+                    val removed = cache.invalidateAfter(it.startDate)
+                    aapsLogger.debug(LTag.AUTOSENS, "Removed $removed profiles from profileCache after " + dateUtil.dateAndTimeAndSecondsString(it.startDate) + ". " + cache.stats())
                 }, fabricPrivacy::logException
             )
     }
@@ -96,22 +87,13 @@ class ProfileFunctionImplementation @Inject constructor(
 
     override fun getProfile(time: Long): Profile? {
         val rounded = time - time % 1000
-        // Clear cache after longer use
-        synchronized(cache) {
-            if (cache.size() > 30000) {
-                cache.clear()
-                aapsLogger.debug("Profile cache cleared")
-            }
-            val cached = cache[rounded]
-            if (cached != null) return cached
-        }
+        val generation = cache.generation
+        cache[rounded]?.let { return it }
 //        aapsLogger.debug("getProfile called for $time")
         val ps = repository.getEffectiveProfileSwitchActiveAt(time).blockingGet()
         if (ps is ValueWrapper.Existing) {
             val sealed = ProfileSealed.EPS(ps.value)
-            synchronized(cache) {
-                cache.put(rounded, sealed)
-            }
+            cache.put(rounded, sealed, generation)
             return sealed
         }
         // In NSClient mode effective profile may not be received if older than 2 days
@@ -121,9 +103,7 @@ class ProfileFunctionImplementation @Inject constructor(
             deviceStatusData.pumpData?.activeProfileName?.let { activeProfile ->
                 activePlugin.activeProfileSource.profile?.getSpecificProfile(activeProfile)?.let { ap ->
                     val sealed = ProfileSealed.Pure(ap)
-                    synchronized(cache) {
-                        cache.put(rounded, sealed)
-                    }
+                    cache.put(rounded, sealed, generation)
                     return sealed
                 }
 
@@ -0,0 +1,198 @@
+package info.nightscout.androidaps.plugins.general.maintenance
+
+import android.content.Context
+import androidx.work.BackoffPolicy
+import androidx.work.Constraints
+import androidx.work.ExistingPeriodicWorkPolicy
+import androidx.work.ExistingWorkPolicy
+import androidx.work.OneTimeWorkRequestBuilder
+import androidx.work.PeriodicWorkRequestBuilder
+import androidx.work.WorkManager
+import androidx.work.Worker
+import androidx.work.WorkerParameters
+import androidx.work.workDataOf
+import dagger.android.HasAndroidInjector
+import info.nightscout.androidaps.R
+import info.nightscout.androidaps.database.AppRepository
+import info.nightscout.androidaps.database.data.RetentionPolicy
+import info.nightscout.androidaps.database.transactions.RetentionTransaction
+import info.nightscout.androidaps.interfaces.DataSyncSelector
+import info.nightscout.androidaps.interfaces.Loop
+import info.nightscout.androidaps.interfaces.PluginBase
+import info.nightscout.androidaps.utils.DateUtil
+import info.nightscout.androidaps.utils.T
+import info.nightscout.shared.logging.AAPSLogger
+import info.nightscout.shared.logging.LTag
+import info.nightscout.shared.sharedPreferences.SP
+import java.util.concurrent.TimeUnit
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Deletes records older than configured number of days once a day and returns freed space to file system.
+ * Records not uploaded to NS yet are kept regardless of age.
+ *
+ * Freed space is returned in steps by incremental vacuum. Database created without it is switched once
+ * by separate work, the full VACUUM needed for it runs only with enough free storage and outside of loop run.
+ */
+@Singleton
+class DatabaseRetention @Inject constructor(
+    private val context: Context,
+    private val aapsLogger: AAPSLogger,
+    private val sp: SP,
+    private val dateUtil: DateUtil,
+    private val repository: AppRepository,
+    private val dataSyncSelector: DataSyncSelector,
+    private val loop: Loop
+) {
+
+    data class Report(val deleted: Int, val reclaimedBytes: Long, val queryMsBefore: Long, val queryMsAfter: Long)
+
+    fun schedule() {
+        val constraints = Constraints.Builder()
+            .setRequiresBatteryNotLow(true)
+            .setRequiresDeviceIdle(true)
+            .build()
+        val workRequest = PeriodicWorkRequestBuilder<RetentionWorker>(1, TimeUnit.DAYS)
+            .setConstraints(constraints)
+            .build()
+        WorkManager.getInstance(context).enqueueUniquePeriodicWork(WORK_NAME, ExistingPeriodicWorkPolicy.KEEP, workRequest)
+        // finishes immediately when already done
+        val vacuumRequest = OneTimeWorkRequestBuilder<IncrementalVacuumWorker>()
+            .setConstraints(
+                Constraints.Builder()
+                    .setRequiresBatteryNotLow(true)
+                    .setRequiresStorageNotLow(true)
+                    .build()
+            )
+            .setBackoffCriteria(BackoffPolicy.LINEAR, VACUUM_RETRY_MINUTES, TimeUnit.MINUTES)
+            .build()
+        WorkManager.getInstance(context).enqueueUniqueWork(VACUUM_WORK_NAME, ExistingWorkPolicy.KEEP, vacuumRequest)
+    }
+
+    fun policy(now: Long = dateUtil.now()): RetentionPolicy {
+        fun olderThan(key: Int, default: Int): Long =
+            sp.getInt(key, default).let { days -> if (days > 0) now - T.days(days.toLong()).msecs() else 0L }
+
+        return RetentionPolicy(
+            glucoseValuesOlderThan = olderThan(R.string.key_maintenance_retention_glucose_days, 0),
+            deviceStatusesOlderThan = olderThan(R.string.key_maintenance_retention_device_status_days, 30),
+            apsResultsOlderThan = olderThan(R.string.key_maintenance_retention_aps_results_days, 30),
+            userEntriesOlderThan = olderThan(R.string.key_maintenance_retention_user_entries_days, 0),
+            historicOlderThan = olderThan(R.string.key_maintenance_retention_history_days, 90),
+            syncedIds = dataSyncSelector.lastSyncedIds()
+        )
+    }
+
+    /**
+     * @param isStopped checked between batches to give up when WorkManager stops the job
+     */
+    fun cleanup(isStopped: () -> Boolean = { false }): Report {
+        val policy = policy()
+        val queryMsBefore = probeQuery()
+        var deleted = 0
+        do {
+            val batch = repository.runTransactionForResult(RetentionTransaction(policy)).blockingGet()
+            deleted += batch
+        } while (batch > 0 && !isStopped())
+        var reclaimed = 0L
+        if (deleted > 0) do {
+            // bounded steps, database is locked while pages are moved
+            val step = repository.compact(COMPACT_PAGES)
+            reclaimed += step
+        } while (step > 0 && !isStopped())
+        val report = Report(deleted, reclaimed, queryMsBefore, if (deleted > 0) probeQuery() else queryMsBefore)
+        aapsLogger.debug(LTag.DATABASE, "Retention: $report, database size ${repository.databaseSize() / 1024} kB")
+        return report
+    }
+
+    /**
+     * Switches database to incremental vacuum
+     *
+     * @return false when it has to be tried again later
+     */
+    fun enableIncrementalVacuum(now: Long = dateUtil.now()): Boolean {
+        if (repository.isIncrementalVacuumEnabled()) return true
+        // VACUUM writes copy of the database to temporary file and rollback journal
+        val needed = 2 * repository.databaseFileSize()
+        val available = repository.databaseFile()?.parentFile?.usableSpace ?: return true
+        if (available < needed) {
+            aapsLogger.debug(LTag.DATABASE, "Incremental vacuum postponed: ${available / 1024} kB free, ${needed / 1024} kB needed")
+            return false
+        }
+        if (!isLoopIdle(now)) {
+            aapsLogger.debug(LTag.DATABASE, "Incremental vacuum postponed: loop run expected")
+            return false
+        }
+        val start = System.currentTimeMillis()
+        repository.enableIncrementalVacuum()
+        aapsLogger.debug(LTag.DATABASE, "Incremental vacuum enabled in ${System.currentTimeMillis() - start} ms")
+        return true
+    }
+
+    /**
+     * Loop runs on every BG, window after finished run is the farthest from the next one
+     */
+    private fun isLoopIdle(now: Long): Boolean {
+        if (!(loop as PluginBase).isEnabled()) return true
+        val lastRun = loop.lastRun?.lastAPSRun ?: return false
+        return now - lastRun in T.mins(1).msecs()..T.mins(3).msecs()
+    }
+
+    /**
+     * Time of a read issued by every loop run to see effect of smaller tables and indexes
+     */
+    private fun probeQuery(): Long {
+        val start = System.currentTimeMillis()
+        repository.compatGetBgReadingsDataFromTime(dateUtil.now() - T.days(1).msecs(), false).blockingGet()
+        return System.currentTimeMillis() - start
+    }
+
+    class RetentionWorker(
+        context: Context,
+        params: WorkerParameters
+    ) : Worker(context, params) {
+
+        @Inject lateinit var databaseRetention: DatabaseRetention
+
+        init {
+            (context.applicationContext as HasAndroidInjector).androidInjector().inject(this)
+        }
+
+        override fun doWork(): Result {
+            val report = databaseRetention.cleanup { isStopped }
+            return Result.success(
+                workDataOf(
+                    "deleted" to report.deleted,
+                    "reclaimedBytes" to report.reclaimedBytes,
+                    "queryMsBefore" to report.queryMsBefore,
+                    "queryMsAfter" to report.queryMsAfter
+                )
+            )
+        }
+    }
+
+    class IncrementalVacuumWorker(
+        context: Context,
+        params: WorkerParameters
+    ) : Worker(context, params) {
+
+        @Inject lateinit var databaseRetention: DatabaseRetention
+
+        init {
+            (context.applicationContext as HasAndroidInjector).androidInjector().inject(this)
+        }
+
+        override fun doWork(): Result =
+            if (databaseRetention.enableIncrementalVacuum()) Result.success() else Result.retry()
+    }
+
+    companion object {
+
+        private const val WORK_NAME = "DatabaseRetention"
+        private const val VACUUM_WORK_NAME = "DatabaseIncrementalVacuum"
+        private const val VACUUM_RETRY_MINUTES = 2L
+        // 4 MB with default page size
+        private const val COMPACT_PAGES = 1024
+    }
+}
@@ -1,8 +1,14 @@
 package info.nightscout.androidaps.plugins.general.maintenance
 
+import ch.qos.logback.classic.Logger
 import ch.qos.logback.classic.LoggerContext
 import info.nightscout.androidaps.annotations.OpenForTesting
+import info.nightscout.shared.logging.binary.BinaryLogAppender
+import info.nightscout.shared.logging.binary.BinaryLogFormat
 import org.slf4j.LoggerFactory
+import java.io.File
+import java.io.OutputStream
+import java.io.OutputStreamWriter
 import javax.inject.Inject
 import javax.inject.Singleton
 
@@ -26,4 +32,26 @@ class LoggerUtils @Inject constructor() {
             val lc = LoggerFactory.getILoggerFactory() as LoggerContext
             return lc.getProperty("EXT_FILES_DIR")
         }
-}
\ No newline at end of file
+
+    /**
+     * Write logs buffered by asynchronous appender to disk
+     */
+    fun flush() {
+        val lc = LoggerFactory.getILoggerFactory() as LoggerContext
+        (lc.getLogger(Logger.ROOT_LOGGER_NAME).getAppender("file") as? BinaryLogAppender)?.flush()
+    }
+
+    fun isBinaryLog(file: File): Boolean = file.name.endsWith(".bin")
+
+    /**
+     * Name of text log rendered from binary [file]
+     */
+    fun textLogName(file: File): String = file.name.removeSuffix(".bin") + ".log"
+
+    /**
+     * Render binary log [file] to text. [out] is not closed
+     */
+    fun renderBinaryLog(file: File, out: OutputStream) {
+        file.inputStream().buffered().use { input -> BinaryLogFormat.render(input, OutputStreamWriter(out, Charsets.UTF_8)) }
+    }
+}
@@ -34,7 +34,8 @@ class MaintenancePlugin @Inject constructor(
     private val buildHelper: BuildHelper,
     private val config: Config,
     private val fileListProvider: PrefFileListProvider,
-    private val loggerUtils: LoggerUtils
+    private val loggerUtils: LoggerUtils,
+    private val databaseRetention: DatabaseRetention
 ) : PluginBase(
     PluginDescription()
         .mainType(PluginType.GENERAL)
@@ -49,9 +50,23 @@ class MaintenancePlugin @Inject constructor(
     aapsLogger, rh, injector
 ) {
 
+    companion object {
+
+        // written by versions before binary log, never rolled again
+        private const val LEGACY_LOG = "AndroidAPS.log"
+
+        private val newestFirst = compareByDescending<File> { it.lastModified() }.thenByDescending { it.name }
+    }
+
+    override fun onStart() {
+        super.onStart()
+        databaseRetention.schedule()
+    }
+
     fun sendLogs() {
         val recipient = sp.getString(R.string.key_maintenance_logs_email, "logs@androidaps.org")
         val amount = sp.getInt(R.string.key_maintenance_logs_amount, 2)
+        loggerUtils.flush()
         val logs = getLogFiles(amount)
         val zipDir = fileListProvider.ensureTempDirExists()
         val zipFile = File(zipDir, constructName())
@@ -69,10 +84,12 @@ class MaintenancePlugin @Inject constructor(
     fun deleteLogs(keep: Int) {
         val logDir = File(loggerUtils.logDirectory)
         val files = logDir.listFiles { _: File?, name: String ->
-            (name.startsWith("AndroidAPS") && name.endsWith(".zip"))
+            (name.startsWith("AndroidAPS") && name.endsWith(".zip")
+                || name.startsWith("AndroidAPS._") && name.endsWith(".bin")
+                || name == LEGACY_LOG)
         }
         if (files == null || files.isEmpty()) return
-        Arrays.sort(files) { f1: File, f2: File -> f2.name.compareTo(f1.name) }
+        Arrays.sort(files, newestFirst)
         var delFiles = listOf(*files)
         val amount = sp.getInt(R.string.key_logshipper_amount, keep)
         val keepIndex = amount - 1
@@ -95,7 +112,9 @@ class MaintenancePlugin @Inject constructor(
      * returns a list of log files. The number of returned logs is given via the amount
      * parameter.
      *
-     * The log files are sorted by the name descending.
+     * The log files are sorted by the modification time descending. Names don't give the right
+     * order since the binary log was introduced, eg. AndroidAPS.log left by older version
+     * would sort ahead of current AndroidAPS.bin.
      *
      * @param amount
      * @return
@@ -105,10 +124,10 @@ class MaintenancePlugin @Inject constructor(
         val logDir = File(loggerUtils.logDirectory)
         val files = logDir.listFiles { _: File?, name: String ->
             (name.startsWith("AndroidAPS")
-                && (name.endsWith(".log")
+                && (name.endsWith(".log") || name.endsWith(".bin")
                 || name.endsWith(".zip") && !name.endsWith(loggerUtils.suffix)))
         } ?: emptyArray()
-        Arrays.sort(files) { f1: File, f2: File -> f2.name.compareTo(f1.name) }
+        Arrays.sort(files, newestFirst)
         val result = listOf(*files)
         var toIndex = amount
         if (toIndex > result.size) {
@@ -144,6 +163,12 @@ class MaintenancePlugin @Inject constructor(
         val bufferSize = 2048
         val out = ZipOutputStream(BufferedOutputStream(FileOutputStream(zipFile)))
         for (file in files) {
+            // binary logs are exported as text so zip content stays the same
+            if (loggerUtils.isBinaryLog(file)) {
+                out.putNextEntry(ZipEntry(loggerUtils.textLogName(file)))
+                loggerUtils.renderBinaryLog(file, out)
+                continue
+            }
             val data = ByteArray(bufferSize)
             FileInputStream(file).use { fileInputStream ->
                 BufferedInputStream(fileInputStream, bufferSize).use { origin ->
@@ -50,6 +50,9 @@ class LogSettingActivity : NoSplashAppCompatActivity() {
             val enabled = baseView.findViewById<CheckBox>(R.id.logsettings_visibility)
             enabled.isChecked = element.enabled
             enabled.setOnClickListener { element.enable(enabled.isChecked) }
+            val callerInfo = baseView.findViewById<CheckBox>(R.id.logsettings_caller_info)
+            callerInfo.isChecked = element.callerInfo
+            callerInfo.setOnClickListener { element.enableCallerInfo(callerInfo.isChecked) }
         }
 
     }
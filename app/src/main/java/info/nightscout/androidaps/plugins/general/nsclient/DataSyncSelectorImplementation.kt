@@ -1,9 +1,9 @@
 package info.nightscout.androidaps.plugins.general.nsclient
 
 import info.nightscout.androidaps.R
-import info.nightscout.androidaps.database.AppRepository
-import info.nightscout.androidaps.database.ValueWrapper
+import info.nightscout.androidaps.database.*
 import info.nightscout.androidaps.database.entities.*
+import info.nightscout.androidaps.database.transactions.UpdateNsIdsTransaction
 import info.nightscout.androidaps.extensions.toJson
 import info.nightscout.androidaps.interfaces.ActivePlugin
 import info.nightscout.androidaps.interfaces.DataSyncSelector
@@ -13,6 +13,8 @@ import info.nightscout.shared.logging.LTag
 import info.nightscout.androidaps.plugins.profile.local.LocalProfilePlugin
 import info.nightscout.androidaps.utils.DateUtil
 import info.nightscout.shared.sharedPreferences.SP
+import org.json.JSONArray
+import org.json.JSONObject
 import javax.inject.Inject
 import javax.inject.Singleton
 
@@ -61,11 +63,39 @@ class DataSyncSelectorImplementation @Inject constructor(
     }
 
     private val queueCounter = QueueCounter()
+    private val uploadWindow = NSUploadWindow({ sp.getInt(R.string.key_ns_upload_window, 16) })
 
     override fun queueSize(): Long = queueCounter.size()
 
+    private fun batchUpload(): Boolean =
+        sp.getBoolean(R.string.key_ns_sync_batch, true) && !sp.getBoolean(R.string.key_ns_sync_slow, false)
+
+    /**
+     * Upload new documents in one request
+     *
+     * @return NS ids of created documents in the same order (null if not returned by NS), null on failure
+     *         or if NS didn't return all documents (records without NS id would be uploaded as new on next change)
+     */
+    private fun uploadBatch(collection: String, documents: List<JSONObject>, progress: String): List<String?>? {
+        val created = nsClientPlugin.nsClientService?.dbAddBulk(collection, JSONArray(documents), progress) ?: return null
+        if (created.length() != documents.size) {
+            aapsLogger.error(LTag.NSCLIENT, "Bulk upload to $collection returned ${created.length()} of ${documents.size} documents")
+            return null
+        }
+        return List(documents.size) { i -> created.optJSONObject(i)?.optString("_id")?.takeIf { it.isNotEmpty() } }
+    }
+
+    /**
+     * Batch runs only with empty upload window, nothing to wait for
+     */
+    private fun moveBatchSyncId(key: Int, lastSynced: Long) {
+        aapsLogger.debug(LTag.NSCLIENT, "Setting batch data sync from $lastSynced")
+        sp.putLong(key, lastSynced)
+    }
+
     override fun doUpload() {
         if (sp.getBoolean(R.string.key_ns_upload, true)) {
+            uploadWindow.expire(dateUtil.now())
             processChangedBolusesCompat()
             processChangedCarbsCompat()
             processChangedBolusCalculatorResultsCompat()
@@ -84,6 +114,7 @@ class DataSyncSelectorImplementation @Inject constructor(
     }
 
     override fun resetToNextFullSync() {
+        uploadWindow.reset()
         appRepository.getLastGlucoseValueIdWrapped().blockingGet().run {
             val currentLast = if (this is ValueWrapper.Existing) this.value else 0L
             sp.putLong(R.string.key_ns_glucose_value_new_data_id, currentLast)
@@ -123,10 +154,29 @@ class DataSyncSelectorImplementation @Inject constructor(
         else sp.remove(R.string.key_ns_device_status_last_synced_id)
     }
 
+    override fun lastSyncedIds(): Map<String, Long> =
+        if (!nsClientPlugin.isEnabled() || !sp.getBoolean(R.string.key_ns_upload, true)) emptyMap()
+        else mapOf(
+            TABLE_BOLUSES to R.string.key_ns_bolus_last_synced_id,
+            TABLE_CARBS to R.string.key_ns_carbs_last_synced_id,
+            TABLE_BOLUS_CALCULATOR_RESULTS to R.string.key_ns_bolus_calculator_result_last_synced_id,
+            TABLE_TEMPORARY_TARGETS to R.string.key_ns_temporary_target_last_synced_id,
+            TABLE_FOODS to R.string.key_ns_food_last_synced_id,
+            TABLE_GLUCOSE_VALUES to R.string.key_ns_glucose_value_last_synced_id,
+            TABLE_THERAPY_EVENTS to R.string.key_ns_therapy_event_last_synced_id,
+            TABLE_DEVICE_STATUS to R.string.key_ns_device_status_last_synced_id,
+            TABLE_TEMPORARY_BASALS to R.string.key_ns_temporary_basal_last_synced_id,
+            TABLE_EXTENDED_BOLUSES to R.string.key_ns_extended_bolus_last_synced_id,
+            TABLE_PROFILE_SWITCHES to R.string.key_ns_profile_switch_last_synced_id,
+            TABLE_EFFECTIVE_PROFILE_SWITCHES to R.string.key_ns_effective_profile_switch_last_synced_id,
+            TABLE_OFFLINE_EVENTS to R.string.key_ns_offline_event_last_synced_id
+        ).mapValues { sp.getLong(it.value, 0) }
+
     override fun confirmLastBolusIdIfGreater(lastSynced: Long) {
-        if (lastSynced > sp.getLong(R.string.key_ns_bolus_last_synced_id, 0)) {
-            aapsLogger.debug(LTag.NSCLIENT, "Setting Bolus data sync from $lastSynced")
-            sp.putLong(R.string.key_ns_bolus_last_synced_id, lastSynced)
+        val confirmed = uploadWindow.acked(R.string.key_ns_bolus_last_synced_id, lastSynced)
+        if (confirmed > sp.getLong(R.string.key_ns_bolus_last_synced_id, 0)) {
+            aapsLogger.debug(LTag.NSCLIENT, "Setting Bolus data sync from $confirmed")
+            sp.putLong(R.string.key_ns_bolus_last_synced_id, confirmed)
         }
     }
 
@@ -143,19 +193,26 @@ class DataSyncSelectorImplementation @Inject constructor(
 
     //private var lastBolusId = -1L
     //private var lastBolusTime = -1L
+    @Synchronized
     override fun processChangedBolusesCompat(): Boolean {
         val lastDbIdWrapped = appRepository.getLastBolusIdWrapped().blockingGet()
         val lastDbId = if (lastDbIdWrapped is ValueWrapper.Existing) lastDbIdWrapped.value else 0L
         var startId = sp.getLong(R.string.key_ns_bolus_last_synced_id, 0)
         if (startId > lastDbId) {
             sp.putLong(R.string.key_ns_bolus_last_synced_id, 0)
+            uploadWindow.reset(R.string.key_ns_bolus_last_synced_id)
             startId = 0
         }
         //if (startId == lastBolusId && dateUtil.now() - lastBolusTime < 5000) return false
         //lastBolusId = startId
         //lastBolusTime = dateUtil.now()
+        if (batchUpload() && processChangedBolusesBatch()) return true
         queueCounter.bolusesRemaining = lastDbId - startId
-        appRepository.getNextSyncElementBolus(startId).blockingGet()?.let { bolus ->
+        if (uploadWindow.isFull(R.string.key_ns_bolus_last_synced_id)) return true
+        appRepository.getNextSyncElementBolus(uploadWindow.nextStartId(R.string.key_ns_bolus_last_synced_id, startId)).blockingGet()?.let { bolus ->
+            // wait for ack of previous change of the same record
+            if (uploadWindow.isPending(R.string.key_ns_bolus_last_synced_id, bolus.first.id)) return true
+            var sent: Boolean? = false
             aapsLogger.info(LTag.NSCLIENT, "Loading Bolus data Start: $startId ID: ${bolus.first.id} HistoryID: ${bolus.second.id} ")
             when {
                 // only NsId changed, no need to upload
@@ -168,10 +225,10 @@ class DataSyncSelectorImplementation @Inject constructor(
                 }
                 // without nsId = create new
                 bolus.first.interfaceIDs.nightscoutId == null ->
-                    nsClientPlugin.nsClientService?.dbAdd("treatments", bolus.first.toJson(true, dateUtil), DataSyncSelector.PairBolus(bolus.first, bolus.second.id), "$startId/$lastDbId")
+                    sent = nsClientPlugin.nsClientService?.dbAdd("treatments", bolus.first.toJson(true, dateUtil), DataSyncSelector.PairBolus(bolus.first, bolus.second.id), "$startId/$lastDbId")
                 // with nsId = update
                 bolus.first.interfaceIDs.nightscoutId != null ->
-                    nsClientPlugin.nsClientService?.dbUpdate(
+                    sent = nsClientPlugin.nsClientService?.dbUpdate(
                         "treatments",
                         bolus.first.interfaceIDs.nightscoutId,
                         bolus.first.toJson(false, dateUtil),
@@ -179,15 +236,52 @@ class DataSyncSelectorImplementation @Inject constructor(
                         "$startId/$lastDbId"
                     )
             }
+            if (sent == true) {
+                uploadWindow.sent(R.string.key_ns_bolus_last_synced_id, bolus.second.id, bolus.first.id, dateUtil.now())
+                // fill the window
+                processChangedBolusesCompat()
+            }
             return true
         }
         return false
     }
 
+    /**
+     * Uploads new boluses BATCH_SIZE records per request, sync id is moved after each batch
+     *
+     * @return false if next record is an update which must be sent by single record path
+     *         or single record uploads wait for ack
+     */
+    @Synchronized
+    private fun processChangedBolusesBatch(): Boolean {
+        // records sent by single record path get NS id with ack, until then batch would upload them again
+        if (!uploadWindow.isEmpty(R.string.key_ns_bolus_last_synced_id)) return false
+        while (true) {
+            val lastDbIdWrapped = appRepository.getLastBolusIdWrapped().blockingGet()
+            val lastDbId = if (lastDbIdWrapped is ValueWrapper.Existing) lastDbIdWrapped.value else 0L
+            val startId = sp.getLong(R.string.key_ns_bolus_last_synced_id, 0)
+            queueCounter.bolusesRemaining = lastDbId - startId
+            val elements = appRepository.getNextSyncElementsBolus(startId, BATCH_SIZE).blockingGet()
+            if (elements.isEmpty()) return true
+            val batch = elements.takeWhile { bolus -> bolus.first.interfaceIDs.nightscoutId == null || bolus.first.onlyNsIdAdded(bolus.second) }
+            if (batch.isEmpty()) return false
+            // more history records can point to the same current record, upload it once
+            val toAdd = batch.filter { bolus -> !bolus.first.onlyNsIdAdded(bolus.second) }.distinctBy { bolus -> bolus.first.id }
+            if (toAdd.isNotEmpty()) {
+                val nsIds = uploadBatch("treatments", toAdd.map { bolus -> bolus.first.toJson(true, dateUtil) }, "$startId/$lastDbId") ?: return true
+                toAdd.forEachIndexed { i, bolus -> bolus.first.interfaceIDs.nightscoutId = nsIds[i] }
+                appRepository.runTransaction(UpdateNsIdsTransaction(boluses = toAdd.map { bolus -> bolus.first })).blockingAwait()
+            }
+            aapsLogger.info(LTag.NSCLIENT, "Bolus batch Start: $startId Records: ${batch.size} Uploaded: ${toAdd.size}")
+            moveBatchSyncId(R.string.key_ns_bolus_last_synced_id, batch.last().second.id)
+        }
+    }
+
     override fun confirmLastCarbsIdIfGreater(lastSynced: Long) {
-        if (lastSynced > sp.getLong(R.string.key_ns_carbs_last_synced_id, 0)) {
-            aapsLogger.debug(LTag.NSCLIENT, "Setting Carbs data sync from $lastSynced")
-            sp.putLong(R.string.key_ns_carbs_last_synced_id, lastSynced)
+        val confirmed = uploadWindow.acked(R.string.key_ns_carbs_last_synced_id, lastSynced)
+        if (confirmed > sp.getLong(R.string.key_ns_carbs_last_synced_id, 0)) {
+            aapsLogger.debug(LTag.NSCLIENT, "Setting Carbs data sync from $confirmed")
+            sp.putLong(R.string.key_ns_carbs_last_synced_id, confirmed)
         }
     }
 
@@ -201,19 +295,26 @@ class DataSyncSelectorImplementation @Inject constructor(
 
     //private var lastCarbsId = -1L
     //private var lastCarbsTime = -1L
+    @Synchronized
     override fun processChangedCarbsCompat(): Boolean {
         val lastDbIdWrapped = appRepository.getLastCarbsIdWrapped().blockingGet()
         val lastDbId = if (lastDbIdWrapped is ValueWrapper.Existing) lastDbIdWrapped.value else 0L
         var startId = sp.getLong(R.string.key_ns_carbs_last_synced_id, 0)
         if (startId > lastDbId) {
             sp.putLong(R.string.key_ns_carbs_last_synced_id, 0)
+            uploadWindow.reset(R.string.key_ns_carbs_last_synced_id)
             startId = 0
         }
         //if (startId == lastCarbsId && dateUtil.now() - lastCarbsTime < 5000) return false
         //lastCarbsId = startId
         //lastCarbsTime = dateUtil.now()
+        if (batchUpload() && processChangedCarbsBatch()) return true
         queueCounter.carbsRemaining = lastDbId - startId
-        appRepository.getNextSyncElementCarbs(startId).blockingGet()?.let { carb ->
+        if (uploadWindow.isFull(R.string.key_ns_carbs_last_synced_id)) return true
+        appRepository.getNextSyncElementCarbs(uploadWindow.nextStartId(R.string.key_ns_carbs_last_synced_id, startId)).blockingGet()?.let { carb ->
+            // wait for ack of previous change of the same record
+            if (uploadWindow.isPending(R.string.key_ns_carbs_last_synced_id, carb.first.id)) return true
+            var sent: Boolean? = false
             aapsLogger.info(LTag.NSCLIENT, "Loading Carbs data Start: $startId ID: ${carb.first.id} HistoryID: ${carb.second.id} ")
             when {
                 // only NsId changed, no need to upload
@@ -226,10 +327,10 @@ class DataSyncSelectorImplementation @Inject constructor(
                 }
                 // without nsId = create new
                 carb.first.interfaceIDs.nightscoutId == null ->
-                    nsClientPlugin.nsClientService?.dbAdd("treatments", carb.first.toJson(true, dateUtil), DataSyncSelector.PairCarbs(carb.first, carb.second.id), "$startId/$lastDbId")
+                    sent = nsClientPlugin.nsClientService?.dbAdd("treatments", carb.first.toJson(true, dateUtil), DataSyncSelector.PairCarbs(carb.first, carb.second.id), "$startId/$lastDbId")
                 // with nsId = update
                 carb.first.interfaceIDs.nightscoutId != null ->
-                    nsClientPlugin.nsClientService?.dbUpdate(
+                    sent = nsClientPlugin.nsClientService?.dbUpdate(
                         "treatments",
                         carb.first.interfaceIDs.nightscoutId,
                         carb.first.toJson(false, dateUtil),
@@ -237,15 +338,52 @@ class DataSyncSelectorImplementation @Inject constructor(
                         "$startId/$lastDbId"
                     )
             }
+            if (sent == true) {
+                uploadWindow.sent(R.string.key_ns_carbs_last_synced_id, carb.second.id, carb.first.id, dateUtil.now())
+                // fill the window
+                processChangedCarbsCompat()
+            }
             return true
         }
         return false
     }
 
+    /**
+     * Uploads new carbs BATCH_SIZE records per request, sync id is moved after each batch
+     *
+     * @return false if next record is an update which must be sent by single record path
+     *         or single record uploads wait for ack
+     */
+    @Synchronized
+    private fun processChangedCarbsBatch(): Boolean {
+        // records sent by single record path get NS id with ack, until then batch would upload them again
+        if (!uploadWindow.isEmpty(R.string.key_ns_carbs_last_synced_id)) return false
+        while (true) {
+            val lastDbIdWrapped = appRepository.getLastCarbsIdWrapped().blockingGet()
+            val lastDbId = if (lastDbIdWrapped is ValueWrapper.Existing) lastDbIdWrapped.value else 0L
+            val startId = sp.getLong(R.string.key_ns_carbs_last_synced_id, 0)
+            queueCounter.carbsRemaining = lastDbId - startId
+            val elements = appRepository.getNextSyncElementsCarbs(startId, BATCH_SIZE).blockingGet()
+            if (elements.isEmpty()) return true
+            val batch = elements.takeWhile { carb -> carb.first.interfaceIDs.nightscoutId == null || carb.first.onlyNsIdAdded(carb.second) }
+            if (batch.isEmpty()) return false
+            // more history records can point to the same current record, upload it once
+            val toAdd = batch.filter { carb -> !carb.first.onlyNsIdAdded(carb.second) }.distinctBy { carb -> carb.first.id }
+            if (toAdd.isNotEmpty()) {
+                val nsIds = uploadBatch("treatments", toAdd.map { carb -> carb.first.toJson(true, dateUtil) }, "$startId/$lastDbId") ?: return true
+                toAdd.forEachIndexed { i, carb -> carb.first.interfaceIDs.nightscoutId = nsIds[i] }
+                appRepository.runTransaction(UpdateNsIdsTransaction(carbs = toAdd.map { carb -> carb.first })).blockingAwait()
+            }
+            aapsLogger.info(LTag.NSCLIENT, "Carbs batch Start: $startId Records: ${batch.size} Uploaded: ${toAdd.size}")
+            moveBatchSyncId(R.string.key_ns_carbs_last_synced_id, batch.last().second.id)
+        }
+    }
+
     override fun confirmLastBolusCalculatorResultsIdIfGreater(lastSynced: Long) {
-        if (lastSynced > sp.getLong(R.string.key_ns_bolus_calculator_result_last_synced_id, 0)) {
-            aapsLogger.debug(LTag.NSCLIENT, "Setting BolusCalculatorResult data sync from $lastSynced")
-            sp.putLong(R.string.key_ns_bolus_calculator_result_last_synced_id, lastSynced)
+        val confirmed = uploadWindow.acked(R.string.key_ns_bolus_calculator_result_last_synced_id, lastSynced)
+        if (confirmed > sp.getLong(R.string.key_ns_bolus_calculator_result_last_synced_id, 0)) {
+            aapsLogger.debug(LTag.NSCLIENT, "Setting BolusCalculatorResult data sync from $confirmed")
+            sp.putLong(R.string.key_ns_bolus_calculator_result_last_synced_id, confirmed)
         }
     }
 
@@ -259,19 +397,25 @@ class DataSyncSelectorImplementation @Inject constructor(
 
     //private var lastBcrId = -1L
     //private var lastBcrTime = -1L
+    @Synchronized
     override fun processChangedBolusCalculatorResultsCompat(): Boolean {
         val lastDbIdWrapped = appRepository.getLastBolusCalculatorResultIdWrapped().blockingGet()
         val lastDbId = if (lastDbIdWrapped is ValueWrapper.Existing) lastDbIdWrapped.value else 0L
         var startId = sp.getLong(R.string.key_ns_bolus_calculator_result_last_synced_id, 0)
         if (startId > lastDbId) {
             sp.putLong(R.string.key_ns_bolus_calculator_result_last_synced_id, 0)
+            uploadWindow.reset(R.string.key_ns_bolus_calculator_result_last_synced_id)
             startId = 0
         }
         //if (startId == lastBcrId && dateUtil.now() - lastBcrTime < 5000) return false
         //lastBcrId = startId
         //lastBcrTime = dateUtil.now()
         queueCounter.bcrRemaining = lastDbId - startId
-        appRepository.getNextSyncElementBolusCalculatorResult(startId).blockingGet()?.let { bolusCalculatorResult ->
+        if (uploadWindow.isFull(R.string.key_ns_bolus_calculator_result_last_synced_id)) return true
+        appRepository.getNextSyncElementBolusCalculatorResult(uploadWindow.nextStartId(R.string.key_ns_bolus_calculator_result_last_synced_id, startId)).blockingGet()?.let { bolusCalculatorResult ->
+            // wait for ack of previous change of the same record
+            if (uploadWindow.isPending(R.string.key_ns_bolus_calculator_result_last_synced_id, bolusCalculatorResult.first.id)) return true
+            var sent: Boolean? = false
             aapsLogger.info(LTag.NSCLIENT, "Loading BolusCalculatorResult data Start: $startId ID: ${bolusCalculatorResult.first.id} HistoryID: ${bolusCalculatorResult.second.id} ")
             when {
                 // only NsId changed, no need to upload
@@ -284,7 +428,7 @@ class DataSyncSelectorImplementation @Inject constructor(
                 }
                 // without nsId = create new
                 bolusCalculatorResult.first.interfaceIDs.nightscoutId == null           ->
-                    nsClientPlugin.nsClientService?.dbAdd(
+                    sent = nsClientPlugin.nsClientService?.dbAdd(
                         "treatments",
                         bolusCalculatorResult.first.toJson(true, dateUtil),
                         DataSyncSelector.PairBolusCalculatorResult(bolusCalculatorResult.first, bolusCalculatorResult.second.id),
@@ -292,20 +436,26 @@ class DataSyncSelectorImplementation @Inject constructor(
                     )
                 // with nsId = update
                 bolusCalculatorResult.first.interfaceIDs.nightscoutId != null           ->
-                    nsClientPlugin.nsClientService?.dbUpdate(
+                    sent = nsClientPlugin.nsClientService?.dbUpdate(
                         "treatments", bolusCalculatorResult.first.interfaceIDs.nightscoutId, bolusCalculatorResult.first.toJson(false, dateUtil),
                         DataSyncSelector.PairBolusCalculatorResult(bolusCalculatorResult.first, bolusCalculatorResult.second.id), "$startId/$lastDbId"
                     )
             }
+            if (sent == true) {
+                uploadWindow.sent(R.string.key_ns_bolus_calculator_result_last_synced_id, bolusCalculatorResult.second.id, bolusCalculatorResult.first.id, dateUtil.now())
+                // fill the window
+                processChangedBolusCalculatorResultsCompat()
+            }
             return true
         }
         return false
     }
 
     override fun confirmLastTempTargetsIdIfGreater(lastSynced: Long) {
-        if (lastSynced > sp.getLong(R.string.key_ns_temporary_target_last_synced_id, 0)) {
-            aapsLogger.debug(LTag.NSCLIENT, "Setting TemporaryTarget data sync from $lastSynced")
-            sp.putLong(R.string.key_ns_temporary_target_last_synced_id, lastSynced)
+        val confirmed = uploadWindow.acked(R.string.key_ns_temporary_target_last_synced_id, lastSynced)
+        if (confirmed > sp.getLong(R.string.key_ns_temporary_target_last_synced_id, 0)) {
+            aapsLogger.debug(LTag.NSCLIENT, "Setting TemporaryTarget data sync from $confirmed")
+            sp.putLong(R.string.key_ns_temporary_target_last_synced_id, confirmed)
         }
     }
 
@@ -319,19 +469,25 @@ class DataSyncSelectorImplementation @Inject constructor(
 
     //private var lastTtId = -1L
     //private var lastTtTime = -1L
+    @Synchronized
     override fun processChangedTempTargetsCompat(): Boolean {
         val lastDbIdWrapped = appRepository.getLastTempTargetIdWrapped().blockingGet()
         val lastDbId = if (lastDbIdWrapped is ValueWrapper.Existing) lastDbIdWrapped.value else 0L
         var startId = sp.getLong(R.string.key_ns_temporary_target_last_synced_id, 0)
         if (startId > lastDbId) {
             sp.putLong(R.string.key_ns_temporary_target_last_synced_id, 0)
+            uploadWindow.reset(R.string.key_ns_temporary_target_last_synced_id)
             startId = 0
         }
         //if (startId == lastTtId && dateUtil.now() - lastTtTime < 5000) return false
         //lastTtId = startId
         //lastTtTime = dateUtil.now()
         queueCounter.ttsRemaining = lastDbId - startId
-        appRepository.getNextSyncElementTemporaryTarget(startId).blockingGet()?.let { tt ->
+        if (uploadWindow.isFull(R.string.key_ns_temporary_target_last_synced_id)) return true
+        appRepository.getNextSyncElementTemporaryTarget(uploadWindow.nextStartId(R.string.key_ns_temporary_target_last_synced_id, startId)).blockingGet()?.let { tt ->
+            // wait for ack of previous change of the same record
+            if (uploadWindow.isPending(R.string.key_ns_temporary_target_last_synced_id, tt.first.id)) return true
+            var sent: Boolean? = false
             aapsLogger.info(LTag.NSCLIENT, "Loading TemporaryTarget data Start: $startId ID: ${tt.first.id} HistoryID: ${tt.second.id} ")
             when {
                 // record is not valid record and we are within first sync, no need to upload
@@ -352,7 +508,7 @@ class DataSyncSelectorImplementation @Inject constructor(
                 }
                 // without nsId = create new
                 tt.first.interfaceIDs.nightscoutId == null ->
-                    nsClientPlugin.nsClientService?.dbAdd(
+                    sent = nsClientPlugin.nsClientService?.dbAdd(
                         "treatments",
                         tt.first.toJson(true, profileFunction.getUnits(), dateUtil),
                         DataSyncSelector.PairTemporaryTarget(tt.first, tt.second.id),
@@ -360,7 +516,7 @@ class DataSyncSelectorImplementation @Inject constructor(
                     )
                 // existing with nsId = update
                 tt.first.interfaceIDs.nightscoutId != null ->
-                    nsClientPlugin.nsClientService?.dbUpdate(
+                    sent = nsClientPlugin.nsClientService?.dbUpdate(
                         "treatments",
                         tt.first.interfaceIDs.nightscoutId,
                         tt.first.toJson(false, profileFunction.getUnits(), dateUtil),
@@ -368,15 +524,21 @@ class DataSyncSelectorImplementation @Inject constructor(
                         "$startId/$lastDbId"
                     )
             }
+            if (sent == true) {
+                uploadWindow.sent(R.string.key_ns_temporary_target_last_synced_id, tt.second.id, tt.first.id, dateUtil.now())
+                // fill the window
+                processChangedTempTargetsCompat()
+            }
             return true
         }
         return false
     }
 
     override fun confirmLastFoodIdIfGreater(lastSynced: Long) {
-        if (lastSynced > sp.getLong(R.string.key_ns_food_last_synced_id, 0)) {
-            aapsLogger.debug(LTag.NSCLIENT, "Setting Food data sync from $lastSynced")
-            sp.putLong(R.string.key_ns_food_last_synced_id, lastSynced)
+        val confirmed = uploadWindow.acked(R.string.key_ns_food_last_synced_id, lastSynced)
+        if (confirmed > sp.getLong(R.string.key_ns_food_last_synced_id, 0)) {
+            aapsLogger.debug(LTag.NSCLIENT, "Setting Food data sync from $confirmed")
+            sp.putLong(R.string.key_ns_food_last_synced_id, confirmed)
         }
     }
 
@@ -390,19 +552,25 @@ class DataSyncSelectorImplementation @Inject constructor(
 
     //private var lastFoodId = -1L
     //private var lastFoodTime = -1L
+    @Synchronized
     override fun processChangedFoodsCompat(): Boolean {
         val lastDbIdWrapped = appRepository.getLastFoodIdWrapped().blockingGet()
         val lastDbId = if (lastDbIdWrapped is ValueWrapper.Existing) lastDbIdWrapped.value else 0L
         var startId = sp.getLong(R.string.key_ns_food_last_synced_id, 0)
         if (startId > lastDbId) {
             sp.putLong(R.string.key_ns_food_last_synced_id, 0)
+            uploadWindow.reset(R.string.key_ns_food_last_synced_id)
             startId = 0
         }
         //if (startId == lastFoodId && dateUtil.now() - lastFoodTime < 5000) return false
         //lastFoodId = startId
         //lastFoodTime = dateUtil.now()
         queueCounter.foodsRemaining = lastDbId - startId
-        appRepository.getNextSyncElementFood(startId).blockingGet()?.let { food ->
+        if (uploadWindow.isFull(R.string.key_ns_food_last_synced_id)) return true
+        appRepository.getNextSyncElementFood(uploadWindow.nextStartId(R.string.key_ns_food_last_synced_id, startId)).blockingGet()?.let { food ->
+            // wait for ack of previous change of the same record
+            if (uploadWindow.isPending(R.string.key_ns_food_last_synced_id, food.first.id)) return true
+            var sent: Boolean? = false
             aapsLogger.info(LTag.NSCLIENT, "Loading Food data Start: $startId ID: ${food.first.id} HistoryID: ${food.second} ")
             when {
                 // only NsId changed, no need to upload
@@ -415,10 +583,10 @@ class DataSyncSelectorImplementation @Inject constructor(
                 }
                 // without nsId = create new
                 food.first.interfaceIDs.nightscoutId == null ->
-                    nsClientPlugin.nsClientService?.dbAdd("food", food.first.toJson(true), DataSyncSelector.PairFood(food.first, food.second.id), "$startId/$lastDbId")
+                    sent = nsClientPlugin.nsClientService?.dbAdd("food", food.first.toJson(true), DataSyncSelector.PairFood(food.first, food.second.id), "$startId/$lastDbId")
                 // with nsId = update
                 food.first.interfaceIDs.nightscoutId != null ->
-                    nsClientPlugin.nsClientService?.dbUpdate(
+                    sent = nsClientPlugin.nsClientService?.dbUpdate(
                         "food",
                         food.first.interfaceIDs.nightscoutId,
                         food.first.toJson(false),
@@ -426,15 +594,21 @@ class DataSyncSelectorImplementation @Inject constructor(
                         "$startId/$lastDbId"
                     )
             }
+            if (sent == true) {
+                uploadWindow.sent(R.string.key_ns_food_last_synced_id, food.second.id, food.first.id, dateUtil.now())
+                // fill the window
+                processChangedFoodsCompat()
+            }
             return true
         }
         return false
     }
 
     override fun confirmLastGlucoseValueIdIfGreater(lastSynced: Long) {
-        if (lastSynced > sp.getLong(R.string.key_ns_glucose_value_last_synced_id, 0)) {
-            aapsLogger.debug(LTag.NSCLIENT, "Setting GlucoseValue data sync from $lastSynced")
-            sp.putLong(R.string.key_ns_glucose_value_last_synced_id, lastSynced)
+        val confirmed = uploadWindow.acked(R.string.key_ns_glucose_value_last_synced_id, lastSynced)
+        if (confirmed > sp.getLong(R.string.key_ns_glucose_value_last_synced_id, 0)) {
+            aapsLogger.debug(LTag.NSCLIENT, "Setting GlucoseValue data sync from $confirmed")
+            sp.putLong(R.string.key_ns_glucose_value_last_synced_id, confirmed)
         }
     }
 
@@ -448,20 +622,27 @@ class DataSyncSelectorImplementation @Inject constructor(
 
     //private var lastGvId = -1L
     //private var lastGvTime = -1L
+    @Synchronized
     override tailrec fun processChangedGlucoseValuesCompat() {
         val lastDbIdWrapped = appRepository.getLastGlucoseValueIdWrapped().blockingGet()
         val lastDbId = if (lastDbIdWrapped is ValueWrapper.Existing) lastDbIdWrapped.value else 0L
         var startId = sp.getLong(R.string.key_ns_glucose_value_last_synced_id, 0)
         if (startId > lastDbId) {
             sp.putLong(R.string.key_ns_glucose_value_last_synced_id, 0)
+            uploadWindow.reset(R.string.key_ns_glucose_value_last_synced_id)
             startId = 0
         }
         //if (startId == lastGvId && dateUtil.now() - lastGvTime < 5000) return false
         //lastGvId = startId
         //lastGvTime = dateUtil.now()
+        if (batchUpload() && processChangedGlucoseValuesBatch()) return
         queueCounter.gvsRemaining = lastDbId - startId
         var tailCall = false
-        appRepository.getNextSyncElementGlucoseValue(startId).blockingGet()?.let { gv ->
+        if (uploadWindow.isFull(R.string.key_ns_glucose_value_last_synced_id)) return
+        appRepository.getNextSyncElementGlucoseValue(uploadWindow.nextStartId(R.string.key_ns_glucose_value_last_synced_id, startId)).blockingGet()?.let { gv ->
+            // wait for ack of previous change of the same record
+            if (uploadWindow.isPending(R.string.key_ns_glucose_value_last_synced_id, gv.first.id)) return
+            var sent: Boolean? = false
             aapsLogger.info(LTag.NSCLIENT, "Loading GlucoseValue data ID: ${gv.first.id} HistoryID: ${gv.second.id} ")
             if (activePlugin.activeBgSource.shouldUploadToNs(gv.first)) {
                 when {
@@ -481,10 +662,10 @@ class DataSyncSelectorImplementation @Inject constructor(
                     }
                     // without nsId = create new
                     gv.first.interfaceIDs.nightscoutId == null ->
-                        nsClientPlugin.nsClientService?.dbAdd("entries", gv.first.toJson(true, dateUtil), DataSyncSelector.PairGlucoseValue(gv.first, gv.second.id), "$startId/$lastDbId")
+                        sent = nsClientPlugin.nsClientService?.dbAdd("entries", gv.first.toJson(true, dateUtil), DataSyncSelector.PairGlucoseValue(gv.first, gv.second.id), "$startId/$lastDbId")
                     // with nsId = update
                     else ->  //  gv.first.interfaceIDs.nightscoutId != null
-                        nsClientPlugin.nsClientService?.dbUpdate(
+                        sent = nsClientPlugin.nsClientService?.dbUpdate(
                             "entries",
                             gv.first.interfaceIDs.nightscoutId,
                             gv.first.toJson(false, dateUtil),
@@ -497,16 +678,60 @@ class DataSyncSelectorImplementation @Inject constructor(
                 //lastGvId = -1
                 tailCall = true
             }
+            if (sent == true) {
+                uploadWindow.sent(R.string.key_ns_glucose_value_last_synced_id, gv.second.id, gv.first.id, dateUtil.now())
+                // fill the window
+                tailCall = true
+            }
         }
         if (tailCall) {
             processChangedGlucoseValuesCompat()
         }
     }
 
+    /**
+     * Uploads new glucose values BATCH_SIZE records per request, sync id is moved after each batch
+     *
+     * @return false if next record is an update which must be sent by single record path
+     *         or single record uploads wait for ack
+     */
+    @Synchronized
+    private fun processChangedGlucoseValuesBatch(): Boolean {
+        // records sent by single record path get NS id with ack, until then batch would upload them again
+        if (!uploadWindow.isEmpty(R.string.key_ns_glucose_value_last_synced_id)) return false
+        while (true) {
+            val lastDbIdWrapped = appRepository.getLastGlucoseValueIdWrapped().blockingGet()
+            val lastDbId = if (lastDbIdWrapped is ValueWrapper.Existing) lastDbIdWrapped.value else 0L
+            val startId = sp.getLong(R.string.key_ns_glucose_value_last_synced_id, 0)
+            val newDataId = sp.getLong(R.string.key_ns_glucose_value_new_data_id, 0)
+            queueCounter.gvsRemaining = lastDbId - startId
+            val elements = appRepository.getNextSyncElementsGlucoseValue(startId, BATCH_SIZE).blockingGet()
+            if (elements.isEmpty()) return true
+            // the same conditions as in processChangedGlucoseValuesCompat
+            val ignored = { gv: Pair<GlucoseValue, GlucoseValue> ->
+                !activePlugin.activeBgSource.shouldUploadToNs(gv.first) ||
+                    gv.first.id != gv.second.id && gv.second.id <= newDataId ||
+                    gv.first.onlyNsIdAdded(gv.second)
+            }
+            val batch = elements.takeWhile { gv -> ignored(gv) || gv.first.interfaceIDs.nightscoutId == null }
+            if (batch.isEmpty()) return false
+            // more history records can point to the same current record, upload it once
+            val toAdd = batch.filterNot(ignored).distinctBy { gv -> gv.first.id }
+            if (toAdd.isNotEmpty()) {
+                val nsIds = uploadBatch("entries", toAdd.map { gv -> gv.first.toJson(true, dateUtil) }, "$startId/$lastDbId") ?: return true
+                toAdd.forEachIndexed { i, gv -> gv.first.interfaceIDs.nightscoutId = nsIds[i] }
+                appRepository.runTransaction(UpdateNsIdsTransaction(glucoseValues = toAdd.map { gv -> gv.first })).blockingAwait()
+            }
+            aapsLogger.info(LTag.NSCLIENT, "GlucoseValue batch Start: $startId Records: ${batch.size} Uploaded: ${toAdd.size}")
+            moveBatchSyncId(R.string.key_ns_glucose_value_last_synced_id, batch.last().second.id)
+        }
+    }
+
     override fun confirmLastTherapyEventIdIfGreater(lastSynced: Long) {
-        if (lastSynced > sp.getLong(R.string.key_ns_therapy_event_last_synced_id, 0)) {
-            aapsLogger.debug(LTag.NSCLIENT, "Setting TherapyEvents data sync from $lastSynced")
-            sp.putLong(R.string.key_ns_therapy_event_last_synced_id, lastSynced)
+        val confirmed = uploadWindow.acked(R.string.key_ns_therapy_event_last_synced_id, lastSynced)
+        if (confirmed > sp.getLong(R.string.key_ns_therapy_event_last_synced_id, 0)) {
+            aapsLogger.debug(LTag.NSCLIENT, "Setting TherapyEvents data sync from $confirmed")
+            sp.putLong(R.string.key_ns_therapy_event_last_synced_id, confirmed)
         }
     }
 
@@ -520,19 +745,25 @@ class DataSyncSelectorImplementation @Inject constructor(
 
     //private var lastTeId = -1L
     //private var lastTeTime = -1L
+    @Synchronized
     override fun processChangedTherapyEventsCompat(): Boolean {
         val lastDbIdWrapped = appRepository.getLastTherapyEventIdWrapped().blockingGet()
         val lastDbId = if (lastDbIdWrapped is ValueWrapper.Existing) lastDbIdWrapped.value else 0L
         var startId = sp.getLong(R.string.key_ns_therapy_event_last_synced_id, 0)
         if (startId > lastDbId) {
             sp.putLong(R.string.key_ns_therapy_event_last_synced_id, 0)
+            uploadWindow.reset(R.string.key_ns_therapy_event_last_synced_id)
             startId = 0
         }
         //if (startId == lastTeId && dateUtil.now() - lastTeTime < 5000) return false
         //lastTeId = startId
         //lastTeTime = dateUtil.now()
         queueCounter.tesRemaining = lastDbId - startId
-        appRepository.getNextSyncElementTherapyEvent(startId).blockingGet()?.let { te ->
+        if (uploadWindow.isFull(R.string.key_ns_therapy_event_last_synced_id)) return true
+        appRepository.getNextSyncElementTherapyEvent(uploadWindow.nextStartId(R.string.key_ns_therapy_event_last_synced_id, startId)).blockingGet()?.let { te ->
+            // wait for ack of previous change of the same record
+            if (uploadWindow.isPending(R.string.key_ns_therapy_event_last_synced_id, te.first.id)) return true
+            var sent: Boolean? = false
             aapsLogger.info(LTag.NSCLIENT, "Loading TherapyEvents data Start: $startId ID: ${te.first.id} HistoryID: ${te.second} ")
             when {
                 // only NsId changed, no need to upload
@@ -545,10 +776,10 @@ class DataSyncSelectorImplementation @Inject constructor(
                 }
                 // without nsId = create new
                 te.first.interfaceIDs.nightscoutId == null ->
-                    nsClientPlugin.nsClientService?.dbAdd("treatments", te.first.toJson(true, dateUtil), DataSyncSelector.PairTherapyEvent(te.first, te.second.id), "$startId/$lastDbId")
+                    sent = nsClientPlugin.nsClientService?.dbAdd("treatments", te.first.toJson(true, dateUtil), DataSyncSelector.PairTherapyEvent(te.first, te.second.id), "$startId/$lastDbId")
                 // nsId = update
                 te.first.interfaceIDs.nightscoutId != null ->
-                    nsClientPlugin.nsClientService?.dbUpdate(
+                    sent = nsClientPlugin.nsClientService?.dbUpdate(
                         "treatments",
                         te.first.interfaceIDs.nightscoutId,
                         te.first.toJson(false, dateUtil),
@@ -556,15 +787,21 @@ class DataSyncSelectorImplementation @Inject constructor(
                         "$startId/$lastDbId"
                     )
             }
+            if (sent == true) {
+                uploadWindow.sent(R.string.key_ns_therapy_event_last_synced_id, te.second.id, te.first.id, dateUtil.now())
+                // fill the window
+                processChangedTherapyEventsCompat()
+            }
             return true
         }
         return false
     }
 
     override fun confirmLastDeviceStatusIdIfGreater(lastSynced: Long) {
-        if (lastSynced > sp.getLong(R.string.key_ns_device_status_last_synced_id, 0)) {
-            aapsLogger.debug(LTag.NSCLIENT, "Setting DeviceStatus data sync from $lastSynced")
-            sp.putLong(R.string.key_ns_device_status_last_synced_id, lastSynced)
+        val confirmed = uploadWindow.acked(R.string.key_ns_device_status_last_synced_id, lastSynced)
+        if (confirmed > sp.getLong(R.string.key_ns_device_status_last_synced_id, 0)) {
+            aapsLogger.debug(LTag.NSCLIENT, "Setting DeviceStatus data sync from $confirmed")
+            sp.putLong(R.string.key_ns_device_status_last_synced_id, confirmed)
         }
     }
 
@@ -577,36 +814,71 @@ class DataSyncSelectorImplementation @Inject constructor(
 
     //private var lastDsId = -1L
     //private var lastDsTime = -1L
+    @Synchronized
     override fun processChangedDeviceStatusesCompat(): Boolean {
         val lastDbIdWrapped = appRepository.getLastDeviceStatusIdWrapped().blockingGet()
         val lastDbId = if (lastDbIdWrapped is ValueWrapper.Existing) lastDbIdWrapped.value else 0L
         var startId = sp.getLong(R.string.key_ns_device_status_last_synced_id, 0)
         if (startId > lastDbId) {
             sp.putLong(R.string.key_ns_device_status_last_synced_id, 0)
+            uploadWindow.reset(R.string.key_ns_device_status_last_synced_id)
             startId = 0
         }
         //if (startId == lastDsId && dateUtil.now() - lastDsTime < 5000) return false
         //lastDsId = startId
         //lastDsTime = dateUtil.now()
+        if (batchUpload() && processChangedDeviceStatusesBatch()) return true
         queueCounter.dssRemaining = lastDbId - startId
-        appRepository.getNextSyncElementDeviceStatus(startId).blockingGet()?.let { deviceStatus ->
+        if (uploadWindow.isFull(R.string.key_ns_device_status_last_synced_id)) return true
+        appRepository.getNextSyncElementDeviceStatus(uploadWindow.nextStartId(R.string.key_ns_device_status_last_synced_id, startId)).blockingGet()?.let { deviceStatus ->
+            var sent: Boolean? = false
             aapsLogger.info(LTag.NSCLIENT, "Loading DeviceStatus data Start: $startId ID: ${deviceStatus.id}")
             when {
                 // without nsId = create new
                 deviceStatus.interfaceIDs.nightscoutId == null ->
-                    nsClientPlugin.nsClientService?.dbAdd("devicestatus", deviceStatus.toJson(dateUtil), deviceStatus, "$startId/$lastDbId")
+                    sent = nsClientPlugin.nsClientService?.dbAdd("devicestatus", deviceStatus.toJson(dateUtil), deviceStatus, "$startId/$lastDbId")
                 // with nsId = ignore
                 deviceStatus.interfaceIDs.nightscoutId != null -> Any()
             }
+            if (sent == true) {
+                uploadWindow.sent(R.string.key_ns_device_status_last_synced_id, deviceStatus.id, deviceStatus.id, dateUtil.now())
+                // fill the window
+                processChangedDeviceStatusesCompat()
+            }
             return true
         }
         return false
     }
 
+    /**
+     * Uploads device statuses BATCH_SIZE records per request, sync id is moved after each batch
+     *
+     * @return true, device statuses are never updated, false if single record uploads wait for ack
+     */
+    @Synchronized
+    private fun processChangedDeviceStatusesBatch(): Boolean {
+        // records sent by single record path get NS id with ack, until then batch would upload them again
+        if (!uploadWindow.isEmpty(R.string.key_ns_device_status_last_synced_id)) return false
+        while (true) {
+            val lastDbIdWrapped = appRepository.getLastDeviceStatusIdWrapped().blockingGet()
+            val lastDbId = if (lastDbIdWrapped is ValueWrapper.Existing) lastDbIdWrapped.value else 0L
+            val startId = sp.getLong(R.string.key_ns_device_status_last_synced_id, 0)
+            queueCounter.dssRemaining = lastDbId - startId
+            val batch = appRepository.getNextSyncElementsDeviceStatus(startId, BATCH_SIZE).blockingGet()
+            if (batch.isEmpty()) return true
+            val nsIds = uploadBatch("devicestatus", batch.map { deviceStatus -> deviceStatus.toJson(dateUtil) }, "$startId/$lastDbId") ?: return true
+            batch.forEachIndexed { i, deviceStatus -> deviceStatus.interfaceIDs.nightscoutId = nsIds[i] }
+            appRepository.runTransaction(UpdateNsIdsTransaction(deviceStatuses = batch)).blockingAwait()
+            aapsLogger.info(LTag.NSCLIENT, "DeviceStatus batch Start: $startId Uploaded: ${batch.size}")
+            moveBatchSyncId(R.string.key_ns_device_status_last_synced_id, batch.last().id)
+        }
+    }
+
     override fun confirmLastTemporaryBasalIdIfGreater(lastSynced: Long) {
-        if (lastSynced > sp.getLong(R.string.key_ns_temporary_basal_last_synced_id, 0)) {
-            aapsLogger.debug(LTag.NSCLIENT, "Setting TemporaryBasal data sync from $lastSynced")
-            sp.putLong(R.string.key_ns_temporary_basal_last_synced_id, lastSynced)
+        val confirmed = uploadWindow.acked(R.string.key_ns_temporary_basal_last_synced_id, lastSynced)
+        if (confirmed > sp.getLong(R.string.key_ns_temporary_basal_last_synced_id, 0)) {
+            aapsLogger.debug(LTag.NSCLIENT, "Setting TemporaryBasal data sync from $confirmed")
+            sp.putLong(R.string.key_ns_temporary_basal_last_synced_id, confirmed)
         }
     }
 
@@ -620,19 +892,25 @@ class DataSyncSelectorImplementation @Inject constructor(
 
     //private var lastTbrId = -1L
     //private var lastTbrTime = -1L
+    @Synchronized
     override fun processChangedTemporaryBasalsCompat(): Boolean {
         val lastDbIdWrapped = appRepository.getLastTemporaryBasalIdWrapped().blockingGet()
         val lastDbId = if (lastDbIdWrapped is ValueWrapper.Existing) lastDbIdWrapped.value else 0L
         var startId = sp.getLong(R.string.key_ns_temporary_basal_last_synced_id, 0)
         if (startId > lastDbId) {
             sp.putLong(R.string.key_ns_temporary_basal_last_synced_id, 0)
+            uploadWindow.reset(R.string.key_ns_temporary_basal_last_synced_id)
             startId = 0
         }
         //if (startId == lastTbrId && dateUtil.now() - lastTbrTime < 5000) return false
         //lastTbrId = startId
         //lastTbrTime = dateUtil.now()
         queueCounter.tbrsRemaining = lastDbId - startId
-        appRepository.getNextSyncElementTemporaryBasal(startId).blockingGet()?.let { tb ->
+        if (uploadWindow.isFull(R.string.key_ns_temporary_basal_last_synced_id)) return true
+        appRepository.getNextSyncElementTemporaryBasal(uploadWindow.nextStartId(R.string.key_ns_temporary_basal_last_synced_id, startId)).blockingGet()?.let { tb ->
+            // wait for ack of previous change of the same record
+            if (uploadWindow.isPending(R.string.key_ns_temporary_basal_last_synced_id, tb.first.id)) return true
+            var sent: Boolean? = false
             aapsLogger.info(LTag.NSCLIENT, "Loading TemporaryBasal data Start: $startId ID: ${tb.first.id} HistoryID: ${tb.second} ")
             val profile = profileFunction.getProfile(tb.first.timestamp)
             if (profile != null) {
@@ -655,7 +933,7 @@ class DataSyncSelectorImplementation @Inject constructor(
                     }
                     // without nsId = create new
                     tb.first.interfaceIDs.nightscoutId == null ->
-                        nsClientPlugin.nsClientService?.dbAdd(
+                        sent = nsClientPlugin.nsClientService?.dbAdd(
                             "treatments",
                             tb.first.toJson(true, profile, dateUtil),
                             DataSyncSelector.PairTemporaryBasal(tb.first, tb.second.id),
@@ -663,7 +941,7 @@ class DataSyncSelectorImplementation @Inject constructor(
                         )
                     // with nsId = update
                     tb.first.interfaceIDs.nightscoutId != null ->
-                        nsClientPlugin.nsClientService?.dbUpdate(
+                        sent = nsClientPlugin.nsClientService?.dbUpdate(
                             "treatments",
                             tb.first.interfaceIDs.nightscoutId,
                             tb.first.toJson(false, profile, dateUtil),
@@ -671,6 +949,11 @@ class DataSyncSelectorImplementation @Inject constructor(
                             "$startId/$lastDbId"
                         )
                 }
+                if (sent == true) {
+                    uploadWindow.sent(R.string.key_ns_temporary_basal_last_synced_id, tb.second.id, tb.first.id, dateUtil.now())
+                    // fill the window
+                    processChangedTemporaryBasalsCompat()
+                }
                 return true
             } else {
                 confirmLastTemporaryBasalIdIfGreater(tb.second.id)
@@ -682,9 +965,10 @@ class DataSyncSelectorImplementation @Inject constructor(
     }
 
     override fun confirmLastExtendedBolusIdIfGreater(lastSynced: Long) {
-        if (lastSynced > sp.getLong(R.string.key_ns_extended_bolus_last_synced_id, 0)) {
-            aapsLogger.debug(LTag.NSCLIENT, "Setting ExtendedBolus data sync from $lastSynced")
-            sp.putLong(R.string.key_ns_extended_bolus_last_synced_id, lastSynced)
+        val confirmed = uploadWindow.acked(R.string.key_ns_extended_bolus_last_synced_id, lastSynced)
+        if (confirmed > sp.getLong(R.string.key_ns_extended_bolus_last_synced_id, 0)) {
+            aapsLogger.debug(LTag.NSCLIENT, "Setting ExtendedBolus data sync from $confirmed")
+            sp.putLong(R.string.key_ns_extended_bolus_last_synced_id, confirmed)
         }
     }
 
@@ -698,19 +982,25 @@ class DataSyncSelectorImplementation @Inject constructor(
 
     //private var lastEbId = -1L
     //private var lastEbTime = -1L
+    @Synchronized
     override fun processChangedExtendedBolusesCompat(): Boolean {
         val lastDbIdWrapped = appRepository.getLastExtendedBolusIdWrapped().blockingGet()
         val lastDbId = if (lastDbIdWrapped is ValueWrapper.Existing) lastDbIdWrapped.value else 0L
         var startId = sp.getLong(R.string.key_ns_extended_bolus_last_synced_id, 0)
         if (startId > lastDbId) {
             sp.putLong(R.string.key_ns_extended_bolus_last_synced_id, 0)
+            uploadWindow.reset(R.string.key_ns_extended_bolus_last_synced_id)
             startId = 0
         }
         //if (startId == lastEbId && dateUtil.now() - lastEbTime < 5000) return false
         //lastEbId = startId
         //lastEbTime = dateUtil.now()
         queueCounter.ebsRemaining = lastDbId - startId
-        appRepository.getNextSyncElementExtendedBolus(startId).blockingGet()?.let { eb ->
+        if (uploadWindow.isFull(R.string.key_ns_extended_bolus_last_synced_id)) return true
+        appRepository.getNextSyncElementExtendedBolus(uploadWindow.nextStartId(R.string.key_ns_extended_bolus_last_synced_id, startId)).blockingGet()?.let { eb ->
+            // wait for ack of previous change of the same record
+            if (uploadWindow.isPending(R.string.key_ns_extended_bolus_last_synced_id, eb.first.id)) return true
+            var sent: Boolean? = false
             aapsLogger.info(LTag.NSCLIENT, "Loading ExtendedBolus data Start: $startId ID: ${eb.first.id} HistoryID: ${eb.second} ")
             val profile = profileFunction.getProfile(eb.first.timestamp)
             if (profile != null) {
@@ -733,7 +1023,7 @@ class DataSyncSelectorImplementation @Inject constructor(
                     }
                     // without nsId = create new
                     eb.first.interfaceIDs.nightscoutId == null ->
-                        nsClientPlugin.nsClientService?.dbAdd(
+                        sent = nsClientPlugin.nsClientService?.dbAdd(
                             "treatments",
                             eb.first.toJson(true, profile, dateUtil),
                             DataSyncSelector.PairExtendedBolus(eb.first, eb.second.id),
@@ -741,7 +1031,7 @@ class DataSyncSelectorImplementation @Inject constructor(
                         )
                     // with nsId = update
                     eb.first.interfaceIDs.nightscoutId != null ->
-                        nsClientPlugin.nsClientService?.dbUpdate(
+                        sent = nsClientPlugin.nsClientService?.dbUpdate(
                             "treatments",
                             eb.first.interfaceIDs.nightscoutId,
                             eb.first.toJson(false, profile, dateUtil),
@@ -749,6 +1039,11 @@ class DataSyncSelectorImplementation @Inject constructor(
                             "$startId/$lastDbId"
                         )
                 }
+                if (sent == true) {
+                    uploadWindow.sent(R.string.key_ns_extended_bolus_last_synced_id, eb.second.id, eb.first.id, dateUtil.now())
+                    // fill the window
+                    processChangedExtendedBolusesCompat()
+                }
                 return true
             } else {
                 confirmLastExtendedBolusIdIfGreater(eb.second.id)
@@ -760,9 +1055,10 @@ class DataSyncSelectorImplementation @Inject constructor(
     }
 
     override fun confirmLastProfileSwitchIdIfGreater(lastSynced: Long) {
-        if (lastSynced > sp.getLong(R.string.key_ns_profile_switch_last_synced_id, 0)) {
-            aapsLogger.debug(LTag.NSCLIENT, "Setting ProfileSwitch data sync from $lastSynced")
-            sp.putLong(R.string.key_ns_profile_switch_last_synced_id, lastSynced)
+        val confirmed = uploadWindow.acked(R.string.key_ns_profile_switch_last_synced_id, lastSynced)
+        if (confirmed > sp.getLong(R.string.key_ns_profile_switch_last_synced_id, 0)) {
+            aapsLogger.debug(LTag.NSCLIENT, "Setting ProfileSwitch data sync from $confirmed")
+            sp.putLong(R.string.key_ns_profile_switch_last_synced_id, confirmed)
         }
     }
 
@@ -775,19 +1071,25 @@ class DataSyncSelectorImplementation @Inject constructor(
 
     //private var lastPsId = -1L
     //private var lastPsTime = -1L
+    @Synchronized
     override fun processChangedProfileSwitchesCompat(): Boolean {
         val lastDbIdWrapped = appRepository.getLastProfileSwitchIdWrapped().blockingGet()
         val lastDbId = if (lastDbIdWrapped is ValueWrapper.Existing) lastDbIdWrapped.value else 0L
         var startId = sp.getLong(R.string.key_ns_profile_switch_last_synced_id, 0)
         if (startId > lastDbId) {
             sp.putLong(R.string.key_ns_profile_switch_last_synced_id, 0)
+            uploadWindow.reset(R.string.key_ns_profile_switch_last_synced_id)
             startId = 0
         }
         //if (startId == lastPsId && dateUtil.now() - lastPsTime < 5000) return false
         //lastPsId = startId
         //lastPsTime = dateUtil.now()
         queueCounter.pssRemaining = lastDbId - startId
-        appRepository.getNextSyncElementProfileSwitch(startId).blockingGet()?.let { ps ->
+        if (uploadWindow.isFull(R.string.key_ns_profile_switch_last_synced_id)) return true
+        appRepository.getNextSyncElementProfileSwitch(uploadWindow.nextStartId(R.string.key_ns_profile_switch_last_synced_id, startId)).blockingGet()?.let { ps ->
+            // wait for ack of previous change of the same record
+            if (uploadWindow.isPending(R.string.key_ns_profile_switch_last_synced_id, ps.first.id)) return true
+            var sent: Boolean? = false
             aapsLogger.info(LTag.NSCLIENT, "Loading ProfileSwitch data Start: $startId ID: ${ps.first.id} HistoryID: ${ps.second} ")
             when {
                 // only NsId changed, no need to upload
@@ -800,10 +1102,10 @@ class DataSyncSelectorImplementation @Inject constructor(
                 }
                 // without nsId = create new
                 ps.first.interfaceIDs.nightscoutId == null ->
-                    nsClientPlugin.nsClientService?.dbAdd("treatments", ps.first.toJson(true, dateUtil), DataSyncSelector.PairProfileSwitch(ps.first, ps.second.id), "$startId/$lastDbId")
+                    sent = nsClientPlugin.nsClientService?.dbAdd("treatments", ps.first.toJson(true, dateUtil), DataSyncSelector.PairProfileSwitch(ps.first, ps.second.id), "$startId/$lastDbId")
                 // with nsId = update
                 ps.first.interfaceIDs.nightscoutId != null ->
-                    nsClientPlugin.nsClientService?.dbUpdate(
+                    sent = nsClientPlugin.nsClientService?.dbUpdate(
                         "treatments",
                         ps.first.interfaceIDs.nightscoutId,
                         ps.first.toJson(false, dateUtil),
@@ -811,15 +1113,21 @@ class DataSyncSelectorImplementation @Inject constructor(
                         "$startId/$lastDbId"
                     )
             }
+            if (sent == true) {
+                uploadWindow.sent(R.string.key_ns_profile_switch_last_synced_id, ps.second.id, ps.first.id, dateUtil.now())
+                // fill the window
+                processChangedProfileSwitchesCompat()
+            }
             return true
         }
         return false
     }
 
     override fun confirmLastEffectiveProfileSwitchIdIfGreater(lastSynced: Long) {
-        if (lastSynced > sp.getLong(R.string.key_ns_effective_profile_switch_last_synced_id, 0)) {
-            aapsLogger.debug(LTag.NSCLIENT, "Setting EffectiveProfileSwitch data sync from $lastSynced")
-            sp.putLong(R.string.key_ns_effective_profile_switch_last_synced_id, lastSynced)
+        val confirmed = uploadWindow.acked(R.string.key_ns_effective_profile_switch_last_synced_id, lastSynced)
+        if (confirmed > sp.getLong(R.string.key_ns_effective_profile_switch_last_synced_id, 0)) {
+            aapsLogger.debug(LTag.NSCLIENT, "Setting EffectiveProfileSwitch data sync from $confirmed")
+            sp.putLong(R.string.key_ns_effective_profile_switch_last_synced_id, confirmed)
         }
     }
 
@@ -832,19 +1140,25 @@ class DataSyncSelectorImplementation @Inject constructor(
 
     //private var lastEpsId = -1L
     //private var lastEpsTime = -1L
+    @Synchronized
     override fun processChangedEffectiveProfileSwitchesCompat(): Boolean {
         val lastDbIdWrapped = appRepository.getLastEffectiveProfileSwitchIdWrapped().blockingGet()
         val lastDbId = if (lastDbIdWrapped is ValueWrapper.Existing) lastDbIdWrapped.value else 0L
         var startId = sp.getLong(R.string.key_ns_effective_profile_switch_last_synced_id, 0)
         if (startId > lastDbId) {
             sp.putLong(R.string.key_ns_effective_profile_switch_last_synced_id, 0)
+            uploadWindow.reset(R.string.key_ns_effective_profile_switch_last_synced_id)
             startId = 0
         }
         //if (startId == lastEpsId && dateUtil.now() - lastEpsTime < 5000) return false
         //lastEpsId = startId
         //lastEpsTime = dateUtil.now()
         queueCounter.epssRemaining = lastDbId - startId
-        appRepository.getNextSyncElementEffectiveProfileSwitch(startId).blockingGet()?.let { ps ->
+        if (uploadWindow.isFull(R.string.key_ns_effective_profile_switch_last_synced_id)) return true
+        appRepository.getNextSyncElementEffectiveProfileSwitch(uploadWindow.nextStartId(R.string.key_ns_effective_profile_switch_last_synced_id, startId)).blockingGet()?.let { ps ->
+            // wait for ack of previous change of the same record
+            if (uploadWindow.isPending(R.string.key_ns_effective_profile_switch_last_synced_id, ps.first.id)) return true
+            var sent: Boolean? = false
             aapsLogger.info(LTag.NSCLIENT, "Loading EffectiveProfileSwitch data Start: $startId ID: ${ps.first.id} HistoryID: ${ps.second} ")
             when {
                 // only NsId changed, no need to upload
@@ -857,10 +1171,10 @@ class DataSyncSelectorImplementation @Inject constructor(
                 }
                 // without nsId = create new
                 ps.first.interfaceIDs.nightscoutId == null ->
-                    nsClientPlugin.nsClientService?.dbAdd("treatments", ps.first.toJson(true, dateUtil), DataSyncSelector.PairEffectiveProfileSwitch(ps.first, ps.second.id), "$startId/$lastDbId")
+                    sent = nsClientPlugin.nsClientService?.dbAdd("treatments", ps.first.toJson(true, dateUtil), DataSyncSelector.PairEffectiveProfileSwitch(ps.first, ps.second.id), "$startId/$lastDbId")
                 // with nsId = update
                 ps.first.interfaceIDs.nightscoutId != null ->
-                    nsClientPlugin.nsClientService?.dbUpdate(
+                    sent = nsClientPlugin.nsClientService?.dbUpdate(
                         "treatments",
                         ps.first.interfaceIDs.nightscoutId,
                         ps.first.toJson(false, dateUtil),
@@ -868,15 +1182,21 @@ class DataSyncSelectorImplementation @Inject constructor(
                         "$startId/$lastDbId"
                     )
             }
+            if (sent == true) {
+                uploadWindow.sent(R.string.key_ns_effective_profile_switch_last_synced_id, ps.second.id, ps.first.id, dateUtil.now())
+                // fill the window
+                processChangedEffectiveProfileSwitchesCompat()
+            }
             return true
         }
         return false
     }
 
     override fun confirmLastOfflineEventIdIfGreater(lastSynced: Long) {
-        if (lastSynced > sp.getLong(R.string.key_ns_offline_event_last_synced_id, 0)) {
-            aapsLogger.debug(LTag.NSCLIENT, "Setting OfflineEvent data sync from $lastSynced")
-            sp.putLong(R.string.key_ns_offline_event_last_synced_id, lastSynced)
+        val confirmed = uploadWindow.acked(R.string.key_ns_offline_event_last_synced_id, lastSynced)
+        if (confirmed > sp.getLong(R.string.key_ns_offline_event_last_synced_id, 0)) {
+            aapsLogger.debug(LTag.NSCLIENT, "Setting OfflineEvent data sync from $confirmed")
+            sp.putLong(R.string.key_ns_offline_event_last_synced_id, confirmed)
         }
     }
 
@@ -890,19 +1210,25 @@ class DataSyncSelectorImplementation @Inject constructor(
 
     //private var lastOeId = -1L
     //private var lastOeTime = -1L
+    @Synchronized
     override fun processChangedOfflineEventsCompat(): Boolean {
         val lastDbIdWrapped = appRepository.getLastOfflineEventIdWrapped().blockingGet()
         val lastDbId = if (lastDbIdWrapped is ValueWrapper.Existing) lastDbIdWrapped.value else 0L
         var startId = sp.getLong(R.string.key_ns_offline_event_last_synced_id, 0)
         if (startId > lastDbId) {
             sp.putLong(R.string.key_ns_offline_event_last_synced_id, 0)
+            uploadWindow.reset(R.string.key_ns_offline_event_last_synced_id)
             startId = 0
         }
         //if (startId == lastOeId && dateUtil.now() - lastOeTime < 5000) return false
         //lastOeId = startId
         //lastOeTime = dateUtil.now()
         queueCounter.oesRemaining = lastDbId - startId
-        appRepository.getNextSyncElementOfflineEvent(startId).blockingGet()?.let { oe ->
+        if (uploadWindow.isFull(R.string.key_ns_offline_event_last_synced_id)) return true
+        appRepository.getNextSyncElementOfflineEvent(uploadWindow.nextStartId(R.string.key_ns_offline_event_last_synced_id, startId)).blockingGet()?.let { oe ->
+            // wait for ack of previous change of the same record
+            if (uploadWindow.isPending(R.string.key_ns_offline_event_last_synced_id, oe.first.id)) return true
+            var sent: Boolean? = false
             aapsLogger.info(LTag.NSCLIENT, "Loading OfflineEvent data Start: $startId ID: ${oe.first.id} HistoryID: ${oe.second} ")
             when {
                 // only NsId changed, no need to upload
@@ -915,10 +1241,10 @@ class DataSyncSelectorImplementation @Inject constructor(
                 }
                 // without nsId = create new
                 oe.first.interfaceIDs.nightscoutId == null ->
-                    nsClientPlugin.nsClientService?.dbAdd("treatments", oe.first.toJson(true, dateUtil), DataSyncSelector.PairOfflineEvent(oe.first, oe.second.id), "$startId/$lastDbId")
+                    sent = nsClientPlugin.nsClientService?.dbAdd("treatments", oe.first.toJson(true, dateUtil), DataSyncSelector.PairOfflineEvent(oe.first, oe.second.id), "$startId/$lastDbId")
                 // existing with nsId = update
                 oe.first.interfaceIDs.nightscoutId != null ->
-                    nsClientPlugin.nsClientService?.dbUpdate(
+                    sent = nsClientPlugin.nsClientService?.dbUpdate(
                         "treatments",
                         oe.first.interfaceIDs.nightscoutId,
                         oe.first.toJson(false, dateUtil),
@@ -926,6 +1252,11 @@ class DataSyncSelectorImplementation @Inject constructor(
                         "$startId/$lastDbId"
                     )
             }
+            if (sent == true) {
+                uploadWindow.sent(R.string.key_ns_offline_event_last_synced_id, oe.second.id, oe.first.id, dateUtil.now())
+                // fill the window
+                processChangedOfflineEventsCompat()
+            }
             return true
         }
         return false
@@ -944,4 +1275,10 @@ class DataSyncSelectorImplementation @Inject constructor(
             nsClientPlugin.nsClientService?.dbAdd("profile", profileJson, DataSyncSelector.PairProfileStore(profileJson, dateUtil.now()), "")
         }
     }
+
+    companion object {
+
+        // records per request in batch upload
+        const val BATCH_SIZE = 250
+    }
 }
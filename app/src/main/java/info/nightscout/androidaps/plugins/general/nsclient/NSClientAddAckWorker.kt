@@ -2,6 +2,7 @@ package info.nightscout.androidaps.plugins.general.nsclient
 
 import android.content.Context
 import android.os.SystemClock
+import androidx.work.ListenableWorker.Result
 import androidx.work.Worker
 import androidx.work.WorkerParameters
 import androidx.work.workDataOf
@@ -18,9 +19,9 @@ import info.nightscout.androidaps.plugins.bus.RxBus
 import info.nightscout.androidaps.plugins.general.nsclient.acks.NSAddAck
 import info.nightscout.androidaps.plugins.general.nsclient.events.EventNSClientNewLog
 import info.nightscout.androidaps.receivers.DataWorker
-import info.nightscout.androidaps.utils.rx.AapsSchedulers
 import info.nightscout.shared.sharedPreferences.SP
 import javax.inject.Inject
+import javax.inject.Singleton
 
 class NSClientAddAckWorker(
     context: Context,
@@ -28,18 +29,34 @@ class NSClientAddAckWorker(
 ) : Worker(context, params) {
 
     @Inject lateinit var dataWorker: DataWorker
-    @Inject lateinit var aapsLogger: AAPSLogger
-    @Inject lateinit var repository: AppRepository
-    @Inject lateinit var rxBus: RxBus
-    @Inject lateinit var dataSyncSelector: DataSyncSelector
-    @Inject lateinit var aapsSchedulers: AapsSchedulers
-    @Inject lateinit var sp: SP
+    @Inject lateinit var nsClientAddAckProcessor: NSClientAddAckProcessor
 
     override fun doWork(): Result {
-        var ret = Result.success()
-
         val ack = dataWorker.pickupObject(inputData.getLong(DataWorker.STORE_KEY, -1)) as NSAddAck?
             ?: return Result.failure(workDataOf("Error" to "missing input data"))
+        return nsClientAddAckProcessor.process(ack)
+    }
+
+    init {
+        (context.applicationContext as HasAndroidInjector).androidInjector().inject(this)
+    }
+}
+
+/**
+ * Stores NS id of acknowledged record and sends next one.
+ * Called directly by [NSClientPipeline] or by [NSClientAddAckWorker] when app is in background.
+ */
+@Singleton
+class NSClientAddAckProcessor @Inject constructor(
+    private val aapsLogger: AAPSLogger,
+    private val repository: AppRepository,
+    private val rxBus: RxBus,
+    private val dataSyncSelector: DataSyncSelector,
+    private val sp: SP
+) {
+
+    fun process(ack: NSAddAck): Result {
+        var ret = Result.success()
 
         if (sp.getBoolean(R.string.key_ns_sync_slow, false)) SystemClock.sleep(1000)
 
@@ -299,8 +316,4 @@ class NSClientAddAckWorker(
         }
         return ret
     }
-
-    init {
-        (context.applicationContext as HasAndroidInjector).androidInjector().inject(this)
-    }
 }
\ No newline at end of file
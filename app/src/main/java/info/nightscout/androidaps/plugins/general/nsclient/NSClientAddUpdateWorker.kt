@@ -1,6 +1,7 @@
 package info.nightscout.androidaps.plugins.general.nsclient
 
 import android.content.Context
+import androidx.work.ListenableWorker.Result
 import androidx.work.Worker
 import androidx.work.WorkerParameters
 import androidx.work.workDataOf
@@ -29,31 +30,50 @@ import info.nightscout.androidaps.utils.JsonHelper
 import info.nightscout.androidaps.utils.JsonHelper.safeGetLong
 import info.nightscout.androidaps.utils.buildHelper.BuildHelper
 import info.nightscout.shared.sharedPreferences.SP
+import org.json.JSONArray
 import java.util.concurrent.TimeUnit
 import javax.inject.Inject
+import javax.inject.Singleton
 
 class NSClientAddUpdateWorker(
     context: Context,
     params: WorkerParameters
 ) : Worker(context, params) {
 
-    @Inject lateinit var nsClientPlugin: NSClientPlugin
     @Inject lateinit var dataWorker: DataWorker
-    @Inject lateinit var aapsLogger: AAPSLogger
-    @Inject lateinit var buildHelper: BuildHelper
-    @Inject lateinit var sp: SP
-    @Inject lateinit var dateUtil: DateUtil
-    @Inject lateinit var config: Config
-    @Inject lateinit var repository: AppRepository
-    @Inject lateinit var activePlugin: ActivePlugin
-    @Inject lateinit var rxBus: RxBus
-    @Inject lateinit var uel: UserEntryLogger
-    @Inject lateinit var virtualPumpPlugin: VirtualPumpPlugin
+    @Inject lateinit var nsClientAddUpdateProcessor: NSClientAddUpdateProcessor
 
     override fun doWork(): Result {
         val treatments = dataWorker.pickupJSONArray(inputData.getLong(DataWorker.STORE_KEY, -1))
             ?: return Result.failure(workDataOf("Error" to "missing input data"))
+        return nsClientAddUpdateProcessor.process(treatments)
+    }
+
+    init {
+        (context.applicationContext as HasAndroidInjector).androidInjector().inject(this)
+    }
+}
 
+/**
+ * Stores treatments received from NS.
+ * Called directly by [NSClientPipeline] or by [NSClientAddUpdateWorker] when app is in background.
+ */
+@Singleton
+class NSClientAddUpdateProcessor @Inject constructor(
+    private val nsClientPlugin: NSClientPlugin,
+    private val aapsLogger: AAPSLogger,
+    private val buildHelper: BuildHelper,
+    private val sp: SP,
+    private val dateUtil: DateUtil,
+    private val config: Config,
+    private val repository: AppRepository,
+    private val activePlugin: ActivePlugin,
+    private val rxBus: RxBus,
+    private val uel: UserEntryLogger,
+    private val virtualPumpPlugin: VirtualPumpPlugin
+) {
+
+    fun process(treatments: JSONArray): Result {
         var ret = Result.success()
         var latestDateInReceivedData = 0L
 
@@ -484,8 +504,4 @@ class NSClientAddUpdateWorker(
         nsClientPlugin.updateLatestDateReceivedIfNewer(latestDateInReceivedData)
         return ret
     }
-
-    init {
-        (context.applicationContext as HasAndroidInjector).androidInjector().inject(this)
-    }
 }
\ No newline at end of file
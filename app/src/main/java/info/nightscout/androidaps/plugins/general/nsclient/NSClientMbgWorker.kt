@@ -1,6 +1,7 @@
 package info.nightscout.androidaps.plugins.general.nsclient
 
 import android.content.Context
+import androidx.work.ListenableWorker.Result
 import androidx.work.Worker
 import androidx.work.WorkerParameters
 import androidx.work.workDataOf
@@ -14,30 +15,48 @@ import info.nightscout.shared.logging.AAPSLogger
 import info.nightscout.shared.logging.LTag
 import info.nightscout.androidaps.plugins.general.nsclient.data.NSMbg
 import info.nightscout.androidaps.receivers.DataWorker
-import info.nightscout.androidaps.utils.buildHelper.BuildHelper
 import info.nightscout.shared.sharedPreferences.SP
+import org.json.JSONArray
 import javax.inject.Inject
+import javax.inject.Singleton
 
 class NSClientMbgWorker(
     context: Context,
     params: WorkerParameters
 ) : Worker(context, params) {
 
-    @Inject lateinit var repository: AppRepository
     @Inject lateinit var dataWorker: DataWorker
-    @Inject lateinit var aapsLogger: AAPSLogger
-    @Inject lateinit var sp: SP
-    @Inject lateinit var buildHelper: BuildHelper
-    @Inject lateinit var config: Config
+    @Inject lateinit var nsClientMbgProcessor: NSClientMbgProcessor
 
     override fun doWork(): Result {
+        val mbgArray = dataWorker.pickupJSONArray(inputData.getLong(DataWorker.STORE_KEY, -1))
+            ?: return Result.failure(workDataOf("Error" to "missing input data"))
+        return nsClientMbgProcessor.process(mbgArray)
+    }
+
+    init {
+        (context.applicationContext as HasAndroidInjector).androidInjector().inject(this)
+    }
+}
+
+/**
+ * Stores finger BG checks received from NS.
+ * Called directly by [NSClientPipeline] or by [NSClientMbgWorker] when app is in background.
+ */
+@Singleton
+class NSClientMbgProcessor @Inject constructor(
+    private val repository: AppRepository,
+    private val aapsLogger: AAPSLogger,
+    private val sp: SP,
+    private val config: Config
+) {
+
+    fun process(mbgArray: JSONArray): Result {
         var ret = Result.success()
 
         val acceptNSData = sp.getBoolean(R.string.key_ns_receive_therapy_events, false) || config.NSCLIENT
         if (!acceptNSData) return Result.success(workDataOf("Result" to "Sync not enabled"))
 
-        val mbgArray = dataWorker.pickupJSONArray(inputData.getLong(DataWorker.STORE_KEY, -1))
-            ?: return Result.failure(workDataOf("Error" to "missing input data"))
         for (i in 0 until mbgArray.length()) {
             val nsMbg = NSMbg(mbgArray.getJSONObject(i))
             if (!nsMbg.isValid()) continue
@@ -53,8 +72,4 @@ class NSClientMbgWorker(
         }
         return ret
     }
-
-    init {
-        (context.applicationContext as HasAndroidInjector).androidInjector().inject(this)
-    }
 }
\ No newline at end of file
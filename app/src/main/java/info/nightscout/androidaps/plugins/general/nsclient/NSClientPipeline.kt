@@ -0,0 +1,190 @@
+package info.nightscout.androidaps.plugins.general.nsclient
+
+import androidx.annotation.VisibleForTesting
+import androidx.lifecycle.Lifecycle
+import androidx.lifecycle.ProcessLifecycleOwner
+import androidx.work.ListenableWorker
+import androidx.work.OneTimeWorkRequest
+import info.nightscout.androidaps.annotations.OpenForTesting
+import info.nightscout.androidaps.plugins.general.nsclient.acks.NSAddAck
+import info.nightscout.androidaps.plugins.general.nsclient.acks.NSUpdateAck
+import info.nightscout.androidaps.plugins.general.nsclient.data.NSDataChunker
+import info.nightscout.androidaps.plugins.source.NSClientSourcePlugin
+import info.nightscout.androidaps.receivers.DataWorker
+import info.nightscout.shared.logging.AAPSLogger
+import info.nightscout.shared.logging.LTag
+import org.json.JSONArray
+import java.util.concurrent.LinkedBlockingDeque
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.ReentrantLock
+import javax.inject.Inject
+import javax.inject.Singleton
+import kotlin.concurrent.withLock
+
+/**
+ * Processes acks and data received from NS in process on one background thread.
+ *
+ * Queue is bounded, producer waits if it's full. Consecutive dataUpdate arrays
+ * of the same kind waiting in the queue are merged and processed at once.
+ * When app is in background or queue doesn't free up in time work goes to WorkManager.
+ *
+ * Tasks are processed in order by one executor at a time: when work goes to WorkManager
+ * while older tasks are still in process, they are passed to WorkManager first by the processing thread,
+ * and tasks stay in WorkManager until its chain is finished.
+ */
+@OpenForTesting
+@Singleton
+class NSClientPipeline @Inject constructor(
+    private val aapsLogger: AAPSLogger,
+    private val dataWorker: DataWorker,
+    private val nsClientAddAckProcessor: NSClientAddAckProcessor,
+    private val nsClientUpdateRemoveAckProcessor: NSClientUpdateRemoveAckProcessor,
+    private val nsClientAddUpdateProcessor: NSClientAddUpdateProcessor,
+    private val nsClientMbgProcessor: NSClientMbgProcessor,
+    private val nsClientSourceProcessor: NSClientSourcePlugin.NSClientSourceProcessor
+) {
+
+    private enum class Kind(val batch: Boolean) { ADD_ACK(false), UPDATE_ACK(false), TREATMENTS(true), MBGS(true), SGVS(true) }
+    private class Task(val kind: Kind, val payload: Any, val count: Int = 1)
+
+    // capacity is checked in submit, forwarded tasks must fit in
+    private val queue = LinkedBlockingDeque<Task>()
+    private val lock = ReentrantLock()
+    private val notFull = lock.newCondition()
+
+    // tasks in queue or processed, changed under lock
+    private val pending = AtomicInteger()
+
+    // tasks in process are passed to WorkManager, changed under lock
+    private val forwarding = AtomicBoolean()
+
+    private val workManagerUsed = AtomicBoolean()
+    private val thread = Thread(::loop, "NSClientPipeline").also {
+        it.isDaemon = true
+        it.start()
+    }
+
+    fun addAck(ack: NSAddAck) = submit(Task(Kind.ADD_ACK, ack))
+    fun updateAck(ack: NSUpdateAck) = submit(Task(Kind.UPDATE_ACK, ack))
+    fun treatments(treatments: JSONArray) = submit(Task(Kind.TREATMENTS, treatments))
+    fun mbgs(mbgs: JSONArray) = submit(Task(Kind.MBGS, mbgs))
+    fun sgvs(sgvs: JSONArray) = submit(Task(Kind.SGVS, sgvs))
+
+    /**
+     * WorkManager survives process being frozen or killed in background, direct processing doesn't
+     */
+    fun isForeground(): Boolean = ProcessLifecycleOwner.get().lifecycle.currentState.isAtLeast(Lifecycle.State.STARTED)
+
+    @VisibleForTesting fun queueSize() = queue.size
+
+    private fun submit(task: Task) {
+        lock.withLock {
+            if (!forwarding.get() && isForeground() && thread.isAlive && !isWorkManagerBusy()) {
+                // back-pressure: socket thread waits for processing to catch up
+                var remaining = TimeUnit.SECONDS.toNanos(OFFER_TIMEOUT_SECONDS)
+                while (queue.size >= CAPACITY && remaining > 0) remaining = notFull.awaitNanos(remaining)
+                if (queue.size < CAPACITY) {
+                    queue.putLast(task)
+                    pending.incrementAndGet()
+                    return
+                }
+                aapsLogger.debug(LTag.NSCLIENT, "Pipeline full, passing to WorkManager")
+            }
+            if (pending.get() == 0) enqueue(task)
+            else {
+                // older tasks must not run in parallel with or after this one, processing thread passes them to WorkManager first
+                forwarding.set(true)
+                queue.putLast(task)
+                pending.incrementAndGet()
+            }
+        }
+    }
+
+    /**
+     * @return true while tasks passed to WorkManager are not finished
+     */
+    private fun isWorkManagerBusy(): Boolean {
+        if (workManagerUsed.get()) workManagerUsed.set(dataWorker.hasPendingWork())
+        return workManagerUsed.get()
+    }
+
+    private fun enqueue(task: Task) {
+        workManagerUsed.set(true)
+        val worker = when (task.kind) {
+            Kind.ADD_ACK    -> NSClientAddAckWorker::class.java
+            Kind.UPDATE_ACK -> NSClientUpdateRemoveAckWorker::class.java
+            Kind.TREATMENTS -> NSClientAddUpdateWorker::class.java
+            Kind.MBGS       -> NSClientMbgWorker::class.java
+            Kind.SGVS       -> NSClientSourcePlugin.NSClientSourceWorker::class.java
+        }
+        dataWorker.enqueue(
+            OneTimeWorkRequest.Builder(worker)
+                .setInputData(dataWorker.storeInputData(task.payload))
+                .build()
+        )
+    }
+
+    private fun loop() {
+        while (true) {
+            val first = try {
+                queue.takeFirst()
+            } catch (e: InterruptedException) {
+                return
+            }
+            var count = first.count
+            if (forwarding.get()) enqueue(first)
+            else try {
+                val task = coalesce(first)
+                count = task.count
+                val result = process(task)
+                if (result is ListenableWorker.Result.Failure) aapsLogger.error(LTag.NSCLIENT, "Processing of ${task.kind} failed ${result.outputData}")
+            } catch (e: Exception) {
+                aapsLogger.error(LTag.NSCLIENT, "Unhandled exception", e)
+            }
+            lock.withLock {
+                if (pending.addAndGet(-count) == 0) forwarding.set(false)
+                notFull.signalAll()
+            }
+        }
+    }
+
+    /**
+     * Append arrays of following tasks of the same kind up to chunk size, order against other tasks is kept
+     */
+    private fun coalesce(first: Task): Task {
+        if (!first.kind.batch) return first
+        val firstData = first.payload as JSONArray
+        var merged: JSONArray? = null
+        var count = 1
+        while (true) {
+            val next = queue.peekFirst() ?: break
+            val data = next.payload as? JSONArray ?: break
+            if (next.kind != first.kind || (merged ?: firstData).length() + data.length() > NSDataChunker.CHUNK_SIZE) break
+            queue.pollFirst()
+            merged = merged ?: JSONArray().also { append(it, firstData) }
+            append(merged, data)
+            count++
+        }
+        return merged?.let { Task(first.kind, it, count) } ?: first
+    }
+
+    private fun append(target: JSONArray, source: JSONArray) {
+        for (i in 0 until source.length()) target.put(source.get(i))
+    }
+
+    private fun process(task: Task): ListenableWorker.Result = when (task.kind) {
+        Kind.ADD_ACK    -> nsClientAddAckProcessor.process(task.payload as NSAddAck)
+        Kind.UPDATE_ACK -> nsClientUpdateRemoveAckProcessor.process(task.payload as NSUpdateAck)
+        Kind.TREATMENTS -> nsClientAddUpdateProcessor.process(task.payload as JSONArray)
+        Kind.MBGS       -> nsClientMbgProcessor.process(task.payload as JSONArray)
+        Kind.SGVS       -> nsClientSourceProcessor.process(task.payload as JSONArray)
+    }
+
+    companion object {
+
+        const val CAPACITY = 64
+        private const val OFFER_TIMEOUT_SECONDS = 10L
+    }
+}
@@ -1,20 +1,19 @@
 package info.nightscout.androidaps.plugins.general.nsclient
 
 import android.content.Context
+import androidx.work.ListenableWorker.Result
 import androidx.work.Worker
 import androidx.work.WorkerParameters
 import androidx.work.workDataOf
 import dagger.android.HasAndroidInjector
-import info.nightscout.androidaps.database.AppRepository
 import info.nightscout.androidaps.interfaces.DataSyncSelector
 import info.nightscout.androidaps.interfaces.DataSyncSelector.*
-import info.nightscout.shared.logging.AAPSLogger
 import info.nightscout.androidaps.plugins.bus.RxBus
 import info.nightscout.androidaps.plugins.general.nsclient.acks.NSUpdateAck
 import info.nightscout.androidaps.plugins.general.nsclient.events.EventNSClientNewLog
 import info.nightscout.androidaps.receivers.DataWorker
-import info.nightscout.androidaps.utils.rx.AapsSchedulers
 import javax.inject.Inject
+import javax.inject.Singleton
 
 class NSClientUpdateRemoveAckWorker(
     context: Context,
@@ -22,17 +21,31 @@ class NSClientUpdateRemoveAckWorker(
 ) : Worker(context, params) {
 
     @Inject lateinit var dataWorker: DataWorker
-    @Inject lateinit var aapsLogger: AAPSLogger
-    @Inject lateinit var repository: AppRepository
-    @Inject lateinit var rxBus: RxBus
-    @Inject lateinit var dataSyncSelector: DataSyncSelector
-    @Inject lateinit var aapsSchedulers: AapsSchedulers
+    @Inject lateinit var nsClientUpdateRemoveAckProcessor: NSClientUpdateRemoveAckProcessor
 
     override fun doWork(): Result {
-        var ret = Result.success()
-
         val ack = dataWorker.pickupObject(inputData.getLong(DataWorker.STORE_KEY, -1)) as NSUpdateAck?
             ?: return Result.failure(workDataOf("Error" to "missing input data"))
+        return nsClientUpdateRemoveAckProcessor.process(ack)
+    }
+
+    init {
+        (context.applicationContext as HasAndroidInjector).androidInjector().inject(this)
+    }
+}
+
+/**
+ * Moves sync id over acknowledged update and sends next one.
+ * Called directly by [NSClientPipeline] or by [NSClientUpdateRemoveAckWorker] when app is in background.
+ */
+@Singleton
+class NSClientUpdateRemoveAckProcessor @Inject constructor(
+    private val rxBus: RxBus,
+    private val dataSyncSelector: DataSyncSelector
+) {
+
+    fun process(ack: NSUpdateAck): Result {
+        var ret = Result.success()
 
         // new room way
         when (ack.originalObject) {
@@ -146,8 +159,4 @@ class NSClientUpdateRemoveAckWorker(
         }
         return ret
     }
-
-    init {
-        (context.applicationContext as HasAndroidInjector).androidInjector().inject(this)
-    }
 }
\ No newline at end of file
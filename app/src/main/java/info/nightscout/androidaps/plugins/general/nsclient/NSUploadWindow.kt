@@ -0,0 +1,76 @@
+package info.nightscout.androidaps.plugins.general.nsclient
+
+import java.util.*
+
+/**
+ * Tracks records sent to NS and not acknowledged yet, per sync id key.
+ *
+ * Up to size records can be in flight. Acks may come in any order, sync id
+ * may move only to the highest id without older record still in flight.
+ * Records not acknowledged within timeout are forgotten and picked again.
+ */
+class NSUploadWindow(private val size: () -> Int, private val timeout: Long = 60 * 1000L) {
+
+    private class InFlight(val recordId: Long, val sent: Long)
+
+    private class Queue {
+
+        val inFlight = TreeMap<Long, InFlight>()  // by update record id
+        val acked = TreeSet<Long>()               // acked ids waiting for older records
+        var lastHandled = 0L
+    }
+
+    private val queues = HashMap<Int, Queue>()
+
+    private fun queue(key: Int) = queues.getOrPut(key) { Queue() }
+
+    @Synchronized fun isEmpty(key: Int): Boolean = queue(key).inFlight.isEmpty()
+
+    @Synchronized fun isFull(key: Int): Boolean = queue(key).inFlight.size >= size().coerceAtLeast(1)
+
+    /**
+     * @return true if previous change of the same record is still waiting for ack
+     */
+    @Synchronized fun isPending(key: Int, recordId: Long): Boolean = queue(key).inFlight.values.any { it.recordId == recordId }
+
+    /**
+     * @return id to look for next record from, records up to this id are sent or handled already
+     */
+    @Synchronized fun nextStartId(key: Int, syncedId: Long): Long = maxOf(syncedId, queue(key).lastHandled)
+
+    @Synchronized fun sent(key: Int, updateRecordId: Long, recordId: Long, now: Long) {
+        val queue = queue(key)
+        queue.inFlight[updateRecordId] = InFlight(recordId, now)
+        queue.lastHandled = maxOf(queue.lastHandled, updateRecordId)
+    }
+
+    /**
+     * Record was acknowledged or didn't need upload
+     *
+     * @return id up to which everything is acknowledged, 0 if sync id cannot move
+     */
+    @Synchronized fun acked(key: Int, updateRecordId: Long): Long {
+        val queue = queue(key)
+        queue.inFlight.remove(updateRecordId)
+        queue.lastHandled = maxOf(queue.lastHandled, updateRecordId)
+        queue.acked.add(updateRecordId)
+        val confirmed = if (queue.inFlight.isEmpty()) queue.acked else queue.acked.headSet(queue.inFlight.firstKey())
+        if (confirmed.isEmpty()) return 0
+        return confirmed.last().also { confirmed.clear() }
+    }
+
+    /**
+     * Forget records without ack so they are sent again
+     */
+    @Synchronized fun expire(now: Long) {
+        queues.values.removeAll { queue -> queue.inFlight.values.any { it.sent < now - timeout } }
+    }
+
+    @Synchronized fun reset(key: Int) {
+        queues.remove(key)
+    }
+
+    @Synchronized fun reset() {
+        queues.clear()
+    }
+}
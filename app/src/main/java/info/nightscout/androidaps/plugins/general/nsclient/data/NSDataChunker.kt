@@ -0,0 +1,26 @@
+package info.nightscout.androidaps.plugins.general.nsclient.data
+
+import org.json.JSONArray
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Splits dataUpdate collections growing with time of disconnection (treatments, sgvs, mbgs) to chunks of fixed size
+ * so DB transactions and objects created by processing don't depend on length of catch-up.
+ *
+ * Payload is already parsed by socket.io before it reaches NSClientService, only processing is chunked.
+ */
+@Singleton
+class NSDataChunker @Inject constructor() {
+
+    fun chunks(array: JSONArray, chunkSize: Int = CHUNK_SIZE): List<JSONArray> =
+        if (array.length() <= chunkSize) listOf(array)
+        else (0 until array.length() step chunkSize).map { start ->
+            JSONArray().also { chunk -> for (i in start until minOf(start + chunkSize, array.length())) chunk.put(array.get(i)) }
+        }
+
+    companion object {
+
+        const val CHUNK_SIZE = 500
+    }
+}
@@ -0,0 +1,48 @@
+package info.nightscout.androidaps.plugins.general.nsclient.services
+
+import okhttp3.MediaType.Companion.toMediaType
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.RequestBody.Companion.toRequestBody
+import org.json.JSONArray
+import java.io.IOException
+import java.util.concurrent.TimeUnit
+
+/**
+ * Uploads many documents in one request to NS REST api v1.
+ * Socket dbAdd accepts one document only, REST POST accepts array and returns created documents in the same order.
+ */
+class NSBulkUploader(
+    private val client: OkHttpClient = OkHttpClient.Builder()
+        .connectTimeout(30, TimeUnit.SECONDS)
+        .readTimeout(60, TimeUnit.SECONDS)
+        .build()
+) {
+
+    /**
+     * Synchronous, don't call on main thread
+     *
+     * @param baseUrl NS url
+     * @param apiSecretHash SHA1 of api secret
+     * @param collection entries, treatments, devicestatus
+     * @return documents created by NS, empty array if NS doesn't return them
+     */
+    fun upload(baseUrl: String, apiSecretHash: String, collection: String, documents: JSONArray): JSONArray {
+        val request = Request.Builder()
+            .url(baseUrl.trimEnd('/') + "/api/v1/" + collection)
+            .header("api-secret", apiSecretHash)
+            .header("Accept", "application/json")
+            .post(documents.toString().toRequestBody(JSON))
+            .build()
+        client.newCall(request).execute().use { response ->
+            val body = response.body?.string() ?: ""
+            if (!response.isSuccessful) throw IOException("HTTP ${response.code} $body")
+            return if (body.trimStart().startsWith("[")) JSONArray(body) else JSONArray()
+        }
+    }
+
+    companion object {
+
+        private val JSON = "application/json; charset=utf-8".toMediaType()
+    }
+}
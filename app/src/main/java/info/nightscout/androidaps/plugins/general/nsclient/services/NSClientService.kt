@@ -24,6 +24,7 @@ import info.nightscout.androidaps.plugins.general.nsclient.acks.NSAuthAck
 import info.nightscout.androidaps.plugins.general.nsclient.acks.NSUpdateAck
 import info.nightscout.androidaps.plugins.general.nsclient.data.AlarmAck
 import info.nightscout.androidaps.plugins.general.nsclient.data.NSAlarm
+import info.nightscout.androidaps.plugins.general.nsclient.data.NSDataChunker
 import info.nightscout.androidaps.plugins.general.nsclient.data.NSDeviceStatus
 import info.nightscout.androidaps.plugins.general.nsclient.data.NSSettingsStatus
 import info.nightscout.androidaps.plugins.general.nsclient.events.EventNSClientNewLog
@@ -35,7 +36,6 @@ import info.nightscout.androidaps.plugins.general.overview.events.EventNewNotifi
 import info.nightscout.androidaps.plugins.general.overview.notifications.Notification
 import info.nightscout.androidaps.plugins.general.overview.notifications.NotificationWithAction
 import info.nightscout.androidaps.plugins.profile.local.LocalProfilePlugin
-import info.nightscout.androidaps.plugins.source.NSClientSourcePlugin.NSClientSourceWorker
 import info.nightscout.androidaps.receivers.DataWorker
 import info.nightscout.androidaps.utils.DateUtil
 import info.nightscout.androidaps.utils.FabricPrivacy
@@ -76,6 +76,8 @@ class NSClientService : DaggerService() {
     @Inject lateinit var config: Config
     @Inject lateinit var dateUtil: DateUtil
     @Inject lateinit var dataWorker: DataWorker
+    @Inject lateinit var nsClientPipeline: NSClientPipeline
+    @Inject lateinit var nsDataChunker: NSDataChunker
     @Inject lateinit var dataSyncSelector: DataSyncSelector
     @Inject lateinit var repository: AppRepository
     @Inject lateinit var xDripBroadcast: XDripBroadcast
@@ -101,6 +103,7 @@ class NSClientService : DaggerService() {
     private val nsHours = 48
     private var lastAckTime: Long = 0
     private var nsApiHashCode = ""
+    private val bulkUploader = NSBulkUploader()
     private val reconnections = ArrayList<Long>()
 
     var isConnected = false
@@ -188,20 +191,12 @@ class NSClientService : DaggerService() {
 
     private fun processAddAck(ack: NSAddAck) {
         lastAckTime = dateUtil.now()
-        dataWorker.enqueue(
-            OneTimeWorkRequest.Builder(NSClientAddAckWorker::class.java)
-                .setInputData(dataWorker.storeInputData(ack, null))
-                .build()
-        )
+        nsClientPipeline.addAck(ack)
     }
 
     private fun processUpdateAck(ack: NSUpdateAck) {
         lastAckTime = dateUtil.now()
-        dataWorker.enqueue(
-            OneTimeWorkRequest.Builder(NSClientUpdateRemoveAckWorker::class.java)
-                .setInputData(dataWorker.storeInputData(ack, null))
-                .build()
-        )
+        nsClientPipeline.updateAck(ack)
     }
 
     private fun processAuthAck(ack: NSAuthAck) {
@@ -491,21 +486,19 @@ class NSClientService : DaggerService() {
                     }
                     if (data.has("treatments")) {
                         val treatments = data.getJSONArray("treatments")
-                        val addedOrUpdatedTreatments = JSONArray()
                         if (treatments.length() > 0) rxBus.send(EventNSClientNewLog("DATA", "received " + treatments.length() + " treatments"))
-                        for (index in 0 until treatments.length()) {
-                            val jsonTreatment = treatments.getJSONObject(index)
-                            val action = safeGetStringAllowNull(jsonTreatment, "action", null)
-                            if (action == null) addedOrUpdatedTreatments.put(jsonTreatment)
-                            else if (action == "update") addedOrUpdatedTreatments.put(jsonTreatment)
-                        }
-                        if (addedOrUpdatedTreatments.length() > 0) {
-                            dataWorker.enqueue(
-                                OneTimeWorkRequest.Builder(NSClientAddUpdateWorker::class.java)
-                                    .setInputData(dataWorker.storeInputData(addedOrUpdatedTreatments, null))
-                                    .build()
-                            )
-                            xDripBroadcast.sendTreatments(addedOrUpdatedTreatments)
+                        for (chunk in nsDataChunker.chunks(treatments)) {
+                            val addedOrUpdatedTreatments = JSONArray()
+                            for (index in 0 until chunk.length()) {
+                                val jsonTreatment = chunk.getJSONObject(index)
+                                val action = safeGetStringAllowNull(jsonTreatment, "action", null)
+                                if (action == null) addedOrUpdatedTreatments.put(jsonTreatment)
+                                else if (action == "update") addedOrUpdatedTreatments.put(jsonTreatment)
+                            }
+                            if (addedOrUpdatedTreatments.length() > 0) {
+                                nsClientPipeline.treatments(addedOrUpdatedTreatments)
+                                xDripBroadcast.sendTreatments(addedOrUpdatedTreatments)
+                            }
                         }
                     }
                     if (data.has("devicestatus")) {
@@ -527,11 +520,7 @@ class NSClientService : DaggerService() {
                     if (data.has("mbgs")) {
                         val mbgArray = data.getJSONArray("mbgs")
                         if (mbgArray.length() > 0) rxBus.send(EventNSClientNewLog("DATA", "received " + mbgArray.length() + " mbgs"))
-                        dataWorker.enqueue(
-                            OneTimeWorkRequest.Builder(NSClientMbgWorker::class.java)
-                                .setInputData(dataWorker.storeInputData(mbgArray, null))
-                                .build()
-                        )
+                        nsDataChunker.chunks(mbgArray).forEach { nsClientPipeline.mbgs(it) }
                     }
                     if (data.has("cals")) {
                         val cals = data.getJSONArray("cals")
@@ -544,12 +533,10 @@ class NSClientService : DaggerService() {
                             rxBus.send(EventNSClientNewLog("DATA", "received " + sgvs.length() + " sgvs"))
                             // Objective0
                             sp.putBoolean(R.string.key_ObjectivesbgIsAvailableInNS, true)
-                            dataWorker.enqueue(
-                                OneTimeWorkRequest.Builder(NSClientSourceWorker::class.java)
-                                    .setInputData(dataWorker.storeInputData(sgvs, null))
-                                    .build()
-                            )
-                            xDripBroadcast.sendSgvs(sgvs)
+                            for (chunk in nsDataChunker.chunks(sgvs)) {
+                                nsClientPipeline.sgvs(chunk)
+                                xDripBroadcast.sendSgvs(chunk)
+                            }
                         }
                     }
                     rxBus.send(EventNSClientNewLog("LAST", dateUtil.dateAndTimeString(latestDateInReceivedData)))
@@ -563,37 +550,66 @@ class NSClientService : DaggerService() {
         }
     }
 
-    fun dbUpdate(collection: String, _id: String?, data: JSONObject?, originalObject: Any, progress: String) {
+    /**
+     * @return true if message was emitted and ack can be expected
+     */
+    fun dbUpdate(collection: String, _id: String?, data: JSONObject?, originalObject: Any, progress: String): Boolean {
         try {
-            if (_id == null) return
-            if (!isConnected || !hasWriteAuth) return
+            if (_id == null) return false
+            if (!isConnected || !hasWriteAuth) return false
             val message = JSONObject()
             message.put("collection", collection)
             message.put("_id", _id)
             message.put("data", data)
-            socket?.emit("dbUpdate", message, NSUpdateAck("dbUpdate", _id, aapsLogger, rxBus, originalObject))
+            socket?.emit("dbUpdate", message, NSUpdateAck("dbUpdate", _id, aapsLogger, rxBus, originalObject)) ?: return false
             rxBus.send(
                 EventNSClientNewLog(
                     "DBUPDATE $collection", "Sent " + originalObject.javaClass.simpleName + " " +
                         "" + _id + " " + data + progress
                 )
             )
+            return true
         } catch (e: JSONException) {
             aapsLogger.error("Unhandled exception", e)
         }
+        return false
     }
 
-    fun dbAdd(collection: String, data: JSONObject, originalObject: Any, progress: String) {
+    /**
+     * @return true if message was emitted and ack can be expected
+     */
+    fun dbAdd(collection: String, data: JSONObject, originalObject: Any, progress: String): Boolean {
         try {
-            if (!isConnected || !hasWriteAuth) return
+            if (!isConnected || !hasWriteAuth) return false
             val message = JSONObject()
             message.put("collection", collection)
             message.put("data", data)
-            socket?.emit("dbAdd", message, NSAddAck(aapsLogger, rxBus, originalObject))
+            socket?.emit("dbAdd", message, NSAddAck(aapsLogger, rxBus, originalObject)) ?: return false
             rxBus.send(EventNSClientNewLog("DBADD $collection", "Sent " + originalObject.javaClass.simpleName + " " + data + " " + progress))
+            return true
         } catch (e: JSONException) {
             aapsLogger.error("Unhandled exception", e)
         }
+        return false
+    }
+
+    /**
+     * Upload of many documents in one REST request, synchronous
+     *
+     * @return documents created by NS in the same order, null on failure
+     */
+    fun dbAddBulk(collection: String, data: JSONArray, progress: String): JSONArray? {
+        if (!isConnected || !hasWriteAuth) return null
+        return try {
+            bulkUploader.upload(nsURL, nsApiHashCode, collection, data).also {
+                lastAckTime = dateUtil.now()
+                rxBus.send(EventNSClientNewLog("DBADD $collection", "Sent " + data.length() + " records " + progress))
+            }
+        } catch (e: Exception) {
+            aapsLogger.error(LTag.NSCLIENT, "Bulk upload to $collection failed", e)
+            rxBus.send(EventNSClientNewLog("ERROR", "Bulk upload to $collection failed: " + e.message))
+            null
+        }
     }
 
     fun sendAlarmAck(alarmAck: AlarmAck) {
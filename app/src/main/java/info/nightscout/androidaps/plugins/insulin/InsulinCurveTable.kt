@@ -0,0 +1,56 @@
+package info.nightscout.androidaps.plugins.insulin
+
+import kotlin.math.exp
+import kotlin.math.pow
+
+/**
+ * Oref exponential curve for 1U precomputed at minute resolution
+ * Values between minutes are linearly interpolated
+ */
+class InsulinCurveTable(val peak: Int, val dia: Double) {
+
+    private val td = dia * 60
+    private val iob: DoubleArray
+    private val activity: DoubleArray
+
+    init {
+        val size = if (td > 0) td.toInt() + 2 else 0
+        iob = DoubleArray(size) { iob(it.toDouble(), peak.toDouble(), td) }
+        activity = DoubleArray(size) { activity(it.toDouble(), peak.toDouble(), td) }
+    }
+
+    fun matches(peak: Int, dia: Double): Boolean = this.peak == peak && this.dia == dia
+
+    /**
+     * @param t minutes since bolus, must be in range <0, dia * 60)
+     */
+    fun iob(t: Double): Double = interpolate(iob, t)
+
+    /**
+     * @param t minutes since bolus, must be in range <0, dia * 60)
+     */
+    fun activity(t: Double): Double = interpolate(activity, t)
+
+    private fun interpolate(values: DoubleArray, t: Double): Double {
+        val index = t.toInt()
+        val fraction = t - index
+        return values[index] + (values[index + 1] - values[index]) * fraction
+    }
+
+    companion object {
+
+        fun iob(t: Double, tp: Double, td: Double): Double {
+            val tau = tp * (1 - tp / td) / (1 - 2 * tp / td)
+            val a = 2 * tau / td
+            val s = 1 / (1 - a + (1 + a) * exp(-td / tau))
+            return 1 - s * (1 - a) * ((t.pow(2.0) / (tau * td * (1 - a)) - t / tau - 1) * exp(-t / tau) + 1)
+        }
+
+        fun activity(t: Double, tp: Double, td: Double): Double {
+            val tau = tp * (1 - tp / td) / (1 - 2 * tp / td)
+            val a = 2 * tau / td
+            val s = 1 / (1 - a + (1 + a) * exp(-td / tau))
+            return (s / tau.pow(2.0)) * t * (1 - t / td) * exp(-t / tau)
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package info.nightscout.androidaps.plugins.insulin
 
+import androidx.annotation.VisibleForTesting
 import dagger.android.HasAndroidInjector
 import info.nightscout.androidaps.R
 import info.nightscout.androidaps.data.Iob
@@ -12,8 +13,6 @@ import info.nightscout.androidaps.plugins.general.overview.events.EventNewNotifi
 import info.nightscout.androidaps.plugins.general.overview.notifications.Notification
 import info.nightscout.androidaps.utils.T
 import info.nightscout.androidaps.utils.resources.ResourceHelper
-import kotlin.math.exp
-import kotlin.math.pow
 
 /**
  * Created by adrian on 13.08.2017.
@@ -68,6 +67,20 @@ abstract class InsulinOrefBasePlugin(
             return profile?.dia ?: MIN_DIA
         }
 
+    /**
+     * Evaluate curve from precomputed table instead of exp/pow for every treatment
+     * Table is rebuilt when peak or DIA changes. Disabled only by tests comparing with exact curve
+     */
+    @VisibleForTesting internal var useLookupTable = true
+
+    @Volatile private var curveTable: InsulinCurveTable? = null
+
+    private fun curveTable(peak: Int, dia: Double): InsulinCurveTable {
+        val table = curveTable
+        if (table != null && table.matches(peak, dia)) return table
+        return InsulinCurveTable(peak, dia).also { curveTable = it }
+    }
+
     override fun iobCalcForTreatment(bolus: Bolus, time: Long, dia: Double): Iob {
         val result = Iob()
         val peak = peak
@@ -78,16 +91,39 @@ abstract class InsulinOrefBasePlugin(
             val tp = peak.toDouble()
             // force the IOB to 0 if over DIA hours have passed
             if (t < td) {
-                val tau = tp * (1 - tp / td) / (1 - 2 * tp / td)
-                val a = 2 * tau / td
-                val S = 1 / (1 - a + (1 + a) * exp(-td / tau))
-                result.activityContrib = bolus.amount * (S / tau.pow(2.0)) * t * (1 - t / td) * exp(-t / tau)
-                result.iobContrib = bolus.amount * (1 - S * (1 - a) * ((t.pow(2.0) / (tau * td * (1 - a)) - t / tau - 1) * Math.exp(-t / tau) + 1))
+                if (useLookupTable && t >= 0) {
+                    val table = curveTable(peak, dia)
+                    result.activityContrib = bolus.amount * table.activity(t)
+                    result.iobContrib = bolus.amount * table.iob(t)
+                } else {
+                    result.activityContrib = bolus.amount * InsulinCurveTable.activity(t, tp, td)
+                    result.iobContrib = bolus.amount * InsulinCurveTable.iob(t, tp, td)
+                }
             }
         }
         return result
     }
 
+    override fun iobContrib(amount: Double, bolusTime: Long, time: Long, dia: Double): Double {
+        if (amount == 0.0) return 0.0
+        val t = (time - bolusTime) / 1000.0 / 60.0
+        val td = dia * 60
+        if (t >= td) return 0.0
+        val peak = peak
+        return if (useLookupTable && t >= 0) amount * curveTable(peak, dia).iob(t)
+        else amount * InsulinCurveTable.iob(t, peak.toDouble(), td)
+    }
+
+    override fun activityContrib(amount: Double, bolusTime: Long, time: Long, dia: Double): Double {
+        if (amount == 0.0) return 0.0
+        val t = (time - bolusTime) / 1000.0 / 60.0
+        val td = dia * 60
+        if (t >= td) return 0.0
+        val peak = peak
+        return if (useLookupTable && t >= 0) amount * curveTable(peak, dia).activity(t)
+        else amount * InsulinCurveTable.activity(t, peak.toDouble(), td)
+    }
+
     override val insulinConfiguration: InsulinConfiguration
         get() = InsulinConfiguration(friendlyName, (dia * 1000.0 * 3600.0).toLong(), T.mins(peak.toLong()).msecs())
 
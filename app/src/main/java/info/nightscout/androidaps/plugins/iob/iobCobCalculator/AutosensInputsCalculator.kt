@@ -0,0 +1,102 @@
+package info.nightscout.androidaps.plugins.iob.iobCobCalculator
+
+import info.nightscout.androidaps.data.InMemoryGlucoseValue
+import info.nightscout.androidaps.data.IobTotal
+import info.nightscout.androidaps.database.AppRepository
+import info.nightscout.androidaps.database.entities.Carbs
+import info.nightscout.androidaps.interfaces.Profile
+import info.nightscout.androidaps.interfaces.ProfileFunction
+import info.nightscout.androidaps.utils.T
+import info.nightscout.shared.logging.AAPSLogger
+import info.nightscout.shared.logging.LTag
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.ForkJoinTask
+import kotlin.math.min
+import kotlin.math.roundToLong
+
+/**
+ * First phase of autosens calculation
+ *
+ * IOB, BGI, deviation and recent carbs of a bucket don't depend on previous buckets
+ * and are calculated in parallel. COB chain, deviation slopes and sensitivity detection
+ * stay in the sequential pass of IobCobThread / IobCobOref1Thread.
+ */
+class AutosensInputsCalculator(
+    private val iobCobCalculatorPlugin: IobCobCalculatorPlugin,
+    private val profileFunction: ProfileFunction,
+    private val repository: AppRepository,
+    private val aapsLogger: AAPSLogger
+) {
+
+    class Inputs(
+        val bgTime: Long,
+        val profile: Profile,
+        val sens: Double,
+        val iob: IobTotal,
+        val bg: Double,
+        val delta: Double,
+        val avgDelta: Double,
+        val bgi: Double,
+        val deviation: Double,
+        val avgDeviation: Double,
+        val recentCarbTreatments: List<Carbs>
+    )
+
+    /**
+     * @param indices indexes of buckets to calculate, ordered from oldest
+     * @param parallel split calculation to chunks processed by fork-join pool
+     * @return inputs by bucket index, null if not calculated (no profile, invalid bg, calculation stopped)
+     */
+    fun calculate(bucketedData: List<InMemoryGlucoseValue>, indices: List<Int>, roundUpTime: (Long) -> Long, parallel: Boolean): Array<Inputs?> {
+        val result = arrayOfNulls<Inputs>(bucketedData.size)
+        if (!parallel || indices.size < MIN_CHUNK_SIZE * 2) {
+            calculateChunk(bucketedData, indices, roundUpTime, result)
+            return result
+        }
+        // contiguous chunks to keep benefit of sliding IOB window
+        val chunkSize = maxOf(MIN_CHUNK_SIZE, (indices.size + pool.parallelism * 2 - 1) / (pool.parallelism * 2))
+        indices.chunked(chunkSize)
+            .map { chunk -> pool.submit(Runnable { calculateChunk(bucketedData, chunk, roundUpTime, result) }) }
+            .forEach(ForkJoinTask<*>::join)
+        return result
+    }
+
+    // chunks write to disjoint indexes of result
+    private fun calculateChunk(bucketedData: List<InMemoryGlucoseValue>, indices: List<Int>, roundUpTime: (Long) -> Long, result: Array<Inputs?>) {
+        val iobWindow = SlidingIobWindow(iobCobCalculatorPlugin.treatmentTimeline)
+        for (i in indices) {
+            if (iobCobCalculatorPlugin.stopCalculationTrigger) return
+            result[i] = calculateBucket(bucketedData, i, roundUpTime, iobWindow)
+        }
+    }
+
+    private fun calculateBucket(bucketedData: List<InMemoryGlucoseValue>, i: Int, roundUpTime: (Long) -> Long, iobWindow: SlidingIobWindow): Inputs? {
+        val bgTime = roundUpTime(bucketedData[i].timestamp)
+        val profile = profileFunction.getProfile(bgTime)
+        if (profile == null) {
+            aapsLogger.debug(LTag.AUTOSENS, "No profile for bucket at $bgTime")
+            return null  // profile not set yet
+        }
+        val sens = profile.getIsfMgdl(bgTime)
+        val bg: Double = bucketedData[i].value
+        if (bg < 39 || bucketedData[i + 3].value < 39) {
+            aapsLogger.error("! value < 39")
+            return null
+        }
+        val delta = bg - bucketedData[i + 1].value
+        val avgDelta = (bg - bucketedData[i + 3].value) / 3
+        val iob = iobCobCalculatorPlugin.calculateFromTreatmentsAndTemps(bgTime, profile, iobWindow)
+        val bgi = -iob.activity * sens * 5
+        val deviation = delta - bgi
+        val avgDeviation = ((avgDelta - bgi) * 1000).roundToLong() / 1000.0
+        val recentCarbTreatments = repository.getCarbsDataFromTimeToTimeExpanded(bgTime - T.mins(5).msecs(), bgTime, true).blockingGet()
+        return Inputs(bgTime, profile, sens, iob, bg, delta, avgDelta, bgi, deviation, avgDeviation, recentCarbTreatments)
+    }
+
+    companion object {
+
+        private const val MIN_CHUNK_SIZE = 12
+
+        private val pool by lazy { ForkJoinPool(min(Runtime.getRuntime().availableProcessors(), 4)) }
+    }
+}
@@ -0,0 +1,297 @@
+package info.nightscout.androidaps.plugins.iob.iobCobCalculator
+
+import android.content.Context
+import androidx.collection.LongSparseArray
+import dagger.android.HasAndroidInjector
+import info.nightscout.androidaps.R
+import info.nightscout.androidaps.data.IobTotal
+import info.nightscout.androidaps.database.AppRepository
+import info.nightscout.androidaps.database.ValueWrapper
+import info.nightscout.androidaps.database.interfaces.DBEntryWithTime
+import info.nightscout.androidaps.interfaces.ActivePlugin
+import info.nightscout.androidaps.plugins.iob.iobCobCalculator.data.AutosensData
+import info.nightscout.androidaps.plugins.sensitivity.SensitivityOref1Plugin
+import info.nightscout.androidaps.utils.DateUtil
+import info.nightscout.androidaps.utils.T
+import info.nightscout.shared.logging.AAPSLogger
+import info.nightscout.shared.logging.LTag
+import info.nightscout.shared.sharedPreferences.SP
+import io.reactivex.rxjava3.core.Single
+import java.io.*
+import java.util.zip.CRC32
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Binary snapshot of calculated autosens and IOB tables
+ *
+ * Snapshot is stored with hash of calculation settings and last record ids of tables used in calculation.
+ * On restore records created or modified since the snapshot was taken are looked up
+ * and buckets after the oldest of them are dropped to be recalculated.
+ */
+@Singleton
+class AutosensSnapshot @Inject constructor(
+    private val injector: HasAndroidInjector,
+    private val aapsLogger: AAPSLogger,
+    private val sp: SP,
+    private val activePlugin: ActivePlugin,
+    private val sensitivityOref1Plugin: SensitivityOref1Plugin,
+    private val repository: AppRepository,
+    private val dateUtil: DateUtil,
+    context: Context
+) {
+
+    class Key(val settingsHash: Long, val lastIds: LongArray)
+
+    class Tables(val key: Key, val autosensDataTable: LongSparseArray<AutosensData>, val iobTable: LongSparseArray<IobTotal>)
+
+    private val file = File(context.filesDir, FILE_NAME)
+    private var lastStore = 0L
+
+    fun isStoreDue(): Boolean = dateUtil.now() - lastStore > STORE_INTERVAL
+
+    fun currentKey(): Key {
+        val settings = StringBuilder()
+            .append(activePlugin.activeSensitivity.javaClass.simpleName).append('|')
+            .append(sensitivityOref1Plugin.isEnabled()).append('|')
+            .append(activePlugin.activeInsulin.id).append('|')
+            .append(activePlugin.activeInsulin.insulinConfiguration.peak).append('|')
+            .append(sp.getInt(R.string.key_openapsama_autosens_period, 24)).append('|')
+            .append(sp.getString(R.string.key_age, "")).append('|')
+            .append(sp.getDouble(R.string.key_absorption_maxtime, 0.0)).append('|')
+            .append(sp.getDouble(R.string.key_openapsama_min_5m_carbimpact, 0.0)).append('|')
+            .append(sp.getDouble(R.string.key_absorption_cutoff, 0.0)).append('|')
+            .append(sp.getDouble(R.string.key_openapsama_autosens_max, 0.0)).append('|')
+            .append(sp.getDouble(R.string.key_openapsama_autosens_min, 0.0)).append('|')
+            .append(sp.getInt(R.string.key_insulin_oref_peak, 0)).append('|')
+            .append(sp.getDouble(R.string.key_openapsama_bolussnooze_dia_divisor, 2.0)).append('|')
+            .append(activePlugin.activePump.isFakingTempsByExtendedBoluses)
+        val crc = CRC32()
+        crc.update(settings.toString().toByteArray())
+        val lastIds = longArrayOf(
+            repository.getLastGlucoseValueIdWrapped().blockingGet().idOrZero(),
+            repository.getLastBolusIdWrapped().blockingGet().idOrZero(),
+            repository.getLastCarbsIdWrapped().blockingGet().idOrZero(),
+            repository.getLastTemporaryBasalIdWrapped().blockingGet().idOrZero(),
+            repository.getLastExtendedBolusIdWrapped().blockingGet().idOrZero(),
+            repository.getLastEffectiveProfileSwitchIdWrapped().blockingGet().idOrZero(),
+            repository.getLastTempTargetIdWrapped().blockingGet().idOrZero()
+        )
+        return Key(crc.value, lastIds)
+    }
+
+    /**
+     * Store tables calculated with data and settings of [key]
+     * [key] must be taken before calculation started
+     */
+    fun store(key: Key, autosensDataTable: LongSparseArray<AutosensData>, iobTable: LongSparseArray<IobTotal>) {
+        val tmp = File(file.path + ".tmp")
+        try {
+            DataOutputStream(BufferedOutputStream(FileOutputStream(tmp))).use { write(it, key, autosensDataTable, iobTable) }
+            if (!tmp.renameTo(file)) throw IOException("Cannot rename $tmp")
+            lastStore = dateUtil.now()
+            aapsLogger.debug(LTag.AUTOSENS, "Autosens snapshot stored. Autosens: ${autosensDataTable.size()} IOB: ${iobTable.size()}")
+        } catch (e: IOException) {
+            aapsLogger.error(LTag.AUTOSENS, "Storing autosens snapshot failed", e)
+            tmp.delete()
+        }
+    }
+
+    /**
+     * @return stored tables still valid for current data and settings or null
+     */
+    fun restore(): Tables? {
+        if (!file.exists()) return null
+        val key = currentKey()
+        val tables = try {
+            DataInputStream(BufferedInputStream(FileInputStream(file))).use { read(it, key.settingsHash) }
+        } catch (e: IOException) {
+            aapsLogger.error(LTag.AUTOSENS, "Reading autosens snapshot failed", e)
+            null
+        }
+        if (tables == null) {
+            aapsLogger.debug(LTag.AUTOSENS, "Autosens snapshot not usable")
+            file.delete()
+            return null
+        }
+        // clear up 5 min back for proper COB calculation
+        val validTo = oldestChangeSince(tables.key.lastIds) - T.mins(5).msecs()
+        tables.autosensDataTable.removeAfter(validTo)
+        tables.iobTable.removeAfter(validTo)
+        aapsLogger.debug(
+            LTag.AUTOSENS,
+            "Autosens snapshot restored to: ${dateUtil.dateAndTimeAndSecondsString(validTo)} Autosens: ${tables.autosensDataTable.size()} IOB: ${tables.iobTable.size()}"
+        )
+        return tables
+    }
+
+    private fun oldestChangeSince(lastIds: LongArray): Long {
+        val changed = listOf(
+            repository.getModifiedBgReadingsDataFromId(lastIds[0]).timestamps(),
+            repository.getModifiedBolusesDataFromId(lastIds[1]).timestamps(),
+            repository.getModifiedCarbsDataFromId(lastIds[2]).timestamps(),
+            repository.getModifiedTemporaryBasalDataFromId(lastIds[3]).timestamps(),
+            repository.getModifiedExtendedBolusDataFromId(lastIds[4]).timestamps(),
+            repository.getModifiedEffectiveProfileSwitchDataFromId(lastIds[5]).timestamps(),
+            repository.getModifiedTemporaryTargetsDataFromId(lastIds[6]).timestamps()
+        ).flatten()
+        return changed.minOrNull() ?: Long.MAX_VALUE
+    }
+
+    private fun <T : DBEntryWithTime> Single<List<T>>.timestamps(): List<Long> =
+        blockingGet().map { it.timestamp }
+
+    private fun ValueWrapper<Long>.idOrZero(): Long = if (this is ValueWrapper.Existing) value else 0L
+
+    private fun <T> LongSparseArray<T>.removeAfter(time: Long) {
+        for (index in size() - 1 downTo 0) {
+            if (keyAt(index) > time) removeAt(index) else break
+        }
+    }
+
+    fun write(out: DataOutputStream, key: Key, autosensDataTable: LongSparseArray<AutosensData>, iobTable: LongSparseArray<IobTotal>) {
+        out.writeInt(MAGIC)
+        out.writeInt(VERSION)
+        out.writeLong(key.settingsHash)
+        out.writeInt(key.lastIds.size)
+        key.lastIds.forEach { out.writeLong(it) }
+        out.writeInt(autosensDataTable.size())
+        for (index in 0 until autosensDataTable.size()) {
+            out.writeLong(autosensDataTable.keyAt(index))
+            writeAutosensData(out, autosensDataTable.valueAt(index))
+        }
+        out.writeInt(iobTable.size())
+        for (index in 0 until iobTable.size()) {
+            out.writeLong(iobTable.keyAt(index))
+            writeIobTotal(out, iobTable.valueAt(index))
+        }
+    }
+
+    /**
+     * @return tables or null if snapshot was created by different version or with different settings
+     */
+    fun read(input: DataInputStream, settingsHash: Long): Tables? {
+        if (input.readInt() != MAGIC || input.readInt() != VERSION) return null
+        if (input.readLong() != settingsHash) return null
+        val lastIds = LongArray(input.readInt()) { input.readLong() }
+        val autosensDataTable = LongSparseArray<AutosensData>()
+        repeat(input.readInt()) { autosensDataTable.append(input.readLong(), readAutosensData(input)) }
+        val iobTable = LongSparseArray<IobTotal>()
+        repeat(input.readInt()) { iobTable.append(input.readLong(), readIobTotal(input)) }
+        return Tables(Key(settingsHash, lastIds), autosensDataTable, iobTable)
+    }
+
+    private fun writeAutosensData(out: DataOutputStream, data: AutosensData) {
+        out.writeLong(data.time)
+        out.writeDouble(data.bg)
+        out.writeLong(data.chartTime)
+        out.writeUTF(data.pastSensitivity)
+        out.writeDouble(data.deviation)
+        out.writeBoolean(data.validDeviation)
+        out.writeInt(data.activeCarbsList.size)
+        for (c in data.activeCarbsList) {
+            out.writeLong(c.time)
+            out.writeDouble(c.carbs)
+            out.writeDouble(c.min5minCarbImpact)
+            out.writeDouble(c.remaining)
+        }
+        out.writeDouble(data.absorbed)
+        out.writeDouble(data.carbsFromBolus)
+        out.writeDouble(data.cob)
+        out.writeDouble(data.bgi)
+        out.writeDouble(data.delta)
+        out.writeDouble(data.avgDelta)
+        out.writeDouble(data.avgDeviation)
+        out.writeDouble(data.autosensResult.ratio)
+        out.writeDouble(data.autosensResult.carbsAbsorbed)
+        out.writeUTF(data.autosensResult.sensResult)
+        out.writeUTF(data.autosensResult.pastSensitivity)
+        out.writeUTF(data.autosensResult.ratioLimit)
+        out.writeDouble(data.slopeFromMaxDeviation)
+        out.writeDouble(data.slopeFromMinDeviation)
+        out.writeDouble(data.usedMinCarbsImpact)
+        out.writeBoolean(data.failOverToMinAbsorptionRate)
+        out.writeBoolean(data.absorbing)
+        out.writeDouble(data.mealCarbs)
+        out.writeInt(data.mealStartCounter)
+        out.writeUTF(data.type)
+        out.writeBoolean(data.uam)
+        out.writeInt(data.extraDeviation.size)
+        data.extraDeviation.forEach { out.writeDouble(it) }
+    }
+
+    private fun readAutosensData(input: DataInputStream): AutosensData =
+        AutosensData(injector).also { data ->
+            data.time = input.readLong()
+            data.bg = input.readDouble()
+            data.chartTime = input.readLong()
+            data.pastSensitivity = input.readUTF()
+            data.deviation = input.readDouble()
+            data.validDeviation = input.readBoolean()
+            repeat(input.readInt()) {
+                data.activeCarbsList.add(data.CarbsInPast(input.readLong(), input.readDouble(), input.readDouble(), input.readDouble()))
+            }
+            data.absorbed = input.readDouble()
+            data.carbsFromBolus = input.readDouble()
+            data.cob = input.readDouble()
+            data.bgi = input.readDouble()
+            data.delta = input.readDouble()
+            data.avgDelta = input.readDouble()
+            data.avgDeviation = input.readDouble()
+            data.autosensResult = AutosensResult().also {
+                it.ratio = input.readDouble()
+                it.carbsAbsorbed = input.readDouble()
+                it.sensResult = input.readUTF()
+                it.pastSensitivity = input.readUTF()
+                it.ratioLimit = input.readUTF()
+            }
+            data.slopeFromMaxDeviation = input.readDouble()
+            data.slopeFromMinDeviation = input.readDouble()
+            data.usedMinCarbsImpact = input.readDouble()
+            data.failOverToMinAbsorptionRate = input.readBoolean()
+            data.absorbing = input.readBoolean()
+            data.mealCarbs = input.readDouble()
+            data.mealStartCounter = input.readInt()
+            data.type = input.readUTF()
+            data.uam = input.readBoolean()
+            repeat(input.readInt()) { data.extraDeviation.add(input.readDouble()) }
+        }
+
+    private fun writeIobTotal(out: DataOutputStream, iob: IobTotal) {
+        out.writeLong(iob.time)
+        out.writeDouble(iob.iob)
+        out.writeDouble(iob.activity)
+        out.writeDouble(iob.bolussnooze)
+        out.writeDouble(iob.basaliob)
+        out.writeDouble(iob.netbasalinsulin)
+        out.writeDouble(iob.hightempinsulin)
+        out.writeLong(iob.lastBolusTime)
+        out.writeDouble(iob.netInsulin)
+        out.writeDouble(iob.extendedBolusInsulin)
+        val zeroTemp = iob.iobWithZeroTemp
+        out.writeBoolean(zeroTemp != null)
+        if (zeroTemp != null) writeIobTotal(out, zeroTemp)
+    }
+
+    private fun readIobTotal(input: DataInputStream): IobTotal =
+        IobTotal(input.readLong()).also {
+            it.iob = input.readDouble()
+            it.activity = input.readDouble()
+            it.bolussnooze = input.readDouble()
+            it.basaliob = input.readDouble()
+            it.netbasalinsulin = input.readDouble()
+            it.hightempinsulin = input.readDouble()
+            it.lastBolusTime = input.readLong()
+            it.netInsulin = input.readDouble()
+            it.extendedBolusInsulin = input.readDouble()
+            if (input.readBoolean()) it.iobWithZeroTemp = readIobTotal(input)
+        }
+
+    companion object {
+
+        private const val FILE_NAME = "autosens.snapshot"
+        private const val MAGIC = 0x41534e50 // ASNP
+        private const val VERSION = 1
+        private val STORE_INTERVAL = T.mins(30).msecs()
+    }
+}
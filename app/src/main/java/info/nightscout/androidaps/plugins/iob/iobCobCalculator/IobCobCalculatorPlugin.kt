@@ -13,6 +13,7 @@ import info.nightscout.androidaps.database.ValueWrapper
 import info.nightscout.androidaps.database.entities.Bolus
 import info.nightscout.androidaps.database.entities.ExtendedBolus
 import info.nightscout.androidaps.database.entities.TemporaryBasal
+import info.nightscout.androidaps.database.interfaces.DBEntry
 import info.nightscout.androidaps.database.interfaces.end
 import info.nightscout.androidaps.events.*
 import info.nightscout.androidaps.extensions.convertedToAbsolute
@@ -79,13 +80,20 @@ class IobCobCalculatorPlugin @Inject constructor(
     private var basalDataTable = LongSparseArray<BasalData>() // oldest at index 0
 
     override var ads: AutosensDataStore = AutosensDataStore()
+    val treatmentTimeline = TreatmentTimeline(repository)
 
     private val dataLock = Any()
     var stopCalculationTrigger = false
     private var thread: Thread? = null
 
+    // snapshot is used by running instance only (HistoryBrowser creates own instance without onStart)
+    var snapshotEnabled = false
+        private set
+    private var restoreSnapshotPending = false
+
     override fun onStart() {
         super.onStart()
+        snapshotEnabled = true
         // EventConfigBuilderChange
         disposable += rxBus
             .toObservable(EventConfigBuilderChange::class.java)
@@ -122,7 +130,10 @@ class IobCobCalculatorPlugin @Inject constructor(
             .toObservable(EventAppInitialized::class.java)
             .observeOn(aapsSchedulers.io)
             .subscribe(
-                { event -> runCalculation("onEventAppInitialized", System.currentTimeMillis(), bgDataReload = true, limitDataToOldestAvailable = true, cause = event) },
+                { event ->
+                    restoreSnapshotPending = snapshotEnabled
+                    runCalculation("onEventAppInitialized", System.currentTimeMillis(), bgDataReload = true, limitDataToOldestAvailable = true, cause = event)
+                },
                 fabricPrivacy::logException
             )
         // EventNewHistoryData
@@ -130,6 +141,22 @@ class IobCobCalculatorPlugin @Inject constructor(
             .toObservable(EventNewHistoryData::class.java)
             .observeOn(aapsSchedulers.io)
             .subscribe({ event -> scheduleHistoryDataChange(event) }, fabricPrivacy::logException)
+        // Changes are delivered on thread of finished transaction before its caller continues.
+        // EventNewHistoryData comes too late for IOB of just delivered bolus or TBR
+        disposable += repository
+            .changeObservable()
+            .subscribe({ changes -> invalidateTreatmentTimeline(changes) }, fabricPrivacy::logException)
+    }
+
+    private fun invalidateTreatmentTimeline(changes: List<DBEntry>) {
+        changes.mapNotNull {
+            when (it) {
+                is Bolus          -> it.timestamp
+                is TemporaryBasal -> it.timestamp
+                is ExtendedBolus  -> it.timestamp
+                else              -> null
+            }
+        }.minOrNull()?.let { treatmentTimeline.invalidateFrom(it) }
     }
 
     override fun onStop() {
@@ -149,9 +176,34 @@ class IobCobCalculatorPlugin @Inject constructor(
             aapsLogger.debug(LTag.AUTOSENS, "Clearing cached data.")
             iobTable = LongSparseArray()
             basalDataTable = LongSparseArray()
+            treatmentTimeline.reset()
         }
     }
 
+    /**
+     * Replace cleared tables by tables restored from snapshot
+     * Done once after app start when bg data has been loaded
+     */
+    fun restoreSnapshot(autosensSnapshot: AutosensSnapshot) {
+        if (!restoreSnapshotPending) return
+        restoreSnapshotPending = false
+        val tables = autosensSnapshot.restore() ?: return
+        synchronized(dataLock) {
+            iobTable = tables.iobTable
+            ads.autosensDataTable = tables.autosensDataTable
+        }
+    }
+
+    fun storeSnapshot(autosensSnapshot: AutosensSnapshot, key: AutosensSnapshot.Key) {
+        val autosensDataTable: LongSparseArray<AutosensData>
+        val iobTable: LongSparseArray<IobTotal>
+        synchronized(dataLock) {
+            autosensDataTable = ads.autosensDataTable.clone()
+            iobTable = this.iobTable.clone()
+        }
+        autosensSnapshot.store(key, autosensDataTable, iobTable)
+    }
+
     private fun oldestDataAvailable(): Long {
         var oldestTime = System.currentTimeMillis()
         val oldestTempBasal = repository.getOldestTemporaryBasalRecord()
@@ -181,16 +233,24 @@ class IobCobCalculatorPlugin @Inject constructor(
         return getBGDataFrom
     }
 
-    override fun calculateFromTreatmentsAndTemps(toTime: Long, profile: Profile): IobTotal {
+    override fun calculateFromTreatmentsAndTemps(toTime: Long, profile: Profile): IobTotal =
+        calculateFromTreatmentsAndTemps(toTime, profile, null)
+
+    /**
+     * @param window forward moving window reused between consecutive calls of autosens walk
+     *               or null for calculation at random time
+     */
+    fun calculateFromTreatmentsAndTemps(toTime: Long, profile: Profile, window: SlidingIobWindow?): IobTotal {
         val now = System.currentTimeMillis()
         val time = ads.roundUpTime(toTime)
-        val cacheHit = iobTable[time]
+        // autosens workers fill the table in parallel
+        val cacheHit = synchronized(dataLock) { iobTable[time] }
         if (time < now && cacheHit != null) {
             //og.debug(">>> calculateFromTreatmentsAndTemps Cache hit " + new Date(time).toLocaleString());
             return cacheHit
         } // else log.debug(">>> calculateFromTreatmentsAndTemps Cache miss " + new Date(time).toLocaleString());
-        val bolusIob = calculateIobFromBolusToTime(time).round()
-        val basalIob = calculateIobToTimeFromTempBasalsIncludingConvertedExtended(time).round()
+        val bolusIob = calculateIobFromBolusToTime(time, window).round()
+        val basalIob = calculateIobToTimeFromTempBasalsIncludingConvertedExtended(time, window).round()
         // OpenAPSSMB only
         // Add expected zero temp basal for next 240 minutes
         val basalIobWithZeroTemp = basalIob.copy()
@@ -201,10 +261,7 @@ class IobCobCalculatorPlugin @Inject constructor(
             isAbsolute = true,
             type = TemporaryBasal.Type.NORMAL
         )
-        if (t.timestamp < time) {
-            val calc = t.iobCalc(time, profile, activePlugin.activeInsulin)
-            basalIobWithZeroTemp.plus(calc)
-        }
+        if (t.timestamp < time) t.iobCalc(time, profile, activePlugin.activeInsulin, basalIobWithZeroTemp)
         basalIob.iobWithZeroTemp = IobTotal.combine(bolusIob, basalIobWithZeroTemp).round()
         val iobTotal = IobTotal.combine(bolusIob, basalIob).round()
         if (time < System.currentTimeMillis()) {
@@ -231,10 +288,8 @@ class IobCobCalculatorPlugin @Inject constructor(
         )
         if (t.timestamp < time) {
             val profile = profileFunction.getProfile(t.timestamp)
-            if (profile != null) {
-                val calc = t.iobCalc(time, profile, lastAutosensResult, exercise_mode, half_basal_exercise_target, isTempTarget, activePlugin.activeInsulin)
-                basalIobWithZeroTemp.plus(calc)
-            }
+            if (profile != null)
+                t.iobCalc(time, profile, lastAutosensResult, exercise_mode, half_basal_exercise_target, isTempTarget, activePlugin.activeInsulin, basalIobWithZeroTemp)
         }
         basalIob.iobWithZeroTemp = IobTotal.combine(bolusIob, basalIobWithZeroTemp).round()
         return IobTotal.combine(bolusIob, basalIob).round()
@@ -394,6 +449,8 @@ class IobCobCalculatorPlugin @Inject constructor(
 
     @Synchronized
     private fun scheduleHistoryDataChange(event: EventNewHistoryData) {
+        // make changed treatments visible to IOB calculation immediately
+        treatmentTimeline.invalidateFrom(event.oldDataTimestamp)
         // if there is nothing scheduled or asking reload deeper to the past
         if (scheduledEvent == null || event.oldDataTimestamp < (scheduledEvent?.oldDataTimestamp) ?: 0L) {
             // cancel waiting task to prevent sending multiple posts
@@ -451,6 +508,7 @@ class IobCobCalculatorPlugin @Inject constructor(
                 }
             }
             ads.newHistoryData(time, aapsLogger, dateUtil)
+            treatmentTimeline.invalidateFrom(time)
         }
         runCalculation(event.javaClass.simpleName, System.currentTimeMillis(), bgDataReload, true, event)
         //log.debug("Releasing onNewHistoryData");
@@ -497,15 +555,17 @@ class IobCobCalculatorPlugin @Inject constructor(
      *  and are calculated towards temporary basals
      *
      * @param toTime timestamp in milliseconds
+     * @param window optional window used instead of timeline
      * @return calculated iob
      */
-    private fun calculateIobFromBolusToTime(toTime: Long): IobTotal {
+    private fun calculateIobFromBolusToTime(toTime: Long, window: SlidingIobWindow? = null): IobTotal {
         val total = IobTotal(toTime)
         val profile = profileFunction.getProfile() ?: return total
         val dia = profile.dia
         val divisor = sp.getDouble(R.string.key_openapsama_bolussnooze_dia_divisor, 2.0)
 
-        val boluses = repository.getBolusesDataFromTime(toTime - range(), true).blockingGet()
+        val boluses = window?.getBolusesFromTimeToTime(toTime - range(), toTime)
+            ?: treatmentTimeline.getBolusesFromTimeToTime(toTime - range(), toTime)
 
         boluses.forEach { t ->
             if (t.isValid && t.timestamp < toTime) {
@@ -524,26 +584,23 @@ class IobCobCalculatorPlugin @Inject constructor(
             }
         }
 
-        total.plus(calculateIobToTimeFromExtendedBoluses(toTime))
+        total.plus(calculateIobToTimeFromExtendedBoluses(toTime, window))
         return total
     }
 
-    private fun calculateIobToTimeFromExtendedBoluses(toTime: Long): IobTotal {
+    private fun calculateIobToTimeFromExtendedBoluses(toTime: Long, window: SlidingIobWindow?): IobTotal {
         val total = IobTotal(toTime)
         val now = dateUtil.now()
         val pumpInterface = activePlugin.activePump
         if (!pumpInterface.isFakingTempsByExtendedBoluses) {
-            val extendedBoluses = repository.getExtendedBolusDataFromTimeToTime(toTime - range(), toTime, true).blockingGet()
+            val extendedBoluses = window?.getExtendedBolusesFromTimeToTime(toTime - range(), toTime)
+                ?: treatmentTimeline.getExtendedBolusesFromTimeToTime(toTime - range(), toTime)
             for (pos in extendedBoluses.indices) {
-                val e = extendedBoluses[pos]
+                val e = extendedBoluses[pos].cutToNow(now) ?: continue
                 if (e.timestamp > toTime) continue
-                if (e.end > now) {
-                    val newDuration = now - e.timestamp
-                    e.amount *= newDuration.toDouble() / e.duration
-                    e.duration = newDuration
-                }
                 val profile = profileFunction.getProfile(e.timestamp) ?: return total
-                val calc = e.iobCalc(toTime, profile, activePlugin.activeInsulin)
+                val calc = window?.iobCalc(e, toTime, profile, activePlugin.activeInsulin)
+                    ?: e.iobCalc(toTime, profile, activePlugin.activeInsulin)
                 total.plus(calc)
             }
         }
@@ -614,34 +671,34 @@ class IobCobCalculatorPlugin @Inject constructor(
     override fun calculateIobFromTempBasalsIncludingConvertedExtended(): IobTotal =
         calculateIobToTimeFromTempBasalsIncludingConvertedExtended(dateUtil.now())
 
-    override fun calculateIobToTimeFromTempBasalsIncludingConvertedExtended(toTime: Long): IobTotal {
+    override fun calculateIobToTimeFromTempBasalsIncludingConvertedExtended(toTime: Long): IobTotal =
+        calculateIobToTimeFromTempBasalsIncludingConvertedExtended(toTime, null)
+
+    private fun calculateIobToTimeFromTempBasalsIncludingConvertedExtended(toTime: Long, window: SlidingIobWindow?): IobTotal {
         val total = IobTotal(toTime)
         val now = dateUtil.now()
         val pumpInterface = activePlugin.activePump
 
-        val temporaryBasals = repository.getTemporaryBasalsDataFromTimeToTime(toTime - range(), toTime, true).blockingGet()
+        val temporaryBasals = window?.getTemporaryBasalsFromTimeToTime(toTime - range(), toTime)
+            ?: treatmentTimeline.getTemporaryBasalsFromTimeToTime(toTime - range(), toTime)
         for (pos in temporaryBasals.indices) {
-            val t = temporaryBasals[pos]
+            val t = temporaryBasals[pos].cutToNow(now) ?: continue
             if (t.timestamp > toTime) continue
             val profile = profileFunction.getProfile(t.timestamp) ?: continue
-            if (t.end > now) t.duration = now - t.timestamp
-            val calc = t.iobCalc(toTime, profile, activePlugin.activeInsulin)
-            //log.debug("BasalIOB " + new Date(time) + " >>> " + calc.basalIob);
-            total.plus(calc)
+            if (window?.iobCalc(t, toTime, profile, activePlugin.activeInsulin, total) != true)
+                t.iobCalc(toTime, profile, activePlugin.activeInsulin, total)
         }
         if (pumpInterface.isFakingTempsByExtendedBoluses) {
             val totalExt = IobTotal(toTime)
-            val extendedBoluses = repository.getExtendedBolusDataFromTimeToTime(toTime - range(), toTime, true).blockingGet()
+            val extendedBoluses = window?.getExtendedBolusesFromTimeToTime(toTime - range(), toTime)
+                ?: treatmentTimeline.getExtendedBolusesFromTimeToTime(toTime - range(), toTime)
             for (pos in extendedBoluses.indices) {
                 val e = extendedBoluses[pos]
                 if (e.timestamp > toTime) continue
                 val profile = profileFunction.getProfile(e.timestamp) ?: continue
-                if (e.end > now) {
-                    val newDuration = now - e.timestamp
-                    e.amount *= newDuration.toDouble() / e.duration
-                    e.duration = newDuration
-                }
-                val calc = e.iobCalc(toTime, profile, activePlugin.activeInsulin)
+                val cut = e.cutToNow(now) ?: continue
+                val calc = window?.iobCalc(cut, toTime, profile, activePlugin.activeInsulin)
+                    ?: cut.iobCalc(toTime, profile, activePlugin.activeInsulin)
                 totalExt.plus(calc)
             }
             // Convert to basal iob
@@ -654,33 +711,42 @@ class IobCobCalculatorPlugin @Inject constructor(
         return total
     }
 
+    // records from timeline are shared, running ones must be cut on a copy
+    // null is returned for records not started yet (nothing delivered)
+    private fun TemporaryBasal.cutToNow(now: Long): TemporaryBasal? =
+        when {
+            end <= now      -> this
+            timestamp < now -> copy(duration = now - timestamp)
+            else            -> null
+        }
+
+    private fun ExtendedBolus.cutToNow(now: Long): ExtendedBolus? =
+        when {
+            end <= now      -> this
+            timestamp < now -> copy(amount = amount * (now - timestamp).toDouble() / duration, duration = now - timestamp)
+            else            -> null
+        }
+
     fun getCalculationToTimeTempBasals(toTime: Long, lastAutosensResult: AutosensResult, exercise_mode: Boolean, half_basal_exercise_target: Int, isTempTarget: Boolean): IobTotal {
         val total = IobTotal(toTime)
         val pumpInterface = activePlugin.activePump
         val now = dateUtil.now()
-        val temporaryBasals = repository.getTemporaryBasalsDataFromTimeToTime(toTime - range(), toTime, true).blockingGet()
+        val temporaryBasals = treatmentTimeline.getTemporaryBasalsFromTimeToTime(toTime - range(), toTime)
         for (pos in temporaryBasals.indices) {
-            val t = temporaryBasals[pos]
+            val t = temporaryBasals[pos].cutToNow(now) ?: continue
             if (t.timestamp > toTime) continue
             val profile = profileFunction.getProfile(t.timestamp) ?: continue
-            if (t.end > now) t.duration = now - t.timestamp
-            val calc = t.iobCalc(toTime, profile, lastAutosensResult, exercise_mode, half_basal_exercise_target, isTempTarget, activePlugin.activeInsulin)
-            //log.debug("BasalIOB " + new Date(time) + " >>> " + calc.basalIob);
-            total.plus(calc)
+            t.iobCalc(toTime, profile, lastAutosensResult, exercise_mode, half_basal_exercise_target, isTempTarget, activePlugin.activeInsulin, total)
         }
         if (pumpInterface.isFakingTempsByExtendedBoluses) {
             val totalExt = IobTotal(toTime)
-            val extendedBoluses = repository.getExtendedBolusDataFromTimeToTime(toTime - range(), toTime, true).blockingGet()
+            val extendedBoluses = treatmentTimeline.getExtendedBolusesFromTimeToTime(toTime - range(), toTime)
             for (pos in extendedBoluses.indices) {
                 val e = extendedBoluses[pos]
                 if (e.timestamp > toTime) continue
                 val profile = profileFunction.getProfile(e.timestamp) ?: continue
-                if (e.end > now) {
-                    val newDuration = now - e.timestamp
-                    e.amount *= newDuration.toDouble() / e.duration
-                    e.duration = newDuration
-                }
-                val calc = e.iobCalc(toTime, profile, lastAutosensResult, exercise_mode, half_basal_exercise_target, isTempTarget, activePlugin.activeInsulin)
+                val cut = e.cutToNow(now) ?: continue
+                val calc = cut.iobCalc(toTime, profile, lastAutosensResult, exercise_mode, half_basal_exercise_target, isTempTarget, activePlugin.activeInsulin)
                 totalExt.plus(calc)
             }
             // Convert to basal iob
@@ -34,7 +34,6 @@ import javax.inject.Inject
 import kotlin.math.abs
 import kotlin.math.max
 import kotlin.math.min
-import kotlin.math.roundToLong
 
 class IobCobThread @Inject internal constructor(
     private val injector: HasAndroidInjector,
@@ -60,6 +59,7 @@ class IobCobThread @Inject internal constructor(
     @Inject lateinit var fabricPrivacy: FabricPrivacy
     @Inject lateinit var dateUtil: DateUtil
     @Inject lateinit var repository: AppRepository
+    @Inject lateinit var autosensSnapshot: AutosensSnapshot
 
     private var mWakeLock: PowerManager.WakeLock? = null
 
@@ -79,9 +79,12 @@ class IobCobThread @Inject internal constructor(
             }
             //log.debug("Locking calculateSensitivityData");
             val oldestTimeWithData = iobCobCalculatorPlugin.calculateDetectionStart(end, limitDataToOldestAvailable)
+            // key must be taken before data is loaded
+            val snapshotKey = if (iobCobCalculatorPlugin.snapshotEnabled && autosensSnapshot.isStoreDue()) autosensSnapshot.currentKey() else null
             if (bgDataReload) {
                 iobCobCalculatorPlugin.ads.loadBgData(end, repository, aapsLogger, dateUtil, rxBus)
                 iobCobCalculatorPlugin.clearCache()
+                iobCobCalculatorPlugin.restoreSnapshot(autosensSnapshot)
             }
             // work on local copy and set back when finished
             val ads = iobCobCalculatorPlugin.ads.clone()
@@ -91,6 +94,17 @@ class IobCobThread @Inject internal constructor(
                 aapsLogger.debug(LTag.AUTOSENS, "Aborting calculation thread (No bucketed data available): $from")
                 return
             }
+            // load treatments of the whole run to memory at once
+            iobCobCalculatorPlugin.treatmentTimeline.load(bucketedData[bucketedData.size - 1].timestamp - iobCobCalculatorPlugin.range())
+            // phase 1: inputs not depending on previous buckets are calculated in parallel
+            val nowRounded = ads.roundUpTime(dateUtil.now())
+            val pending = (bucketedData.size - 4 downTo 0).filter { i ->
+                val bgTime = ads.roundUpTime(bucketedData[i].timestamp)
+                bgTime <= nowRounded && autosensDataTable[bgTime] == null
+            }
+            val inputs = AutosensInputsCalculator(iobCobCalculatorPlugin, profileFunction, repository, aapsLogger)
+                .calculate(bucketedData, pending, ads::roundUpTime, parallel = true)
+            // phase 2: COB chain and sensitivity
             val prevDataTime = ads.roundUpTime(bucketedData[bucketedData.size - 3].timestamp)
             aapsLogger.debug(LTag.AUTOSENS, "Prev data time: " + dateUtil.dateAndTimeString(prevDataTime))
             var previous = autosensDataTable[prevDataTime]
@@ -112,32 +126,21 @@ class IobCobThread @Inject internal constructor(
                     previous = existing
                     continue
                 }
-                val profile = profileFunction.getProfile(bgTime)
-                if (profile == null) {
-                    aapsLogger.debug(LTag.AUTOSENS, "Aborting calculation thread (no profile): $from")
-                    continue  // profile not set yet
-                }
-                aapsLogger.debug(LTag.AUTOSENS, "Processing calculation thread: " + from + " (" + i + "/" + bucketedData.size + ")")
-                val sens = profile.getIsfMgdl(bgTime)
+                val input = inputs[i] ?: continue  // profile not set yet or invalid bg
+                aapsLogger.debug(LTag.AUTOSENS) { "Processing calculation thread: " + from + " (" + i + "/" + bucketedData.size + ")" }
+                val profile = input.profile
+                val sens = input.sens
                 val autosensData = AutosensData(injector)
                 autosensData.time = bgTime
                 if (previous != null) autosensData.activeCarbsList = previous.cloneCarbsList() else autosensData.activeCarbsList = ArrayList()
 
-                //console.error(bgTime , bucketed_data[i].glucose);
-                var avgDelta: Double
-                var delta: Double
-                val bg: Double = bucketedData[i].value
-                if (bg < 39 || bucketedData[i + 3].value < 39) {
-                    aapsLogger.error("! value < 39")
-                    continue
-                }
-                autosensData.bg = bg
-                delta = bg - bucketedData[i + 1].value
-                avgDelta = (bg - bucketedData[i + 3].value) / 3
-                val iob = iobCobCalculatorPlugin.calculateFromTreatmentsAndTemps(bgTime, profile)
-                val bgi = -iob.activity * sens * 5
-                val deviation = delta - bgi
-                val avgDeviation = ((avgDelta - bgi) * 1000).roundToLong() / 1000.0
+                autosensData.bg = input.bg
+                val delta = input.delta
+                val avgDelta = input.avgDelta
+                val iob = input.iob
+                val bgi = input.bgi
+                val deviation = input.deviation
+                val avgDeviation = input.avgDeviation
                 var slopeFromMaxDeviation = 0.0
                 var slopeFromMinDeviation = 999.0
 
@@ -191,8 +194,7 @@ class IobCobThread @Inject internal constructor(
                         aapsLogger.debug(LTag.AUTOSENS, ">>>>> bucketed_data.size()=" + bucketedData.size + " i=" + i + " hourAgoData=" + "null")
                     }
                 }
-                val recentCarbTreatments = repository.getCarbsDataFromTimeToTimeExpanded(bgTime - T.mins(5).msecs(), bgTime, true).blockingGet()
-                for (recentCarbTreatment in recentCarbTreatments) {
+                for (recentCarbTreatment in input.recentCarbTreatments) {
                     autosensData.carbsFromBolus += recentCarbTreatment.amount
                     val isAAPSOrWeighted = sensitivityAAPSPlugin.isEnabled() || sensitivityWeightedAveragePlugin.isEnabled()
                     autosensData.activeCarbsList.add(autosensData.CarbsInPast(recentCarbTreatment, isAAPSOrWeighted))
@@ -258,13 +260,14 @@ class IobCobThread @Inject internal constructor(
                 }
                 previous = autosensData
                 if (bgTime < dateUtil.now()) autosensDataTable.put(bgTime, autosensData)
-                aapsLogger.debug(LTag.AUTOSENS, "Running detectSensitivity from: " + dateUtil.dateAndTimeString(oldestTimeWithData) + " to: " + dateUtil.dateAndTimeString(bgTime) + " lastDataTime:" + ads.lastDataTime(dateUtil))
+                aapsLogger.debug(LTag.AUTOSENS) { "Running detectSensitivity from: " + dateUtil.dateAndTimeString(oldestTimeWithData) + " to: " + dateUtil.dateAndTimeString(bgTime) + " lastDataTime:" + ads.lastDataTime(dateUtil) }
                 val sensitivity = activePlugin.activeSensitivity.detectSensitivity(ads, oldestTimeWithData, bgTime)
-                aapsLogger.debug(LTag.AUTOSENS, "Sensitivity result: $sensitivity")
+                aapsLogger.debug(LTag.AUTOSENS) { "Sensitivity result: $sensitivity" }
                 autosensData.autosensResult = sensitivity
-                aapsLogger.debug(LTag.AUTOSENS, autosensData.toString())
+                aapsLogger.debug(LTag.AUTOSENS) { autosensData.toString() }
             }
             iobCobCalculatorPlugin.ads = ads
+            snapshotKey?.let { iobCobCalculatorPlugin.storeSnapshot(autosensSnapshot, it) }
             Thread {
                 SystemClock.sleep(1000)
                 rxBus.send(EventAutosensCalculationFinished(cause))
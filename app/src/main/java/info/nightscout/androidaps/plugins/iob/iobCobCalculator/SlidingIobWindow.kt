@@ -0,0 +1,159 @@
+package info.nightscout.androidaps.plugins.iob.iobCobCalculator
+
+import info.nightscout.androidaps.data.IobTotal
+import info.nightscout.androidaps.database.entities.Bolus
+import info.nightscout.androidaps.database.entities.ExtendedBolus
+import info.nightscout.androidaps.database.entities.TemporaryBasal
+import info.nightscout.androidaps.database.interfaces.DBEntryWithTime
+import info.nightscout.androidaps.database.interfaces.end
+import info.nightscout.androidaps.extensions.getPassedDurationToTimeInMinutes
+import info.nightscout.androidaps.interfaces.Insulin
+import info.nightscout.androidaps.interfaces.Profile
+import java.util.IdentityHashMap
+import kotlin.math.ceil
+
+/**
+ * Forward moving window over treatment timeline used by autosens walk.
+ *
+ * Calculated time must not decrease between calls (window is rebuilt if it does).
+ * Treatments enter the window when their start passes calculated time and leave it after DIA range.
+ * Finished temporary basals and extended boluses are split to 5 min boluses only once
+ * when they enter the window instead of on every step.
+ *
+ * Results are equal to calculation without window,
+ * see IobCobCalculatorPlugin.calculateFromTreatmentsAndTemps
+ */
+class SlidingIobWindow(private val treatmentTimeline: TreatmentTimeline) {
+
+    private class Slices(val dia: Double, val timestamps: LongArray, val amounts: DoubleArray)
+
+    private inner class Cursor<T : DBEntryWithTime>(
+        private val load: (Long) -> List<T>,
+        private val onLeave: (T) -> Unit
+    ) {
+
+        private var list: List<T> = emptyList()
+        private var initialized = false
+        private var start = 0
+        private var end = 0
+        private var lastFrom = 0L
+        private var lastTo = 0L
+
+        fun range(from: Long, to: Long): List<T> {
+            if (!initialized || from < lastFrom || to < lastTo) {
+                // first use or moving back in time
+                initialized = true
+                list = load(from)
+                start = 0
+                end = 0
+                tempBasalSlices.clear()
+                extendedBolusSlices.clear()
+            }
+            lastFrom = from
+            lastTo = to
+            while (start < list.size && list[start].timestamp < from) onLeave(list[start++])
+            if (end < start) end = start
+            while (end < list.size && list[end].timestamp <= to) end++
+            return list.subList(start, end)
+        }
+    }
+
+    private val tempBasalSlices = IdentityHashMap<TemporaryBasal, Slices>()
+    private val extendedBolusSlices = IdentityHashMap<ExtendedBolus, Slices>()
+
+    private val boluses = Cursor(treatmentTimeline::getBolusesFromTime) { }
+    private val temporaryBasals = Cursor(treatmentTimeline::getTemporaryBasalsFromTime) { tempBasalSlices.remove(it) }
+    private val extendedBoluses = Cursor(treatmentTimeline::getExtendedBolusesFromTime) { extendedBolusSlices.remove(it) }
+
+    fun getBolusesFromTimeToTime(from: Long, to: Long): List<Bolus> = boluses.range(from, to)
+    fun getTemporaryBasalsFromTimeToTime(from: Long, to: Long): List<TemporaryBasal> = temporaryBasals.range(from, to)
+    fun getExtendedBolusesFromTimeToTime(from: Long, to: Long): List<ExtendedBolus> = extendedBoluses.range(from, to)
+
+    /**
+     * Same as TemporaryBasal.iobCalc(time, profile, insulin, result) using cached slices
+     *
+     * @return false if temporary basal is not finished at [time] and must be calculated directly
+     */
+    fun iobCalc(temporaryBasal: TemporaryBasal, time: Long, profile: Profile, insulin: Insulin, result: IobTotal): Boolean {
+        if (temporaryBasal.end > time) return false
+        val slices = tempBasalSlices.getOrPut(temporaryBasal) { temporaryBasal.slices(profile) }
+        val diaAgo = time - slices.dia * 60 * 60 * 1000
+        var netBasalAmount = 0.0
+        for (j in slices.timestamps.indices) {
+            val calcDate = slices.timestamps[j]
+            val amount = slices.amounts[j]
+            if (calcDate > diaAgo && calcDate <= time) {
+                netBasalAmount += amount
+                result.basaliob += insulin.iobContrib(amount, calcDate, time, slices.dia)
+                result.activity += insulin.activityContrib(amount, calcDate, time, slices.dia)
+                result.netbasalinsulin += amount
+                if (amount > 0) {
+                    result.hightempinsulin += amount
+                }
+            }
+        }
+        result.netInsulin += netBasalAmount
+        return true
+    }
+
+    /**
+     * Same as ExtendedBolus.iobCalc(time, profile, insulin) using cached slices
+     *
+     * @return null if extended bolus is not finished at [time] and must be calculated directly
+     */
+    fun iobCalc(extendedBolus: ExtendedBolus, time: Long, profile: Profile, insulin: Insulin): IobTotal? {
+        if (extendedBolus.end > time) return null
+        val slices = extendedBolusSlices.getOrPut(extendedBolus) { extendedBolus.slices(profile) }
+        val result = IobTotal(time)
+        val diaAgo = time - slices.dia * 60 * 60 * 1000
+        for (j in slices.timestamps.indices) {
+            val calcDate = slices.timestamps[j]
+            val amount = slices.amounts[j]
+            if (calcDate > diaAgo && calcDate <= time) {
+                result.iob += insulin.iobContrib(amount, calcDate, time, slices.dia)
+                result.activity += insulin.activityContrib(amount, calcDate, time, slices.dia)
+                result.extendedBolusInsulin += amount
+            }
+        }
+        return result
+    }
+
+    // keep in sync with TemporaryBasal.iobCalc
+    private fun TemporaryBasal.slices(profile: Profile): Slices {
+        val realDuration = getPassedDurationToTimeInMinutes(end)
+        if (realDuration <= 0) return Slices(profile.dia, LongArray(0), DoubleArray(0))
+        val aboutFiveMinIntervals = ceil(realDuration / 5.0).toInt()
+        val tempBolusSpacing = realDuration / aboutFiveMinIntervals.toDouble()
+        val timestamps = LongArray(aboutFiveMinIntervals)
+        val amounts = DoubleArray(aboutFiveMinIntervals)
+        for (j in 0 until aboutFiveMinIntervals) {
+            // find middle of the interval
+            val calcDate = (timestamp + j.toLong() * tempBolusSpacing * 60 * 1000 + 0.5 * tempBolusSpacing * 60 * 1000).toLong()
+            val basalRate = profile.getBasal(calcDate)
+            val netBasalRate = if (isAbsolute) {
+                rate - basalRate
+            } else {
+                (rate - 100) / 100.0 * basalRate
+            }
+            timestamps[j] = calcDate
+            amounts[j] = netBasalRate * tempBolusSpacing / 60.0
+        }
+        return Slices(profile.dia, timestamps, amounts)
+    }
+
+    // keep in sync with ExtendedBolus.iobCalc
+    private fun ExtendedBolus.slices(profile: Profile): Slices {
+        val realDuration = getPassedDurationToTimeInMinutes(end)
+        if (realDuration <= 0) return Slices(profile.dia, LongArray(0), DoubleArray(0))
+        val aboutFiveMinIntervals = ceil(realDuration / 5.0).toInt()
+        val spacing = realDuration / aboutFiveMinIntervals.toDouble()
+        val timestamps = LongArray(aboutFiveMinIntervals)
+        val amounts = DoubleArray(aboutFiveMinIntervals)
+        for (j in 0 until aboutFiveMinIntervals) {
+            // find middle of the interval
+            timestamps[j] = (timestamp + j.toLong() * spacing * 60 * 1000 + 0.5 * spacing * 60 * 1000).toLong()
+            amounts[j] = rate * spacing / 60.0
+        }
+        return Slices(profile.dia, timestamps, amounts)
+    }
+}
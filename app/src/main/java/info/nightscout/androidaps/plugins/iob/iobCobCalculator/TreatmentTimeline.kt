@@ -0,0 +1,170 @@
+package info.nightscout.androidaps.plugins.iob.iobCobCalculator
+
+import info.nightscout.androidaps.database.AppRepository
+import info.nightscout.androidaps.database.entities.Bolus
+import info.nightscout.androidaps.database.entities.ExtendedBolus
+import info.nightscout.androidaps.database.entities.TemporaryBasal
+import info.nightscout.androidaps.database.interfaces.DBEntryWithTime
+import info.nightscout.androidaps.database.interfaces.TraceableDBEntry
+
+/**
+ * In-memory copy of valid boluses, temporary basals and extended boluses sorted by timestamp.
+ *
+ * Loaded once per calculation run and patched from the oldest changed timestamp
+ * when history data changes. Range queries are served by binary search instead of DB round-trips.
+ *
+ * NOTE: returned records are shared between callers and must not be modified
+ */
+class TreatmentTimeline(private val repository: AppRepository) {
+
+    private class Snapshot(
+        val from: Long,
+        val boluses: List<Bolus>,
+        val temporaryBasals: List<TemporaryBasal>,
+        val extendedBoluses: List<ExtendedBolus>
+    )
+
+    private val lock = Any()
+    @Volatile private var snapshot: Snapshot? = null
+    @Volatile private var dirtyFrom = Long.MAX_VALUE
+
+    /**
+     * Prepare timeline for calculation run starting at [from]
+     * Data is read from DB only if not available in memory yet, older records are dropped
+     */
+    fun load(from: Long) {
+        synchronized(lock) {
+            val current = validSnapshot(from)
+            if (current.from < from)
+                snapshot = Snapshot(
+                    from,
+                    current.boluses.fromTime(from),
+                    current.temporaryBasals.fromTime(from),
+                    current.extendedBoluses.fromTime(from)
+                )
+        }
+    }
+
+    /**
+     * Mark records starting at [from] or later as outdated
+     * They are reloaded on next access
+     */
+    fun invalidateFrom(from: Long) {
+        synchronized(lock) {
+            if (from < dirtyFrom) dirtyFrom = from
+        }
+    }
+
+    fun reset() {
+        synchronized(lock) {
+            snapshot = null
+            dirtyFrom = Long.MAX_VALUE
+        }
+    }
+
+    /**
+     * Valid boluses with timestamp in interval <from, to>, sorted by timestamp
+     */
+    fun getBolusesFromTimeToTime(from: Long, to: Long): List<Bolus> =
+        snapshot(from).boluses.range(from, to)
+
+    /**
+     * Valid temporary basals with timestamp in interval <from, to>, sorted by timestamp
+     */
+    fun getTemporaryBasalsFromTimeToTime(from: Long, to: Long): List<TemporaryBasal> =
+        snapshot(from).temporaryBasals.range(from, to)
+
+    /**
+     * Valid extended boluses with timestamp in interval <from, to>, sorted by timestamp
+     */
+    fun getExtendedBolusesFromTimeToTime(from: Long, to: Long): List<ExtendedBolus> =
+        snapshot(from).extendedBoluses.range(from, to)
+
+    /**
+     * Valid boluses with timestamp >= from, sorted by timestamp
+     */
+    fun getBolusesFromTime(from: Long): List<Bolus> =
+        snapshot(from).boluses.let { it.subList(it.lowerBound(from), it.size) }
+
+    /**
+     * Valid temporary basals with timestamp >= from, sorted by timestamp
+     */
+    fun getTemporaryBasalsFromTime(from: Long): List<TemporaryBasal> =
+        snapshot(from).temporaryBasals.let { it.subList(it.lowerBound(from), it.size) }
+
+    /**
+     * Valid extended boluses with timestamp >= from, sorted by timestamp
+     */
+    fun getExtendedBolusesFromTime(from: Long): List<ExtendedBolus> =
+        snapshot(from).extendedBoluses.let { it.subList(it.lowerBound(from), it.size) }
+
+    private fun snapshot(from: Long): Snapshot {
+        // lock free path for the most common case
+        val current = snapshot
+        if (current != null && current.from <= from && dirtyFrom == Long.MAX_VALUE) return current
+        synchronized(lock) {
+            return validSnapshot(from)
+        }
+    }
+
+    // must be called with lock held
+    private fun validSnapshot(from: Long): Snapshot {
+        var current = snapshot
+        if (current != null && dirtyFrom <= current.from) current = null
+        if (current == null || current.from > from) {
+            current = Snapshot(
+                from,
+                repository.getBolusesDataFromTime(from, true).blockingGet().sortedBy { it.timestamp },
+                repository.getTemporaryBasalsDataFromTime(from, true).blockingGet().sortedBy { it.timestamp },
+                repository.getExtendedBolusDataFromTime(from, true).blockingGet().sortedBy { it.timestamp }
+            )
+        } else if (dirtyFrom != Long.MAX_VALUE) {
+            current = Snapshot(
+                current.from,
+                current.boluses.patch(dirtyFrom, repository.getBolusesDataFromTime(dirtyFrom, true).blockingGet()),
+                current.temporaryBasals.patch(dirtyFrom, repository.getTemporaryBasalsDataFromTime(dirtyFrom, true).blockingGet()),
+                current.extendedBoluses.patch(dirtyFrom, repository.getExtendedBolusDataFromTime(dirtyFrom, true).blockingGet())
+            )
+        }
+        snapshot = current
+        dirtyFrom = Long.MAX_VALUE
+        return current
+    }
+
+    companion object {
+
+        /**
+         * Replace tail of sorted list starting at [from] by [reloaded] records
+         * Records moved to the tail by timestamp change are removed from the head too
+         */
+        private fun <T> List<T>.patch(from: Long, reloaded: List<T>): List<T> where T : DBEntryWithTime, T : TraceableDBEntry {
+            val reloadedIds = reloaded.mapTo(HashSet()) { it.id }
+            val result = ArrayList<T>(size + reloaded.size)
+            for (i in 0 until lowerBound(from)) if (!reloadedIds.contains(this[i].id)) result.add(this[i])
+            result.addAll(reloaded.sortedBy { it.timestamp })
+            return result
+        }
+
+        private fun <T : DBEntryWithTime> List<T>.fromTime(from: Long): List<T> = ArrayList(subList(lowerBound(from), size))
+
+        private fun <T : DBEntryWithTime> List<T>.range(from: Long, to: Long): List<T> {
+            val start = lowerBound(from)
+            val end = lowerBound(to + 1)
+            return if (start < end) subList(start, end) else emptyList()
+        }
+
+        /**
+         * @return index of first element with timestamp >= [time] or size if there is no such element
+         */
+        internal fun <T : DBEntryWithTime> List<T>.lowerBound(time: Long): Int {
+            var low = 0
+            var high = size
+            while (low < high) {
+                val mid = (low + high) ushr 1
+                if (this[mid].timestamp < time) low = mid + 1
+                else high = mid
+            }
+            return low
+        }
+    }
+}
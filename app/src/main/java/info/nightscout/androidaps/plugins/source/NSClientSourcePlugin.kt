@@ -1,6 +1,7 @@
 package info.nightscout.androidaps.plugins.source
 
 import android.content.Context
+import androidx.work.ListenableWorker
 import androidx.work.Worker
 import androidx.work.WorkerParameters
 import androidx.work.workDataOf
@@ -27,6 +28,7 @@ import info.nightscout.androidaps.utils.T
 import info.nightscout.androidaps.utils.XDripBroadcast
 import info.nightscout.androidaps.utils.resources.ResourceHelper
 import info.nightscout.shared.sharedPreferences.SP
+import org.json.JSONArray
 import org.json.JSONObject
 import javax.inject.Inject
 import javax.inject.Singleton
@@ -83,22 +85,36 @@ class NSClientSourcePlugin @Inject constructor(
         params: WorkerParameters
     ) : Worker(context, params) {
 
-        @Inject lateinit var nsClientSourcePlugin: NSClientSourcePlugin
-        @Inject lateinit var injector: HasAndroidInjector
-        @Inject lateinit var aapsLogger: AAPSLogger
-        @Inject lateinit var sp: SP
-        @Inject lateinit var rxBus: RxBus
-        @Inject lateinit var dateUtil: DateUtil
         @Inject lateinit var dataWorker: DataWorker
-        @Inject lateinit var repository: AppRepository
-        @Inject lateinit var xDripBroadcast: XDripBroadcast
-        @Inject lateinit var dexcomPlugin: DexcomPlugin
-        @Inject lateinit var nsClientPlugin: NSClientPlugin
+        @Inject lateinit var nsClientSourceProcessor: NSClientSourceProcessor
 
         init {
             (context.applicationContext as HasAndroidInjector).androidInjector().inject(this)
         }
 
+        override fun doWork(): Result {
+            val sgvs = dataWorker.pickupJSONArray(inputData.getLong(DataWorker.STORE_KEY, -1))
+                ?: return Result.failure(workDataOf("Error" to "missing input data"))
+            return nsClientSourceProcessor.process(sgvs)
+        }
+    }
+
+    /**
+     * Stores BG values received from NS, whole array in one transaction.
+     * Called directly by NSClientPipeline or by [NSClientSourceWorker] when app is in background.
+     */
+    @Singleton
+    class NSClientSourceProcessor @Inject constructor(
+        private val nsClientSourcePlugin: NSClientSourcePlugin,
+        private val aapsLogger: AAPSLogger,
+        private val sp: SP,
+        private val rxBus: RxBus,
+        private val dateUtil: DateUtil,
+        private val repository: AppRepository,
+        private val xDripBroadcast: XDripBroadcast,
+        private val nsClientPlugin: NSClientPlugin
+    ) {
+
         private fun toGv(jsonObject: JSONObject): CgmSourceTransaction.TransactionGlucoseValue? {
             val sgv = NSSgv(jsonObject)
             return CgmSourceTransaction.TransactionGlucoseValue(
@@ -113,13 +129,10 @@ class NSClientSourcePlugin @Inject constructor(
         }
 
         @Suppress("SpellCheckingInspection")
-        override fun doWork(): Result {
-            var ret = Result.success()
-
-            if (!nsClientSourcePlugin.isEnabled() && !sp.getBoolean(R.string.key_ns_receive_cgm, false)) return Result.success(workDataOf("Result" to "Sync not enabled"))
+        fun process(sgvs: JSONArray): ListenableWorker.Result {
+            var ret = ListenableWorker.Result.success()
 
-            val sgvs = dataWorker.pickupJSONArray(inputData.getLong(DataWorker.STORE_KEY, -1))
-                ?: return Result.failure(workDataOf("Error" to "missing input data"))
+            if (!nsClientSourcePlugin.isEnabled() && !sp.getBoolean(R.string.key_ns_receive_cgm, false)) return ListenableWorker.Result.success(workDataOf("Result" to "Sync not enabled"))
 
             try {
                 var latestDateInReceivedData: Long = 0
@@ -143,7 +156,7 @@ class NSClientSourcePlugin @Inject constructor(
                 repository.runTransactionForResult(CgmSourceTransaction(glucoseValues, emptyList(), null, !nsClientSourcePlugin.isEnabled()))
                     .doOnError {
                         aapsLogger.error(LTag.DATABASE, "Error while saving values from NSClient App", it)
-                        ret = Result.failure(workDataOf("Error" to it.toString()))
+                        ret = ListenableWorker.Result.failure(workDataOf("Error" to it.toString()))
                     }
                     .blockingGet()
                     .also { result ->
@@ -160,7 +173,7 @@ class NSClientSourcePlugin @Inject constructor(
                     }
             } catch (e: Exception) {
                 aapsLogger.error("Unhandled exception", e)
-                ret = Result.failure(workDataOf("Error" to e.toString()))
+                ret = ListenableWorker.Result.failure(workDataOf("Error" to e.toString()))
             }
             return ret
         }
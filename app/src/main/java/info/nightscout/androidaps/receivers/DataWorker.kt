@@ -67,6 +67,12 @@ class DataWorker @Inject constructor(
 
     }
 
+    /**
+     * @return true if enqueued work is not finished yet. Blocks while WorkManager is queried
+     */
+    fun hasPendingWork(): Boolean =
+        WorkManager.getInstance(context).getWorkInfosForUniqueWork(jobGroupName).get().any { !it.state.isFinished }
+
     companion object {
 
         const val STORE_KEY = "storeKey"
@@ -5,6 +5,7 @@ import android.util.LongSparseArray
 import info.nightscout.androidaps.R
 import info.nightscout.androidaps.database.AppRepository
 import info.nightscout.androidaps.database.entities.Bolus
+import info.nightscout.androidaps.database.entities.HourlyTotal
 import info.nightscout.androidaps.database.entities.TotalDailyDose
 import info.nightscout.androidaps.extensions.convertedToAbsolute
 import info.nightscout.androidaps.extensions.toText
@@ -19,6 +20,8 @@ import info.nightscout.androidaps.utils.resources.ResourceHelper
 import info.nightscout.shared.logging.AAPSLogger
 import info.nightscout.shared.logging.LTag
 import javax.inject.Inject
+import kotlin.math.max
+import kotlin.math.min
 
 class TddCalculator @Inject constructor(
     private val aapsLogger: AAPSLogger,
@@ -30,44 +33,22 @@ class TddCalculator @Inject constructor(
     private val repository: AppRepository
 ) {
 
+    /**
+     * Totals of finished days, last [days] days keyed by midnight
+     */
     fun calculate(days: Long): LongSparseArray<TotalDailyDose> {
         val startTime = MidnightTime.calc(dateUtil.now() - T.days(days).msecs())
         val endTime = MidnightTime.calc(dateUtil.now())
 
         val result = LongSparseArray<TotalDailyDose>()
-        repository.getBolusesDataFromTimeToTime(startTime, endTime, true).blockingGet()
-            .filter { it.type != Bolus.Type.PRIMING }
-            .forEach { t ->
-                val midnight = MidnightTime.calc(t.timestamp)
+        hourlyTotals(startTime, endTime)
+            .filter { it.basalAmount != 0.0 || it.bolusAmount != 0.0 || it.carbs != 0.0 }
+            .forEach { hour ->
+                val midnight = MidnightTime.calc(hour.timestamp)
                 val tdd = result[midnight] ?: TotalDailyDose(timestamp = midnight)
-                tdd.bolusAmount += t.amount
+                tdd.add(hour)
                 result.put(midnight, tdd)
             }
-        repository.getCarbsDataFromTimeToTimeExpanded(startTime, endTime, true).blockingGet().forEach { t ->
-            val midnight = MidnightTime.calc(t.timestamp)
-            val tdd = result[midnight] ?: TotalDailyDose(timestamp = midnight)
-            tdd.carbs += t.amount
-            result.put(midnight, tdd)
-        }
-
-        val calculationStep = T.mins(5).msecs()
-        val tempBasals = iobCobCalculator.getTempBasalIncludingConvertedExtendedForRange(startTime, endTime, calculationStep)
-        for (t in startTime until endTime step calculationStep) {
-            val midnight = MidnightTime.calc(t)
-            val tdd = result[midnight] ?: TotalDailyDose(timestamp = midnight)
-            val tbr = tempBasals[t]
-            val profile = profileFunction.getProfile(t) ?: continue
-            val absoluteRate = tbr?.convertedToAbsolute(t, profile) ?: profile.getBasal(t)
-            tdd.basalAmount += absoluteRate / T.mins(60).msecs().toDouble() * calculationStep.toDouble()
-
-            if (!activePlugin.activePump.isFakingTempsByExtendedBoluses) {
-                // they are not included in TBRs
-                val eb = iobCobCalculator.getExtendedBolus(t)
-                val absoluteEbRate = eb?.rate ?: 0.0
-                tdd.bolusAmount += absoluteEbRate / T.mins(60).msecs().toDouble() * calculationStep.toDouble()
-            }
-            result.put(midnight, tdd)
-        }
         for (i in 0 until result.size()) {
             val tdd = result.valueAt(i)
             tdd.totalAmount = tdd.bolusAmount + tdd.basalAmount
@@ -76,97 +57,97 @@ class TddCalculator @Inject constructor(
         return result
     }
 
-    fun calculateDaily(): TotalDailyDose {
-        val startTime = MidnightTime.calc(dateUtil.now())
-        val endTime = dateUtil.now()
+    fun calculateDaily(): TotalDailyDose = calculate(MidnightTime.calc(dateUtil.now()), dateUtil.now())
+
+    fun calculate24Daily(): TotalDailyDose = calculate(dateUtil.now() - T.hours(hour = 24).msecs(), dateUtil.now())
+
+    private fun calculate(startTime: Long, endTime: Long): TotalDailyDose {
         val tdd = TotalDailyDose(timestamp = startTime)
-        //val result = TotalDailyDose()
-        repository.getBolusesDataFromTimeToTime(startTime, endTime, true).blockingGet()
-            .filter { it.type != Bolus.Type.PRIMING }
-            .forEach { t ->
-                //val midnight = MidnightTime.calc(t.timestamp)
-                //val tdd = result[midnight] ?: TotalDailyDose(timestamp = midnight)
-                tdd.bolusAmount += t.amount
-                //result.put(midnight, tdd)
-            }
-        repository.getCarbsDataFromTimeToTimeExpanded(startTime, endTime, true).blockingGet().forEach { t ->
-            //val midnight = MidnightTime.calc(t.timestamp)
-            //val tdd = result[midnight] ?: TotalDailyDose(timestamp = midnight)
-            tdd.carbs += t.amount
-            //result.put(midnight, tdd)
-        }
-        val calculationStep = T.mins(5).msecs()
-        for (t in startTime until endTime step calculationStep) {
-
-            //val midnight = MidnightTime.calc(t)
-            //val tdd = result[midnight] ?: TotalDailyDose(timestamp = midnight)
-            val tbr = iobCobCalculator.getTempBasalIncludingConvertedExtended(t)
-            val profile = profileFunction.getProfile(t) ?: continue
-            val absoluteRate = tbr?.convertedToAbsolute(t, profile) ?: profile.getBasal(t)
-            tdd.basalAmount += absoluteRate / 60.0 * 5.0
-
-            if (!activePlugin.activePump.isFakingTempsByExtendedBoluses) {
-                // they are not included in TBRs
-                val eb = iobCobCalculator.getExtendedBolus(t)
-                val absoluteEbRate = eb?.rate ?: 0.0
-                tdd.bolusAmount += absoluteEbRate / 60.0 * 5.0
-            }
-            //result.put(midnight, tdd)
-        }
-        //for (i in 0 until tdd.size()) {
-        //val tdd = result.valueAt(i)
+        hourlyTotals(startTime, endTime).forEach { tdd.add(it) }
         tdd.totalAmount = tdd.bolusAmount + tdd.basalAmount
-        //}
-
         aapsLogger.debug(LTag.CORE, tdd.toString())
         return tdd
     }
 
-    fun calculate24Daily(): TotalDailyDose {
-        val startTime = dateUtil.now() - T.hours(hour = 24).msecs()
-        val endTime = dateUtil.now()
-        val tdd = TotalDailyDose(timestamp = startTime)
-        //val result = TotalDailyDose()
-        repository.getBolusesDataFromTimeToTime(startTime, endTime, true).blockingGet()
-            .filter { it.type != Bolus.Type.PRIMING }
-            .forEach { t ->
-                //val midnight = MidnightTime.calc(t.timestamp)
-                //val tdd = result[midnight] ?: TotalDailyDose(timestamp = midnight)
-                tdd.bolusAmount += t.amount
-                //result.put(midnight, tdd)
+    private fun TotalDailyDose.add(hour: HourlyTotal) {
+        basalAmount += hour.basalAmount
+        bolusAmount += hour.bolusAmount
+        carbs += hour.carbs
+    }
+
+    /**
+     * Totals of hours between [startTime] and [endTime], first and last one cut to the interval.
+     * Finished hours are read from database, missing ones are calculated and stored for next time.
+     * Stored hours are dropped by repository when records they are calculated from change.
+     */
+    private fun hourlyTotals(startTime: Long, endTime: Long): List<HourlyTotal> {
+        val now = dateUtil.now()
+        val stored = repository.getHourlyTotals(hourStart(startTime), endTime).blockingGet().associateBy { it.timestamp }
+        val result = ArrayList<HourlyTotal>()
+        val missing = ArrayList<Pair<Long, Long>>()
+        val toStore = HashSet<Long>()
+        var hour = hourStart(startTime)
+        while (hour < endTime) {
+            val nextHour = hourStart(hour + T.hours(1).msecs())
+            val finished = hour >= startTime && nextHour <= endTime && nextHour <= now
+            val total = if (finished) stored[hour] else null
+            if (total != null) result.add(total)
+            else {
+                missing.add(max(hour, startTime) to min(nextHour, endTime))
+                if (finished) toStore.add(hour)
             }
-        repository.getCarbsDataFromTimeToTimeExpanded(startTime, endTime, true).blockingGet().forEach { t ->
-            //val midnight = MidnightTime.calc(t.timestamp)
-            //val tdd = result[midnight] ?: TotalDailyDose(timestamp = midnight)
-            tdd.carbs += t.amount
-            //result.put(midnight, tdd)
+            hour = nextHour
         }
+        if (missing.isNotEmpty()) {
+            val version = repository.getHourlyTotalsVersion().blockingGet()
+            val calculated = calculate(missing)
+            val finished = calculated.filter { it.timestamp in toStore }
+            if (finished.isNotEmpty() && !repository.storeHourlyTotals(finished, version).blockingGet())
+                aapsLogger.debug(LTag.CORE, "Records changed during calculation, hourly totals not stored")
+            result.addAll(calculated)
+            result.sortBy { it.timestamp }
+        }
+        return result
+    }
+
+    private fun calculate(intervals: List<Pair<Long, Long>>): List<HourlyTotal> {
+        val startTime = intervals.first().first
+        val endTime = intervals.last().second
+        val boluses = repository.getBolusesDataFromTimeToTime(startTime, endTime, true).blockingGet()
+            .filter { it.type != Bolus.Type.PRIMING }
+        val carbs = repository.getCarbsDataFromTimeToTimeExpanded(startTime, endTime, true).blockingGet()
+
         val calculationStep = T.mins(5).msecs()
-        //val tempBasals = iobCobCalculator.getTempBasalIncludingConvertedExtendedForRange(startTime, endTime, calculationStep)
-        for (t in startTime until endTime step calculationStep) {
-
-            //val midnight = MidnightTime.calc(t)
-            //val tdd = result[midnight] ?: TotalDailyDose(timestamp = midnight)
-            val tbr = iobCobCalculator.getTempBasalIncludingConvertedExtended(t)
-            val profile = profileFunction.getProfile(t) ?: continue
-            val absoluteRate = tbr?.convertedToAbsolute(t, profile) ?: profile.getBasal(t)
-            tdd.basalAmount += absoluteRate / 60.0 * 5.0
-
-            if (!activePlugin.activePump.isFakingTempsByExtendedBoluses) {
-                // they are not included in TBRs
-                val eb = iobCobCalculator.getExtendedBolus(t)
-                val absoluteEbRate = eb?.rate ?: 0.0
-                tdd.bolusAmount += absoluteEbRate / 60.0 * 5.0
+        return intervals.map { (from, to) ->
+            val total = HourlyTotal(timestamp = from)
+            boluses.filter { it.timestamp in from until to }.forEach { total.bolusAmount += it.amount }
+            carbs.filter { it.timestamp in from until to }.forEach { total.carbs += it.amount }
+            val tempBasals = iobCobCalculator.getTempBasalIncludingConvertedExtendedForRange(from, to, calculationStep)
+            for (t in from until to step calculationStep) {
+                // last step of cut hour is shorter
+                val duration = min(calculationStep, to - t)
+                val tbr = tempBasals[t]
+                val profile = profileFunction.getProfile(t) ?: continue
+                val absoluteRate = tbr?.convertedToAbsolute(t, profile) ?: profile.getBasal(t)
+                total.basalAmount += absoluteRate / T.mins(60).msecs().toDouble() * duration.toDouble()
+
+                if (!activePlugin.activePump.isFakingTempsByExtendedBoluses) {
+                    // they are not included in TBRs
+                    val eb = iobCobCalculator.getExtendedBolus(t)
+                    val absoluteEbRate = eb?.rate ?: 0.0
+                    total.bolusAmount += absoluteEbRate / T.mins(60).msecs().toDouble() * duration.toDouble()
+                }
             }
-            //result.put(midnight, tdd)
+            total
         }
-        //for (i in 0 until tdd.size()) {
-        //val tdd = result.valueAt(i)
-        tdd.totalAmount = tdd.bolusAmount + tdd.basalAmount
-        //}
+    }
 
-        aapsLogger.debug(LTag.CORE, tdd.toString())
-        return tdd
+    /**
+     * Hours are counted from local midnight to keep them inside of one day in time zones with not whole hour offset
+     */
+    private fun hourStart(timestamp: Long): Long {
+        val midnight = MidnightTime.calc(timestamp)
+        return midnight + (timestamp - midnight) / T.hours(1).msecs() * T.hours(1).msecs()
     }
 
     fun averageTDD(tdds: LongSparseArray<TotalDailyDose>): TotalDailyDose? {
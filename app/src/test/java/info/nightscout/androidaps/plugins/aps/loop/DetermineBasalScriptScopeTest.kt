@@ -0,0 +1,135 @@
+package info.nightscout.androidaps.plugins.aps.loop
+
+import dagger.android.AndroidInjector
+import dagger.android.HasAndroidInjector
+import info.nightscout.androidaps.TestBase
+import info.nightscout.androidaps.di.StaticInjector
+import info.nightscout.androidaps.plugins.aps.logger.LoggerCallback
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.mockito.ArgumentMatchers.anyString
+import org.mockito.Mock
+import org.mockito.Mockito.`when`
+import org.mozilla.javascript.Context
+import org.mozilla.javascript.Function
+import org.mozilla.javascript.NativeJSON
+import org.mozilla.javascript.Scriptable
+import org.mozilla.javascript.ScriptableObject
+import java.io.File
+import java.nio.charset.StandardCharsets
+
+class DetermineBasalScriptScopeTest : TestBase() {
+
+    @Mock lateinit var scriptReader: ScriptReader
+
+    private val currentTime = 1_600_000_000_000L
+
+    @Before
+    fun prepare() {
+        StaticInjector(HasAndroidInjector { AndroidInjector { if (it is LoggerCallback) it.aapsLogger = aapsLogger } })
+        `when`(scriptReader.readFile(anyString())).thenAnswer { invocation -> File("src/main/assets/" + invocation.getArgument<String>(0)).readBytes() }
+    }
+
+    private fun glucoseStatus(glucose: Int, delta: Int) =
+        """{"glucose":$glucose,"noise":0,"delta":$delta,"short_avgdelta":$delta,"long_avgdelta":${delta / 2},"date":${currentTime - 60000}}"""
+
+    private val currentTemp = """{"temp":"absolute","duration":12,"rate":0.6,"minutesrunning":18}"""
+
+    private fun iobData(iob: Double): String =
+        (0 until 48).joinToString(prefix = "[", postfix = "]") { i ->
+            val value = iob * (48 - i) / 48
+            """{"iob":$value,"basaliob":${value / 3},"bolussnooze":0,"activity":${value / 100},"lastBolusTime":${currentTime - 3600000},""" +
+                """"iobWithZeroTemp":{"iob":${value - 0.2},"basaliob":${value / 4},"bolussnooze":0,"activity":${value / 110},"lastBolusTime":${currentTime - 3600000}}}"""
+        }
+
+    private val profile =
+        """{"max_iob":5,"type":"current","max_daily_basal":1.2,"max_basal":4,"min_bg":100,"max_bg":100,"target_bg":100,"carb_ratio":10,"sens":50,""" +
+            """"max_daily_safety_multiplier":3,"current_basal_safety_multiplier":4,"high_temptarget_raises_sensitivity":false,"low_temptarget_lowers_sensitivity":false,""" +
+            """"sensitivity_raises_target":true,"resistance_lowers_target":false,"adv_target_adjustments":false,"exercise_mode":false,"half_basal_exercise_target":160,""" +
+            """"maxCOB":120,"skip_neutral_temps":false,"remainingCarbsCap":90,"enableUAM":true,"A52_risk_enable":false,"SMBInterval":3,"enableSMB_with_COB":true,""" +
+            """"enableSMB_with_temptarget":false,"allowSMB_with_high_temptarget":false,"enableSMB_always":true,"enableSMB_after_carbs":false,"maxSMBBasalMinutes":30,""" +
+            """"maxUAMSMBBasalMinutes":30,"bolus_increment":0.1,"carbsReqThreshold":1,"current_basal":1.1,"temptargetSet":false,"autosens_max":1.2}"""
+
+    private val mealData =
+        """{"carbs":30,"mealCOB":15,"slopeFromMaxDeviation":-0.5,"slopeFromMinDeviation":0.8,"lastBolusTime":${currentTime - 3600000},"lastCarbTime":${currentTime - 3600000}}"""
+
+    private val inputs = listOf(
+        Pair(glucoseStatus(150, 5), iobData(1.5)),
+        Pair(glucoseStatus(75, -4), iobData(0.3)),
+        Pair(glucoseStatus(260, 12), iobData(3.0)),
+        Pair(glucoseStatus(150, 5), iobData(1.5))
+    )
+
+    private fun readFile(fileName: String): String = String(scriptReader.readFile(fileName), StandardCharsets.UTF_8)
+
+    private fun parse(rhino: Context, scope: Scriptable, json: String): Any =
+        NativeJSON.parse(rhino, scope, json) { _: Context?, _: Scriptable?, _: Scriptable?, objects: Array<Any?> -> objects[1] }
+
+    private fun callDetermineBasal(rhino: Context, scope: Scriptable, input: Pair<String, String>): String {
+        val determineBasal = scope["determine_basal", scope] as Function
+        val params = arrayOf(
+            parse(rhino, scope, input.first),
+            parse(rhino, scope, currentTemp),
+            parse(rhino, scope, input.second),
+            parse(rhino, scope, profile),
+            parse(rhino, scope, """{"ratio":1.1}"""),
+            parse(rhino, scope, mealData),
+            scope["tempBasalFunctions", scope],
+            java.lang.Boolean.TRUE,
+            org.mozilla.javascript.Undefined.instance,
+            java.lang.Long.valueOf(currentTime),
+            java.lang.Boolean.FALSE
+        )
+        val jsResult = determineBasal.call(rhino, scope, scope, params) as Scriptable
+        return NativeJSON.stringify(rhino, scope, jsResult, null, null).toString() + LoggerCallback.scriptDebug
+    }
+
+    // scripts evaluated from source for every invocation
+    private fun cold(input: Pair<String, String>): String {
+        val rhino = Context.enter()
+        val scope: Scriptable = rhino.initStandardObjects()
+        rhino.optimizationLevel = -1
+        try {
+            ScriptableObject.defineClass(scope, LoggerCallback::class.java)
+            scope.put("console2", scope, rhino.newObject(scope, "LoggerCallback", null))
+            rhino.evaluateString(scope, readFile("OpenAPSAMA/loggerhelper.js"), "JavaScript", 0, null)
+            rhino.evaluateString(scope, "var module = {\"parent\":Boolean(1)};", "JavaScript", 0, null)
+            rhino.evaluateString(scope, "var round_basal = function round_basal(basal, profile) { return basal; };", "JavaScript", 0, null)
+            rhino.evaluateString(scope, "require = function() {return round_basal;};", "JavaScript", 0, null)
+            rhino.evaluateString(scope, readFile("OpenAPSSMB/determine-basal.js"), "JavaScript", 0, null)
+            rhino.evaluateString(scope, readFile("OpenAPSSMB/basal-set-temp.js"), "setTempBasal.js", 0, null)
+            return callDetermineBasal(rhino, scope, input)
+        } finally {
+            Context.exit()
+        }
+    }
+
+    private fun warm(input: Pair<String, String>): String {
+        val rhino = DetermineBasalScriptScope.enterContext()
+        try {
+            val scope = DetermineBasalScriptScope.get(scriptReader, "OpenAPSSMB/determine-basal.js", "OpenAPSSMB/basal-set-temp.js").newScope(rhino)
+            return callDetermineBasal(rhino, scope, input)
+        } finally {
+            Context.exit()
+        }
+    }
+
+    @Test
+    fun sharedScopeGivesSameResultsAsFreshEvaluation() {
+        val expected = inputs.map { cold(it) }
+        // repeated invocations must not leak state between runs
+        repeat(2) {
+            val results = inputs.map { warm(it) }
+            for (i in inputs.indices) Assert.assertEquals(expected[i], results[i])
+        }
+        Assert.assertTrue(expected[0].contains("\"rate\""))
+    }
+
+    @Test
+    fun scriptsAreCompiledOnlyOnce() {
+        val first = DetermineBasalScriptScope.get(scriptReader, "OpenAPSSMB/determine-basal.js", "OpenAPSSMB/basal-set-temp.js")
+        val second = DetermineBasalScriptScope.get(scriptReader, "OpenAPSSMB/determine-basal.js", "OpenAPSSMB/basal-set-temp.js")
+        Assert.assertSame(first, second)
+    }
+}
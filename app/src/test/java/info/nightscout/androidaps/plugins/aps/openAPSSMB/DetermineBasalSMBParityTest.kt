@@ -0,0 +1,281 @@
+package info.nightscout.androidaps.plugins.aps.openAPSSMB
+
+import dagger.android.AndroidInjector
+import dagger.android.HasAndroidInjector
+import info.nightscout.androidaps.TestBase
+import info.nightscout.androidaps.data.IobTotal
+import info.nightscout.androidaps.data.MealData
+import info.nightscout.androidaps.di.StaticInjector
+import info.nightscout.androidaps.plugins.aps.logger.LoggerCallback
+import info.nightscout.androidaps.plugins.aps.loop.DetermineBasalScriptScope
+import info.nightscout.androidaps.plugins.aps.loop.ScriptReader
+import info.nightscout.androidaps.plugins.iob.iobCobCalculator.GlucoseStatus
+import org.json.JSONArray
+import org.json.JSONObject
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.mockito.ArgumentMatchers.anyString
+import org.mockito.Mock
+import org.mockito.Mockito.`when`
+import org.mozilla.javascript.Context
+import org.mozilla.javascript.Function
+import org.mozilla.javascript.NativeJSON
+import org.mozilla.javascript.Scriptable
+import java.io.File
+import java.util.*
+
+/**
+ * Replays the same inputs through determine-basal.js and [DetermineBasalSMB]
+ * and requires identical result and console output
+ */
+@Suppress("SpellCheckingInspection")
+class DetermineBasalSMBParityTest : TestBase() {
+
+    @Mock lateinit var scriptReader: ScriptReader
+
+    private val currentTime = 1_600_000_000_000L
+
+    private class Input(
+        val glucoseStatus: GlucoseStatus,
+        val currentTemp: CurrentTemp,
+        val iobArray: Array<IobTotal>,
+        val profile: OapsProfile,
+        val autosensRatio: Double,
+        val mealData: MealData,
+        val microBolusAllowed: Boolean,
+        val isSaveCgmSource: Boolean
+    )
+
+    @Before
+    fun prepare() {
+        StaticInjector(HasAndroidInjector { AndroidInjector { if (it is LoggerCallback) it.aapsLogger = aapsLogger } })
+        `when`(scriptReader.readFile(anyString())).thenAnswer { invocation -> File("src/main/assets/" + invocation.getArgument<String>(0)).readBytes() }
+    }
+
+    private fun profile(
+        target: Double = 100.0,
+        temptargetSet: Boolean = false,
+        mmol: Boolean = false,
+        skipNeutralTemps: Boolean = false,
+        enableSMBAlways: Boolean = true,
+        enableUAM: Boolean = true,
+        currentBasal: Double = 1.1,
+        sens: Double = 50.0,
+        carbRatio: Double = 10.0
+    ) = OapsProfile(
+        max_iob = 5.0, max_daily_basal = 1.2, max_basal = 4.0, min_bg = target, max_bg = target, target_bg = target,
+        carb_ratio = carbRatio, sens = sens, max_daily_safety_multiplier = 3, current_basal_safety_multiplier = 4.0,
+        high_temptarget_raises_sensitivity = temptargetSet, low_temptarget_lowers_sensitivity = false,
+        sensitivity_raises_target = true, resistance_lowers_target = false, adv_target_adjustments = false, exercise_mode = false,
+        half_basal_exercise_target = 160, maxCOB = 120, skip_neutral_temps = skipNeutralTemps, remainingCarbsCap = 90,
+        enableUAM = enableUAM, A52_risk_enable = false, SMBInterval = 3, enableSMB_with_COB = true, enableSMB_with_temptarget = false,
+        allowSMB_with_high_temptarget = false, enableSMB_always = enableSMBAlways, enableSMB_after_carbs = false,
+        maxSMBBasalMinutes = 30, maxUAMSMBBasalMinutes = 30, bolus_increment = 0.1, carbsReqThreshold = 1,
+        current_basal = currentBasal, temptargetSet = temptargetSet, autosens_max = 1.2, out_units = if (mmol) "mmol/L" else null
+    )
+
+    private fun iobArray(iob: Double, activity: Double, zeroTempOffset: Double): Array<IobTotal> =
+        Array(48) { i ->
+            val value = iob * (48 - i) / 48
+            IobTotal(currentTime + i * 5 * 60000L).also {
+                it.iob = value
+                it.basaliob = value / 3
+                it.activity = activity * (48 - i) / 48
+                it.lastBolusTime = currentTime - 3600000
+                it.iobWithZeroTemp = IobTotal(it.time).also { zt ->
+                    zt.iob = value - zeroTempOffset
+                    zt.basaliob = value / 4
+                    zt.activity = it.activity * 0.9
+                    zt.lastBolusTime = currentTime - 3600000
+                }
+            }
+        }
+
+    private fun mealData(carbs: Double, cob: Double, minutesAgo: Long) = MealData().also {
+        it.carbs = carbs
+        it.mealCOB = cob
+        it.slopeFromMaxDeviation = if (cob > 0) -0.5 else 0.0
+        it.slopeFromMinDeviation = if (cob > 0) 0.8 else 0.0
+        it.lastBolusTime = currentTime - minutesAgo * 60000
+        it.lastCarbTime = currentTime - minutesAgo * 60000
+    }
+
+    private fun input(
+        glucose: Double, delta: Double, iob: Double = 1.0, activity: Double = 0.01, profile: OapsProfile = profile(),
+        currentTemp: CurrentTemp = CurrentTemp(12, 0.6, 18), mealData: MealData = mealData(0.0, 0.0, 300),
+        bgAgeMinutes: Long = 1, shortAvgDelta: Double = delta, longAvgDelta: Double = delta / 2, autosens: Double = 1.0,
+        noise: Double = 0.0, isSaveCgmSource: Boolean = false
+    ) = Input(
+        GlucoseStatus(glucose, noise, delta, shortAvgDelta, longAvgDelta, currentTime - bgAgeMinutes * 60000),
+        currentTemp, iobArray(iob, activity, 0.2), profile, autosens, mealData, true, isSaveCgmSource
+    )
+
+    private val scenarios = listOf(
+        input(150.0, 5.0, iob = 1.5),                                                   // rising, SMB
+        input(260.0, 12.0, iob = 3.0, activity = 0.03),                                 // high
+        input(75.0, -4.0, iob = 0.3),                                                   // low
+        input(62.0, -6.0, iob = 1.2, activity = 0.02),                                  // LGS
+        input(95.0, -2.0, iob = 0.8),                                                   // eventual below min
+        input(150.0, 5.0, bgAgeMinutes = 20),                                           // stale BG
+        input(130.0, 0.0, shortAvgDelta = 0.0, longAvgDelta = 0.0),                     // flat CGM
+        input(130.0, 0.0, shortAvgDelta = 0.0, longAvgDelta = 0.0, isSaveCgmSource = true),
+        input(140.0, 3.0, mealData = mealData(40.0, 25.0, 30)),                         // COB
+        input(110.0, -3.0, iob = -0.5, mealData = mealData(60.0, 55.0, 15)),            // carbs required
+        input(180.0, 4.0, profile = profile(mmol = true)),                              // mmol
+        input(120.0, 1.0, profile = profile(target = 140.0, temptargetSet = true)),     // high temp target
+        input(101.0, 0.3, iob = 0.0, activity = 0.0, profile = profile(skipNeutralTemps = true, enableSMBAlways = false)),
+        input(160.0, 6.0, autosens = 0.8, noise = 3.0),                                 // noisy, sensitive
+        input(38.0, 0.0),                                                               // sensor error
+        input(200.0, -8.0, iob = 4.5, activity = 0.05, currentTemp = CurrentTemp(0, 0.0))
+    )
+
+    private fun randomScenarios(count: Int): List<Input> {
+        val random = Random(42)
+        fun between(min: Double, max: Double) = min + random.nextDouble() * (max - min)
+        return List(count) {
+            val cob = if (random.nextBoolean()) 0.0 else between(0.0, 80.0)
+            input(
+                glucose = between(40.0, 350.0),
+                delta = between(-15.0, 15.0),
+                iob = between(-1.0, 6.0),
+                activity = between(0.0, 0.06),
+                profile = profile(
+                    target = listOf(90.0, 100.0, 120.0, 160.0)[random.nextInt(4)],
+                    temptargetSet = random.nextInt(4) == 0,
+                    mmol = random.nextBoolean(),
+                    skipNeutralTemps = random.nextBoolean(),
+                    enableSMBAlways = random.nextBoolean(),
+                    enableUAM = random.nextBoolean(),
+                    currentBasal = between(0.3, 2.5),
+                    sens = between(20.0, 120.0),
+                    carbRatio = between(4.0, 20.0)
+                ),
+                currentTemp = CurrentTemp(random.nextInt(31), between(0.0, 4.0), random.nextInt(30)),
+                mealData = mealData(cob + between(0.0, 40.0), cob, random.nextInt(240).toLong()),
+                shortAvgDelta = between(-12.0, 12.0),
+                longAvgDelta = between(-8.0, 8.0),
+                autosens = between(0.7, 1.2),
+                noise = random.nextInt(4).toDouble()
+            )
+        }
+    }
+
+    private fun glucoseStatusJson(glucoseStatus: GlucoseStatus) = JSONObject()
+        .put("glucose", glucoseStatus.glucose)
+        .put("noise", glucoseStatus.noise)
+        .put("delta", glucoseStatus.delta)
+        .put("short_avgdelta", glucoseStatus.shortAvgDelta)
+        .put("long_avgdelta", glucoseStatus.longAvgDelta)
+        .put("date", glucoseStatus.date)
+
+    private fun iobJson(iob: IobTotal): JSONObject = JSONObject()
+        .put("iob", iob.iob)
+        .put("basaliob", iob.basaliob)
+        .put("bolussnooze", iob.bolussnooze)
+        .put("activity", iob.activity)
+        .put("lastBolusTime", iob.lastBolusTime)
+        .also { json -> iob.iobWithZeroTemp?.let { json.put("iobWithZeroTemp", iobJson(it)) } }
+
+    private fun mealDataJson(mealData: MealData) = JSONObject()
+        .put("carbs", mealData.carbs)
+        .put("mealCOB", mealData.mealCOB)
+        .put("slopeFromMaxDeviation", mealData.slopeFromMaxDeviation)
+        .put("slopeFromMinDeviation", mealData.slopeFromMinDeviation)
+        .put("lastBolusTime", mealData.lastBolusTime)
+        .put("lastCarbTime", mealData.lastCarbTime)
+
+    private fun parse(rhino: Context, scope: Scriptable, json: String): Any =
+        NativeJSON.parse(rhino, scope, json) { _: Context?, _: Scriptable?, _: Scriptable?, objects: Array<Any?> -> objects[1] }
+
+    private fun runScript(input: Input): Pair<JSONObject, String> {
+        val rhino = DetermineBasalScriptScope.enterContext()
+        try {
+            val scope = DetermineBasalScriptScope.get(scriptReader, "OpenAPSSMB/determine-basal.js", "OpenAPSSMB/basal-set-temp.js").newScope(rhino)
+            val determineBasal = scope["determine_basal", scope] as Function
+            val iobArray = JSONArray().also { array -> input.iobArray.forEach { array.put(iobJson(it)) } }
+            val params = arrayOf(
+                parse(rhino, scope, glucoseStatusJson(input.glucoseStatus).toString()),
+                parse(rhino, scope, input.currentTemp.json().toString()),
+                parse(rhino, scope, iobArray.toString()),
+                parse(rhino, scope, input.profile.json().toString()),
+                parse(rhino, scope, JSONObject().put("ratio", input.autosensRatio).toString()),
+                parse(rhino, scope, mealDataJson(input.mealData).toString()),
+                scope["tempBasalFunctions", scope],
+                java.lang.Boolean.valueOf(input.microBolusAllowed),
+                org.mozilla.javascript.Undefined.instance,
+                java.lang.Long.valueOf(currentTime),
+                java.lang.Boolean.valueOf(input.isSaveCgmSource)
+            )
+            val jsResult = determineBasal.call(rhino, scope, scope, params) as Scriptable
+            return Pair(JSONObject(NativeJSON.stringify(rhino, scope, jsResult, null, null).toString()), LoggerCallback.scriptDebug)
+        } finally {
+            Context.exit()
+        }
+    }
+
+    private fun runNative(input: Input): Pair<JSONObject, String> {
+        val determineBasal = DetermineBasalSMB()
+        val result = determineBasal.determine_basal(
+            input.glucoseStatus, input.currentTemp, input.iobArray, input.profile, input.autosensRatio,
+            input.mealData, input.microBolusAllowed, currentTime, input.isSaveCgmSource
+        )
+        return Pair(result.json(), determineBasal.scriptDebug)
+    }
+
+    // LoggerCallback output goes through trimIndent() so only line content is comparable
+    private fun normalizeLog(log: String): List<String> = log.lines().map { it.trim() }.filter { it.isNotEmpty() }
+
+    private fun assertSameJson(path: String, expected: Any?, actual: Any?) {
+        when {
+            expected is JSONObject && actual is JSONObject -> {
+                Assert.assertEquals("$path keys", expected.keys().asSequence().toSortedSet(), actual.keys().asSequence().toSortedSet())
+                expected.keys().forEach { key -> assertSameJson("$path.$key", expected.get(key), actual.get(key)) }
+            }
+
+            expected is JSONArray && actual is JSONArray   -> {
+                Assert.assertEquals("$path length", expected.length(), actual.length())
+                for (i in 0 until expected.length()) assertSameJson("$path[$i]", expected.get(i), actual.get(i))
+            }
+
+            expected is Number && actual is Number         -> Assert.assertEquals(path, expected.toDouble(), actual.toDouble(), 0.0)
+            else                                           -> Assert.assertEquals(path, expected, actual)
+        }
+    }
+
+    private fun assertParity(inputs: List<Input>) {
+        inputs.forEachIndexed { index, input ->
+            val expected = runScript(input)
+            val actual = runNative(input)
+            assertSameJson("#$index", expected.first, actual.first)
+            Assert.assertEquals("#$index log", normalizeLog(expected.second), normalizeLog(actual.second))
+        }
+    }
+
+    @Test
+    fun scenariosMatchScript() {
+        assertParity(scenarios)
+    }
+
+    @Test
+    fun randomInputsMatchScript() {
+        assertParity(randomScenarios(300))
+    }
+
+    @Test
+    fun resultIsSerializedLikeScript() {
+        val result = runNative(scenarios[0]).first
+        Assert.assertTrue(result.has("reason"))
+        Assert.assertEquals("+5", result.getString("tick"))
+        Assert.assertTrue(result.getJSONObject("predBGs").getJSONArray("IOB").length() > 0)
+    }
+
+    @Test
+    fun missingIobDataReturnsError() {
+        val input = scenarios[0]
+        val result = DetermineBasalSMB().determine_basal(
+            input.glucoseStatus, input.currentTemp, arrayOf(input.iobArray[0]), input.profile, 1.0, input.mealData, true, currentTime, false
+        )
+        Assert.assertEquals("Error: iob_data missing some property. ", result.error)
+    }
+}
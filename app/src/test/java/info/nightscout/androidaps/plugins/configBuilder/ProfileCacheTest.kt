@@ -0,0 +1,56 @@
+package info.nightscout.androidaps.plugins.configBuilder
+
+import info.nightscout.androidaps.TestBase
+import info.nightscout.androidaps.interfaces.Profile
+import org.junit.Assert
+import org.junit.Test
+import org.mockito.Mock
+
+class ProfileCacheTest : TestBase() {
+
+    @Mock lateinit var profile: Profile
+
+    @Test
+    fun countsHitsAndMisses() {
+        val sut = ProfileCache()
+        Assert.assertNull(sut[1000])
+        sut.put(1000, profile, sut.generation)
+        Assert.assertSame(profile, sut[1000])
+        Assert.assertSame(profile, sut[1000])
+        Assert.assertEquals(2, sut.hits)
+        Assert.assertEquals(1, sut.misses)
+    }
+
+    @Test
+    fun invalidatesOnlyLaterTimes() {
+        val sut = ProfileCache()
+        for (time in 1L..10L) sut.put(time * 1000, profile, sut.generation)
+        Assert.assertEquals(5, sut.invalidateAfter(5000))
+        Assert.assertNotNull(sut[5000])
+        Assert.assertNull(sut[6000])
+        Assert.assertNull(sut[10000])
+    }
+
+    @Test
+    fun rejectsProfileLoadedBeforeInvalidation() {
+        val sut = ProfileCache()
+        val generation = sut.generation
+        sut.invalidateAfter(0)
+        sut.put(1000, profile, generation)
+        Assert.assertNull(sut[1000])
+    }
+
+    @Test
+    fun evictsLeastRecentlyUsed() {
+        val sut = ProfileCache(maxSize = 10)
+        for (time in 1L..10L) sut.put(time, profile, sut.generation)
+        // keep first entry in use
+        Assert.assertNotNull(sut[1])
+        sut.put(11, profile, sut.generation)
+        Assert.assertNotNull(sut[1])
+        Assert.assertNull(sut[2])
+        Assert.assertNull(sut[3])
+        Assert.assertNotNull(sut[4])
+        Assert.assertNotNull(sut[11])
+    }
+}
@@ -0,0 +1,130 @@
+package info.nightscout.androidaps.plugins.general.maintenance
+
+import android.content.Context
+import info.nightscout.androidaps.R
+import info.nightscout.androidaps.TestBase
+import info.nightscout.androidaps.database.AppRepository
+import info.nightscout.androidaps.database.TABLE_GLUCOSE_VALUES
+import info.nightscout.androidaps.database.transactions.Transaction
+import info.nightscout.androidaps.interfaces.DataSyncSelector
+import info.nightscout.androidaps.interfaces.Loop
+import info.nightscout.androidaps.plugins.aps.loop.LoopPlugin
+import info.nightscout.androidaps.utils.DateUtil
+import info.nightscout.androidaps.utils.T
+import info.nightscout.shared.sharedPreferences.SP
+import io.reactivex.rxjava3.core.Single
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.mockito.ArgumentMatchers.anyBoolean
+import org.mockito.ArgumentMatchers.anyInt
+import org.mockito.ArgumentMatchers.anyLong
+import org.mockito.Mock
+import org.mockito.Mockito.`when`
+import org.mockito.Mockito.never
+import org.mockito.Mockito.times
+import org.mockito.Mockito.verify
+
+class DatabaseRetentionTest : TestBase() {
+
+    @Mock lateinit var context: Context
+    @Mock lateinit var sp: SP
+    @Mock lateinit var dateUtil: DateUtil
+    @Mock lateinit var repository: AppRepository
+    @Mock lateinit var dataSyncSelector: DataSyncSelector
+    @Mock lateinit var loop: LoopPlugin
+
+    @get:Rule val folder = TemporaryFolder()
+
+    private lateinit var sut: DatabaseRetention
+    private val now = 1_650_000_000_000L
+
+    @Before
+    fun prepare() {
+        sut = DatabaseRetention(context, aapsLogger, sp, dateUtil, repository, dataSyncSelector, loop)
+        `when`(dateUtil.now()).thenReturn(now)
+        `when`(sp.getInt(anyInt(), anyInt())).thenAnswer { it.getArgument<Int>(1) }
+        `when`(dataSyncSelector.lastSyncedIds()).thenReturn(mapOf(TABLE_GLUCOSE_VALUES to 1234L))
+        `when`(repository.compatGetBgReadingsDataFromTime(anyLong(), anyBoolean())).thenReturn(Single.just(emptyList()))
+    }
+
+    @Test
+    fun policyFollowsPreferences() {
+        `when`(sp.getInt(R.string.key_maintenance_retention_glucose_days, 0)).thenReturn(365)
+
+        val policy = sut.policy()
+
+        Assert.assertEquals(now - T.days(365).msecs(), policy.glucoseValuesOlderThan)
+        Assert.assertEquals(now - T.days(30).msecs(), policy.deviceStatusesOlderThan)
+        Assert.assertEquals(now - T.days(90).msecs(), policy.historicOlderThan)
+        // kept forever by default
+        Assert.assertEquals(0L, policy.userEntriesOlderThan)
+        Assert.assertEquals(1234L, policy.syncedId(TABLE_GLUCOSE_VALUES))
+        Assert.assertEquals(Long.MAX_VALUE, policy.syncedId("userEntry"))
+    }
+
+    @Test
+    fun deletesInBatchesThenCompacts() {
+        `when`(repository.runTransactionForResult(anyObject<Transaction<Int>>())).thenReturn(Single.just(1000), Single.just(1000), Single.just(20), Single.just(0))
+        `when`(repository.compact(anyInt())).thenReturn(4096L, 4096L, 0L)
+
+        val report = sut.cleanup()
+
+        verify(repository, times(4)).runTransactionForResult(anyObject<Transaction<Int>>())
+        verify(repository, times(3)).compact(anyInt())
+        Assert.assertEquals(2020, report.deleted)
+        Assert.assertEquals(8192L, report.reclaimedBytes)
+    }
+
+    @Test
+    fun nothingToDeleteDoesNotCompact() {
+        `when`(repository.runTransactionForResult(anyObject<Transaction<Int>>())).thenReturn(Single.just(0))
+
+        val report = sut.cleanup()
+
+        verify(repository, never()).compact(anyInt())
+        Assert.assertEquals(0, report.deleted)
+    }
+
+    @Test
+    fun stopsWhenWorkIsCancelled() {
+        `when`(repository.runTransactionForResult(anyObject<Transaction<Int>>())).thenReturn(Single.just(1000))
+
+        val report = sut.cleanup { true }
+
+        verify(repository, times(1)).runTransactionForResult(anyObject<Transaction<Int>>())
+        Assert.assertEquals(1000, report.deleted)
+    }
+
+    private fun prepareVacuum(freeSpaceNeeded: Long) {
+        `when`(repository.isIncrementalVacuumEnabled()).thenReturn(false)
+        `when`(repository.databaseFile()).thenReturn(folder.newFile("androidaps.db"))
+        `when`(repository.databaseFileSize()).thenReturn(freeSpaceNeeded / 2)
+        `when`(loop.isEnabled()).thenReturn(true)
+    }
+
+    @Test
+    fun vacuumWaitsForFreeStorage() {
+        prepareVacuum(freeSpaceNeeded = Long.MAX_VALUE - 1)
+        `when`(loop.lastRun).thenReturn(Loop.LastRun().also { it.lastAPSRun = now - T.mins(2).msecs() })
+
+        Assert.assertFalse(sut.enableIncrementalVacuum(now))
+        verify(repository, never()).enableIncrementalVacuum()
+    }
+
+    @Test
+    fun vacuumWaitsForGapBetweenLoopRuns() {
+        prepareVacuum(freeSpaceNeeded = 1024)
+        `when`(loop.lastRun).thenReturn(Loop.LastRun().also { it.lastAPSRun = now - T.secs(10).msecs() })
+        Assert.assertFalse(sut.enableIncrementalVacuum(now))
+        `when`(loop.lastRun).thenReturn(Loop.LastRun().also { it.lastAPSRun = now - T.mins(4).msecs() })
+        Assert.assertFalse(sut.enableIncrementalVacuum(now))
+        verify(repository, never()).enableIncrementalVacuum()
+
+        `when`(loop.lastRun).thenReturn(Loop.LastRun().also { it.lastAPSRun = now - T.mins(2).msecs() })
+        Assert.assertTrue(sut.enableIncrementalVacuum(now))
+        verify(repository, times(1)).enableIncrementalVacuum()
+    }
+}
@@ -2,6 +2,7 @@ package info.nightscout.androidaps.plugins.general.maintenance
 
 import android.content.Context
 import dagger.android.HasAndroidInjector
+import info.nightscout.androidaps.R
 import info.nightscout.androidaps.TestBase
 import info.nightscout.androidaps.interfaces.Config
 import info.nightscout.androidaps.plugins.general.nsclient.data.NSSettingsStatus
@@ -10,7 +11,9 @@ import info.nightscout.androidaps.utils.resources.ResourceHelper
 import info.nightscout.shared.sharedPreferences.SP
 import org.junit.Assert
 import org.junit.Before
+import org.junit.Rule
 import org.junit.Test
+import org.junit.rules.TemporaryFolder
 import org.mockito.Mock
 import org.mockito.Mockito.`when`
 import java.io.File
@@ -26,12 +29,15 @@ class MaintenancePluginTest : TestBase() {
     @Mock lateinit var loggerUtils: LoggerUtils
     @Mock lateinit var fileListProvider: PrefFileListProvider
     @Mock lateinit var config: Config
+    @Mock lateinit var databaseRetention: DatabaseRetention
+
+    @get:Rule val folder = TemporaryFolder()
 
     lateinit var sut: MaintenancePlugin
 
     @Before
     fun mock() {
-        sut = MaintenancePlugin(injector, context, rh, sp, nsSettingsStatus, aapsLogger, buildHelper, config, fileListProvider, loggerUtils)
+        sut = MaintenancePlugin(injector, context, rh, sp, nsSettingsStatus, aapsLogger, buildHelper, config, fileListProvider, loggerUtils, databaseRetention)
         `when`(loggerUtils.suffix).thenReturn(".log.zip")
         `when`(loggerUtils.logDirectory).thenReturn("src/test/res/logger")
         `when`(fileListProvider.ensureTempDirExists()).thenReturn(File("src/test/res/logger"))
@@ -40,12 +46,31 @@ class MaintenancePluginTest : TestBase() {
     @Test fun logFilesTest() {
         var logs = sut.getLogFiles(2)
         Assert.assertEquals(2, logs.size)
-        Assert.assertEquals("AndroidAPS.log", logs[0].name)
-        Assert.assertEquals("AndroidAPS.2018-01-03_01-01-00.1.zip", logs[1].name)
         logs = sut.getLogFiles(10)
         Assert.assertEquals(4, logs.size)
     }
 
+    @Test fun legacyLogIsSortedByModificationTime() {
+        val dir = folder.root
+        fun log(name: String, modified: Long) = File(dir, name).also { it.createNewFile(); it.setLastModified(modified) }
+        log("AndroidAPS.log", 1_000_000L)
+        log("AndroidAPS._2022-01-01_00-00-00_.bin", 2_000_000L)
+        log("AndroidAPS._2022-01-02_00-00-00_.bin", 3_000_000L)
+        log("AndroidAPS.bin", 4_000_000L)
+        `when`(loggerUtils.logDirectory).thenReturn(dir.absolutePath)
+
+        val logs = sut.getLogFiles(2)
+        Assert.assertEquals(listOf("AndroidAPS.bin", "AndroidAPS._2022-01-02_00-00-00_.bin"), logs.map { it.name })
+
+        `when`(sp.getInt(R.string.key_logshipper_amount, 2)).thenReturn(2)
+        `when`(fileListProvider.ensureTempDirExists()).thenReturn(folder.newFolder("export"))
+        sut.deleteLogs(2)
+        Assert.assertEquals(
+            listOf("AndroidAPS._2022-01-02_00-00-00_.bin", "AndroidAPS.bin"),
+            dir.list()?.sorted()
+        )
+    }
+
     @Test
     fun zipLogsTest() {
         val logs = sut.getLogFiles(2)
@@ -0,0 +1,184 @@
+package info.nightscout.androidaps.plugins.general.nsclient
+
+import com.sun.net.httpserver.HttpServer
+import info.nightscout.androidaps.R
+import info.nightscout.androidaps.TestBase
+import info.nightscout.androidaps.database.AppRepository
+import info.nightscout.androidaps.database.ValueWrapper
+import info.nightscout.androidaps.database.entities.GlucoseValue
+import info.nightscout.androidaps.database.transactions.UpdateNsIdsTransaction
+import info.nightscout.androidaps.interfaces.ActivePlugin
+import info.nightscout.androidaps.interfaces.BgSource
+import info.nightscout.androidaps.interfaces.ProfileFunction
+import info.nightscout.androidaps.plugins.general.nsclient.services.NSBulkUploader
+import info.nightscout.androidaps.plugins.general.nsclient.services.NSClientService
+import info.nightscout.androidaps.plugins.profile.local.LocalProfilePlugin
+import info.nightscout.androidaps.utils.DateUtil
+import info.nightscout.shared.sharedPreferences.SP
+import io.reactivex.rxjava3.core.Completable
+import io.reactivex.rxjava3.core.Maybe
+import io.reactivex.rxjava3.core.Single
+import org.json.JSONArray
+import org.json.JSONObject
+import org.junit.After
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.mockito.ArgumentMatchers.anyBoolean
+import org.mockito.ArgumentMatchers.anyInt
+import org.mockito.ArgumentMatchers.anyLong
+import org.mockito.ArgumentMatchers.anyString
+import org.mockito.Mock
+import org.mockito.Mockito.doAnswer
+import org.mockito.Mockito.never
+import org.mockito.Mockito.times
+import org.mockito.Mockito.verify
+import org.mockito.Mockito.`when`
+import java.net.InetSocketAddress
+import java.util.concurrent.atomic.AtomicInteger
+
+class DataSyncSelectorBatchTest : TestBase() {
+
+    @Mock lateinit var sp: SP
+    @Mock lateinit var dateUtil: DateUtil
+    @Mock lateinit var profileFunction: ProfileFunction
+    @Mock lateinit var nsClientPlugin: NSClientPlugin
+    @Mock lateinit var nsClientService: NSClientService
+    @Mock lateinit var activePlugin: ActivePlugin
+    @Mock lateinit var bgSource: BgSource
+    @Mock lateinit var appRepository: AppRepository
+    @Mock lateinit var localProfilePlugin: LocalProfilePlugin
+
+    private val records = 10_000
+    private lateinit var server: HttpServer
+    private lateinit var url: String
+    private val requests = AtomicInteger()
+    private val documents = AtomicInteger()
+    private val largestRequest = AtomicInteger()
+    private val uploader = NSBulkUploader()
+    private var returnedDocuments = Int.MAX_VALUE
+    private var batchEnabled = true
+
+    private val preferences = HashMap<Int, Long>()
+    private val glucoseValues = List(records) { i ->
+        GlucoseValue(
+            id = i + 1L, timestamp = 1_600_000_000_000L + i * 300_000L, raw = null, value = 100.0 + i % 50,
+            trendArrow = GlucoseValue.TrendArrow.FLAT, noise = null, sourceSensor = GlucoseValue.SourceSensor.DEXCOM_G6_NATIVE
+        )
+    }
+
+    private lateinit var sut: DataSyncSelectorImplementation
+
+    @Before
+    fun prepare() {
+        // fake NS: accepts array of documents and returns them with assigned _id
+        server = HttpServer.create(InetSocketAddress("127.0.0.1", 0), 0)
+        server.createContext("/api/v1/") { exchange ->
+            val received = JSONArray(exchange.requestBody.bufferedReader().readText())
+            requests.incrementAndGet()
+            largestRequest.accumulateAndGet(received.length()) { a, b -> maxOf(a, b) }
+            val created = JSONArray()
+            for (i in 0 until minOf(received.length(), returnedDocuments))
+                created.put(JSONObject(received.getJSONObject(i).toString()).put("_id", "ns" + documents.incrementAndGet()))
+            val response = created.toString().toByteArray()
+            exchange.sendResponseHeaders(200, response.size.toLong())
+            exchange.responseBody.use { it.write(response) }
+        }
+        server.start()
+        url = "http://127.0.0.1:" + server.address.port
+
+        `when`(sp.getBoolean(anyInt(), anyBoolean())).thenAnswer { it.getArgument<Boolean>(1) }
+        `when`(sp.getBoolean(R.string.key_ns_sync_batch, true)).thenAnswer { batchEnabled }
+        `when`(sp.getLong(anyInt(), anyLong())).thenAnswer { preferences[it.getArgument(0)] ?: it.getArgument<Long>(1) }
+        doAnswer { preferences[it.getArgument(0)] = it.getArgument(1) }.`when`(sp).putLong(anyInt(), anyLong())
+
+        `when`(activePlugin.activeBgSource).thenReturn(bgSource)
+        `when`(bgSource.shouldUploadToNs(anyObject())).thenReturn(true)
+        `when`(nsClientPlugin.nsClientService).thenReturn(nsClientService)
+        `when`(nsClientService.dbAddBulk(anyString(), anyObject(), anyString())).thenAnswer {
+            // NSClientService reports failure as null
+            runCatching { uploader.upload(url, "hash", it.getArgument(0), it.getArgument(1)) }.getOrNull()
+        }
+
+        `when`(appRepository.getLastGlucoseValueIdWrapped()).thenReturn(Single.just(ValueWrapper.Existing(records.toLong())))
+        `when`(appRepository.getNextSyncElementsGlucoseValue(anyLong(), anyInt())).thenAnswer {
+            val startId = it.getArgument<Long>(0)
+            val limit = it.getArgument<Int>(1)
+            Single.just(glucoseValues.filter { gv -> gv.id > startId }.take(limit).map { gv -> gv.copy(interfaceIDs_backing = gv.interfaceIDs.copy()) to gv })
+        }
+        `when`(appRepository.getNextSyncElementGlucoseValue(anyLong())).thenAnswer {
+            val startId = it.getArgument<Long>(0)
+            glucoseValues.firstOrNull { gv -> gv.id > startId }?.let { gv -> Maybe.just(gv to gv) } ?: Maybe.empty()
+        }
+        `when`(appRepository.runTransaction(anyObject<UpdateNsIdsTransaction>())).thenAnswer {
+            it.getArgument<UpdateNsIdsTransaction>(0).glucoseValues.forEach { gv -> glucoseValues[(gv.id - 1).toInt()].interfaceIDs.nightscoutId = gv.interfaceIDs.nightscoutId }
+            Completable.complete()
+        }
+
+        sut = DataSyncSelectorImplementation(sp, aapsLogger, dateUtil, profileFunction, nsClientPlugin, activePlugin, appRepository, localProfilePlugin)
+    }
+
+    @After
+    fun tearDown() {
+        server.stop(0)
+    }
+
+    @Test
+    fun batchAdvancesSyncIdAndStoresNsIds() {
+        sut.processChangedGlucoseValuesCompat()
+
+        Assert.assertEquals((records + DataSyncSelectorImplementation.BATCH_SIZE - 1) / DataSyncSelectorImplementation.BATCH_SIZE, requests.get())
+        Assert.assertEquals(records, documents.get())
+        Assert.assertEquals(records.toLong(), preferences[R.string.key_ns_glucose_value_last_synced_id])
+        Assert.assertTrue(glucoseValues.all { it.interfaceIDs.nightscoutId != null })
+    }
+
+    @Test
+    fun failedUploadDoesNotMoveSyncId() {
+        server.stop(0)
+        sut.processChangedGlucoseValuesCompat()
+
+        Assert.assertNull(preferences[R.string.key_ns_glucose_value_last_synced_id])
+        Assert.assertTrue(glucoseValues.all { it.interfaceIDs.nightscoutId == null })
+    }
+
+    @Test
+    fun incompleteResponseDoesNotMoveSyncId() {
+        returnedDocuments = DataSyncSelectorImplementation.BATCH_SIZE - 1
+        sut.processChangedGlucoseValuesCompat()
+
+        Assert.assertEquals(1, requests.get())
+        Assert.assertNull(preferences[R.string.key_ns_glucose_value_last_synced_id])
+        Assert.assertTrue(glucoseValues.all { it.interfaceIDs.nightscoutId == null })
+    }
+
+    @Test
+    fun batchWaitsForAckOfSingleRecordUpload() {
+        `when`(nsClientService.dbAdd(anyString(), anyObject(), anyObject(), anyString())).thenReturn(true)
+        batchEnabled = false
+        sut.processChangedGlucoseValuesCompat()
+        verify(nsClientService, times(1)).dbAdd(anyString(), anyObject(), anyObject(), anyString())
+
+        // first record has no NS id until ack
+        batchEnabled = true
+        sut.processChangedGlucoseValuesCompat()
+        Assert.assertEquals(0, requests.get())
+
+        glucoseValues[0].interfaceIDs.nightscoutId = "socket"
+        sut.confirmLastGlucoseValueIdIfGreater(1)
+        sut.processChangedGlucoseValuesCompat()
+        Assert.assertEquals(records - 1, documents.get())
+        Assert.assertEquals(records.toLong(), preferences[R.string.key_ns_glucose_value_last_synced_id])
+    }
+
+    @Test
+    fun batchCatchUpSendsOneRequestPerBatch() {
+        sut.processChangedGlucoseValuesCompat()
+
+        // sequential upload would need one round-trip per record
+        Assert.assertEquals((records + DataSyncSelectorImplementation.BATCH_SIZE - 1) / DataSyncSelectorImplementation.BATCH_SIZE, requests.get())
+        Assert.assertEquals(DataSyncSelectorImplementation.BATCH_SIZE, largestRequest.get())
+        verify(nsClientService, never()).dbAdd(anyString(), anyObject(), anyObject(), anyString())
+        Assert.assertEquals(records.toLong(), preferences[R.string.key_ns_glucose_value_last_synced_id])
+    }
+}
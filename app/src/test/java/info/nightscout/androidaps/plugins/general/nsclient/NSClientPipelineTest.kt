@@ -0,0 +1,172 @@
+package info.nightscout.androidaps.plugins.general.nsclient
+
+import androidx.work.Data
+import androidx.work.ListenableWorker
+import info.nightscout.androidaps.TestBase
+import info.nightscout.androidaps.plugins.bus.RxBus
+import info.nightscout.androidaps.plugins.general.nsclient.acks.NSAddAck
+import info.nightscout.androidaps.plugins.source.NSClientSourcePlugin
+import info.nightscout.androidaps.receivers.DataWorker
+import org.json.JSONArray
+import org.json.JSONObject
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.mockito.Mock
+import org.mockito.Mockito.doAnswer
+import org.mockito.Mockito.doReturn
+import org.mockito.Mockito.never
+import org.mockito.Mockito.spy
+import org.mockito.Mockito.times
+import org.mockito.Mockito.verify
+import org.mockito.Mockito.`when`
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class NSClientPipelineTest : TestBase() {
+
+    @Mock lateinit var rxBus: RxBus
+    @Mock lateinit var dataWorker: DataWorker
+    @Mock lateinit var nsClientAddAckProcessor: NSClientAddAckProcessor
+    @Mock lateinit var nsClientUpdateRemoveAckProcessor: NSClientUpdateRemoveAckProcessor
+    @Mock lateinit var nsClientAddUpdateProcessor: NSClientAddUpdateProcessor
+    @Mock lateinit var nsClientMbgProcessor: NSClientMbgProcessor
+    @Mock lateinit var nsClientSourceProcessor: NSClientSourcePlugin.NSClientSourceProcessor
+
+    private val processed = Collections.synchronizedList(mutableListOf<String>())
+    private val passedToWorkManager = Collections.synchronizedList(mutableListOf<String>())
+    private val ackStarted = CountDownLatch(1)
+    private val releaseAck = CountDownLatch(1)
+    private lateinit var sut: NSClientPipeline
+
+    private fun sgvs(count: Int) = JSONArray().also { array -> repeat(count) { array.put(JSONObject().put("sgv", 100 + it)) } }
+
+    @Before
+    fun prepare() {
+        `when`(nsClientAddAckProcessor.process(anyObject())).thenAnswer {
+            processed.add("ack")
+            ackStarted.countDown()
+            releaseAck.await(10, TimeUnit.SECONDS)
+            ListenableWorker.Result.success()
+        }
+        `when`(nsClientSourceProcessor.process(anyObject())).thenAnswer {
+            processed.add("sgvs " + it.getArgument<JSONArray>(0).length())
+            ListenableWorker.Result.success()
+        }
+        doAnswer {
+            val payload = it.getArgument<Any>(0)
+            passedToWorkManager.add(if (payload is JSONArray) "sgvs " + payload.length() else "ack")
+            Data.EMPTY
+        }.`when`(dataWorker).storeInputData(anyObject(), anyObject())
+        sut = spy(NSClientPipeline(aapsLogger, dataWorker, nsClientAddAckProcessor, nsClientUpdateRemoveAckProcessor, nsClientAddUpdateProcessor, nsClientMbgProcessor, nsClientSourceProcessor))
+        doReturn(true).`when`(sut).isForeground()
+    }
+
+    private fun waitForProcessed(count: Int) {
+        val start = System.currentTimeMillis()
+        while (processed.size < count) {
+            Assert.assertTrue(System.currentTimeMillis() - start < 10_000)
+            Thread.sleep(5)
+        }
+    }
+
+    @Test
+    fun consecutiveBatchesAreMerged() {
+        // keep processing thread busy so updates pile up
+        sut.addAck(NSAddAck(aapsLogger, rxBus))
+        Assert.assertTrue(ackStarted.await(10, TimeUnit.SECONDS))
+        sut.sgvs(sgvs(3))
+        sut.sgvs(sgvs(2))
+        sut.sgvs(sgvs(5))
+        sut.addAck(NSAddAck(aapsLogger, rxBus))
+        sut.sgvs(sgvs(1))
+        releaseAck.countDown()
+
+        waitForProcessed(4)
+        Assert.assertEquals(listOf("ack", "sgvs 10", "ack", "sgvs 1"), processed)
+        verify(nsClientSourceProcessor, times(2)).process(anyObject())
+        verify(dataWorker, never()).enqueue(anyObject())
+    }
+
+    @Test
+    fun mergedBatchDoesNotExceedChunk() {
+        sut.addAck(NSAddAck(aapsLogger, rxBus))
+        Assert.assertTrue(ackStarted.await(10, TimeUnit.SECONDS))
+        sut.sgvs(sgvs(400))
+        sut.sgvs(sgvs(200))
+        releaseAck.countDown()
+
+        waitForProcessed(3)
+        Assert.assertEquals(listOf("ack", "sgvs 400", "sgvs 200"), processed)
+    }
+
+    @Test
+    fun fullQueueBlocksProducer() {
+        sut.addAck(NSAddAck(aapsLogger, rxBus))
+        Assert.assertTrue(ackStarted.await(10, TimeUnit.SECONDS))
+        repeat(NSClientPipeline.CAPACITY) { sut.addAck(NSAddAck(aapsLogger, rxBus)) }
+        Assert.assertEquals(NSClientPipeline.CAPACITY, sut.queueSize())
+
+        val producer = Executors.newSingleThreadExecutor()
+        val blocked = producer.submit { sut.sgvs(sgvs(1)) }
+        Thread.sleep(200)
+        Assert.assertFalse(blocked.isDone)
+
+        releaseAck.countDown()
+        blocked.get(10, TimeUnit.SECONDS)
+        producer.shutdown()
+        waitForProcessed(NSClientPipeline.CAPACITY + 2)
+        Assert.assertEquals("sgvs 1", processed.last())
+        verify(dataWorker, never()).enqueue(anyObject())
+    }
+
+    @Test
+    fun backgroundGoesToWorkManager() {
+        doReturn(false).`when`(sut).isForeground()
+        sut.addAck(NSAddAck(aapsLogger, rxBus))
+        sut.sgvs(sgvs(3))
+
+        verify(dataWorker, times(2)).enqueue(anyObject())
+        Thread.sleep(100)
+        Assert.assertTrue(processed.isEmpty())
+    }
+
+    @Test
+    fun tasksInProcessGoToWorkManagerFirst() {
+        sut.addAck(NSAddAck(aapsLogger, rxBus))
+        Assert.assertTrue(ackStarted.await(10, TimeUnit.SECONDS))
+        sut.sgvs(sgvs(3))
+        sut.sgvs(sgvs(2))
+        doReturn(false).`when`(sut).isForeground()
+        sut.sgvs(sgvs(1))
+        // older tasks are still in process
+        verify(dataWorker, never()).enqueue(anyObject())
+        releaseAck.countDown()
+
+        val start = System.currentTimeMillis()
+        while (passedToWorkManager.size < 3) {
+            Assert.assertTrue(System.currentTimeMillis() - start < 10_000)
+            Thread.sleep(5)
+        }
+        Assert.assertEquals(listOf("ack"), processed)
+        Assert.assertEquals(listOf("sgvs 3", "sgvs 2", "sgvs 1"), passedToWorkManager)
+    }
+
+    @Test
+    fun tasksStayInWorkManagerUntilItIsFinished() {
+        doReturn(false).`when`(sut).isForeground()
+        sut.sgvs(sgvs(3))
+        doReturn(true).`when`(sut).isForeground()
+        `when`(dataWorker.hasPendingWork()).thenReturn(true)
+        sut.sgvs(sgvs(2))
+        Assert.assertEquals(listOf("sgvs 3", "sgvs 2"), passedToWorkManager)
+
+        `when`(dataWorker.hasPendingWork()).thenReturn(false)
+        sut.sgvs(sgvs(1))
+        waitForProcessed(1)
+        Assert.assertEquals(listOf("sgvs 1"), processed)
+        Assert.assertEquals(2, passedToWorkManager.size)
+    }
+}
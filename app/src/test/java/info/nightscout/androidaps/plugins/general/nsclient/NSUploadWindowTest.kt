@@ -0,0 +1,138 @@
+package info.nightscout.androidaps.plugins.general.nsclient
+
+import info.nightscout.androidaps.R
+import info.nightscout.androidaps.TestBase
+import info.nightscout.androidaps.database.AppRepository
+import info.nightscout.androidaps.database.ValueWrapper
+import info.nightscout.androidaps.database.entities.Bolus
+import info.nightscout.androidaps.interfaces.ActivePlugin
+import info.nightscout.androidaps.interfaces.DataSyncSelector
+import info.nightscout.androidaps.interfaces.ProfileFunction
+import info.nightscout.androidaps.plugins.general.nsclient.services.NSClientService
+import info.nightscout.androidaps.plugins.profile.local.LocalProfilePlugin
+import info.nightscout.androidaps.utils.DateUtil
+import info.nightscout.shared.sharedPreferences.SP
+import io.reactivex.rxjava3.core.Maybe
+import io.reactivex.rxjava3.core.Single
+import org.junit.Assert
+import org.junit.Test
+import org.mockito.ArgumentMatchers.anyBoolean
+import org.mockito.ArgumentMatchers.anyInt
+import org.mockito.ArgumentMatchers.anyLong
+import org.mockito.ArgumentMatchers.anyString
+import org.mockito.Mock
+import org.mockito.Mockito.doAnswer
+import org.mockito.Mockito.`when`
+
+class NSUploadWindowTest : TestBase() {
+
+    @Mock lateinit var sp: SP
+    @Mock lateinit var dateUtil: DateUtil
+    @Mock lateinit var profileFunction: ProfileFunction
+    @Mock lateinit var nsClientPlugin: NSClientPlugin
+    @Mock lateinit var nsClientService: NSClientService
+    @Mock lateinit var activePlugin: ActivePlugin
+    @Mock lateinit var appRepository: AppRepository
+    @Mock lateinit var localProfilePlugin: LocalProfilePlugin
+
+    private val key = 1
+
+    @Test
+    fun syncIdMovesOnlyOverContiguousAcks() {
+        val window = NSUploadWindow({ 3 })
+        window.sent(key, 10, 10, 0)
+        window.sent(key, 11, 11, 0)
+        Assert.assertFalse(window.isFull(key))
+        window.sent(key, 13, 13, 0)
+        Assert.assertTrue(window.isFull(key))
+        Assert.assertEquals(13L, window.nextStartId(key, 5))
+
+        // out of order
+        Assert.assertEquals(0L, window.acked(key, 13))
+        Assert.assertEquals(0L, window.acked(key, 11))
+        // skipped record between in flight ones waits as well
+        Assert.assertEquals(0L, window.acked(key, 12))
+        Assert.assertEquals(13L, window.acked(key, 10))
+        Assert.assertFalse(window.isFull(key))
+    }
+
+    @Test
+    fun changeOfRecordInFlightIsPending() {
+        val window = NSUploadWindow({ 16 })
+        window.sent(key, 20, 7, 0)
+        Assert.assertTrue(window.isPending(key, 7))
+        Assert.assertFalse(window.isPending(key, 8))
+        window.acked(key, 20)
+        Assert.assertFalse(window.isPending(key, 7))
+    }
+
+    @Test
+    fun lostAcksExpire() {
+        val window = NSUploadWindow({ 1 }, 1000)
+        window.sent(key, 20, 20, 0)
+        Assert.assertTrue(window.isFull(key))
+        window.expire(500)
+        Assert.assertTrue(window.isFull(key))
+        window.expire(1500)
+        Assert.assertFalse(window.isFull(key))
+        Assert.assertEquals(5L, window.nextStartId(key, 5))
+    }
+
+    /**
+     * Uploads records over fake socket which delivers acks only when all records in flight did a round-trip
+     *
+     * @return maximum number of records in flight and number of round-trips
+     */
+    private fun upload(records: Int, windowSize: Int): Pair<Int, Int> {
+        val preferences = HashMap<Int, Long>()
+        val inFlight = ArrayDeque<Long>()
+        var maxInFlight = 0
+        var sent = 0
+        val boluses = List(records) { i -> Bolus(id = i + 1L, timestamp = 1_600_000_000_000L + i * 60_000L, amount = 0.1, type = Bolus.Type.SMB) }
+
+        `when`(sp.getBoolean(anyInt(), anyBoolean())).thenAnswer { it.getArgument<Boolean>(1) }
+        `when`(sp.getBoolean(R.string.key_ns_sync_batch, true)).thenReturn(false)
+        `when`(sp.getInt(R.string.key_ns_upload_window, 16)).thenReturn(windowSize)
+        `when`(sp.getLong(anyInt(), anyLong())).thenAnswer { preferences[it.getArgument(0)] ?: it.getArgument<Long>(1) }
+        doAnswer { preferences[it.getArgument(0)] = it.getArgument(1) }.`when`(sp).putLong(anyInt(), anyLong())
+        `when`(appRepository.getLastBolusIdWrapped()).thenReturn(Single.just(ValueWrapper.Existing(records.toLong())))
+        `when`(appRepository.getNextSyncElementBolus(anyLong())).thenAnswer {
+            val startId = it.getArgument<Long>(0)
+            boluses.firstOrNull { bolus -> bolus.id > startId }?.let { bolus -> Maybe.just(bolus to bolus) } ?: Maybe.empty()
+        }
+        `when`(nsClientPlugin.nsClientService).thenReturn(nsClientService)
+        `when`(nsClientService.dbAdd(anyString(), anyObject(), anyObject(), anyString())).thenAnswer {
+            inFlight.addLast(it.getArgument<DataSyncSelector.PairBolus>(2).updateRecordId)
+            maxInFlight = maxOf(maxInFlight, inFlight.size)
+            sent++
+            true
+        }
+
+        val sut = DataSyncSelectorImplementation(sp, aapsLogger, dateUtil, profileFunction, nsClientPlugin, activePlugin, appRepository, localProfilePlugin)
+        sut.processChangedBolusesCompat()
+        var roundTrips = 0
+        while (inFlight.isNotEmpty()) {
+            roundTrips++
+            Assert.assertTrue(roundTrips <= records)
+            // acks of records sent before this round-trip, processed like NSClientAddAckWorker does
+            repeat(inFlight.size) {
+                sut.confirmLastBolusIdIfGreater(inFlight.removeFirst())
+                sut.processChangedBolusesCompat()
+            }
+        }
+        Assert.assertEquals(records.toLong(), preferences[R.string.key_ns_bolus_last_synced_id])
+        Assert.assertEquals(records, sent)
+        return Pair(maxInFlight, roundTrips)
+    }
+
+    @Test
+    fun windowHidesRoundTrip() {
+        val records = 64
+        val sequential = upload(records, 1)
+        Assert.assertEquals(1, sequential.first)
+        Assert.assertEquals(records, sequential.second)
+        val pipelined = upload(records, 16)
+        Assert.assertEquals(16, pipelined.first)
+        Assert.assertEquals(records / 16, pipelined.second)
+    }
+}
@@ -0,0 +1,23 @@
+package info.nightscout.androidaps.plugins.general.nsclient.data
+
+import org.json.JSONArray
+import org.json.JSONObject
+import org.junit.Assert
+import org.junit.Test
+
+class NSDataChunkerTest {
+
+    private val sut = NSDataChunker()
+
+    private fun sgv(i: Int) = JSONObject().put("_id", "sgv$i").put("mgdl", 100 + i % 80).put("mills", 1_600_000_000_000L + i * 300_000L)
+
+    @Test
+    fun chunksSliceArray() {
+        val array = JSONArray((0 until 1100).map { sgv(it) })
+        val chunks = sut.chunks(array)
+        Assert.assertEquals(listOf(500, 500, 100), chunks.map { it.length() })
+        Assert.assertEquals("sgv1099", chunks[2].getJSONObject(99).getString("_id"))
+        // small arrays are not copied
+        Assert.assertSame(array, sut.chunks(array, 2000)[0])
+    }
+}
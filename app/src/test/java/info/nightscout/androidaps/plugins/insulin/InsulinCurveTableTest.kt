@@ -0,0 +1,94 @@
+package info.nightscout.androidaps.plugins.insulin
+
+import dagger.android.AndroidInjector
+import dagger.android.HasAndroidInjector
+import info.nightscout.androidaps.R
+import info.nightscout.androidaps.TestBase
+import info.nightscout.androidaps.database.entities.Bolus
+import info.nightscout.androidaps.interfaces.Config
+import info.nightscout.androidaps.interfaces.ProfileFunction
+import info.nightscout.androidaps.plugins.bus.RxBus
+import info.nightscout.androidaps.utils.T
+import info.nightscout.androidaps.utils.resources.ResourceHelper
+import info.nightscout.shared.sharedPreferences.SP
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.mockito.ArgumentMatchers.anyInt
+import org.mockito.ArgumentMatchers.eq
+import org.mockito.Mock
+import org.mockito.Mockito.`when`
+
+class InsulinCurveTableTest : TestBase() {
+
+    @Mock lateinit var sp: SP
+    @Mock lateinit var rh: ResourceHelper
+    @Mock lateinit var rxBus: RxBus
+    @Mock lateinit var profileFunction: ProfileFunction
+    @Mock lateinit var config: Config
+
+    private var injector: HasAndroidInjector = HasAndroidInjector {
+        AndroidInjector {
+        }
+    }
+
+    private lateinit var freePeak: InsulinOrefFreePeakPlugin
+
+    @Before
+    fun setup() {
+        `when`(sp.getInt(eq(R.string.key_insulin_oref_peak), anyInt())).thenReturn(55)
+        freePeak = InsulinOrefFreePeakPlugin(injector, sp, rh, profileFunction, rxBus, aapsLogger, config)
+    }
+
+    private fun assertMatchesAnalyticCurve(insulin: InsulinOrefBasePlugin, dia: Double) {
+        val bolus = Bolus(timestamp = 0, amount = 1.0, type = Bolus.Type.NORMAL)
+        var time = 0L
+        while (time < T.hours(9).msecs()) {
+            insulin.useLookupTable = false
+            val expected = insulin.iobCalcForTreatment(bolus, time, dia)
+            insulin.useLookupTable = true
+            val actual = insulin.iobCalcForTreatment(bolus, time, dia)
+            Assert.assertEquals(expected.iobContrib, actual.iobContrib, 0.0001)
+            Assert.assertEquals(expected.activityContrib, actual.activityContrib, 0.00001)
+            time += T.secs(17).msecs()
+        }
+    }
+
+    @Test
+    fun rapidActingMatchesAnalyticCurve() {
+        val sut = InsulinOrefRapidActingPlugin(injector, rh, profileFunction, rxBus, aapsLogger, config)
+        for (dia in listOf(5.0, 6.5, 8.0)) assertMatchesAnalyticCurve(sut, dia)
+    }
+
+    @Test
+    fun ultraRapidActingMatchesAnalyticCurve() {
+        val sut = InsulinOrefUltraRapidActingPlugin(injector, rh, profileFunction, rxBus, aapsLogger, config)
+        for (dia in listOf(5.0, 6.5, 8.0)) assertMatchesAnalyticCurve(sut, dia)
+    }
+
+    @Test
+    fun lyumjevMatchesAnalyticCurve() {
+        val sut = InsulinLyumjevPlugin(injector, rh, profileFunction, rxBus, aapsLogger, config)
+        for (dia in listOf(5.0, 6.5, 8.0)) assertMatchesAnalyticCurve(sut, dia)
+    }
+
+    @Test
+    fun freePeakMatchesAnalyticCurve() {
+        for (dia in listOf(5.0, 6.5, 8.0)) assertMatchesAnalyticCurve(freePeak, dia)
+    }
+
+    @Test
+    fun tableIsRebuiltOnPeakChange() {
+        assertMatchesAnalyticCurve(freePeak, 6.0)
+        `when`(sp.getInt(eq(R.string.key_insulin_oref_peak), anyInt())).thenReturn(90)
+        assertMatchesAnalyticCurve(freePeak, 6.0)
+    }
+
+    @Test
+    fun iobIsZeroAfterDia() {
+        val bolus = Bolus(timestamp = 0, amount = 1.0, type = Bolus.Type.NORMAL)
+        val iob = freePeak.iobCalcForTreatment(bolus, T.hours(5).msecs(), 5.0)
+        Assert.assertEquals(0.0, iob.iobContrib, 0.0)
+        Assert.assertEquals(0.0, iob.activityContrib, 0.0)
+    }
+}
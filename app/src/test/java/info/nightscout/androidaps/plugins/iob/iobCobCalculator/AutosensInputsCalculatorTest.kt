@@ -0,0 +1,149 @@
+package info.nightscout.androidaps.plugins.iob.iobCobCalculator
+
+import info.nightscout.androidaps.TestBaseWithProfile
+import info.nightscout.androidaps.data.InMemoryGlucoseValue
+import info.nightscout.androidaps.database.AppRepository
+import info.nightscout.androidaps.database.entities.Bolus
+import info.nightscout.androidaps.database.entities.Carbs
+import info.nightscout.androidaps.database.entities.ExtendedBolus
+import info.nightscout.androidaps.database.entities.TemporaryBasal
+import info.nightscout.androidaps.interfaces.Pump
+import info.nightscout.androidaps.plugins.insulin.InsulinOrefRapidActingPlugin
+import info.nightscout.androidaps.plugins.sensitivity.SensitivityAAPSPlugin
+import info.nightscout.androidaps.plugins.sensitivity.SensitivityOref1Plugin
+import info.nightscout.androidaps.plugins.sensitivity.SensitivityWeightedAveragePlugin
+import info.nightscout.androidaps.utils.T
+import info.nightscout.shared.sharedPreferences.SP
+import io.reactivex.rxjava3.core.Single
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.mockito.ArgumentMatchers.anyBoolean
+import org.mockito.ArgumentMatchers.anyDouble
+import org.mockito.ArgumentMatchers.anyInt
+import org.mockito.ArgumentMatchers.anyLong
+import org.mockito.Mock
+import org.mockito.Mockito.`when`
+import kotlin.math.sin
+
+class AutosensInputsCalculatorTest : TestBaseWithProfile() {
+
+    @Mock lateinit var sp: SP
+    @Mock lateinit var repository: AppRepository
+    @Mock lateinit var pump: Pump
+    @Mock lateinit var sensitivityOref1Plugin: SensitivityOref1Plugin
+    @Mock lateinit var sensitivityAAPSPlugin: SensitivityAAPSPlugin
+    @Mock lateinit var sensitivityWeightedAveragePlugin: SensitivityWeightedAveragePlugin
+
+    private val now = System.currentTimeMillis() / T.mins(5).msecs() * T.mins(5).msecs()
+    private val noProfileBefore = now - T.hours(23).msecs()
+
+    private val bucketedData = ArrayList<InMemoryGlucoseValue>()
+    private val boluses = ArrayList<Bolus>()
+    private val temporaryBasals = ArrayList<TemporaryBasal>()
+    private val carbs = ArrayList<Carbs>()
+
+    private fun createPlugin() =
+        IobCobCalculatorPlugin(
+            profileInjector, aapsLogger, aapsSchedulers, rxBus, sp, rh, profileFunction, activePluginProvider,
+            sensitivityOref1Plugin, sensitivityAAPSPlugin, sensitivityWeightedAveragePlugin, fabricPrivacy, dateUtil, repository
+        )
+
+    @Before
+    fun prepare() {
+        `when`(sp.getDouble(anyInt(), anyDouble())).thenReturn(2.0)
+        `when`(profileFunction.getProfile()).thenReturn(validProfile)
+        `when`(profileFunction.getProfile(anyLong())).thenAnswer { invocation -> if (invocation.getArgument<Long>(0) < noProfileBefore) null else validProfile }
+        `when`(activePluginProvider.activeInsulin).thenReturn(InsulinOrefRapidActingPlugin(profileInjector, rh, profileFunction, rxBus, aapsLogger, config))
+        `when`(activePluginProvider.activePump).thenReturn(pump)
+        `when`(repository.getBolusesDataFromTime(anyLong(), anyBoolean())).thenAnswer { invocation ->
+            Single.just(boluses.filter { it.timestamp >= invocation.getArgument<Long>(0) })
+        }
+        `when`(repository.getTemporaryBasalsDataFromTime(anyLong(), anyBoolean())).thenAnswer { invocation ->
+            Single.just(temporaryBasals.filter { it.timestamp >= invocation.getArgument<Long>(0) })
+        }
+        `when`(repository.getExtendedBolusDataFromTime(anyLong(), anyBoolean())).thenReturn(Single.just(listOf<ExtendedBolus>()))
+        `when`(repository.getCarbsDataFromTimeToTimeExpanded(anyLong(), anyLong(), anyBoolean())).thenAnswer { invocation ->
+            Single.just(carbs.filter { it.timestamp >= invocation.getArgument<Long>(0) && it.timestamp <= invocation.getArgument<Long>(1) })
+        }
+
+        // newest first
+        for (i in 0 until 24 * 12)
+            bucketedData.add(InMemoryGlucoseValue(now - T.mins(5L * i).msecs() - 30000, if (i == 100) 38.0 else 120 + 60 * sin(i / 20.0)))
+        var id = 0L
+        var time = now - T.hours(26).msecs()
+        while (time < now) {
+            boluses.add(Bolus(id = ++id, timestamp = time, amount = 0.5 + id % 5, type = Bolus.Type.NORMAL))
+            temporaryBasals.add(
+                TemporaryBasal(
+                    id = id, timestamp = time + T.mins(20).msecs(), duration = T.mins(30).msecs(), rate = (id % 4) * 0.5, isAbsolute = true,
+                    type = TemporaryBasal.Type.NORMAL
+                )
+            )
+            if (id % 3 == 0L) carbs.add(Carbs(id = id, timestamp = time + T.mins(2).msecs(), amount = 20.0, duration = 0))
+            time += T.mins(83).msecs()
+        }
+    }
+
+    private fun calculate(parallel: Boolean, plugin: IobCobCalculatorPlugin = createPlugin()): Array<AutosensInputsCalculator.Inputs?> {
+        val ads = AutosensDataStore()
+        plugin.treatmentTimeline.load(bucketedData.last().timestamp - plugin.range())
+        return AutosensInputsCalculator(plugin, profileFunction, repository, aapsLogger)
+            .calculate(bucketedData, (bucketedData.size - 4 downTo 0).toList(), ads::roundUpTime, parallel)
+    }
+
+    @Test
+    fun parallelCalculationMatchesSerial() {
+        assertEqualInputs(calculate(parallel = false), calculate(parallel = true))
+    }
+
+    /**
+     * Workers read and fill IOB table of the plugin concurrently
+     */
+    @Test
+    fun parallelCalculationWithSharedPluginMatchesSerial() {
+        val serial = calculate(parallel = false)
+        val plugin = createPlugin()
+        repeat(5) { assertEqualInputs(serial, calculate(parallel = true, plugin = plugin)) }
+        assertEqualInputs(serial, calculate(parallel = false, plugin = plugin))
+    }
+
+    private fun assertEqualInputs(serial: Array<AutosensInputsCalculator.Inputs?>, parallel: Array<AutosensInputsCalculator.Inputs?>) {
+        Assert.assertEquals(serial.size, parallel.size)
+        var calculated = 0
+        for (i in serial.indices) {
+            val s = serial[i]
+            val p = parallel[i]
+            if (s == null) {
+                Assert.assertNull(p)
+                continue
+            }
+            calculated++
+            Assert.assertNotNull(p)
+            p!!
+            Assert.assertEquals(s.bgTime, p.bgTime)
+            Assert.assertEquals(s.sens, p.sens, 0.0)
+            Assert.assertEquals(s.bg, p.bg, 0.0)
+            Assert.assertEquals(s.delta, p.delta, 0.0)
+            Assert.assertEquals(s.avgDelta, p.avgDelta, 0.0)
+            Assert.assertEquals(s.iob.iob, p.iob.iob, 0.0000001)
+            Assert.assertEquals(s.iob.activity, p.iob.activity, 0.0000001)
+            Assert.assertEquals(s.iob.basaliob, p.iob.basaliob, 0.0000001)
+            Assert.assertEquals(s.bgi, p.bgi, 0.0000001)
+            Assert.assertEquals(s.deviation, p.deviation, 0.0000001)
+            Assert.assertEquals(s.avgDeviation, p.avgDeviation, 0.0000001)
+            Assert.assertEquals(s.recentCarbTreatments.map { it.id }, p.recentCarbTreatments.map { it.id })
+        }
+        // some buckets are skipped for missing profile and invalid bg
+        Assert.assertTrue(calculated in 1 until bucketedData.size - 3)
+    }
+
+    @Test
+    fun stopTriggerAbortsCalculation() {
+        val plugin = createPlugin()
+        plugin.stopCalculationTrigger = true
+        val result = AutosensInputsCalculator(plugin, profileFunction, repository, aapsLogger)
+            .calculate(bucketedData, (bucketedData.size - 4 downTo 0).toList(), AutosensDataStore()::roundUpTime, true)
+        Assert.assertTrue(result.all { it == null })
+    }
+}
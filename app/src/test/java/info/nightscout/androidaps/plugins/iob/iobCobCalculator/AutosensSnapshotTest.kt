@@ -0,0 +1,192 @@
+package info.nightscout.androidaps.plugins.iob.iobCobCalculator
+
+import androidx.collection.LongSparseArray
+import info.nightscout.androidaps.R
+import info.nightscout.androidaps.TestBaseWithProfile
+import info.nightscout.androidaps.data.IobTotal
+import info.nightscout.androidaps.database.AppRepository
+import info.nightscout.androidaps.database.ValueWrapper
+import info.nightscout.androidaps.database.embedments.InsulinConfiguration
+import info.nightscout.androidaps.database.entities.Bolus
+import info.nightscout.androidaps.interfaces.Insulin
+import info.nightscout.androidaps.interfaces.Pump
+import info.nightscout.androidaps.interfaces.Sensitivity
+import info.nightscout.androidaps.plugins.iob.iobCobCalculator.data.AutosensData
+import info.nightscout.androidaps.plugins.sensitivity.SensitivityOref1Plugin
+import info.nightscout.androidaps.utils.T
+import info.nightscout.shared.sharedPreferences.SP
+import io.reactivex.rxjava3.core.Single
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.mockito.ArgumentMatchers.anyLong
+import org.mockito.Mock
+import org.mockito.Mockito.`when`
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.nio.file.Files
+
+class AutosensSnapshotTest : TestBaseWithProfile() {
+
+    @Mock lateinit var sp: SP
+    @Mock lateinit var repository: AppRepository
+    @Mock lateinit var sensitivityOref1Plugin: SensitivityOref1Plugin
+    @Mock lateinit var sensitivity: Sensitivity
+    @Mock lateinit var insulin: Insulin
+    @Mock lateinit var pump: Pump
+
+    private val now = T.hours(1000).msecs()
+
+    private lateinit var sut: AutosensSnapshot
+
+    @Before
+    fun prepare() {
+        `when`(context.filesDir).thenReturn(Files.createTempDirectory("snapshot").toFile())
+        `when`(activePluginProvider.activeSensitivity).thenReturn(sensitivity)
+        `when`(activePluginProvider.activeInsulin).thenReturn(insulin)
+        `when`(activePluginProvider.activePump).thenReturn(pump)
+        `when`(insulin.id).thenReturn(Insulin.InsulinType.OREF_RAPID_ACTING)
+        `when`(insulin.insulinConfiguration).thenReturn(InsulinConfiguration("", T.hours(5).msecs(), T.mins(75).msecs()))
+        `when`(repository.getLastGlucoseValueIdWrapped()).thenReturn(Single.just(ValueWrapper.Existing(10L)))
+        `when`(repository.getLastBolusIdWrapped()).thenReturn(Single.just(ValueWrapper.Existing(20L)))
+        `when`(repository.getLastCarbsIdWrapped()).thenReturn(Single.just(ValueWrapper.Absent()))
+        `when`(repository.getLastTemporaryBasalIdWrapped()).thenReturn(Single.just(ValueWrapper.Absent()))
+        `when`(repository.getLastExtendedBolusIdWrapped()).thenReturn(Single.just(ValueWrapper.Absent()))
+        `when`(repository.getLastEffectiveProfileSwitchIdWrapped()).thenReturn(Single.just(ValueWrapper.Absent()))
+        `when`(repository.getLastTempTargetIdWrapped()).thenReturn(Single.just(ValueWrapper.Absent()))
+        `when`(repository.getModifiedBgReadingsDataFromId(anyLong())).thenReturn(Single.just(listOf()))
+        `when`(repository.getModifiedBolusesDataFromId(anyLong())).thenReturn(Single.just(listOf()))
+        `when`(repository.getModifiedCarbsDataFromId(anyLong())).thenReturn(Single.just(listOf()))
+        `when`(repository.getModifiedTemporaryBasalDataFromId(anyLong())).thenReturn(Single.just(listOf()))
+        `when`(repository.getModifiedExtendedBolusDataFromId(anyLong())).thenReturn(Single.just(listOf()))
+        `when`(repository.getModifiedEffectiveProfileSwitchDataFromId(anyLong())).thenReturn(Single.just(listOf()))
+        `when`(repository.getModifiedTemporaryTargetsDataFromId(anyLong())).thenReturn(Single.just(listOf()))
+        sut = AutosensSnapshot(profileInjector, aapsLogger, sp, activePluginProvider, sensitivityOref1Plugin, repository, dateUtil, context)
+    }
+
+    private fun autosensDataTable(): LongSparseArray<AutosensData> {
+        val table = LongSparseArray<AutosensData>()
+        for (i in 0L until 12L) {
+            val time = now - T.mins(5 * (12 - i)).msecs()
+            val data = AutosensData(profileInjector)
+            data.time = time
+            data.bg = 100.0 + i
+            data.chartTime = time - 1000
+            data.pastSensitivity = "+"
+            data.deviation = i * 0.5
+            data.validDeviation = i % 2 == 0L
+            data.activeCarbsList.add(data.CarbsInPast(time - 60000, 20.0, 3.5, 12.0 - i))
+            data.cob = 12.0 - i
+            data.avgDeviation = 1.25
+            data.autosensResult.ratio = 0.9
+            data.autosensResult.sensResult = "Excess insulin resistance detected"
+            data.slopeFromMinDeviation = 2.5
+            data.mealStartCounter = i.toInt()
+            data.type = "uam"
+            data.uam = true
+            data.extraDeviation.add(-1.5)
+            table.append(time, data)
+        }
+        return table
+    }
+
+    private fun iobTable(): LongSparseArray<IobTotal> {
+        val table = LongSparseArray<IobTotal>()
+        for (i in 0L until 12L) {
+            val time = now - T.mins(5 * (12 - i)).msecs()
+            val iob = IobTotal(time)
+            iob.iob = 1.5 + i
+            iob.activity = 0.01 * i
+            iob.basaliob = -0.3
+            iob.lastBolusTime = time - 600000
+            iob.iobWithZeroTemp = IobTotal(time).also { it.iob = 0.5 }
+            table.append(time, iob)
+        }
+        return table
+    }
+
+    private fun roundTrip(settingsHash: Long, readHash: Long): AutosensSnapshot.Tables? {
+        val bytes = ByteArrayOutputStream()
+        DataOutputStream(bytes).use { sut.write(it, AutosensSnapshot.Key(settingsHash, longArrayOf(1, 2, 3)), autosensDataTable(), iobTable()) }
+        return DataInputStream(ByteArrayInputStream(bytes.toByteArray())).use { sut.read(it, readHash) }
+    }
+
+    @Test
+    fun roundTripKeepsAllValues() {
+        val tables = roundTrip(42, 42)!!
+        Assert.assertArrayEquals(longArrayOf(1, 2, 3), tables.key.lastIds)
+        val expected = autosensDataTable()
+        Assert.assertEquals(expected.size(), tables.autosensDataTable.size())
+        for (index in 0 until expected.size()) {
+            val e = expected.valueAt(index)
+            val r = tables.autosensDataTable.valueAt(index)
+            Assert.assertEquals(expected.keyAt(index), tables.autosensDataTable.keyAt(index))
+            Assert.assertEquals(e.time, r.time)
+            Assert.assertEquals(e.bg, r.bg, 0.0)
+            Assert.assertEquals(e.chartTime, r.chartTime)
+            Assert.assertEquals(e.pastSensitivity, r.pastSensitivity)
+            Assert.assertEquals(e.deviation, r.deviation, 0.0)
+            Assert.assertEquals(e.validDeviation, r.validDeviation)
+            Assert.assertEquals(e.activeCarbsList.size, r.activeCarbsList.size)
+            Assert.assertEquals(e.activeCarbsList[0].time, r.activeCarbsList[0].time)
+            Assert.assertEquals(e.activeCarbsList[0].min5minCarbImpact, r.activeCarbsList[0].min5minCarbImpact, 0.0)
+            Assert.assertEquals(e.activeCarbsList[0].remaining, r.activeCarbsList[0].remaining, 0.0)
+            Assert.assertEquals(e.cob, r.cob, 0.0)
+            Assert.assertEquals(e.avgDeviation, r.avgDeviation, 0.0)
+            Assert.assertEquals(e.autosensResult.ratio, r.autosensResult.ratio, 0.0)
+            Assert.assertEquals(e.autosensResult.sensResult, r.autosensResult.sensResult)
+            Assert.assertEquals(e.slopeFromMinDeviation, r.slopeFromMinDeviation, 0.0)
+            Assert.assertEquals(e.mealStartCounter, r.mealStartCounter)
+            Assert.assertEquals(e.type, r.type)
+            Assert.assertEquals(e.uam, r.uam)
+            Assert.assertEquals(e.extraDeviation, r.extraDeviation)
+        }
+        val expectedIob = iobTable()
+        Assert.assertEquals(expectedIob.size(), tables.iobTable.size())
+        for (index in 0 until expectedIob.size()) {
+            val e = expectedIob.valueAt(index)
+            val r = tables.iobTable.valueAt(index)
+            Assert.assertEquals(e.time, r.time)
+            Assert.assertEquals(e.iob, r.iob, 0.0)
+            Assert.assertEquals(e.activity, r.activity, 0.0)
+            Assert.assertEquals(e.basaliob, r.basaliob, 0.0)
+            Assert.assertEquals(e.lastBolusTime, r.lastBolusTime)
+            Assert.assertEquals(e.iobWithZeroTemp!!.iob, r.iobWithZeroTemp!!.iob, 0.0)
+        }
+    }
+
+    @Test
+    fun differentSettingsAreRejected() {
+        Assert.assertNull(roundTrip(42, 43))
+    }
+
+    @Test
+    fun iobSettingsChangeKey() {
+        val key = sut.currentKey().settingsHash
+        `when`(sp.getDouble(R.string.key_openapsama_bolussnooze_dia_divisor, 2.0)).thenReturn(3.0)
+        val divisorKey = sut.currentKey().settingsHash
+        Assert.assertNotEquals(key, divisorKey)
+        `when`(pump.isFakingTempsByExtendedBoluses).thenReturn(true)
+        Assert.assertNotEquals(divisorKey, sut.currentKey().settingsHash)
+    }
+
+    @Test
+    fun restoreDropsBucketsAfterChangedRecord() {
+        sut.store(sut.currentKey(), autosensDataTable(), iobTable())
+        // bolus entered in the past after snapshot has been stored
+        val bolusTime = now - T.mins(22).msecs()
+        `when`(repository.getModifiedBolusesDataFromId(20L)).thenReturn(Single.just(listOf(Bolus(timestamp = bolusTime, amount = 1.0, type = Bolus.Type.NORMAL))))
+        val tables = sut.restore()!!
+        Assert.assertEquals(7, tables.autosensDataTable.size())
+        Assert.assertEquals(7, tables.iobTable.size())
+        Assert.assertTrue(tables.autosensDataTable.keyAt(tables.autosensDataTable.size() - 1) <= bolusTime - T.mins(5).msecs())
+    }
+
+    @Test
+    fun restoreKeepsEverythingWithoutChanges() {
+        sut.store(sut.currentKey(), autosensDataTable(), iobTable())
+        Assert.assertEquals(12, sut.restore()!!.autosensDataTable.size())
+    }
+}
@@ -0,0 +1,76 @@
+package info.nightscout.androidaps.plugins.iob.iobCobCalculator
+
+import info.nightscout.androidaps.TestBaseWithProfile
+import info.nightscout.androidaps.database.AppRepository
+import info.nightscout.androidaps.database.entities.Bolus
+import info.nightscout.androidaps.database.entities.ExtendedBolus
+import info.nightscout.androidaps.database.entities.TemporaryBasal
+import info.nightscout.androidaps.database.interfaces.DBEntry
+import info.nightscout.androidaps.interfaces.PluginType
+import info.nightscout.androidaps.interfaces.Pump
+import info.nightscout.androidaps.plugins.insulin.InsulinOrefRapidActingPlugin
+import info.nightscout.androidaps.plugins.sensitivity.SensitivityAAPSPlugin
+import info.nightscout.androidaps.plugins.sensitivity.SensitivityOref1Plugin
+import info.nightscout.androidaps.plugins.sensitivity.SensitivityWeightedAveragePlugin
+import info.nightscout.androidaps.utils.T
+import info.nightscout.shared.sharedPreferences.SP
+import io.reactivex.rxjava3.core.Single
+import io.reactivex.rxjava3.subjects.PublishSubject
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.mockito.ArgumentMatchers.anyBoolean
+import org.mockito.ArgumentMatchers.anyDouble
+import org.mockito.ArgumentMatchers.anyInt
+import org.mockito.ArgumentMatchers.anyLong
+import org.mockito.Mock
+import org.mockito.Mockito.`when`
+
+class IobCobCalculatorPluginTest : TestBaseWithProfile() {
+
+    @Mock lateinit var sp: SP
+    @Mock lateinit var repository: AppRepository
+    @Mock lateinit var pump: Pump
+    @Mock lateinit var sensitivityOref1Plugin: SensitivityOref1Plugin
+    @Mock lateinit var sensitivityAAPSPlugin: SensitivityAAPSPlugin
+    @Mock lateinit var sensitivityWeightedAveragePlugin: SensitivityWeightedAveragePlugin
+
+    private val changes = PublishSubject.create<List<DBEntry>>()
+    private val boluses = ArrayList<Bolus>()
+
+    private lateinit var sut: IobCobCalculatorPlugin
+
+    @Before
+    fun prepare() {
+        `when`(sp.getDouble(anyInt(), anyDouble())).thenReturn(2.0)
+        `when`(profileFunction.getProfile()).thenReturn(validProfile)
+        `when`(profileFunction.getProfile(anyLong())).thenReturn(validProfile)
+        `when`(activePluginProvider.activeInsulin).thenReturn(InsulinOrefRapidActingPlugin(profileInjector, rh, profileFunction, rxBus, aapsLogger, config))
+        `when`(activePluginProvider.activePump).thenReturn(pump)
+        `when`(repository.changeObservable()).thenReturn(changes)
+        `when`(repository.getBolusesDataFromTime(anyLong(), anyBoolean())).thenAnswer { invocation ->
+            Single.just(boluses.filter { it.timestamp >= invocation.getArgument<Long>(0) })
+        }
+        `when`(repository.getTemporaryBasalsDataFromTime(anyLong(), anyBoolean())).thenReturn(Single.just(listOf<TemporaryBasal>()))
+        `when`(repository.getExtendedBolusDataFromTime(anyLong(), anyBoolean())).thenReturn(Single.just(listOf<ExtendedBolus>()))
+
+        sut = IobCobCalculatorPlugin(
+            profileInjector, aapsLogger, aapsSchedulers, rxBus, sp, rh, profileFunction, activePluginProvider,
+            sensitivityOref1Plugin, sensitivityAAPSPlugin, sensitivityWeightedAveragePlugin, fabricPrivacy, dateUtil, repository
+        )
+        sut.setPluginEnabled(PluginType.GENERAL, true)
+    }
+
+    @Test
+    fun committedBolusIsInIobBeforeHistoryEvent() {
+        sut.treatmentTimeline.load(dateUtil.now() - sut.range())
+        Assert.assertEquals(0.0, sut.calculateIobFromBolus().iob, 0.0)
+
+        // transaction finished, EventNewHistoryData not sent yet
+        val bolus = Bolus(id = 1, timestamp = dateUtil.now() - T.mins(1).msecs(), amount = 2.0, type = Bolus.Type.NORMAL)
+        boluses.add(bolus)
+        changes.onNext(listOf(bolus))
+
+        Assert.assertTrue(sut.calculateIobFromBolus().iob > 1.9)
+    }
+}
@@ -0,0 +1,130 @@
+package info.nightscout.androidaps.plugins.iob.iobCobCalculator
+
+import info.nightscout.androidaps.TestBaseWithProfile
+import info.nightscout.androidaps.data.IobTotal
+import info.nightscout.androidaps.database.AppRepository
+import info.nightscout.androidaps.database.entities.Bolus
+import info.nightscout.androidaps.database.entities.ExtendedBolus
+import info.nightscout.androidaps.database.entities.TemporaryBasal
+import info.nightscout.androidaps.interfaces.Pump
+import info.nightscout.androidaps.plugins.insulin.InsulinOrefRapidActingPlugin
+import info.nightscout.androidaps.plugins.sensitivity.SensitivityAAPSPlugin
+import info.nightscout.androidaps.plugins.sensitivity.SensitivityOref1Plugin
+import info.nightscout.androidaps.plugins.sensitivity.SensitivityWeightedAveragePlugin
+import info.nightscout.androidaps.utils.T
+import info.nightscout.shared.sharedPreferences.SP
+import io.reactivex.rxjava3.core.Single
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.mockito.ArgumentMatchers.anyBoolean
+import org.mockito.ArgumentMatchers.anyDouble
+import org.mockito.ArgumentMatchers.anyInt
+import org.mockito.ArgumentMatchers.anyLong
+import org.mockito.Mock
+import org.mockito.Mockito.`when`
+
+class SlidingIobWindowTest : TestBaseWithProfile() {
+
+    @Mock lateinit var sp: SP
+    @Mock lateinit var repository: AppRepository
+    @Mock lateinit var pump: Pump
+    @Mock lateinit var sensitivityOref1Plugin: SensitivityOref1Plugin
+    @Mock lateinit var sensitivityAAPSPlugin: SensitivityAAPSPlugin
+    @Mock lateinit var sensitivityWeightedAveragePlugin: SensitivityWeightedAveragePlugin
+
+    private val now = System.currentTimeMillis() / T.mins(5).msecs() * T.mins(5).msecs()
+    private val start = now - T.hours(30).msecs()
+
+    private val boluses = ArrayList<Bolus>()
+    private val temporaryBasals = ArrayList<TemporaryBasal>()
+    private val extendedBoluses = ArrayList<ExtendedBolus>()
+
+    private fun createPlugin() =
+        IobCobCalculatorPlugin(
+            profileInjector, aapsLogger, aapsSchedulers, rxBus, sp, rh, profileFunction, activePluginProvider,
+            sensitivityOref1Plugin, sensitivityAAPSPlugin, sensitivityWeightedAveragePlugin, fabricPrivacy, dateUtil, repository
+        )
+
+    @Before
+    fun prepare() {
+        `when`(sp.getDouble(anyInt(), anyDouble())).thenReturn(2.0)
+        `when`(profileFunction.getProfile()).thenReturn(validProfile)
+        `when`(profileFunction.getProfile(anyLong())).thenReturn(validProfile)
+        `when`(activePluginProvider.activeInsulin).thenReturn(InsulinOrefRapidActingPlugin(profileInjector, rh, profileFunction, rxBus, aapsLogger, config))
+        `when`(activePluginProvider.activePump).thenReturn(pump)
+        `when`(repository.getBolusesDataFromTime(anyLong(), anyBoolean())).thenAnswer { invocation ->
+            Single.just(boluses.filter { it.timestamp >= invocation.getArgument<Long>(0) })
+        }
+        `when`(repository.getTemporaryBasalsDataFromTime(anyLong(), anyBoolean())).thenAnswer { invocation ->
+            Single.just(temporaryBasals.filter { it.timestamp >= invocation.getArgument<Long>(0) })
+        }
+        `when`(repository.getExtendedBolusDataFromTime(anyLong(), anyBoolean())).thenAnswer { invocation ->
+            Single.just(extendedBoluses.filter { it.timestamp >= invocation.getArgument<Long>(0) })
+        }
+
+        var time = start
+        var i = 0L
+        while (time < now) {
+            boluses.add(Bolus(id = ++i, timestamp = time + T.mins(7).msecs(), amount = 0.1 + (i % 7) * 0.3, type = if (i % 3 == 0L) Bolus.Type.SMB else Bolus.Type.NORMAL))
+            temporaryBasals.add(
+                TemporaryBasal(
+                    id = i, timestamp = time + T.mins(13).msecs(), duration = T.mins(5 + (i % 11) * 9).msecs(),
+                    rate = if (i % 2 == 0L) (i % 5) * 0.4 else 50.0 + (i % 4) * 40, isAbsolute = i % 2 == 0L, type = TemporaryBasal.Type.NORMAL
+                )
+            )
+            if (i % 4 == 0L)
+                extendedBoluses.add(ExtendedBolus(id = i, timestamp = time + T.mins(21).msecs(), duration = T.mins(45).msecs(), amount = 1.5))
+            time += T.mins(97).msecs()
+        }
+        // running treatments must be cut to now
+        temporaryBasals.add(TemporaryBasal(id = ++i, timestamp = now - T.mins(20).msecs(), duration = T.mins(60).msecs(), rate = 0.0, isAbsolute = true, type = TemporaryBasal.Type.NORMAL))
+        extendedBoluses.add(ExtendedBolus(id = i, timestamp = now - T.mins(10).msecs(), duration = T.mins(30).msecs(), amount = 1.0))
+    }
+
+    private fun assertEqualIob(expected: IobTotal, actual: IobTotal) {
+        Assert.assertEquals(expected.iob, actual.iob, 0.0000001)
+        Assert.assertEquals(expected.activity, actual.activity, 0.0000001)
+        Assert.assertEquals(expected.bolussnooze, actual.bolussnooze, 0.0000001)
+        Assert.assertEquals(expected.basaliob, actual.basaliob, 0.0000001)
+        Assert.assertEquals(expected.netbasalinsulin, actual.netbasalinsulin, 0.0000001)
+        Assert.assertEquals(expected.hightempinsulin, actual.hightempinsulin, 0.0000001)
+        Assert.assertEquals(expected.netInsulin, actual.netInsulin, 0.0000001)
+        Assert.assertEquals(expected.extendedBolusInsulin, actual.extendedBolusInsulin, 0.0000001)
+        Assert.assertEquals(expected.lastBolusTime, actual.lastBolusTime)
+        Assert.assertEquals(expected.iobWithZeroTemp?.iob ?: 0.0, actual.iobWithZeroTemp?.iob ?: 0.0, 0.0000001)
+    }
+
+    private fun walk(fakingTemps: Boolean) {
+        `when`(pump.isFakingTempsByExtendedBoluses).thenReturn(fakingTemps)
+        val reference = createPlugin()
+        val sut = createPlugin()
+        val window = SlidingIobWindow(sut.treatmentTimeline)
+        var time = start
+        while (time < now) {
+            assertEqualIob(reference.calculateFromTreatmentsAndTemps(time, validProfile), sut.calculateFromTreatmentsAndTemps(time, validProfile, window))
+            time += T.mins(5).msecs()
+        }
+    }
+
+    @Test
+    fun windowMatchesRandomAccessCalculation() {
+        walk(fakingTemps = false)
+    }
+
+    @Test
+    fun windowMatchesRandomAccessCalculationWithFakedExtended() {
+        walk(fakingTemps = true)
+    }
+
+    @Test
+    fun windowIsRebuiltWhenMovingBack() {
+        `when`(pump.isFakingTempsByExtendedBoluses).thenReturn(false)
+        val reference = createPlugin()
+        val sut = createPlugin()
+        val window = SlidingIobWindow(sut.treatmentTimeline)
+        val times = listOf(now - T.hours(2).msecs(), now - T.hours(1).msecs(), now - T.hours(10).msecs(), now - T.hours(9).msecs())
+        for (time in times)
+            assertEqualIob(reference.calculateFromTreatmentsAndTemps(time, validProfile), sut.calculateFromTreatmentsAndTemps(time, validProfile, window))
+    }
+}
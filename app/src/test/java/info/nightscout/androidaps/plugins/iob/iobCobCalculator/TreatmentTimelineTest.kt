@@ -0,0 +1,88 @@
+package info.nightscout.androidaps.plugins.iob.iobCobCalculator
+
+import info.nightscout.androidaps.TestBase
+import info.nightscout.androidaps.database.AppRepository
+import info.nightscout.androidaps.database.entities.Bolus
+import info.nightscout.androidaps.database.entities.ExtendedBolus
+import info.nightscout.androidaps.database.entities.TemporaryBasal
+import io.reactivex.rxjava3.core.Single
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.mockito.ArgumentMatchers.anyBoolean
+import org.mockito.ArgumentMatchers.anyLong
+import org.mockito.Mock
+import org.mockito.Mockito.`when`
+import org.mockito.Mockito.times
+import org.mockito.Mockito.verify
+
+class TreatmentTimelineTest : TestBase() {
+
+    @Mock lateinit var repository: AppRepository
+
+    private lateinit var sut: TreatmentTimeline
+    private var boluses = listOf<Bolus>()
+
+    private fun bolus(id: Long, timestamp: Long) = Bolus(id = id, timestamp = timestamp, amount = 1.0, type = Bolus.Type.NORMAL)
+
+    @Before
+    fun prepare() {
+        `when`(repository.getBolusesDataFromTime(anyLong(), anyBoolean())).thenAnswer { invocation ->
+            val from = invocation.getArgument<Long>(0)
+            // DB returns boluses ordered by id DESC
+            Single.just(boluses.filter { it.timestamp >= from }.sortedByDescending { it.id })
+        }
+        `when`(repository.getTemporaryBasalsDataFromTime(anyLong(), anyBoolean())).thenReturn(Single.just(listOf<TemporaryBasal>()))
+        `when`(repository.getExtendedBolusDataFromTime(anyLong(), anyBoolean())).thenReturn(Single.just(listOf<ExtendedBolus>()))
+        sut = TreatmentTimeline(repository)
+    }
+
+    @Test
+    fun rangeQueriesAreServedFromMemory() {
+        boluses = listOf(bolus(1, 1000), bolus(3, 3000), bolus(2, 2000), bolus(4, 4000))
+        sut.load(0)
+        Assert.assertEquals(listOf(2000L, 3000L), sut.getBolusesFromTimeToTime(1500, 3000).map { it.timestamp })
+        Assert.assertEquals(listOf(1000L, 2000L, 3000L, 4000L), sut.getBolusesFromTimeToTime(0, 5000).map { it.timestamp })
+        Assert.assertEquals(0, sut.getBolusesFromTimeToTime(4500, 5000).size)
+        Assert.assertEquals(0, sut.getBolusesFromTimeToTime(2500, 2600).size)
+        verify(repository, times(1)).getBolusesDataFromTime(anyLong(), anyBoolean())
+    }
+
+    @Test
+    fun olderRangeTriggersReload() {
+        boluses = listOf(bolus(1, 1000), bolus(2, 2000))
+        sut.load(1500)
+        Assert.assertEquals(1, sut.getBolusesFromTimeToTime(1500, 3000).size)
+        Assert.assertEquals(2, sut.getBolusesFromTimeToTime(500, 3000).size)
+        verify(repository, times(2)).getBolusesDataFromTime(anyLong(), anyBoolean())
+    }
+
+    @Test
+    fun invalidationPatchesTail() {
+        boluses = listOf(bolus(1, 1000), bolus(2, 2000), bolus(3, 3000))
+        sut.load(0)
+        // bolus 2 invalidated, bolus 1 moved to the future, new bolus added
+        boluses = listOf(bolus(1, 5000), bolus(3, 3000), bolus(4, 2500))
+        sut.invalidateFrom(2000)
+        Assert.assertEquals(listOf(2500L, 3000L, 5000L), sut.getBolusesFromTimeToTime(0, 6000).map { it.timestamp })
+        Assert.assertEquals(listOf(4L, 3L, 1L), sut.getBolusesFromTimeToTime(0, 6000).map { it.id })
+    }
+
+    @Test
+    fun invalidationBeforeLoadedRangeDropsEverything() {
+        boluses = listOf(bolus(1, 1000), bolus(2, 2000))
+        sut.load(1500)
+        boluses = listOf(bolus(1, 1000), bolus(2, 2000), bolus(3, 1600))
+        sut.invalidateFrom(0)
+        Assert.assertEquals(listOf(1600L, 2000L), sut.getBolusesFromTimeToTime(1500, 3000).map { it.timestamp })
+    }
+
+    @Test
+    fun loadDropsOlderRecords() {
+        boluses = listOf(bolus(1, 1000), bolus(2, 2000))
+        sut.load(0)
+        sut.load(1500)
+        Assert.assertEquals(1, sut.getBolusesFromTimeToTime(1500, 3000).size)
+        verify(repository, times(1)).getBolusesDataFromTime(anyLong(), anyBoolean())
+    }
+}
@@ -0,0 +1,137 @@
+package info.nightscout.androidaps.utils.stats
+
+import info.nightscout.androidaps.TestBase
+import info.nightscout.androidaps.database.AppRepository
+import info.nightscout.androidaps.database.entities.Bolus
+import info.nightscout.androidaps.database.entities.Carbs
+import info.nightscout.androidaps.database.entities.HourlyTotal
+import info.nightscout.androidaps.interfaces.ActivePlugin
+import info.nightscout.androidaps.interfaces.IobCobCalculator
+import info.nightscout.androidaps.interfaces.Profile
+import info.nightscout.androidaps.interfaces.ProfileFunction
+import info.nightscout.androidaps.interfaces.Pump
+import info.nightscout.androidaps.utils.DateUtil
+import info.nightscout.androidaps.utils.MidnightTime
+import info.nightscout.androidaps.utils.T
+import info.nightscout.androidaps.utils.resources.ResourceHelper
+import io.reactivex.rxjava3.core.Single
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.mockito.ArgumentMatchers.anyBoolean
+import org.mockito.ArgumentMatchers.anyLong
+import org.mockito.Mock
+import org.mockito.Mockito.`when`
+import org.mockito.Mockito.clearInvocations
+import org.mockito.Mockito.mockingDetails
+
+class TddCalculatorTest : TestBase() {
+
+    @Mock lateinit var rh: ResourceHelper
+    @Mock lateinit var activePlugin: ActivePlugin
+    @Mock lateinit var pump: Pump
+    @Mock lateinit var profileFunction: ProfileFunction
+    @Mock lateinit var profile: Profile
+    @Mock lateinit var dateUtil: DateUtil
+    @Mock lateinit var iobCobCalculator: IobCobCalculator
+    @Mock lateinit var repository: AppRepository
+
+    private lateinit var sut: TddCalculator
+
+    private val hour = T.hours(1).msecs()
+    private val now = MidnightTime.calc(1_650_000_000_000L) + 10 * hour + T.mins(17).msecs()
+
+    // fake of hourlyTotals table
+    private val stored = HashMap<Long, HourlyTotal>()
+    private var version = 0L
+    private val boluses = List(48) { Bolus(timestamp = now - it * hour, amount = 1.0, type = Bolus.Type.SMB) }
+
+    @Before
+    fun prepare() {
+        sut = TddCalculator(aapsLogger, rh, activePlugin, profileFunction, dateUtil, iobCobCalculator, repository)
+        `when`(dateUtil.now()).thenReturn(now)
+        `when`(activePlugin.activePump).thenReturn(pump)
+        `when`(pump.isFakingTempsByExtendedBoluses).thenReturn(false)
+        `when`(profileFunction.getProfile(anyLong())).thenReturn(profile)
+        `when`(profile.getBasal(anyLong())).thenReturn(1.2)
+        `when`(iobCobCalculator.getTempBasalIncludingConvertedExtendedForRange(anyLong(), anyLong(), anyLong())).thenReturn(emptyMap())
+        `when`(repository.getBolusesDataFromTimeToTime(anyLong(), anyLong(), anyBoolean())).thenAnswer { invocation ->
+            Single.just(boluses.filter { it.timestamp >= invocation.getArgument<Long>(0) && it.timestamp <= invocation.getArgument<Long>(1) }.sortedBy { it.timestamp })
+        }
+        `when`(repository.getCarbsDataFromTimeToTimeExpanded(anyLong(), anyLong(), anyBoolean())).thenReturn(Single.just(emptyList()))
+        `when`(repository.getHourlyTotals(anyLong(), anyLong())).thenAnswer { invocation ->
+            Single.just(stored.values.filter { it.timestamp >= invocation.getArgument<Long>(0) && it.timestamp < invocation.getArgument<Long>(1) }.sortedBy { it.timestamp })
+        }
+        `when`(repository.getHourlyTotalsVersion()).thenAnswer { Single.just(version) }
+        `when`(repository.storeHourlyTotals(anyObject(), anyLong())).thenAnswer { invocation ->
+            val accepted = invocation.getArgument<Long>(1) == version
+            if (accepted) invocation.getArgument<List<HourlyTotal>>(0).forEach { stored[it.timestamp] = it.copy() }
+            Single.just(accepted)
+        }
+    }
+
+    private fun stepLookups(): Int = mockingDetails(iobCobCalculator).invocations.count { it.method.name == "getExtendedBolus" }
+
+    @Test
+    fun finishedHoursAreCalculatedOnce() {
+        val first = sut.calculate24Daily()
+        Assert.assertEquals(9 + 23 * 12 + 4, stepLookups())
+        Assert.assertEquals(23, stored.size)
+
+        clearInvocations(iobCobCalculator)
+        val second = sut.calculate24Daily()
+
+        // only cut hours at both ends of the interval
+        Assert.assertEquals(13, stepLookups())
+        Assert.assertEquals(first.basalAmount, second.basalAmount, 0.0001)
+        Assert.assertEquals(first.bolusAmount, second.bolusAmount, 0.0001)
+        Assert.assertEquals(1.2 * 24, second.basalAmount, 0.0001)
+        Assert.assertEquals(24.0, second.bolusAmount, 0.0001)
+    }
+
+    @Test
+    fun dailyTotalIsSumOfHoursSinceMidnight() {
+        sut.calculate24Daily()
+        clearInvocations(iobCobCalculator)
+
+        val tdd = sut.calculateDaily()
+
+        Assert.assertEquals(4, stepLookups())
+        Assert.assertEquals(MidnightTime.calc(now), tdd.timestamp)
+        Assert.assertEquals(1.2 * (10 + 17.0 / 60), tdd.basalAmount, 0.0001)
+        Assert.assertEquals(10.0, tdd.bolusAmount, 0.0001)
+        Assert.assertEquals(tdd.basalAmount + tdd.bolusAmount, tdd.totalAmount, 0.0001)
+    }
+
+    @Test
+    fun hoursAreNotStoredWhenRecordsChangeDuringCalculation() {
+        `when`(repository.getCarbsDataFromTimeToTimeExpanded(anyLong(), anyLong(), anyBoolean())).thenAnswer {
+            version++
+            Single.just(emptyList<Carbs>())
+        }
+
+        sut.calculateDaily()
+
+        Assert.assertTrue(stored.isEmpty())
+    }
+
+    /**
+     * Dynamic ISF reads daily and 24h totals on every loop run
+     */
+    @Test
+    fun loopLatencyWithDynamicIsf() {
+        sut.calculateDaily()
+        sut.calculate24Daily()
+        val coldLookups = stepLookups()
+
+        clearInvocations(iobCobCalculator)
+        repeat(100) {
+            sut.calculateDaily()
+            sut.calculate24Daily()
+        }
+        val warmLookups = stepLookups() / 100
+
+        Assert.assertEquals(4 + 13, warmLookups)
+        Assert.assertTrue(warmLookups * 10 < coldLookups)
+    }
+}
@@ -0,0 +1,56 @@
+package info.nightscout.androidaps.data
+
+import info.nightscout.androidaps.database.data.Block
+import info.nightscout.androidaps.extensions.blockValueBySeconds
+import info.nightscout.androidaps.utils.T
+
+/**
+ * Values of profile blocks with multiplier and timeshift applied, resolved to fixed slots of one day
+ *
+ * Slot is 30 min long when all block boundaries are aligned to it, 1 min otherwise.
+ * Lookup is an index computation instead of walking the blocks.
+ * Blocks not aligned to whole minutes are not compiled and are walked as before.
+ * Owner must drop the schedule when blocks are changed in place.
+ */
+class CompiledSchedule(
+    private val blocks: List<Block>,
+    private val multiplier: Double,
+    private val timeShiftHours: Int
+) {
+
+    private val slotSeconds: Int
+    private val values: DoubleArray?
+
+    init {
+        var halfHourAligned = true
+        var minuteAligned = true
+        var elapsed = 0L
+        for (block in blocks) {
+            elapsed += T.msecs(block.duration).secs()
+            if (elapsed % (30 * 60) != 0L) halfHourAligned = false
+            if (elapsed % 60 != 0L) minuteAligned = false
+        }
+        slotSeconds = if (halfHourAligned) 30 * 60 else 60
+        values =
+            if (minuteAligned && blocks.isNotEmpty()) DoubleArray(SECONDS_PER_DAY / slotSeconds) { blocks.blockValueBySeconds(it * slotSeconds, multiplier, timeShiftHours) }
+            else null
+    }
+
+    fun matches(blocks: List<Block>, multiplier: Double, timeShiftHours: Int): Boolean =
+        this.blocks === blocks && this.multiplier == multiplier && this.timeShiftHours == timeShiftHours
+
+    /**
+     * Same as blocks.blockValueBySeconds(secondsFromMidnight, multiplier, timeShiftHours)
+     */
+    fun valueBySeconds(secondsFromMidnight: Int): Double {
+        val values = values
+        val slot = secondsFromMidnight / slotSeconds
+        return if (values != null && slot >= 0 && slot < values.size) values[slot]
+        else blocks.blockValueBySeconds(secondsFromMidnight, multiplier, timeShiftHours)
+    }
+
+    companion object {
+
+        private const val SECONDS_PER_DAY = 24 * 60 * 60
+    }
+}
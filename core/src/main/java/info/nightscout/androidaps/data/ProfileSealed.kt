@@ -130,12 +130,14 @@ sealed class ProfileSealed(
             // Check for minimal basal value
             if (basalAmount < description.basalMinimumRate) {
                 basal.amount = description.basalMinimumRate
+                basalSchedule = null
                 if (sendNotifications) sendBelowMinimumNotification(from, rxBus, rh)
                 validityCheck.isValid = false
                 validityCheck.reasons.add(rh.gs(R.string.minimalbasalvaluereplaced, from))
                 break
             } else if (basalAmount > description.basalMaximumRate) {
                 basal.amount = description.basalMaximumRate
+                basalSchedule = null
                 if (sendNotifications) sendAboveMaximumNotification(from, rxBus, rh)
                 validityCheck.isValid = false
                 validityCheck.reasons.add(rh.gs(R.string.maximumbasalvaluereplaced, from))
@@ -220,21 +222,39 @@ sealed class ProfileSealed(
     override val percentage: Int
         get() = pct
 
-    override fun getBasal(): Double = basalBlocks.blockValueBySeconds(secondsFromMidnight(), percentage / 100.0, timeshift)
-    override fun getBasal(timestamp: Long): Double = basalBlocks.blockValueBySeconds(secondsFromMidnight(timestamp), percentage / 100.0, timeshift)
-    override fun getIc(): Double = icBlocks.blockValueBySeconds(secondsFromMidnight(), 100.0 / percentage, timeshift)
-    override fun getIc(timestamp: Long): Double = icBlocks.blockValueBySeconds(secondsFromMidnight(timestamp), 100.0 / percentage, timeshift)
-    override fun getIsfMgdl(): Double = toMgdl(isfBlocks.blockValueBySeconds(secondsFromMidnight(), 100.0 / percentage, timeshift), units)
-    override fun getIsfMgdl(timestamp: Long): Double = toMgdl(isfBlocks.blockValueBySeconds(secondsFromMidnight(timestamp), 100.0 / percentage, timeshift), units)
+    // compiled lazily, blocks, percentage and timeshift may be replaced after creation
+    // blocks changed in place (basal clamped in isValid) must drop the schedule
+    @Volatile private var basalSchedule: CompiledSchedule? = null
+    @Volatile private var icSchedule: CompiledSchedule? = null
+    @Volatile private var isfSchedule: CompiledSchedule? = null
+
+    private fun basalSchedule(): CompiledSchedule =
+        basalSchedule?.takeIf { it.matches(basalBlocks, percentage / 100.0, timeshift) }
+            ?: CompiledSchedule(basalBlocks, percentage / 100.0, timeshift).also { basalSchedule = it }
+
+    private fun icSchedule(): CompiledSchedule =
+        icSchedule?.takeIf { it.matches(icBlocks, 100.0 / percentage, timeshift) }
+            ?: CompiledSchedule(icBlocks, 100.0 / percentage, timeshift).also { icSchedule = it }
+
+    private fun isfSchedule(): CompiledSchedule =
+        isfSchedule?.takeIf { it.matches(isfBlocks, 100.0 / percentage, timeshift) }
+            ?: CompiledSchedule(isfBlocks, 100.0 / percentage, timeshift).also { isfSchedule = it }
+
+    override fun getBasal(): Double = basalSchedule().valueBySeconds(secondsFromMidnight())
+    override fun getBasal(timestamp: Long): Double = basalSchedule().valueBySeconds(secondsFromMidnight(timestamp))
+    override fun getIc(): Double = icSchedule().valueBySeconds(secondsFromMidnight())
+    override fun getIc(timestamp: Long): Double = icSchedule().valueBySeconds(secondsFromMidnight(timestamp))
+    override fun getIsfMgdl(): Double = toMgdl(isfSchedule().valueBySeconds(secondsFromMidnight()), units)
+    override fun getIsfMgdl(timestamp: Long): Double = toMgdl(isfSchedule().valueBySeconds(secondsFromMidnight(timestamp)), units)
     override fun getTargetMgdl(): Double = toMgdl(targetBlocks.targetBlockValueBySeconds(secondsFromMidnight(), timeshift), units)
     override fun getTargetLowMgdl(): Double = toMgdl(targetBlocks.lowTargetBlockValueBySeconds(secondsFromMidnight(), timeshift), units)
     override fun getTargetLowMgdl(timestamp: Long): Double = toMgdl(targetBlocks.lowTargetBlockValueBySeconds(secondsFromMidnight(timestamp), timeshift), units)
     override fun getTargetHighMgdl(): Double = toMgdl(targetBlocks.highTargetBlockValueBySeconds(secondsFromMidnight(), timeshift), units)
     override fun getTargetHighMgdl(timestamp: Long): Double = toMgdl(targetBlocks.highTargetBlockValueBySeconds(secondsFromMidnight(timestamp), timeshift), units)
-    override fun getBasalTimeFromMidnight(timeAsSeconds: Int): Double = basalBlocks.blockValueBySeconds(timeAsSeconds, percentage / 100.0, timeshift)
-    override fun getIcTimeFromMidnight(timeAsSeconds: Int): Double = icBlocks.blockValueBySeconds(timeAsSeconds, 100.0 / percentage, timeshift)
-    fun getIsfTimeFromMidnight(timeAsSeconds: Int): Double = isfBlocks.blockValueBySeconds(timeAsSeconds, 100.0 / percentage, timeshift)
-    override fun getIsfMgdlTimeFromMidnight(timeAsSeconds: Int): Double = toMgdl(isfBlocks.blockValueBySeconds(timeAsSeconds, 100.0 / percentage, timeshift), units)
+    override fun getBasalTimeFromMidnight(timeAsSeconds: Int): Double = basalSchedule().valueBySeconds(timeAsSeconds)
+    override fun getIcTimeFromMidnight(timeAsSeconds: Int): Double = icSchedule().valueBySeconds(timeAsSeconds)
+    fun getIsfTimeFromMidnight(timeAsSeconds: Int): Double = isfSchedule().valueBySeconds(timeAsSeconds)
+    override fun getIsfMgdlTimeFromMidnight(timeAsSeconds: Int): Double = toMgdl(isfSchedule().valueBySeconds(timeAsSeconds), units)
     override fun getTargetLowMgdlTimeFromMidnight(timeAsSeconds: Int): Double = toMgdl(targetBlocks.lowTargetBlockValueBySeconds(timeAsSeconds, timeshift), units)
     private fun getTargetLowTimeFromMidnight(timeAsSeconds: Int): Double = targetBlocks.lowTargetBlockValueBySeconds(timeAsSeconds, timeshift)
     private fun getTargetHighTimeFromMidnight(timeAsSeconds: Int): Double = targetBlocks.highTargetBlockValueBySeconds(timeAsSeconds, timeshift)
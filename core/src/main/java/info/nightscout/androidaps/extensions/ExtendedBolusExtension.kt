@@ -3,7 +3,6 @@ package info.nightscout.androidaps.extensions
 import info.nightscout.androidaps.data.IobTotal
 import info.nightscout.androidaps.interfaces.Profile
 import info.nightscout.androidaps.database.embedments.InterfaceIDs
-import info.nightscout.androidaps.database.entities.Bolus
 import info.nightscout.androidaps.database.entities.ExtendedBolus
 import info.nightscout.androidaps.database.entities.TemporaryBasal
 import info.nightscout.androidaps.database.entities.TherapyEvent
@@ -141,15 +140,9 @@ fun ExtendedBolus.iobCalc(time: Long, profile: Profile, insulinInterface: Insuli
             val calcDate = (timestamp + j * spacing * 60 * 1000 + 0.5 * spacing * 60 * 1000).toLong()
             if (calcDate > diaAgo && calcDate <= time) {
                 val tempBolusSize: Double = rate * spacing / 60.0
-                val tempBolusPart = Bolus(
-                    timestamp = calcDate,
-                    amount = tempBolusSize,
-                    type = Bolus.Type.NORMAL
-                )
-                val aIOB = insulinInterface.iobCalcForTreatment(tempBolusPart, time, dia)
-                result.iob += aIOB.iobContrib
-                result.activity += aIOB.activityContrib
-                result.extendedBolusInsulin += tempBolusPart.amount
+                result.iob += insulinInterface.iobContrib(tempBolusSize, calcDate, time, dia)
+                result.activity += insulinInterface.activityContrib(tempBolusSize, calcDate, time, dia)
+                result.extendedBolusInsulin += tempBolusSize
             }
         }
     }
@@ -181,15 +174,9 @@ fun ExtendedBolus.iobCalc(time: Long, profile: Profile, lastAutosensResult: Auto
             netBasalRate = rate - basalRateCorrection
             if (calcDate > diaAgo && calcDate <= time) {
                 val tempBolusSize = netBasalRate * spacing / 60.0
-                val tempBolusPart = Bolus(
-                    timestamp = calcDate,
-                    amount = tempBolusSize,
-                    type = Bolus.Type.NORMAL
-                )
-                val aIOB = insulinInterface.iobCalcForTreatment(tempBolusPart, time, dia)
-                result.iob += aIOB.iobContrib
-                result.activity += aIOB.activityContrib
-                result.extendedBolusInsulin += tempBolusPart.amount
+                result.iob += insulinInterface.iobContrib(tempBolusSize, calcDate, time, dia)
+                result.activity += insulinInterface.activityContrib(tempBolusSize, calcDate, time, dia)
+                result.extendedBolusInsulin += tempBolusSize
             }
         }
     }
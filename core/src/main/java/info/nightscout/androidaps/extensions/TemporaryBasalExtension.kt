@@ -3,7 +3,6 @@ package info.nightscout.androidaps.extensions
 import info.nightscout.androidaps.data.IobTotal
 import info.nightscout.androidaps.interfaces.Profile
 import info.nightscout.androidaps.database.embedments.InterfaceIDs
-import info.nightscout.androidaps.database.entities.Bolus
 import info.nightscout.androidaps.database.entities.TemporaryBasal
 import info.nightscout.androidaps.database.entities.TemporaryBasal.Type.Companion.fromString
 import info.nightscout.androidaps.database.entities.TherapyEvent
@@ -129,8 +128,15 @@ fun TemporaryBasal.toStringShort(): String =
     if (isAbsolute || type == TemporaryBasal.Type.FAKE_EXTENDED) to2Decimal(rate) + "U/h"
     else "${to0Decimal(rate)}%"
 
-fun TemporaryBasal.iobCalc(time: Long, profile: Profile, insulinInterface: Insulin): IobTotal {
-    val result = IobTotal(time)
+fun TemporaryBasal.iobCalc(time: Long, profile: Profile, insulinInterface: Insulin): IobTotal =
+    iobCalc(time, profile, insulinInterface, IobTotal(time))
+
+/**
+ * Add IOB of temporary basal to [result] without allocation of 5 min boluses
+ *
+ * @return [result]
+ */
+fun TemporaryBasal.iobCalc(time: Long, profile: Profile, insulinInterface: Insulin, result: IobTotal): IobTotal {
     val realDuration = getPassedDurationToTimeInMinutes(time)
     var netBasalAmount = 0.0
     if (realDuration > 0) {
@@ -151,22 +157,16 @@ fun TemporaryBasal.iobCalc(time: Long, profile: Profile, insulinInterface: Insul
             if (calcDate > diaAgo && calcDate <= time) {
                 val tempBolusSize = netBasalRate * tempBolusSpacing / 60.0
                 netBasalAmount += tempBolusSize
-                val tempBolusPart = Bolus(
-                    timestamp = calcDate,
-                    amount = tempBolusSize,
-                    type = Bolus.Type.NORMAL
-                )
-                val aIOB = insulinInterface.iobCalcForTreatment(tempBolusPart, time, dia)
-                result.basaliob += aIOB.iobContrib
-                result.activity += aIOB.activityContrib
-                result.netbasalinsulin += tempBolusPart.amount
-                if (tempBolusPart.amount > 0) {
-                    result.hightempinsulin += tempBolusPart.amount
+                result.basaliob += insulinInterface.iobContrib(tempBolusSize, calcDate, time, dia)
+                result.activity += insulinInterface.activityContrib(tempBolusSize, calcDate, time, dia)
+                result.netbasalinsulin += tempBolusSize
+                if (tempBolusSize > 0) {
+                    result.hightempinsulin += tempBolusSize
                 }
             }
         }
     }
-    result.netInsulin = netBasalAmount
+    result.netInsulin += netBasalAmount
     return result
 }
 
@@ -178,8 +178,23 @@ fun TemporaryBasal.iobCalc(
     half_basal_exercise_target: Int,
     isTempTarget: Boolean,
     insulinInterface: Insulin
+): IobTotal = iobCalc(time, profile, lastAutosensResult, exercise_mode, half_basal_exercise_target, isTempTarget, insulinInterface, IobTotal(time))
+
+/**
+ * Add IOB of temporary basal to [result] without allocation of 5 min boluses
+ *
+ * @return [result]
+ */
+fun TemporaryBasal.iobCalc(
+    time: Long,
+    profile: Profile,
+    lastAutosensResult: AutosensResult,
+    exercise_mode: Boolean,
+    half_basal_exercise_target: Int,
+    isTempTarget: Boolean,
+    insulinInterface: Insulin,
+    result: IobTotal
 ): IobTotal {
-    val result = IobTotal(time)
     val realDuration = getPassedDurationToTimeInMinutes(time)
     var netBasalAmount = 0.0
     var sensitivityRatio = lastAutosensResult.ratio
@@ -210,21 +225,15 @@ fun TemporaryBasal.iobCalc(
             if (calcDate > diaAgo && calcDate <= time) {
                 val tempBolusSize = netBasalRate * tempBolusSpacing / 60.0
                 netBasalAmount += tempBolusSize
-                val tempBolusPart = Bolus(
-                    timestamp = calcDate,
-                    amount = tempBolusSize,
-                    type = Bolus.Type.NORMAL
-                )
-                val aIOB = insulinInterface.iobCalcForTreatment(tempBolusPart, time, dia)
-                result.basaliob += aIOB.iobContrib
-                result.activity += aIOB.activityContrib
-                result.netbasalinsulin += tempBolusPart.amount
-                if (tempBolusPart.amount > 0) {
-                    result.hightempinsulin += tempBolusPart.amount
+                result.basaliob += insulinInterface.iobContrib(tempBolusSize, calcDate, time, dia)
+                result.activity += insulinInterface.activityContrib(tempBolusSize, calcDate, time, dia)
+                result.netbasalinsulin += tempBolusSize
+                if (tempBolusSize > 0) {
+                    result.hightempinsulin += tempBolusSize
                 }
             }
         }
     }
-    result.netInsulin = netBasalAmount
+    result.netInsulin += netBasalAmount
     return result
 }
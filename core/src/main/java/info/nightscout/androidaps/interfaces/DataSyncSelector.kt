@@ -26,6 +26,12 @@ interface DataSyncSelector {
 
     fun resetToNextFullSync()
 
+    /**
+     * @return last id confirmed by NS per table name, newer records are waiting for upload.
+     * Empty if nothing is uploaded.
+     */
+    fun lastSyncedIds(): Map<String, Long>
+
     fun confirmLastBolusIdIfGreater(lastSynced: Long)
     fun changedBoluses() : List<Bolus>
     // Until NS v3
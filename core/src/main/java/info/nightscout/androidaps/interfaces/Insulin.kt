@@ -30,5 +30,16 @@ interface Insulin : ConfigExportImport {
 
     fun iobCalcForTreatment(bolus: Bolus, time: Long, dia: Double): Iob
 
+    /**
+     * Same as iobCalcForTreatment(...).iobContrib without allocation
+     * Used for temporary basals and extended boluses split to small boluses
+     */
+    fun iobContrib(amount: Double, bolusTime: Long, time: Long, dia: Double): Double
+
+    /**
+     * Same as iobCalcForTreatment(...).activityContrib without allocation
+     */
+    fun activityContrib(amount: Double, bolusTime: Long, time: Long, dia: Double): Double
+
     val insulinConfiguration : InsulinConfiguration
 }
\ No newline at end of file
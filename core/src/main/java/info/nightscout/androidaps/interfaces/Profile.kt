@@ -10,6 +10,7 @@ import info.nightscout.androidaps.utils.HardLimits
 import info.nightscout.androidaps.utils.Round
 import info.nightscout.androidaps.utils.resources.ResourceHelper
 import org.joda.time.DateTime
+import org.joda.time.DateTimeZone
 import org.json.JSONObject
 
 interface Profile {
@@ -144,7 +145,9 @@ interface Profile {
         }
 
         fun secondsFromMidnight(date: Long): Int {
-            val passed = DateTime(date).millisOfDay.toLong()
+            // same as DateTime(date).millisOfDay without allocation
+            val day = 24 * 60 * 60 * 1000L
+            val passed = ((date + DateTimeZone.getDefault().getOffset(date)) % day + day) % day
             return (passed / 1000).toInt()
         }
 
@@ -53,6 +53,14 @@ class AutosensData(injector: HasAndroidInjector) : DataPointWithLabelInterface {
             }
         }
 
+        // restore from stored snapshot
+        constructor(time: Long, carbs: Double, min5minCarbImpact: Double, remaining: Double) {
+            this.time = time
+            this.carbs = carbs
+            this.min5minCarbImpact = min5minCarbImpact
+            this.remaining = remaining
+        }
+
         internal constructor(other: CarbsInPast) {
             time = other.time
             carbs = other.carbs
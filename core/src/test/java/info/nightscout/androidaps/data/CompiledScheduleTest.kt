@@ -0,0 +1,84 @@
+package info.nightscout.androidaps.data
+
+import info.nightscout.androidaps.TestBase
+import info.nightscout.androidaps.database.data.Block
+import info.nightscout.androidaps.extensions.blockValueBySeconds
+import info.nightscout.androidaps.utils.T
+import org.junit.Assert
+import org.junit.Test
+
+class CompiledScheduleTest : TestBase() {
+
+    private val halfHourBlocks = listOf(
+        Block(T.hours(2).msecs(), 0.8),
+        Block(T.mins(90).msecs(), 1.1),
+        Block(T.hours(8).msecs(), 0.95),
+        Block(T.mins(30).msecs(), 1.3),
+        Block(T.hours(12).msecs(), 0.7)
+    )
+    private val minuteBlocks = listOf(
+        Block(T.mins(17).msecs(), 0.8),
+        Block(T.mins(443).msecs(), 1.1),
+        Block(T.mins(980).msecs(), 0.9)
+    )
+    private val secondBlocks = listOf(
+        Block(T.secs(1001).msecs(), 0.8),
+        Block(T.secs(85399).msecs(), 1.1)
+    )
+
+    private fun assertSameAsBlockWalk(blocks: List<Block>, multiplier: Double, timeShiftHours: Int) {
+        val sut = CompiledSchedule(blocks, multiplier, timeShiftHours)
+        for (seconds in 0 until 24 * 60 * 60)
+            Assert.assertEquals(blocks.blockValueBySeconds(seconds, multiplier, timeShiftHours), sut.valueBySeconds(seconds), 0.0)
+    }
+
+    @Test
+    fun compiledScheduleEqualsBlockWalk() {
+        for (blocks in listOf(halfHourBlocks, minuteBlocks, secondBlocks))
+            for (timeShift in listOf(0, 1, -3, 23))
+                for (multiplier in listOf(1.0, 0.5, 100.0 / 130))
+                    assertSameAsBlockWalk(blocks, multiplier, timeShift)
+    }
+
+    @Test
+    fun incompleteDayUsesLastBlock() {
+        assertSameAsBlockWalk(listOf(Block(T.hours(1).msecs(), 1.0), Block(T.hours(2).msecs(), 2.0)), 1.0, 0)
+    }
+
+    @Test
+    fun matchesChecksAllInputs() {
+        val sut = CompiledSchedule(halfHourBlocks, 1.0, 0)
+        Assert.assertTrue(sut.matches(halfHourBlocks, 1.0, 0))
+        Assert.assertFalse(sut.matches(ArrayList(halfHourBlocks), 1.0, 0))
+        Assert.assertFalse(sut.matches(halfHourBlocks, 0.5, 0))
+        Assert.assertFalse(sut.matches(halfHourBlocks, 1.0, 1))
+    }
+
+    /**
+     * Blocks which count every read
+     */
+    private class CountingBlocks(private val blocks: List<Block>) : AbstractList<Block>() {
+
+        var reads = 0
+        override val size: Int get() = blocks.size
+        override fun get(index: Int): Block = blocks[index].also { reads++ }
+    }
+
+    @Test
+    fun compiledLookupDoesNotWalkBlocks() {
+        val blocks = CountingBlocks((0 until 24).map { Block(T.hours(1).msecs(), 0.5 + it / 10.0) })
+        val sut = CompiledSchedule(blocks, 1.0, 0)
+        blocks.reads = 0
+        for (seconds in 0 until 24 * 60 * 60 step 7) sut.valueBySeconds(seconds)
+        Assert.assertEquals(0, blocks.reads)
+    }
+
+    @Test
+    fun notCompiledLookupWalksBlocks() {
+        val blocks = CountingBlocks(secondBlocks)
+        val sut = CompiledSchedule(blocks, 1.0, 0)
+        blocks.reads = 0
+        sut.valueBySeconds(2000)
+        Assert.assertEquals(2, blocks.reads)
+    }
+}
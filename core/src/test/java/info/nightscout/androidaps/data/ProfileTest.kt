@@ -160,4 +160,14 @@ class ProfileTest : TestBase() {
         p = ProfileSealed.Pure(pureProfileFromJson(JSONObject(notAlignedBasalValidProfile), dateUtil)!!)
         p.isValid("Test", testPumpPlugin, config, rh, rxBus, hardLimits, false)
     }
+
+    @Test
+    fun clampedBasalIsUsedAfterScheduleWasCompiled() {
+        val p = ProfileSealed.Pure(pureProfileFromJson(JSONObject(okProfile), dateUtil)!!)
+        Assert.assertEquals(0.1, p.getBasal(0), 0.001)
+
+        testPumpPlugin.pumpDescription.basalMinimumRate = 0.5
+        Assert.assertFalse(p.isValid("Test", testPumpPlugin, config, rh, rxBus, hardLimits, false).isValid)
+        Assert.assertEquals(0.5, p.getBasal(0), 0.001)
+    }
 }
\ No newline at end of file
@@ -0,0 +1,78 @@
+package info.nightscout.androidaps.extensions
+
+import info.nightscout.androidaps.TestBaseWithProfile
+import info.nightscout.androidaps.data.Iob
+import info.nightscout.androidaps.data.IobTotal
+import info.nightscout.androidaps.database.entities.Bolus
+import info.nightscout.androidaps.database.entities.TemporaryBasal
+import info.nightscout.androidaps.interfaces.Insulin
+import info.nightscout.androidaps.plugins.iob.iobCobCalculator.AutosensResult
+import info.nightscout.androidaps.utils.T
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.mockito.ArgumentMatchers.anyDouble
+import org.mockito.ArgumentMatchers.anyLong
+import org.mockito.Mock
+import org.mockito.Mockito
+import org.mockito.Mockito.`when`
+import org.mockito.Mockito.never
+import org.mockito.Mockito.verify
+
+class TemporaryBasalExtensionKtTest : TestBaseWithProfile() {
+
+    @Mock lateinit var insulin: Insulin
+
+    private val now = 1_000_000_000_000L
+    private val temporaryBasals = ArrayList<TemporaryBasal>()
+
+    @Before
+    fun prepare() {
+        `when`(insulin.iobContrib(anyDouble(), anyLong(), anyLong(), anyDouble())).thenAnswer { invocation -> invocation.getArgument<Double>(0) / 2 }
+        `when`(insulin.activityContrib(anyDouble(), anyLong(), anyLong(), anyDouble())).thenAnswer { invocation -> invocation.getArgument<Double>(0) / 100 }
+        // 24h of one hour TBRs
+        for (i in 0L until 24L)
+            temporaryBasals.add(
+                TemporaryBasal(
+                    timestamp = now - T.hours(24 - i).msecs(), duration = T.hours(1).msecs(),
+                    rate = if (i % 2 == 0L) 2.0 else 50.0, isAbsolute = i % 2 == 0L, type = TemporaryBasal.Type.NORMAL
+                )
+            )
+    }
+
+    @Test
+    fun iobCalcDoesNotAllocateEntitiesOrWrappers() {
+        val result = IobTotal(now)
+        val autosensResult = AutosensResult()
+        Mockito.mockConstruction(Bolus::class.java).use { boluses ->
+            Mockito.mockConstruction(Iob::class.java).use { iobs ->
+                Mockito.mockConstruction(IobTotal::class.java).use { iobTotals ->
+                    for (tb in temporaryBasals) {
+                        Assert.assertSame(result, tb.iobCalc(now, validProfile, insulin, result))
+                        Assert.assertSame(result, tb.iobCalc(now, validProfile, autosensResult, false, 160, false, insulin, result))
+                    }
+                    Assert.assertEquals(0, boluses.constructed().size)
+                    Assert.assertEquals(0, iobs.constructed().size)
+                    Assert.assertEquals(0, iobTotals.constructed().size)
+                }
+            }
+        }
+        verify(insulin, never()).iobCalcForTreatment(anyObject(), anyLong(), anyDouble())
+    }
+
+    @Test
+    fun accumulatedResultEqualsSumOfSingleResults() {
+        val accumulated = IobTotal(now)
+        val summed = IobTotal(now)
+        for (tb in temporaryBasals) {
+            tb.iobCalc(now, validProfile, insulin, accumulated)
+            summed.plus(tb.iobCalc(now, validProfile, insulin))
+        }
+        Assert.assertEquals(summed.basaliob, accumulated.basaliob, 0.000001)
+        Assert.assertEquals(summed.activity, accumulated.activity, 0.000001)
+        Assert.assertEquals(summed.netbasalinsulin, accumulated.netbasalinsulin, 0.000001)
+        Assert.assertEquals(summed.hightempinsulin, accumulated.hightempinsulin, 0.000001)
+        Assert.assertEquals(summed.netInsulin, accumulated.netInsulin, 0.000001)
+        Assert.assertTrue(accumulated.hightempinsulin > 0.0)
+    }
+}
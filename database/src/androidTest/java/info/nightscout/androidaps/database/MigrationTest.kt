@@ -0,0 +1,58 @@
+package info.nightscout.androidaps.database
+
+import androidx.room.testing.MigrationTestHelper
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.Assert
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class MigrationTest {
+
+    @get:Rule
+    val helper = MigrationTestHelper(InstrumentationRegistry.getInstrumentation(), AppDatabase::class.java)
+
+    private val databaseName = "migration-test"
+    private val module = DatabaseModule()
+
+    private val start = 1_600_000_000_000L
+    private val halfHour = 30 * 60 * 1000L
+
+    @Test
+    fun migrate21To23() {
+        helper.createDatabase(databaseName, 21).apply {
+            execSQL(
+                "INSERT INTO `$TABLE_TEMPORARY_BASALS` (`id`, `version`, `dateCreated`, `isValid`, `referenceId`, `timestamp`, `utcOffset`, `type`, `isAbsolute`, `rate`, `duration`) " +
+                    "VALUES (1, 0, $start, 1, NULL, $start, 0, 'NORMAL', 0, 150.0, $halfHour)"
+            )
+            // unknown duration
+            execSQL(
+                "INSERT INTO `$TABLE_THERAPY_EVENTS` (`id`, `version`, `dateCreated`, `isValid`, `referenceId`, `timestamp`, `utcOffset`, `duration`, `type`, `glucoseUnit`) " +
+                    "VALUES (1, 0, $start, 1, NULL, $start, 0, ${Long.MAX_VALUE}, 'NOTE', 'MGDL')"
+            )
+            close()
+        }
+
+        helper.runMigrationsAndValidate(databaseName, 22, true, module.migration21to22).apply {
+            query("SELECT `endTimestamp` FROM `$TABLE_TEMPORARY_BASALS` WHERE `id` = 1").use { cursor ->
+                Assert.assertTrue(cursor.moveToFirst())
+                Assert.assertEquals(start + halfHour, cursor.getLong(0))
+            }
+            query("SELECT `endTimestamp` FROM `$TABLE_THERAPY_EVENTS` WHERE `id` = 1").use { cursor ->
+                Assert.assertTrue(cursor.moveToFirst())
+                Assert.assertEquals(Long.MAX_VALUE, cursor.getLong(0))
+            }
+            close()
+        }
+
+        helper.runMigrationsAndValidate(databaseName, 23, true, module.migration22to23).apply {
+            query("SELECT COUNT(*) FROM `$TABLE_HOURLY_TOTALS`").use { cursor ->
+                Assert.assertTrue(cursor.moveToFirst())
+                Assert.assertEquals(0, cursor.getInt(0))
+            }
+            close()
+        }
+    }
+}
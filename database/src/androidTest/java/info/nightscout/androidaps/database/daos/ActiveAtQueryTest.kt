@@ -0,0 +1,118 @@
+package info.nightscout.androidaps.database.daos
+
+import android.content.Context
+import androidx.room.Room
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import info.nightscout.androidaps.database.AppDatabase
+import info.nightscout.androidaps.database.TABLE_CARBS
+import info.nightscout.androidaps.database.TABLE_TEMPORARY_BASALS
+import info.nightscout.androidaps.database.entities.Carbs
+import info.nightscout.androidaps.database.entities.TemporaryBasal
+import org.junit.After
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class ActiveAtQueryTest {
+
+    private lateinit var database: AppDatabase
+
+    private val start = 1_500_000_000_000L
+    private val years = 3
+    private val fiveMinutes = 5 * 60 * 1000L
+    private val halfHour = 30 * 60 * 1000L
+    private val day = 24 * 60 * 60 * 1000L
+    private val end = start + years * 365 * day
+
+    // queries as they were before endTimestamp
+    private val tbrActiveAtByExpression =
+        "SELECT id FROM $TABLE_TEMPORARY_BASALS WHERE timestamp <= ? AND (timestamp + duration) > ? AND referenceId IS NULL AND isValid = 1 ORDER BY timestamp DESC LIMIT 1"
+    private val tbrBetweenByExpression =
+        "SELECT id FROM $TABLE_TEMPORARY_BASALS WHERE timestamp <= ? AND (timestamp + duration) > ? AND referenceId IS NULL AND isValid = 1 ORDER BY timestamp DESC"
+    private val carbsExpandableByExpression =
+        "SELECT id FROM $TABLE_CARBS WHERE isValid = 1 AND timestamp + duration > ? AND timestamp <= ? AND referenceId IS NULL ORDER BY id DESC"
+
+    @Before
+    fun setUp() {
+        val context = ApplicationProvider.getApplicationContext<Context>()
+        database = Room.inMemoryDatabaseBuilder(context, AppDatabase::class.java).build()
+    }
+
+    @After
+    fun tearDown() {
+        database.close()
+    }
+
+    /**
+     * Loop running for years: 20 min TBR every half an hour with gaps between them,
+     * every 10th TBR edited, 5 meals a day, some of them extended
+     */
+    private fun fillHistory() {
+        database.runInTransaction {
+            var timestamp = start
+            var i = 0
+            while (timestamp < end) {
+                val tbr = TemporaryBasal(timestamp = timestamp, duration = 20 * 60 * 1000L, rate = 150.0, isAbsolute = false, type = TemporaryBasal.Type.NORMAL)
+                tbr.id = database.temporaryBasalDao.insert(tbr)
+                if (i % 10 == 0) database.temporaryBasalDao.insert(tbr.copy(id = 0, referenceId = tbr.id, rate = 120.0))
+                if (i % 10 == 3) database.carbsDao.insert(Carbs(timestamp = timestamp, duration = if (i % 20 == 3) 2 * 60 * 60 * 1000L else 0, amount = 30.0))
+                timestamp += halfHour
+                i++
+            }
+        }
+    }
+
+    private fun ids(sql: String, vararg args: Any): List<Long> =
+        database.query(sql, args).use { cursor -> List(cursor.count) { cursor.moveToPosition(it); cursor.getLong(0) } }
+
+    private fun queryPlan(sql: String, vararg args: Any): String =
+        database.query("EXPLAIN QUERY PLAN $sql", args).use { cursor ->
+            List(cursor.count) { cursor.moveToPosition(it); cursor.getString(cursor.getColumnIndexOrThrow("detail")) }.joinToString()
+        }
+
+    @Test
+    fun endTimestampIsMaintainedOnUpdate() {
+        val tbr = TemporaryBasal(timestamp = start, duration = halfHour, rate = 150.0, isAbsolute = false, type = TemporaryBasal.Type.NORMAL)
+        database.temporaryBasalDao.insertNewEntry(tbr)
+        Assert.assertEquals(tbr.id, database.temporaryBasalDao.getTemporaryBasalActiveAt(start + halfHour - 1).blockingGet()?.id)
+
+        // cut by end of TBR
+        tbr.duration = fiveMinutes
+        database.temporaryBasalDao.updateExistingEntry(tbr)
+        Assert.assertNull(database.temporaryBasalDao.getTemporaryBasalActiveAt(start + fiveMinutes).blockingGet())
+        Assert.assertEquals(start + fiveMinutes, database.temporaryBasalDao.findById(tbr.id)?.endTimestamp)
+
+        // unknown duration doesn't overflow
+        val carbs = Carbs(timestamp = start, duration = Long.MAX_VALUE, amount = 10.0)
+        database.carbsDao.insertNewEntry(carbs)
+        Assert.assertEquals(Long.MAX_VALUE, database.carbsDao.findById(carbs.id)?.endTimestamp)
+        Assert.assertEquals(listOf(carbs.id), database.carbsDao.getCarbsFromTimeToTimeExpandable(end, end).blockingGet().map { it.id })
+    }
+
+    @Test
+    fun activeAtQueriesAreIndexBounded() {
+        fillHistory()
+
+        val now = end - 1
+        val plan = queryPlan("SELECT id FROM $TABLE_TEMPORARY_BASALS WHERE endTimestamp > ? AND timestamp <= ? AND referenceId IS NULL AND isValid = 1 ORDER BY timestamp DESC LIMIT 1", now, now)
+        Assert.assertTrue(plan, plan.contains("index_temporaryBasals_referenceId_endTimestamp_timestamp"))
+
+        // autosens and IOB calculation walk back over the last day in 5 min steps
+        val steps = (0 until 288).map { now - it * fiveMinutes }
+        val expected = steps.map { ids(tbrActiveAtByExpression, it, it).firstOrNull() }
+        val found = steps.map { database.temporaryBasalDao.getTemporaryBasalActiveAt(it).blockingGet()?.id }
+        Assert.assertEquals(expected, found)
+        Assert.assertTrue(found.any { it == null })
+        Assert.assertEquals(
+            ids(tbrBetweenByExpression, now, now - day),
+            database.temporaryBasalDao.getTemporaryBasalActiveBetweenTimeAndTime(now - day, now).blockingGet().map { it.id }
+        )
+        Assert.assertEquals(
+            ids(carbsExpandableByExpression, now - day, now),
+            database.carbsDao.getCarbsFromTimeToTimeExpandable(now - day, now).blockingGet().map { it.id }
+        )
+    }
+}
@@ -0,0 +1,92 @@
+package info.nightscout.androidaps.database.daos
+
+import android.content.Context
+import androidx.room.Room
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import info.nightscout.androidaps.database.AppDatabase
+import info.nightscout.androidaps.database.AppRepository
+import info.nightscout.androidaps.database.entities.Bolus
+import info.nightscout.androidaps.database.entities.GlucoseValue
+import info.nightscout.androidaps.database.entities.HourlyTotal
+import info.nightscout.androidaps.database.transactions.InsertGlucoseValueTransaction
+import info.nightscout.androidaps.database.transactions.InsertOrUpdateBolusTransaction
+import org.junit.After
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class HourlyTotalDaoTest {
+
+    private lateinit var database: AppDatabase
+    private lateinit var repository: AppRepository
+
+    private val start = 1_550_000_000_000L
+    private val hour = 60 * 60 * 1000L
+
+    @Before
+    fun setUp() {
+        val context = ApplicationProvider.getApplicationContext<Context>()
+        database = Room.inMemoryDatabaseBuilder(context, AppDatabase::class.java).build()
+        repository = AppRepository(database)
+    }
+
+    @After
+    fun tearDown() {
+        database.close()
+    }
+
+    private fun storeDay(version: Long = repository.getHourlyTotalsVersion().blockingGet()): Boolean =
+        repository.storeHourlyTotals(List(24) { HourlyTotal(timestamp = start + it * hour, basalAmount = 1.0) }, version).blockingGet()
+
+    private fun storedHours(): List<Long> =
+        repository.getHourlyTotals(start, start + 24 * hour).blockingGet().map { it.timestamp }
+
+    @Test
+    fun changedInsulinDropsAffectedHours() {
+        Assert.assertTrue(storeDay())
+
+        repository.runTransaction(InsertOrUpdateBolusTransaction(Bolus(timestamp = start + 10 * hour + 1, amount = 1.0, type = Bolus.Type.NORMAL))).blockingAwait()
+
+        // hour containing the bolus and all later ones are calculated again
+        Assert.assertEquals(List(10) { start + it * hour }, storedHours())
+    }
+
+    @Test
+    fun movedInsulinDropsHoursAtOriginalTime() {
+        val bolus = Bolus(timestamp = start + 2 * hour + 1, amount = 1.0, type = Bolus.Type.NORMAL)
+        repository.runTransaction(InsertOrUpdateBolusTransaction(bolus)).blockingAwait()
+        Assert.assertTrue(storeDay())
+
+        // bolus moved to later hour, e.g. sync of temporary id with pump history
+        repository.runTransaction(InsertOrUpdateBolusTransaction(bolus.copy(timestamp = start + 12 * hour + 1))).blockingAwait()
+
+        Assert.assertEquals(List(2) { start + it * hour }, storedHours())
+    }
+
+    @Test
+    fun otherRecordsDoNotDropHours() {
+        Assert.assertTrue(storeDay())
+
+        repository.runTransaction(
+            InsertGlucoseValueTransaction(
+                GlucoseValue(timestamp = start + hour, raw = null, value = 100.0, noise = null, trendArrow = GlucoseValue.TrendArrow.FLAT, sourceSensor = GlucoseValue.SourceSensor.DEXCOM_G6_NATIVE)
+            )
+        ).blockingAwait()
+
+        Assert.assertEquals(24, storedHours().size)
+    }
+
+    @Test
+    fun hoursCalculatedFromOutdatedRecordsAreNotStored() {
+        val version = repository.getHourlyTotalsVersion().blockingGet()
+        // bolus committed while hours were being calculated
+        repository.runTransaction(InsertOrUpdateBolusTransaction(Bolus(timestamp = start + 10 * hour, amount = 1.0, type = Bolus.Type.NORMAL))).blockingAwait()
+
+        Assert.assertFalse(storeDay(version))
+        Assert.assertTrue(storedHours().isEmpty())
+        Assert.assertTrue(storeDay())
+    }
+}
@@ -0,0 +1,99 @@
+package info.nightscout.androidaps.database.daos
+
+import android.content.Context
+import androidx.room.Room
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import info.nightscout.androidaps.database.AppDatabase
+import info.nightscout.androidaps.database.CustomIndexes
+import info.nightscout.androidaps.database.TABLE_GLUCOSE_VALUES
+import info.nightscout.androidaps.database.entities.Bolus
+import info.nightscout.androidaps.database.entities.GlucoseValue
+import org.junit.After
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class LiveRowQueryTest {
+
+    private lateinit var database: AppDatabase
+
+    private val start = 1_550_000_000_000L
+    private val years = 2
+    private val fiveMinutes = 5 * 60 * 1000L
+    private val day = 24 * 60 * 60 * 1000L
+    private val end = start + years * 365 * day
+
+    @Before
+    fun setUp() {
+        val context = ApplicationProvider.getApplicationContext<Context>()
+        // without callback, custom indexes are created by test
+        database = Room.inMemoryDatabaseBuilder(context, AppDatabase::class.java).build()
+    }
+
+    @After
+    fun tearDown() {
+        database.close()
+    }
+
+    /**
+     * Glucose value every 5 min with every 20th one edited when NS id arrived,
+     * SMB every 15 min with every 4th one edited
+     */
+    private fun fillHistory() {
+        database.runInTransaction {
+            var timestamp = start
+            var i = 0
+            while (timestamp < end) {
+                val gv = GlucoseValue(timestamp = timestamp, raw = null, value = 100.0 + i % 80, noise = null, trendArrow = GlucoseValue.TrendArrow.FLAT, sourceSensor = GlucoseValue.SourceSensor.DEXCOM_G6_NATIVE)
+                gv.id = database.glucoseValueDao.insert(gv)
+                if (i % 20 == 0) database.glucoseValueDao.insert(gv.copy(id = 0, referenceId = gv.id))
+                if (i % 3 == 0) {
+                    val bolus = Bolus(timestamp = timestamp, amount = 0.1, type = Bolus.Type.SMB)
+                    bolus.id = database.bolusDao.insert(bolus)
+                    if (i % 12 == 0) database.bolusDao.insert(bolus.copy(id = 0, referenceId = bolus.id, amount = 0.2))
+                }
+                timestamp += fiveMinutes
+                i++
+            }
+        }
+    }
+
+    private fun queryPlan(sql: String, vararg args: Any): String =
+        database.query("EXPLAIN QUERY PLAN $sql", args).use { cursor ->
+            List(cursor.count) { cursor.moveToPosition(it); cursor.getString(cursor.getColumnIndexOrThrow("detail")) }.joinToString()
+        }
+
+    /**
+     * Reads issued by every loop run: last day of glucose values and boluses, last bolus
+     */
+    private fun hotReads(): List<Any?> {
+        val now = end - 1
+        return listOf(
+            database.glucoseValueDao.compatGetBgReadingsDataFromTime(now - day).blockingGet().map { it.id },
+            database.glucoseValueDao.compatGetBgReadingsDataFromTime(now - day, now).blockingGet().map { it.id },
+            database.bolusDao.getBolusesFromTime(now - day).blockingGet().map { it.id },
+            database.bolusDao.getLastBolusRecord()?.id
+        )
+    }
+
+    @Test
+    fun liveRowsAreReadByPartialIndex() {
+        fillHistory()
+        val expected = hotReads()
+
+        CustomIndexes.create(database.openHelper.writableDatabase)
+        val plan = queryPlan("SELECT * FROM $TABLE_GLUCOSE_VALUES WHERE timestamp >= ? AND isValid = 1 AND referenceId IS NULL AND value >= 39 ORDER BY timestamp ASC", end - day)
+        Assert.assertTrue(plan, plan.contains("index_${TABLE_GLUCOSE_VALUES}_live_timestamp"))
+        val result = hotReads()
+
+        Assert.assertEquals(expected, result)
+        Assert.assertEquals(288, (result[0] as List<*>).size)
+
+        // must not fail Room schema validation on next migration
+        CustomIndexes.drop(database.openHelper.writableDatabase)
+        Assert.assertFalse(queryPlan("SELECT * FROM $TABLE_GLUCOSE_VALUES WHERE timestamp >= ? AND referenceId IS NULL", end - day).contains("live_timestamp"))
+    }
+}
@@ -0,0 +1,115 @@
+package info.nightscout.androidaps.database.transactions
+
+import android.content.Context
+import androidx.room.Room
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import info.nightscout.androidaps.database.AppDatabase
+import info.nightscout.androidaps.database.AppRepository
+import info.nightscout.androidaps.database.TABLE_GLUCOSE_VALUES
+import info.nightscout.androidaps.database.entities.GlucoseValue
+import info.nightscout.androidaps.database.interfaces.DBEntry
+import org.junit.After
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.Collections
+import java.util.concurrent.Executor
+
+@RunWith(AndroidJUnit4::class)
+class CgmSourceTransactionTest {
+
+    private lateinit var database: AppDatabase
+    private lateinit var repository: AppRepository
+
+    private val start = 1_600_000_000_000L
+    private val twoWeeks = 14 * 288
+
+    // SQL of every statement executed
+    private val statements: MutableList<String> = Collections.synchronizedList(ArrayList())
+
+    private fun glucoseValueStatements(type: String) = statements.count { it.startsWith(type, ignoreCase = true) && it.contains(TABLE_GLUCOSE_VALUES) }
+
+    private fun gv(i: Int, value: Double = 100.0 + i % 80, nsId: String? = null, sensor: GlucoseValue.SourceSensor = GlucoseValue.SourceSensor.DEXCOM_G6_NATIVE) =
+        CgmSourceTransaction.TransactionGlucoseValue(
+            timestamp = start + i * 5 * 60 * 1000L, value = value, raw = null, noise = null,
+            trendArrow = GlucoseValue.TrendArrow.FLAT, nightscoutId = nsId, sourceSensor = sensor
+        )
+
+    @Before
+    fun setUp() {
+        val context = ApplicationProvider.getApplicationContext<Context>()
+        database = Room.inMemoryDatabaseBuilder(context, AppDatabase::class.java)
+            .setQueryCallback({ sql, _ -> statements.add(sql) }, Executor { it.run() })
+            .build()
+        repository = AppRepository(database)
+    }
+
+    @After
+    fun tearDown() {
+        database.close()
+    }
+
+    @Test
+    fun insertsNewAndUpdatesExisting() {
+        repository.runTransactionForResult(CgmSourceTransaction(listOf(gv(0), gv(1), gv(2, sensor = GlucoseValue.SourceSensor.LIBRE_1_BLUE)), emptyList(), null)).blockingGet()
+
+        val result = repository.runTransactionForResult(
+            CgmSourceTransaction(listOf(gv(0), gv(1, value = 180.0), gv(2), gv(3), gv(3, value = 150.0)), emptyList(), null)
+        ).blockingGet()
+
+        // gv(2) is from another sensor, second gv(3) updates first one from the same batch
+        Assert.assertEquals(listOf(start + 10 * 60 * 1000L, start + 15 * 60 * 1000L), result.inserted.map { it.timestamp })
+        Assert.assertTrue(result.inserted.all { it.id != 0L })
+        Assert.assertEquals(listOf(180.0, 150.0), result.updated.map { it.value })
+        val current = database.glucoseValueDao.findByTimestampRange(start, start + 15 * 60 * 1000L)
+        Assert.assertEquals(5, current.size)
+        Assert.assertEquals(150.0, current.single { it.timestamp == start + 15 * 60 * 1000L }.value, 0.0)
+    }
+
+    @Test
+    fun syncerOnlyAddsNsId() {
+        repository.runTransactionForResult(CgmSourceTransaction(listOf(gv(0), gv(1)), emptyList(), null)).blockingGet()
+
+        val result = repository.runTransactionForResult(
+            CgmSourceTransaction(listOf(gv(0, nsId = "ns0"), gv(1, value = 200.0)), emptyList(), null, syncer = true)
+        ).blockingGet()
+
+        Assert.assertTrue(result.inserted.isEmpty())
+        Assert.assertEquals(listOf("ns0"), result.updated.map { it.interfaceIDs.nightscoutId })
+        Assert.assertEquals(101.0, database.glucoseValueDao.findByTimestampAndSensor(start + 5 * 60 * 1000L, GlucoseValue.SourceSensor.DEXCOM_G6_NATIVE)?.value ?: 0.0, 0.0)
+    }
+
+    @Test
+    fun oneChangeNotificationForBatch() {
+        val notifications = mutableListOf<List<DBEntry>>()
+        val disposable = repository.changeObservable().subscribe { notifications.add(it) }
+        Thread.sleep(100)
+
+        repository.runTransactionForResult(CgmSourceTransaction(List(500) { gv(it) }, emptyList(), null)).blockingGet()
+        Thread.sleep(100)
+        disposable.dispose()
+
+        Assert.assertEquals(1, notifications.size)
+        Assert.assertEquals(500, notifications[0].size)
+    }
+
+    @Test
+    fun bulkBackfillLooksUpStoredValuesOnce() {
+        val backfill = List(twoWeeks) { gv(it) }
+
+        val result = repository.runTransactionForResult(CgmSourceTransaction(backfill, emptyList(), null)).blockingGet()
+        Assert.assertEquals(twoWeeks, result.inserted.size)
+        // row by row lookup would need a query per value
+        Assert.assertEquals(1, glucoseValueStatements("SELECT"))
+        Assert.assertEquals(twoWeeks, glucoseValueStatements("INSERT"))
+
+        // repeated backfill finds everything in place
+        statements.clear()
+        val repeated = repository.runTransactionForResult(CgmSourceTransaction(backfill, emptyList(), null)).blockingGet()
+        Assert.assertTrue(repeated.all().isEmpty())
+        Assert.assertEquals(1, glucoseValueStatements("SELECT"))
+        Assert.assertEquals(0, glucoseValueStatements("INSERT") + glucoseValueStatements("UPDATE"))
+    }
+}
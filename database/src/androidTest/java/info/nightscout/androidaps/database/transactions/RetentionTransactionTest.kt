@@ -0,0 +1,139 @@
+package info.nightscout.androidaps.database.transactions
+
+import android.content.Context
+import androidx.room.Room
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import info.nightscout.androidaps.database.AppDatabase
+import info.nightscout.androidaps.database.AppRepository
+import info.nightscout.androidaps.database.TABLE_BOLUSES
+import info.nightscout.androidaps.database.TABLE_DEVICE_STATUS
+import info.nightscout.androidaps.database.TABLE_GLUCOSE_VALUES
+import info.nightscout.androidaps.database.data.RetentionPolicy
+import info.nightscout.androidaps.database.entities.Bolus
+import info.nightscout.androidaps.database.entities.DeviceStatus
+import info.nightscout.androidaps.database.entities.GlucoseValue
+import org.junit.After
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class RetentionTransactionTest {
+
+    private lateinit var database: AppDatabase
+    private lateinit var repository: AppRepository
+
+    private val start = 1_550_000_000_000L
+    private val fiveMinutes = 5 * 60 * 1000L
+    private val day = 24 * 60 * 60 * 1000L
+    private val days = 60
+    private val end = start + days * day
+
+    @Before
+    fun setUp() {
+        val context = ApplicationProvider.getApplicationContext<Context>()
+        database = Room.inMemoryDatabaseBuilder(context, AppDatabase::class.java).build()
+        repository = AppRepository(database)
+    }
+
+    @After
+    fun tearDown() {
+        database.close()
+    }
+
+    private fun gv(timestamp: Long) =
+        GlucoseValue(timestamp = timestamp, raw = null, value = 100.0, noise = null, trendArrow = GlucoseValue.TrendArrow.FLAT, sourceSensor = GlucoseValue.SourceSensor.DEXCOM_G6_NATIVE)
+
+    /**
+     * Glucose value every 5 min with every 10th one edited, device status every 5 min, bolus every hour edited
+     */
+    private fun fillHistory() {
+        database.runInTransaction {
+            var timestamp = start
+            var i = 0
+            while (timestamp < end) {
+                val gv = gv(timestamp)
+                database.glucoseValueDao.insertNewEntry(gv)
+                if (i % 10 == 0) database.glucoseValueDao.updateExistingEntry(gv.also { it.value = 110.0 })
+                database.deviceStatusDao.insert(DeviceStatus(timestamp = timestamp, uploaderBattery = 50))
+                if (i % 12 == 0) {
+                    val bolus = Bolus(timestamp = timestamp, amount = 1.0, type = Bolus.Type.NORMAL)
+                    database.bolusDao.insertNewEntry(bolus)
+                    database.bolusDao.updateExistingEntry(bolus.also { it.amount = 1.5 })
+                }
+                timestamp += fiveMinutes
+                i++
+            }
+        }
+    }
+
+    private fun count(table: String, where: String = "1"): Long =
+        database.query("SELECT COUNT(*) FROM $table WHERE $where", null).use { it.moveToFirst(); it.getLong(0) }
+
+    private fun pageSize(): Long =
+        database.query("PRAGMA page_size", null).use { it.moveToFirst(); it.getLong(0) }
+
+    private fun runToEnd(policy: RetentionPolicy): Int {
+        var deleted = 0
+        do {
+            val batch = repository.runTransactionForResult(RetentionTransaction(policy, 500)).blockingGet()
+            Assert.assertTrue(batch <= 500)
+            deleted += batch
+        } while (batch > 0)
+        return deleted
+    }
+
+    @Test
+    fun deletesOnlyRecordsOutOfRetention() {
+        fillHistory()
+        val olderThan = end - 30 * day
+        val gvsBefore = count(TABLE_GLUCOSE_VALUES)
+
+        val deleted = runToEnd(RetentionPolicy(glucoseValuesOlderThan = olderThan, historicOlderThan = olderThan))
+
+        Assert.assertEquals(0, count(TABLE_GLUCOSE_VALUES, "timestamp < $olderThan"))
+        Assert.assertEquals(0, count(TABLE_BOLUSES, "timestamp < $olderThan AND referenceId IS NOT NULL"))
+        // current boluses and device statuses are not limited by policy
+        Assert.assertEquals(days * 24L, count(TABLE_BOLUSES, "referenceId IS NULL"))
+        Assert.assertEquals(days * 288L, count(TABLE_DEVICE_STATUS))
+        Assert.assertEquals(gvsBefore - count(TABLE_GLUCOSE_VALUES) + days * 24 / 2, deleted.toLong())
+    }
+
+    @Test
+    fun keepsRecordsWaitingForUpload() {
+        fillHistory()
+        // uploaded up to a value which was not edited
+        val lastSyncedGv = database.glucoseValueDao.findByTimestampRange(start + 10 * day + fiveMinutes, start + 10 * day + fiveMinutes).single().id
+        val lastSyncedDs = 100L
+
+        runToEnd(
+            RetentionPolicy(
+                glucoseValuesOlderThan = end, deviceStatusesOlderThan = end,
+                syncedIds = mapOf(TABLE_GLUCOSE_VALUES to lastSyncedGv, TABLE_DEVICE_STATUS to lastSyncedDs)
+            )
+        )
+
+        Assert.assertEquals(0, count(TABLE_GLUCOSE_VALUES, "id <= $lastSyncedGv"))
+        Assert.assertEquals(days * 288L - (10 * 288 + 2), count(TABLE_GLUCOSE_VALUES, "referenceId IS NULL"))
+        Assert.assertEquals(days * 288L - lastSyncedDs, count(TABLE_DEVICE_STATUS))
+    }
+
+    @Test
+    fun compactReclaimsSpace() {
+        fillHistory()
+        Assert.assertEquals(0L, repository.compact(Int.MAX_VALUE))
+        repository.enableIncrementalVacuum()
+        Assert.assertTrue(repository.isIncrementalVacuumEnabled())
+        val sizeBefore = repository.databaseSize()
+
+        runToEnd(RetentionPolicy(glucoseValuesOlderThan = end - day, deviceStatusesOlderThan = end - day, historicOlderThan = end - day))
+        // bounded step
+        Assert.assertEquals(16L * pageSize(), repository.compact(16))
+        val reclaimed = repository.compact(Int.MAX_VALUE) + 16L * pageSize()
+
+        Assert.assertTrue("reclaimed $reclaimed of $sizeBefore bytes", reclaimed > sizeBefore / 2)
+        Assert.assertTrue(repository.databaseSize() < sizeBefore / 2)
+    }
+}
@@ -6,14 +6,14 @@ import androidx.room.TypeConverters
 import info.nightscout.androidaps.database.daos.*
 import info.nightscout.androidaps.database.entities.*
 
-const val DATABASE_VERSION = 21
+const val DATABASE_VERSION = 23
 
 @Database(version = DATABASE_VERSION,
     entities = [APSResult::class, Bolus::class, BolusCalculatorResult::class, Carbs::class,
         EffectiveProfileSwitch::class, ExtendedBolus::class, GlucoseValue::class, ProfileSwitch::class,
         TemporaryBasal::class, TemporaryTarget::class, TherapyEvent::class, TotalDailyDose::class, APSResultLink::class,
         MultiwaveBolusLink::class, PreferenceChange::class, VersionChange::class, UserEntry::class,
-        Food::class, DeviceStatus::class, OfflineEvent::class],
+        Food::class, DeviceStatus::class, OfflineEvent::class, HourlyTotal::class],
     exportSchema = true)
 @TypeConverters(Converters::class)
 internal abstract class AppDatabase : RoomDatabase() {
@@ -58,4 +58,6 @@ internal abstract class AppDatabase : RoomDatabase() {
 
     abstract val offlineEventDao: OfflineEventDao
 
+    abstract val hourlyTotalDao: HourlyTotalDao
+
 }
\ No newline at end of file
@@ -1,17 +1,24 @@
 package info.nightscout.androidaps.database
 
+import androidx.sqlite.db.SupportSQLiteDatabase
 import info.nightscout.androidaps.annotations.OpenForTesting
+import info.nightscout.androidaps.database.data.DataChanges
 import info.nightscout.androidaps.database.data.NewEntries
 import info.nightscout.androidaps.database.entities.*
 import info.nightscout.androidaps.database.interfaces.DBEntry
+import info.nightscout.androidaps.database.interfaces.TraceableDBEntry
 import info.nightscout.androidaps.database.transactions.Transaction
 import io.reactivex.rxjava3.core.Completable
 import io.reactivex.rxjava3.core.Maybe
 import io.reactivex.rxjava3.core.Observable
+import io.reactivex.rxjava3.core.Scheduler
 import io.reactivex.rxjava3.core.Single
 import io.reactivex.rxjava3.schedulers.Schedulers
 import io.reactivex.rxjava3.subjects.PublishSubject
+import java.io.File
 import java.util.concurrent.Callable
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
 import javax.inject.Inject
 import javax.inject.Singleton
 import kotlin.math.roundToInt
@@ -22,9 +29,17 @@ import kotlin.math.roundToInt
 ) {
 
     private val changeSubject = PublishSubject.create<List<DBEntry>>()
+    private val hourlyTotalsVersion = AtomicLong()
 
     fun changeObservable(): Observable<List<DBEntry>> = changeSubject.subscribeOn(Schedulers.io())
 
+    /**
+     * Changes of a transaction are emitted immediately, changes of transactions following within window
+     * are emitted together when the window closes
+     */
+    fun changeFeed(window: Long, unit: TimeUnit = TimeUnit.MILLISECONDS, scheduler: Scheduler = Schedulers.computation()): Observable<DataChanges> =
+        DataChanges.coalesce(changeSubject, window, unit, scheduler)
+
     /**
      * Executes a transaction ignoring its result
      * Runs on IO scheduler
@@ -35,6 +50,7 @@ import kotlin.math.roundToInt
             database.runInTransaction {
                 transaction.database = DelegatedAppDatabase(changes, database)
                 transaction.run()
+                invalidateHourlyTotals(changes)
             }
         }.subscribeOn(Schedulers.io()).doOnComplete {
             changeSubject.onNext(changes)
@@ -50,15 +66,85 @@ import kotlin.math.roundToInt
         return Single.fromCallable {
             database.runInTransaction(Callable<T> {
                 transaction.database = DelegatedAppDatabase(changes, database)
-                transaction.run()
+                transaction.run().also { invalidateHourlyTotals(changes) }
             })
         }.subscribeOn(Schedulers.io()).doOnSuccess {
             changeSubject.onNext(changes)
         }
     }
 
+    /**
+     * Hourly totals are derived from insulin, carbs and profile records.
+     * Drop every hour which may contain a changed record, they are calculated again on next read.
+     */
+    private fun invalidateHourlyTotals(changes: List<DBEntry>) {
+        changes.mapNotNull {
+            when (it) {
+                is Bolus                  -> it.timestamp
+                is Carbs                  -> it.timestamp
+                is TemporaryBasal         -> it.timestamp
+                is ExtendedBolus          -> it.timestamp
+                is ProfileSwitch          -> it.timestamp
+                is EffectiveProfileSwitch -> it.timestamp
+                else                      -> null
+            }
+        }.minOrNull()?.let { oldest ->
+            hourlyTotalsVersion.incrementAndGet()
+            database.hourlyTotalDao.deleteNewerThan(oldest - HOUR_IN_MILLISECONDS)
+        }
+    }
+
     fun clearDatabases() = database.clearAllTables()
 
+    /**
+     * @return size of database file in bytes without free pages
+     */
+    fun databaseSize(): Long =
+        database.openHelper.writableDatabase.run { (pragma("page_count") - pragma("freelist_count")) * pragma("page_size") }
+
+    /**
+     * @return size of database file in bytes including free pages
+     */
+    fun databaseFileSize(): Long =
+        database.openHelper.writableDatabase.run { pragma("page_count") * pragma("page_size") }
+
+    /**
+     * @return database file, null for in-memory database
+     */
+    fun databaseFile(): File? =
+        database.openHelper.writableDatabase.path?.let { File(it) }
+
+    fun isIncrementalVacuumEnabled(): Boolean =
+        database.openHelper.writableDatabase.pragma("auto_vacuum") == AUTO_VACUUM_INCREMENTAL
+
+    /**
+     * Switches database created without incremental auto vacuum to it.
+     * Needs one full VACUUM which writes a copy of whole database and blocks all other access until finished.
+     * Must not be called from transaction.
+     */
+    fun enableIncrementalVacuum() =
+        database.openHelper.writableDatabase.run {
+            execSQL("PRAGMA auto_vacuum = $AUTO_VACUUM_INCREMENTAL")
+            execSQL("VACUUM")
+        }
+
+    /**
+     * Returns up to [pages] free pages left by deleted rows to file system.
+     * Does nothing before [enableIncrementalVacuum]. Must not be called from transaction.
+     *
+     * @return reclaimed bytes
+     */
+    fun compact(pages: Int): Long =
+        database.openHelper.writableDatabase.run {
+            if (pragma("auto_vacuum") != AUTO_VACUUM_INCREMENTAL) return 0L
+            val before = pragma("page_count")
+            query("PRAGMA incremental_vacuum($pages)").use { cursor -> while (cursor.moveToNext()) Unit }
+            (before - pragma("page_count")) * pragma("page_size")
+        }
+
+    private fun SupportSQLiteDatabase.pragma(name: String): Long =
+        query("PRAGMA $name").use { cursor -> if (cursor.moveToFirst()) cursor.getLong(0) else 0L }
+
     //BG READINGS -- only valid records
     fun compatGetBgReadingsDataFromTime(timestamp: Long, ascending: Boolean): Single<List<GlucoseValue>> =
         database.glucoseValueDao.compatGetBgReadingsDataFromTime(timestamp)
@@ -107,6 +193,14 @@ import kotlin.math.roundToInt
                 }
             }
 
+    /*
+     * returns up to limit Pairs of the next entities to sync and the "update" records, see getNextSyncElementGlucoseValue
+     */
+    fun getNextSyncElementsGlucoseValue(id: Long, limit: Int): Single<List<Pair<GlucoseValue, GlucoseValue>>> =
+        database.glucoseValueDao.getModifiedOrNewAfter(id, limit)
+            .map { pairWithCurrent(it, database.glucoseValueDao::findByIds) }
+            .subscribeOn(Schedulers.io())
+
     fun getBgReadingsCorrespondingLastHistoryRecord(lastId: Long): GlucoseValue? =
         database.glucoseValueDao.getLastHistoryRecord(lastId)
 
@@ -424,6 +518,11 @@ import kotlin.math.roundToInt
                 }
             }
 
+    fun getNextSyncElementsBolus(id: Long, limit: Int): Single<List<Pair<Bolus, Bolus>>> =
+        database.bolusDao.getModifiedOrNewAfterExclude(id, limit, Bolus.Type.PRIMING)
+            .map { pairWithCurrent(it, database.bolusDao::findByIds) }
+            .subscribeOn(Schedulers.io())
+
     fun getModifiedBolusesDataFromId(lastId: Long): Single<List<Bolus>> =
         database.bolusDao.getModifiedFrom(lastId)
             .subscribeOn(Schedulers.io())
@@ -513,6 +612,11 @@ import kotlin.math.roundToInt
                 }
             }
 
+    fun getNextSyncElementsCarbs(id: Long, limit: Int): Single<List<Pair<Carbs, Carbs>>> =
+        database.carbsDao.getModifiedOrNewAfter(id, limit)
+            .map { pairWithCurrent(it, database.carbsDao::findByIds) }
+            .subscribeOn(Schedulers.io())
+
     fun getModifiedCarbsDataFromId(lastId: Long): Single<List<Carbs>> =
         database.carbsDao.getModifiedFrom(lastId)
             .subscribeOn(Schedulers.io())
@@ -647,6 +751,10 @@ import kotlin.math.roundToInt
         database.deviceStatusDao.getNextModifiedOrNewAfter(id)
             .subscribeOn(Schedulers.io())
 
+    fun getNextSyncElementsDeviceStatus(id: Long, limit: Int): Single<List<DeviceStatus>> =
+        database.deviceStatusDao.getModifiedOrNewAfter(id, limit)
+            .subscribeOn(Schedulers.io())
+
     fun getModifiedDeviceStatusDataFromId(lastId: Long): Single<List<DeviceStatus>> =
         database.deviceStatusDao.getModifiedFrom(lastId)
             .subscribeOn(Schedulers.io())
@@ -775,6 +883,30 @@ import kotlin.math.roundToInt
     fun getOldestExtendedBolusRecord(): ExtendedBolus? =
         database.extendedBolusDao.getOldestRecord()
 
+    // HourlyTotal
+    fun getHourlyTotals(from: Long, to: Long): Single<List<HourlyTotal>> =
+        database.hourlyTotalDao.getFromTimeToTime(from, to)
+            .subscribeOn(Schedulers.io())
+
+    /**
+     * Version of records hourly totals are calculated from. Must be read before the records.
+     * Read in transaction so it is never taken while a transaction changing the records is not committed.
+     */
+    fun getHourlyTotalsVersion(): Single<Long> =
+        Single.fromCallable { database.runInTransaction(Callable { hourlyTotalsVersion.get() }) }
+            .subscribeOn(Schedulers.io())
+
+    /**
+     * Stores calculated hourly totals unless records they are calculated from changed since [version] was read
+     * @return true if stored
+     */
+    fun storeHourlyTotals(hourlyTotals: List<HourlyTotal>, version: Long): Single<Boolean> =
+        Single.fromCallable {
+            database.runInTransaction(Callable {
+                (version == hourlyTotalsVersion.get()).also { if (it) database.hourlyTotalDao.insertAll(hourlyTotals) }
+            })
+        }.subscribeOn(Schedulers.io())
+
     // TotalDailyDose
     fun getAllTotalDailyDoses(ascending: Boolean): Single<List<TotalDailyDose>> =
         database.totalDailyDoseDao.getAllTotalDailyDoses()
@@ -866,6 +998,27 @@ import kotlin.math.roundToInt
         totalDailyDoses = database.totalDailyDoseDao.getNewEntriesSince(since, until, limit, offset),
         versionChanges = database.versionChangeDao.getNewEntriesSince(since, until, limit, offset),
     )
+
+    /*
+     * Pairs every record with its current version. Historic records are resolved by one query for whole batch.
+     * Records without existing current version are dropped like in single record variants.
+     */
+    private fun <T : TraceableDBEntry> pairWithCurrent(elements: List<T>, findByIds: (List<Long>) -> List<T>): List<Pair<T, T>> {
+        val referenceIds = elements.mapNotNull { it.referenceId }.distinct()
+        val current = if (referenceIds.isEmpty()) emptyMap() else findByIds(referenceIds).associateBy { it.id }
+        return elements.mapNotNull { element ->
+            val referenceId = element.referenceId
+            if (referenceId == null) element to element
+            else current[referenceId]?.let { it to element }
+        }
+    }
+
+    companion object {
+
+        // PRAGMA auto_vacuum values: 0 none, 1 full, 2 incremental
+        private const val AUTO_VACUUM_INCREMENTAL = 2L
+        private const val HOUR_IN_MILLISECONDS = 60 * 60 * 1000L
+    }
 }
 
 @Suppress("USELESS_CAST")
@@ -0,0 +1,39 @@
+package info.nightscout.androidaps.database
+
+import androidx.sqlite.db.SupportSQLiteDatabase
+
+/**
+ * Indexes Room can't declare on entities.
+ *
+ * They are not part of Room schema, so they are created every time database is opened
+ * and must be dropped at the start of every migration to pass Room schema validation after upgrade.
+ */
+internal object CustomIndexes {
+
+    /**
+     * Tables of TraceableDBEntry keeping superseded versions next to current rows
+     */
+    private val traceableTables = listOf(
+        TABLE_BOLUSES, TABLE_BOLUS_CALCULATOR_RESULTS, TABLE_CARBS, TABLE_EFFECTIVE_PROFILE_SWITCHES, TABLE_EXTENDED_BOLUSES,
+        TABLE_GLUCOSE_VALUES, TABLE_OFFLINE_EVENTS, TABLE_PROFILE_SWITCHES, TABLE_TEMPORARY_BASALS, TABLE_TEMPORARY_TARGETS,
+        TABLE_THERAPY_EVENTS, TABLE_TOTAL_DAILY_DOSES
+    )
+
+    // (timestamp + duration) expression indexes replaced by endTimestamp column in version 22
+    private val legacy = listOf(TABLE_TEMPORARY_BASALS, TABLE_EXTENDED_BOLUSES, TABLE_TEMPORARY_TARGETS, TABLE_CARBS, TABLE_OFFLINE_EVENTS)
+
+    /**
+     * Current rows only. Leading referenceId makes "referenceId IS NULL AND timestamp ..." more selective
+     * for the planner than referenceId or isValid index alone, which would walk all live rows.
+     */
+    fun create(database: SupportSQLiteDatabase) {
+        traceableTables.forEach { table ->
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_${table}_live_timestamp` ON `$table` (`referenceId`, `timestamp`, `isValid`) WHERE `referenceId` IS NULL")
+        }
+    }
+
+    fun drop(database: SupportSQLiteDatabase) {
+        traceableTables.forEach { table -> database.execSQL("DROP INDEX IF EXISTS `index_${table}_live_timestamp`") }
+        legacy.forEach { table -> database.execSQL("DROP INDEX IF EXISTS `index_${table}_end`") }
+    }
+}
@@ -1,6 +1,7 @@
 package info.nightscout.androidaps.database
 
 import android.content.Context
+import androidx.annotation.VisibleForTesting
 import androidx.room.Room
 import androidx.room.RoomDatabase.Callback
 import androidx.room.migration.Migration
@@ -27,10 +28,12 @@ open class DatabaseModule {
  //           .addMigrations(migration7to8)
  //           .addMigrations(migration11to12)
             .addMigrations(migration20to21)
+            .addMigrations(migration21to22)
+            .addMigrations(migration22to23)
             .addCallback(object : Callback() {
                 override fun onOpen(db: SupportSQLiteDatabase) {
                     super.onOpen(db)
-                    createCustomIndexes(db)
+                    CustomIndexes.create(db)
                 }
             })
             .fallbackToDestructiveMigration()
@@ -39,22 +42,6 @@ open class DatabaseModule {
     @Qualifier
     annotation class DbFileName
 
-    private fun createCustomIndexes(database: SupportSQLiteDatabase) {
-        database.execSQL("CREATE INDEX IF NOT EXISTS `index_temporaryBasals_end` ON `temporaryBasals` (`timestamp` + `duration`)")
-        database.execSQL("CREATE INDEX IF NOT EXISTS `index_extendedBoluses_end` ON `extendedBoluses` (`timestamp` + `duration`)")
-        database.execSQL("CREATE INDEX IF NOT EXISTS `index_temporaryTargets_end` ON `temporaryTargets` (`timestamp` + `duration`)")
-        database.execSQL("CREATE INDEX IF NOT EXISTS `index_carbs_end` ON `carbs` (`timestamp` + `duration`)")
-        database.execSQL("CREATE INDEX IF NOT EXISTS `index_offlineEvents_end` ON `offlineEvents` (`timestamp` + `duration`)")
-    }
-
-    private fun dropCustomIndexes(database: SupportSQLiteDatabase) {
-        database.execSQL("DROP INDEX IF EXISTS `index_temporaryBasals_end`")
-        database.execSQL("DROP INDEX IF EXISTS `index_extendedBoluses_end`")
-        database.execSQL("DROP INDEX IF EXISTS `index_temporaryTargets_end`")
-        database.execSQL("DROP INDEX IF EXISTS `index_carbs_end`")
-        database.execSQL("DROP INDEX IF EXISTS `index_offlineEvents_end`")
-    }
-
     private val migration20to21 = object : Migration(20,21) {
         override fun migrate(database: SupportSQLiteDatabase) {
             database.execSQL("DROP TABLE IF EXISTS offlineEvents")
@@ -65,8 +52,32 @@ open class DatabaseModule {
             database.execSQL("CREATE INDEX IF NOT EXISTS `index_offlineEvents_referenceId` ON offlineEvents (`referenceId`)")
             database.execSQL("CREATE INDEX IF NOT EXISTS `index_offlineEvents_timestamp` ON offlineEvents (`timestamp`)")
             // Custom indexes must be dropped on migration to pass room schema checking after upgrade
-            dropCustomIndexes(database)
+            CustomIndexes.drop(database)
         }
     }
 
-}
\ No newline at end of file
+    @VisibleForTesting
+    internal val migration21to22 = object : Migration(21, 22) {
+        override fun migrate(database: SupportSQLiteDatabase) {
+            // Custom indexes must be dropped on migration, (timestamp + duration) ones are replaced by persisted endTimestamp
+            CustomIndexes.drop(database)
+            listOf(
+                TABLE_TEMPORARY_BASALS, TABLE_EXTENDED_BOLUSES, TABLE_TEMPORARY_TARGETS, TABLE_CARBS,
+                TABLE_OFFLINE_EVENTS, TABLE_PROFILE_SWITCHES, TABLE_THERAPY_EVENTS
+            ).forEach { table ->
+                database.execSQL("ALTER TABLE `$table` ADD COLUMN `endTimestamp` INTEGER NOT NULL DEFAULT 0")
+                // the same as DBEntryWithTimeAndDuration.intervalEnd, unknown duration is Long.MAX_VALUE
+                database.execSQL("UPDATE `$table` SET `endTimestamp` = CASE WHEN `duration` > ${Long.MAX_VALUE} - `timestamp` THEN ${Long.MAX_VALUE} ELSE `timestamp` + `duration` END")
+                database.execSQL("CREATE INDEX IF NOT EXISTS `index_${table}_referenceId_endTimestamp_timestamp` ON `$table` (`referenceId`, `endTimestamp`, `timestamp`)")
+            }
+        }
+    }
+
+    @VisibleForTesting
+    internal val migration22to23 = object : Migration(22, 23) {
+        override fun migrate(database: SupportSQLiteDatabase) {
+            CustomIndexes.drop(database)
+            database.execSQL("CREATE TABLE IF NOT EXISTS `$TABLE_HOURLY_TOTALS` (`timestamp` INTEGER NOT NULL, `basalAmount` REAL NOT NULL, `bolusAmount` REAL NOT NULL, `carbs` REAL NOT NULL, PRIMARY KEY(`timestamp`))")
+        }
+    }
+}
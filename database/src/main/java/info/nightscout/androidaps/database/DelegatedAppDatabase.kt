@@ -27,5 +27,7 @@ internal class DelegatedAppDatabase(val changes: MutableList<DBEntry>, val datab
     val foodDao: FoodDao = DelegatedFoodDao(changes, database.foodDao)
     val deviceStatusDao: DeviceStatusDao = DelegatedDeviceStatusDao(changes, database.deviceStatusDao)
     val offlineEventDao: OfflineEventDao = DelegatedOfflineEventDao(changes, database.offlineEventDao)
+    // derived data, changes are not reported
+    val hourlyTotalDao: HourlyTotalDao = database.hourlyTotalDao
     fun clearAllTables() = database.clearAllTables()
 }
\ No newline at end of file
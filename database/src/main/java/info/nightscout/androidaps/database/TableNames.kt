@@ -16,6 +16,7 @@ const val TABLE_TEMPORARY_BASALS = "temporaryBasals"
 const val TABLE_TEMPORARY_TARGETS = "temporaryTargets"
 const val TABLE_OFFLINE_EVENTS = "offlineEvents"
 const val TABLE_TOTAL_DAILY_DOSES = "totalDailyDoses"
+const val TABLE_HOURLY_TOTALS = "hourlyTotals"
 const val TABLE_THERAPY_EVENTS = "therapyEvents"
 const val TABLE_PREFERENCE_CHANGES = "preferenceChanges"
 const val TABLE_VERSION_CHANGES = "versionChanges"
@@ -3,6 +3,7 @@ package info.nightscout.androidaps.database.daos
 import androidx.room.Dao
 import androidx.room.Query
 import info.nightscout.androidaps.database.TABLE_APS_RESULTS
+import info.nightscout.androidaps.database.TABLE_APS_RESULT_LINKS
 import info.nightscout.androidaps.database.entities.APSResult
 
 @Suppress("FunctionName")
@@ -15,6 +16,12 @@ internal interface APSResultDao : TraceableDao<APSResult> {
     @Query("DELETE FROM $TABLE_APS_RESULTS")
     override fun deleteAllEntries()
 
+    @Query("DELETE FROM $TABLE_APS_RESULTS WHERE id IN (SELECT id FROM $TABLE_APS_RESULTS WHERE referenceId IS NOT NULL AND timestamp < :olderThan LIMIT :limit)")
+    fun deleteHistoricOlderThan(olderThan: Long, limit: Int): Int
+
+    @Query("DELETE FROM $TABLE_APS_RESULTS WHERE id IN (SELECT id FROM $TABLE_APS_RESULTS WHERE referenceId IS NULL AND timestamp < :olderThan AND id NOT IN (SELECT referenceId FROM $TABLE_APS_RESULTS WHERE referenceId IS NOT NULL) AND id NOT IN (SELECT apsResultId FROM $TABLE_APS_RESULT_LINKS) LIMIT :limit)")
+    fun deleteOlderThan(olderThan: Long, limit: Int): Int
+
     @Query("SELECT * FROM $TABLE_APS_RESULTS WHERE dateCreated > :since AND dateCreated <= :until LIMIT :limit OFFSET :offset")
     suspend fun getNewEntriesSince(since: Long, until: Long, limit: Int, offset: Int): List<APSResult>
 }
\ No newline at end of file
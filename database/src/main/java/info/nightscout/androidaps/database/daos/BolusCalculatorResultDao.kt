@@ -18,6 +18,9 @@ internal interface BolusCalculatorResultDao : TraceableDao<BolusCalculatorResult
 
     override fun deleteAllEntries()
 
+    @Query("DELETE FROM $TABLE_BOLUS_CALCULATOR_RESULTS WHERE id IN (SELECT id FROM $TABLE_BOLUS_CALCULATOR_RESULTS WHERE referenceId IS NOT NULL AND timestamp < :olderThan AND id <= :syncedId LIMIT :limit)")
+    fun deleteHistoricOlderThan(olderThan: Long, syncedId: Long, limit: Int): Int
+
     @Query("SELECT id FROM $TABLE_BOLUS_CALCULATOR_RESULTS ORDER BY id DESC limit 1")
     fun getLastId(): Maybe<Long>
 
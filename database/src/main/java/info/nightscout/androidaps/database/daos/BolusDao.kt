@@ -18,6 +18,9 @@ internal interface BolusDao : TraceableDao<Bolus> {
     @Query("DELETE FROM $TABLE_BOLUSES")
     override fun deleteAllEntries()
 
+    @Query("DELETE FROM $TABLE_BOLUSES WHERE id IN (SELECT id FROM $TABLE_BOLUSES WHERE referenceId IS NOT NULL AND timestamp < :olderThan AND id <= :syncedId LIMIT :limit)")
+    fun deleteHistoricOlderThan(olderThan: Long, syncedId: Long, limit: Int): Int
+
     @Query("SELECT id FROM $TABLE_BOLUSES ORDER BY id DESC limit 1")
     fun getLastId(): Maybe<Long>
 
@@ -65,6 +68,13 @@ internal interface BolusDao : TraceableDao<Bolus> {
     @Query("SELECT * FROM $TABLE_BOLUSES WHERE id > :id AND type <> :exclude ORDER BY id ASC limit 1")
     fun getNextModifiedOrNewAfterExclude(id: Long, exclude: Bolus.Type = Bolus.Type.PRIMING): Maybe<Bolus>
 
+    // batch of records for bulk upload
+    @Query("SELECT * FROM $TABLE_BOLUSES WHERE id > :id AND type <> :exclude ORDER BY id ASC limit :limit")
+    fun getModifiedOrNewAfterExclude(id: Long, limit: Int, exclude: Bolus.Type = Bolus.Type.PRIMING): Single<List<Bolus>>
+
+    @Query("SELECT * FROM $TABLE_BOLUSES WHERE id IN (:ids)")
+    fun findByIds(ids: List<Long>): List<Bolus>
+
     @Query("SELECT * FROM $TABLE_BOLUSES WHERE id = :referenceId")
     fun getCurrentFromHistoric(referenceId: Long): Maybe<Bolus>
 
@@ -18,6 +18,9 @@ internal interface CarbsDao : TraceableDao<Carbs> {
     @Query("DELETE FROM $TABLE_CARBS")
     override fun deleteAllEntries()
 
+    @Query("DELETE FROM $TABLE_CARBS WHERE id IN (SELECT id FROM $TABLE_CARBS WHERE referenceId IS NOT NULL AND timestamp < :olderThan AND id <= :syncedId LIMIT :limit)")
+    fun deleteHistoricOlderThan(olderThan: Long, syncedId: Long, limit: Int): Int
+
     @Query("SELECT id FROM $TABLE_CARBS ORDER BY id DESC limit 1")
     fun getLastId(): Maybe<Long>
 
@@ -39,25 +42,25 @@ internal interface CarbsDao : TraceableDao<Carbs> {
     @Query("SELECT * FROM $TABLE_CARBS WHERE isValid = 1 AND timestamp >= :timestamp AND referenceId IS NULL ORDER BY id DESC")
     fun getCarbsFromTime(timestamp: Long): Single<List<Carbs>>
 
-    @Query("SELECT * FROM $TABLE_CARBS WHERE isValid = 1 AND timestamp + duration >= :timestamp AND referenceId IS NULL ORDER BY id DESC")
+    @Query("SELECT * FROM $TABLE_CARBS WHERE isValid = 1 AND endTimestamp >= :timestamp AND referenceId IS NULL ORDER BY id DESC")
     fun getCarbsFromTimeExpandable(timestamp: Long): Single<List<Carbs>>
 
     @Query("SELECT * FROM $TABLE_CARBS WHERE isValid = 1 AND timestamp >= :from AND timestamp <= :to AND referenceId IS NULL ORDER BY id DESC")
     fun getCarbsFromTimeToTime(from: Long, to: Long): Single<List<Carbs>>
 
-    @Query("SELECT * FROM $TABLE_CARBS WHERE isValid = 1 AND timestamp + duration > :from AND timestamp <= :to AND referenceId IS NULL ORDER BY id DESC")
+    @Query("SELECT * FROM $TABLE_CARBS WHERE isValid = 1 AND endTimestamp > :from AND timestamp <= :to AND referenceId IS NULL ORDER BY id DESC")
     fun getCarbsFromTimeToTimeExpandable(from: Long, to: Long): Single<List<Carbs>>
 
     @Query("SELECT * FROM $TABLE_CARBS WHERE timestamp >= :timestamp AND referenceId IS NULL ORDER BY id DESC")
     fun getCarbsIncludingInvalidFromTime(timestamp: Long): Single<List<Carbs>>
 
-    @Query("SELECT * FROM $TABLE_CARBS WHERE timestamp + duration >= :timestamp AND referenceId IS NULL ORDER BY id DESC")
+    @Query("SELECT * FROM $TABLE_CARBS WHERE endTimestamp >= :timestamp AND referenceId IS NULL ORDER BY id DESC")
     fun getCarbsIncludingInvalidFromTimeExpandable(timestamp: Long): Single<List<Carbs>>
 
     @Query("SELECT * FROM $TABLE_CARBS WHERE timestamp >= :from AND timestamp <= :to AND referenceId IS NULL ORDER BY id DESC")
     fun getCarbsIncludingInvalidFromTimeToTime(from: Long, to: Long): Single<List<Carbs>>
 
-    @Query("SELECT * FROM $TABLE_CARBS WHERE timestamp + duration >= :from AND timestamp <= :to AND referenceId IS NULL ORDER BY id DESC")
+    @Query("SELECT * FROM $TABLE_CARBS WHERE endTimestamp >= :from AND timestamp <= :to AND referenceId IS NULL ORDER BY id DESC")
     fun getCarbsIncludingInvalidFromTimeToTimeExpandable(from: Long, to: Long): Single<List<Carbs>>
 
     // This query will be used with v3 to get all changed records
@@ -68,6 +71,13 @@ internal interface CarbsDao : TraceableDao<Carbs> {
     @Query("SELECT * FROM $TABLE_CARBS WHERE id > :id ORDER BY id ASC limit 1")
     fun getNextModifiedOrNewAfter(id: Long): Maybe<Carbs>
 
+    // batch of records for bulk upload
+    @Query("SELECT * FROM $TABLE_CARBS WHERE id > :id ORDER BY id ASC limit :limit")
+    fun getModifiedOrNewAfter(id: Long, limit: Int): Single<List<Carbs>>
+
+    @Query("SELECT * FROM $TABLE_CARBS WHERE id IN (:ids)")
+    fun findByIds(ids: List<Long>): List<Carbs>
+
     @Query("SELECT * FROM $TABLE_CARBS WHERE id = :referenceId")
     fun getCurrentFromHistoric(referenceId: Long): Maybe<Carbs>
 
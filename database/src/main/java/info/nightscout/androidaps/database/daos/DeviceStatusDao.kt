@@ -31,6 +31,9 @@ internal interface DeviceStatusDao {
     @Query("DELETE FROM $TABLE_DEVICE_STATUS WHERE id NOT IN (SELECT MAX(id) FROM $TABLE_DEVICE_STATUS)")
     fun deleteAllEntriesExceptLast()
 
+    @Query("DELETE FROM $TABLE_DEVICE_STATUS WHERE id IN (SELECT id FROM $TABLE_DEVICE_STATUS WHERE timestamp < :olderThan AND id <= :syncedId AND id < (SELECT MAX(id) FROM $TABLE_DEVICE_STATUS) LIMIT :limit)")
+    fun deleteOlderThan(olderThan: Long, syncedId: Long, limit: Int): Int
+
     @Query("SELECT * FROM $TABLE_DEVICE_STATUS WHERE nightscoutId = :nsId")
     fun findByNSId(nsId: String): DeviceStatus?
 
@@ -41,4 +44,8 @@ internal interface DeviceStatusDao {
     // for WS we need 1 record only
     @Query("SELECT * FROM $TABLE_DEVICE_STATUS WHERE id > :id AND nightscoutId IS NULL ORDER BY id ASC limit 1")
     fun getNextModifiedOrNewAfter(id: Long): Maybe<DeviceStatus>
+
+    // batch of records for bulk upload
+    @Query("SELECT * FROM $TABLE_DEVICE_STATUS WHERE id > :id AND nightscoutId IS NULL ORDER BY id ASC limit :limit")
+    fun getModifiedOrNewAfter(id: Long, limit: Int): Single<List<DeviceStatus>>
 }
\ No newline at end of file
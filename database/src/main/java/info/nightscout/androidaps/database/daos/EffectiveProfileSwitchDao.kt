@@ -17,6 +17,9 @@ internal interface EffectiveProfileSwitchDao : TraceableDao<EffectiveProfileSwit
     @Query("DELETE FROM $TABLE_EFFECTIVE_PROFILE_SWITCHES")
     override fun deleteAllEntries()
 
+    @Query("DELETE FROM $TABLE_EFFECTIVE_PROFILE_SWITCHES WHERE id IN (SELECT id FROM $TABLE_EFFECTIVE_PROFILE_SWITCHES WHERE referenceId IS NOT NULL AND timestamp < :olderThan AND id <= :syncedId LIMIT :limit)")
+    fun deleteHistoricOlderThan(olderThan: Long, syncedId: Long, limit: Int): Int
+
     @Query("SELECT id FROM $TABLE_EFFECTIVE_PROFILE_SWITCHES ORDER BY id DESC limit 1")
     fun getLastId(): Maybe<Long>
 
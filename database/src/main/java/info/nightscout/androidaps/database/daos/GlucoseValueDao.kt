@@ -1,6 +1,7 @@
 package info.nightscout.androidaps.database.daos
 
 import androidx.room.Dao
+import androidx.room.Insert
 import androidx.room.Query
 import info.nightscout.androidaps.database.TABLE_GLUCOSE_VALUES
 import info.nightscout.androidaps.database.entities.GlucoseValue
@@ -16,6 +17,13 @@ internal interface GlucoseValueDao : TraceableDao<GlucoseValue> {
     @Query("DELETE FROM $TABLE_GLUCOSE_VALUES")
     override fun deleteAllEntries()
 
+    @Query("DELETE FROM $TABLE_GLUCOSE_VALUES WHERE id IN (SELECT id FROM $TABLE_GLUCOSE_VALUES WHERE referenceId IS NOT NULL AND timestamp < :olderThan AND id <= :syncedId LIMIT :limit)")
+    fun deleteHistoricOlderThan(olderThan: Long, syncedId: Long, limit: Int): Int
+
+    // rows having newer versions are kept until the history is gone
+    @Query("DELETE FROM $TABLE_GLUCOSE_VALUES WHERE id IN (SELECT id FROM $TABLE_GLUCOSE_VALUES WHERE referenceId IS NULL AND timestamp < :olderThan AND id <= :syncedId AND id NOT IN (SELECT referenceId FROM $TABLE_GLUCOSE_VALUES WHERE referenceId IS NOT NULL) LIMIT :limit)")
+    fun deleteOlderThan(olderThan: Long, syncedId: Long, limit: Int): Int
+
     @Query("SELECT * FROM $TABLE_GLUCOSE_VALUES WHERE isValid = 1 AND referenceId IS NULL ORDER BY id DESC limit 1")
     fun getLast(): Maybe<GlucoseValue>
 
@@ -28,6 +36,12 @@ internal interface GlucoseValueDao : TraceableDao<GlucoseValue> {
     @Query("SELECT * FROM $TABLE_GLUCOSE_VALUES WHERE timestamp = :timestamp AND sourceSensor = :sourceSensor AND referenceId IS NULL")
     fun findByTimestampAndSensor(timestamp: Long, sourceSensor: GlucoseValue.SourceSensor): GlucoseValue?
 
+    @Query("SELECT * FROM $TABLE_GLUCOSE_VALUES WHERE timestamp BETWEEN :from AND :to AND referenceId IS NULL")
+    fun findByTimestampRange(from: Long, to: Long): List<GlucoseValue>
+
+    @Insert
+    fun insertAll(entries: List<GlucoseValue>): List<Long>
+
     @Query("SELECT * FROM $TABLE_GLUCOSE_VALUES WHERE timestamp >= :timestamp AND isValid = 1 AND referenceId IS NULL AND value >= 39 ORDER BY timestamp ASC")
     fun compatGetBgReadingsDataFromTime(timestamp: Long): Single<List<GlucoseValue>>
 
@@ -51,9 +65,32 @@ internal interface GlucoseValueDao : TraceableDao<GlucoseValue> {
     @Query("SELECT * FROM $TABLE_GLUCOSE_VALUES WHERE id > :id ORDER BY id ASC limit 1")
     fun getNextModifiedOrNewAfter(id: Long): Maybe<GlucoseValue>
 
+    // batch of records for bulk upload
+    @Query("SELECT * FROM $TABLE_GLUCOSE_VALUES WHERE id > :id ORDER BY id ASC limit :limit")
+    fun getModifiedOrNewAfter(id: Long, limit: Int): Single<List<GlucoseValue>>
+
+    @Query("SELECT * FROM $TABLE_GLUCOSE_VALUES WHERE id IN (:ids)")
+    fun findByIds(ids: List<Long>): List<GlucoseValue>
+
     @Query("SELECT * FROM $TABLE_GLUCOSE_VALUES WHERE id = :referenceId")
     fun getCurrentFromHistoric(referenceId: Long): Maybe<GlucoseValue>
 
     @Query("SELECT * FROM $TABLE_GLUCOSE_VALUES WHERE dateCreated > :since AND dateCreated <= :until LIMIT :limit OFFSET :offset")
     suspend fun getNewEntriesSince(since: Long, until: Long, limit: Int, offset: Int): List<GlucoseValue>
-}
\ No newline at end of file
+}
+
+/**
+ * Inserts new entries with one prepared statement, see [insertNewEntryImpl]
+ * @return The IDs of the newly generated entries
+ */
+internal fun GlucoseValueDao.insertNewEntries(entries: List<GlucoseValue>): List<Long> {
+    val lastModified = System.currentTimeMillis()
+    entries.forEach { entry ->
+        if (entry.id != 0L) throw IllegalArgumentException("ID must be 0.")
+        if (entry.version != 0) throw IllegalArgumentException("Version must be 0.")
+        if (entry.referenceId != null) throw IllegalArgumentException("Reference ID must be null.")
+        if (!entry.foreignKeysValid) throw IllegalArgumentException("One or more foreign keys are invalid (e.g. 0 value).")
+        entry.dateCreated = lastModified
+    }
+    return insertAll(entries).also { ids -> entries.forEachIndexed { index, entry -> entry.id = ids[index] } }
+}
@@ -0,0 +1,25 @@
+package info.nightscout.androidaps.database.daos
+
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.OnConflictStrategy
+import androidx.room.Query
+import info.nightscout.androidaps.database.TABLE_HOURLY_TOTALS
+import info.nightscout.androidaps.database.entities.HourlyTotal
+import io.reactivex.rxjava3.core.Single
+
+@Dao
+internal interface HourlyTotalDao {
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    fun insertAll(hourlyTotals: List<HourlyTotal>)
+
+    @Query("SELECT * FROM $TABLE_HOURLY_TOTALS WHERE timestamp >= :from AND timestamp < :to ORDER BY timestamp ASC")
+    fun getFromTimeToTime(from: Long, to: Long): Single<List<HourlyTotal>>
+
+    @Query("DELETE FROM $TABLE_HOURLY_TOTALS WHERE timestamp > :timestamp")
+    fun deleteNewerThan(timestamp: Long): Int
+
+    @Query("DELETE FROM $TABLE_HOURLY_TOTALS")
+    fun deleteAllEntries()
+}
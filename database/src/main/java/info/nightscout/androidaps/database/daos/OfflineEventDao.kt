@@ -19,13 +19,16 @@ internal interface OfflineEventDao : TraceableDao<OfflineEvent> {
     @Query("DELETE FROM $TABLE_OFFLINE_EVENTS")
     override fun deleteAllEntries()
 
+    @Query("DELETE FROM $TABLE_OFFLINE_EVENTS WHERE id IN (SELECT id FROM $TABLE_OFFLINE_EVENTS WHERE referenceId IS NOT NULL AND timestamp < :olderThan AND id <= :syncedId LIMIT :limit)")
+    fun deleteHistoricOlderThan(olderThan: Long, syncedId: Long, limit: Int): Int
+
     @Query("SELECT id FROM $TABLE_OFFLINE_EVENTS ORDER BY id DESC limit 1")
     fun getLastId(): Maybe<Long>
 
     @Query("SELECT * FROM $TABLE_OFFLINE_EVENTS WHERE nightscoutId = :nsId AND referenceId IS NULL")
     fun findByNSId(nsId: String): OfflineEvent?
 
-    @Query("SELECT * FROM $TABLE_OFFLINE_EVENTS WHERE timestamp <= :timestamp AND (timestamp + duration) > :timestamp AND referenceId IS NULL AND isValid = 1 ORDER BY timestamp DESC LIMIT 1")
+    @Query("SELECT * FROM $TABLE_OFFLINE_EVENTS WHERE endTimestamp > :timestamp AND timestamp <= :timestamp AND referenceId IS NULL AND isValid = 1 ORDER BY timestamp DESC LIMIT 1")
     fun getOfflineEventActiveAt(timestamp: Long): Maybe<OfflineEvent>
 
     @Query("SELECT * FROM $TABLE_OFFLINE_EVENTS WHERE timestamp >= :timestamp AND isValid = 1 AND referenceId IS NULL ORDER BY timestamp ASC")
@@ -18,6 +18,9 @@ internal interface TherapyEventDao : TraceableDao<TherapyEvent> {
     @Query("DELETE FROM $TABLE_THERAPY_EVENTS")
     override fun deleteAllEntries()
 
+    @Query("DELETE FROM $TABLE_THERAPY_EVENTS WHERE id IN (SELECT id FROM $TABLE_THERAPY_EVENTS WHERE referenceId IS NOT NULL AND timestamp < :olderThan AND id <= :syncedId LIMIT :limit)")
+    fun deleteHistoricOlderThan(olderThan: Long, syncedId: Long, limit: Int): Int
+
     @Query("SELECT id FROM $TABLE_THERAPY_EVENTS ORDER BY id DESC limit 1")
     fun getLastId(): Maybe<Long>
 
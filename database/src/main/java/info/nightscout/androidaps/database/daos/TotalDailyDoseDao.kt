@@ -19,6 +19,9 @@ internal interface TotalDailyDoseDao : TraceableDao<TotalDailyDose> {
     @Query("DELETE FROM $TABLE_TOTAL_DAILY_DOSES")
     override fun deleteAllEntries()
 
+    @Query("DELETE FROM $TABLE_TOTAL_DAILY_DOSES WHERE id IN (SELECT id FROM $TABLE_TOTAL_DAILY_DOSES WHERE referenceId IS NOT NULL AND timestamp < :olderThan AND id <= :syncedId LIMIT :limit)")
+    fun deleteHistoricOlderThan(olderThan: Long, syncedId: Long, limit: Int): Int
+
     @Query("SELECT * FROM $TABLE_TOTAL_DAILY_DOSES WHERE pumpId = :pumpId AND pumpType = :pumpType AND pumpSerial = :pumpSerial AND referenceId IS NULL")
     fun findByPumpIds(pumpId: Long, pumpType: InterfaceIDs.PumpType, pumpSerial: String): TotalDailyDose?
 
@@ -23,4 +23,7 @@ interface UserEntryDao {
     @Query("SELECT * FROM $TABLE_USER_ENTRY WHERE timestamp >= :timestamp AND source != :excludeSource ORDER BY id DESC")
     fun getUserEntryFilteredDataFromTime(excludeSource: Sources, timestamp: Long): Single<List<UserEntry>>
 
+    @Query("DELETE FROM $TABLE_USER_ENTRY WHERE id IN (SELECT id FROM $TABLE_USER_ENTRY WHERE timestamp < :olderThan LIMIT :limit)")
+    fun deleteOlderThan(olderThan: Long, limit: Int): Int
+
 }
\ No newline at end of file
@@ -12,7 +12,8 @@ internal class DelegatedBolusDao(changes: MutableList<DBEntry>, private val dao:
     }
 
     override fun updateExistingEntry(entry: Bolus): Long {
+        val previous = dao.findById(entry.id)
         changes.add(entry)
-        return dao.updateExistingEntry(entry)
+        return dao.updateExistingEntry(entry).also { addHistoric(previous, entry, it) }
     }
 }
\ No newline at end of file
@@ -12,7 +12,8 @@ internal class DelegatedCarbsDao(changes: MutableList<DBEntry>, private val dao:
     }
 
     override fun updateExistingEntry(entry: Carbs): Long {
+        val previous = dao.findById(entry.id)
         changes.add(entry)
-        return dao.updateExistingEntry(entry)
+        return dao.updateExistingEntry(entry).also { addHistoric(previous, entry, it) }
     }
 }
\ No newline at end of file
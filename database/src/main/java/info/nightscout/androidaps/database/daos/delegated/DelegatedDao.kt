@@ -1,8 +1,21 @@
 package info.nightscout.androidaps.database.daos.delegated
 
 import info.nightscout.androidaps.database.interfaces.DBEntry
+import info.nightscout.androidaps.database.interfaces.TraceableDBEntry
 
 /**
  * A DAO that adds updated or inserted entries to a list
  */
-internal abstract class DelegatedDao(protected val changes: MutableList<DBEntry>)
\ No newline at end of file
+internal abstract class DelegatedDao(protected val changes: MutableList<DBEntry>) {
+
+    /**
+     * Reports historic copy created by update of [entry] from its [previous] values.
+     * Data cached by time must be invalidated from original timestamp of moved entry too.
+     */
+    protected fun <T : TraceableDBEntry> addHistoric(previous: T?, entry: T, historicId: Long) {
+        previous ?: return
+        previous.id = historicId
+        previous.referenceId = entry.id
+        changes.add(previous)
+    }
+}
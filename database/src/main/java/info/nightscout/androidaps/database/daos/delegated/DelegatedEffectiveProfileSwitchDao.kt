@@ -12,7 +12,8 @@ internal class DelegatedEffectiveProfileSwitchDao(changes: MutableList<DBEntry>,
     }
 
     override fun updateExistingEntry(entry: EffectiveProfileSwitch): Long {
+        val previous = dao.findById(entry.id)
         changes.add(entry)
-        return super.updateExistingEntry(entry)
+        return super.updateExistingEntry(entry).also { addHistoric(previous, entry, it) }
     }
 }
\ No newline at end of file
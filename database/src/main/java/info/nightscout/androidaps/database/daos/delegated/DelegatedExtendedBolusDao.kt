@@ -12,7 +12,8 @@ internal class DelegatedExtendedExtendedBolusDao(changes: MutableList<DBEntry>,
     }
 
     override fun updateExistingEntry(entry: ExtendedBolus): Long {
+        val previous = dao.findById(entry.id)
         changes.add(entry)
-        return dao.updateExistingEntry(entry)
+        return dao.updateExistingEntry(entry).also { addHistoric(previous, entry, it) }
     }
 }
\ No newline at end of file
@@ -11,6 +11,11 @@ internal class DelegatedGlucoseValueDao(changes: MutableList<DBEntry>, private v
         return dao.insertNewEntry(entry)
     }
 
+    override fun insertAll(entries: List<GlucoseValue>): List<Long> {
+        changes.addAll(entries)
+        return dao.insertAll(entries)
+    }
+
     override fun updateExistingEntry(entry: GlucoseValue): Long {
         changes.add(entry)
         return dao.updateExistingEntry(entry)
@@ -12,7 +12,8 @@ internal class DelegatedTemporaryBasalDao(changes: MutableList<DBEntry>, private
     }
 
     override fun updateExistingEntry(entry: TemporaryBasal): Long {
+        val previous = dao.findById(entry.id)
         changes.add(entry)
-        return dao.updateExistingEntry(entry)
+        return dao.updateExistingEntry(entry).also { addHistoric(previous, entry, it) }
     }
 }
\ No newline at end of file
@@ -0,0 +1,81 @@
+package info.nightscout.androidaps.database.data
+
+import info.nightscout.androidaps.database.interfaces.DBEntry
+import info.nightscout.androidaps.database.interfaces.DBEntryWithTime
+import io.reactivex.rxjava3.core.Observable
+import io.reactivex.rxjava3.core.Scheduler
+import java.util.concurrent.TimeUnit
+
+/**
+ * Changes of one or more transactions grouped by table
+ */
+class DataChanges(val entries: List<DBEntry>) {
+
+    private val byType: Map<Class<out DBEntry>, List<DBEntry>> = entries.groupBy { it.javaClass }
+
+    val types: Set<Class<out DBEntry>>
+        get() = byType.keys
+
+    fun <T : DBEntry> of(type: Class<T>): List<T> = byType[type]?.map { type.cast(it) } ?: emptyList()
+
+    inline fun <reified T : DBEntry> of(): List<T> = of(T::class.java)
+
+    /**
+     * @return oldest timestamp of changed records in table, null if there is no change or records have no time
+     */
+    fun oldestTimestamp(type: Class<out DBEntry>): Long? = byType[type]?.filterIsInstance<DBEntryWithTime>()?.minOfOrNull { it.timestamp }
+
+    /**
+     * @return oldest timestamp of all changed records
+     */
+    fun oldestTimestamp(): Long? = entries.filterIsInstance<DBEntryWithTime>().minOfOrNull { it.timestamp }
+
+    companion object {
+
+        /**
+         * Change arriving when no window is open is emitted immediately and opens a window.
+         * Everything changed until the window closes is emitted at once and opens next window,
+         * so a single transaction (new BG, bolus, TBR) is never delayed and a burst is throttled
+         * to one emission per window.
+         */
+        fun coalesce(changes: Observable<List<DBEntry>>, window: Long, unit: TimeUnit, scheduler: Scheduler): Observable<DataChanges> =
+            Observable.create { source ->
+                val emitter = source.serialize()
+                val worker = scheduler.createWorker()
+                val pending = mutableListOf<DBEntry>()
+                var open = false
+                val lock = Any()
+                val closeWindow = object : Runnable {
+                    override fun run() {
+                        val batch = synchronized(lock) {
+                            pending.toList().also {
+                                pending.clear()
+                                if (it.isNotEmpty()) worker.schedule(this, window, unit)
+                                else open = false
+                            }
+                        }
+                        if (batch.isNotEmpty()) emitter.onNext(DataChanges(batch))
+                    }
+                }
+                val subscription = changes
+                    .filter { it.isNotEmpty() }
+                    .subscribe({ entries ->
+                                   val immediate = synchronized(lock) {
+                                       if (open) {
+                                           pending.addAll(entries)
+                                           false
+                                       } else {
+                                           open = true
+                                           worker.schedule(closeWindow, window, unit)
+                                           true
+                                       }
+                                   }
+                                   if (immediate) emitter.onNext(DataChanges(entries))
+                               }, emitter::onError, emitter::onComplete)
+                emitter.setCancellable {
+                    subscription.dispose()
+                    worker.dispose()
+                }
+            }
+    }
+}
@@ -0,0 +1,19 @@
+package info.nightscout.androidaps.database.data
+
+/**
+ * Records older than given timestamps are deleted, 0 keeps records forever
+ *
+ * @param syncedIds last id confirmed by NS per table. Newer rows are kept regardless of age,
+ * they are still waiting for upload. Table missing in the map is not synced at all.
+ */
+data class RetentionPolicy(
+    val glucoseValuesOlderThan: Long = 0,
+    val deviceStatusesOlderThan: Long = 0,
+    val apsResultsOlderThan: Long = 0,
+    val userEntriesOlderThan: Long = 0,
+    val historicOlderThan: Long = 0,
+    val syncedIds: Map<String, Long> = emptyMap()
+) {
+
+    fun syncedId(table: String): Long = syncedIds[table] ?: Long.MAX_VALUE
+}
@@ -9,6 +9,7 @@ import info.nightscout.androidaps.database.TABLE_CARBS
 import info.nightscout.androidaps.database.embedments.InterfaceIDs
 import info.nightscout.androidaps.database.interfaces.DBEntryWithTimeAndDuration
 import info.nightscout.androidaps.database.interfaces.TraceableDBEntry
+import info.nightscout.androidaps.database.interfaces.intervalEnd
 import java.util.*
 
 @Entity(tableName = TABLE_CARBS,
@@ -21,7 +22,8 @@ import java.util.*
         Index("isValid"),
         Index("nightscoutId"),
         Index("referenceId"),
-        Index("timestamp")
+        Index("timestamp"),
+        Index("referenceId", "endTimestamp", "timestamp")
     ])
 data class Carbs(
     @PrimaryKey(autoGenerate = true)
@@ -38,6 +40,10 @@ data class Carbs(
     var amount: Double
 ) : TraceableDBEntry, DBEntryWithTimeAndDuration {
 
+    // Derived from timestamp and duration on every write, persisted only to make "active at" queries index bounded
+    var endTimestamp: Long = 0
+        get() = intervalEnd
+
     private fun contentEqualsTo(other: Carbs): Boolean =
         isValid == other.isValid &&
             timestamp == other.timestamp &&
@@ -9,6 +9,7 @@ import info.nightscout.androidaps.database.TABLE_EXTENDED_BOLUSES
 import info.nightscout.androidaps.database.embedments.InterfaceIDs
 import info.nightscout.androidaps.database.interfaces.DBEntryWithTimeAndDuration
 import info.nightscout.androidaps.database.interfaces.TraceableDBEntry
+import info.nightscout.androidaps.database.interfaces.intervalEnd
 import java.util.*
 
 @Entity(
@@ -26,7 +27,8 @@ import java.util.*
         Index("pumpId"),
         Index("pumpType"),
         Index("referenceId"),
-        Index("timestamp")
+        Index("timestamp"),
+        Index("referenceId", "endTimestamp", "timestamp")
     ]
 )
 data class ExtendedBolus(
@@ -45,6 +47,10 @@ data class ExtendedBolus(
     var isEmulatingTempBasal: Boolean = false
 ) : TraceableDBEntry, DBEntryWithTimeAndDuration {
 
+    // Derived from timestamp and duration on every write, persisted only to make "active at" queries index bounded
+    var endTimestamp: Long = 0
+        get() = intervalEnd
+
     init {
         require(duration > 0)
     }
@@ -0,0 +1,21 @@
+package info.nightscout.androidaps.database.entities
+
+import androidx.room.Entity
+import androidx.room.PrimaryKey
+import info.nightscout.androidaps.database.TABLE_HOURLY_TOTALS
+
+/**
+ * Insulin and carbs delivered within one finished hour, derived from boluses, carbs, TBRs, EBs and profile.
+ * Not a history record: rows are dropped by [info.nightscout.androidaps.database.AppRepository]
+ * whenever a transaction changes any of the source records and calculated again when needed.
+ *
+ * @param timestamp start of the hour, hours are counted from local midnight
+ */
+@Entity(tableName = TABLE_HOURLY_TOTALS)
+data class HourlyTotal(
+    @PrimaryKey
+    var timestamp: Long,
+    var basalAmount: Double = 0.0,
+    var bolusAmount: Double = 0.0,
+    var carbs: Double = 0.0
+)
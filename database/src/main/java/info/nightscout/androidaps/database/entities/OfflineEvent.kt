@@ -9,6 +9,7 @@ import info.nightscout.androidaps.database.TABLE_OFFLINE_EVENTS
 import info.nightscout.androidaps.database.embedments.InterfaceIDs
 import info.nightscout.androidaps.database.interfaces.DBEntryWithTimeAndDuration
 import info.nightscout.androidaps.database.interfaces.TraceableDBEntry
+import info.nightscout.androidaps.database.interfaces.intervalEnd
 import java.util.*
 
 @Entity(
@@ -23,7 +24,8 @@ import java.util.*
         Index("isValid"),
         Index("nightscoutId"),
         Index("referenceId"),
-        Index("timestamp")
+        Index("timestamp"),
+        Index("referenceId", "endTimestamp", "timestamp")
     ]
 )
 data class OfflineEvent(
@@ -41,6 +43,10 @@ data class OfflineEvent(
     override var duration: Long // in millis
 ) : TraceableDBEntry, DBEntryWithTimeAndDuration {
 
+    // Derived from timestamp and duration on every write, persisted only to make "active at" queries index bounded
+    var endTimestamp: Long = 0
+        get() = intervalEnd
+
     fun contentEqualsTo(other: OfflineEvent): Boolean =
         timestamp == other.timestamp &&
             utcOffset == other.utcOffset &&
@@ -12,6 +12,7 @@ import info.nightscout.androidaps.database.embedments.InsulinConfiguration
 import info.nightscout.androidaps.database.embedments.InterfaceIDs
 import info.nightscout.androidaps.database.interfaces.DBEntryWithTimeAndDuration
 import info.nightscout.androidaps.database.interfaces.TraceableDBEntry
+import info.nightscout.androidaps.database.interfaces.intervalEnd
 import java.util.*
 
 @Entity(
@@ -24,6 +25,7 @@ import java.util.*
     indices = [
         Index("referenceId"),
         Index("timestamp"),
+        Index("referenceId", "endTimestamp", "timestamp"),
         Index("isValid"),
         Index("id"),
         Index("nightscoutId")
@@ -53,6 +55,10 @@ data class ProfileSwitch(
     var insulinConfiguration: InsulinConfiguration
 ) : TraceableDBEntry, DBEntryWithTimeAndDuration {
 
+    // Derived from timestamp and duration on every write, persisted only to make "active at" queries index bounded
+    var endTimestamp: Long = 0
+        get() = intervalEnd
+
     private fun contentEqualsTo(other: ProfileSwitch): Boolean =
         isValid == other.isValid &&
             timestamp == other.timestamp &&
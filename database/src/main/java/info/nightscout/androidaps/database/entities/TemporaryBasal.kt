@@ -9,6 +9,7 @@ import info.nightscout.androidaps.database.TABLE_TEMPORARY_BASALS
 import info.nightscout.androidaps.database.embedments.InterfaceIDs
 import info.nightscout.androidaps.database.interfaces.DBEntryWithTimeAndDuration
 import info.nightscout.androidaps.database.interfaces.TraceableDBEntry
+import info.nightscout.androidaps.database.interfaces.intervalEnd
 import java.util.*
 
 @Entity(tableName = TABLE_TEMPORARY_BASALS,
@@ -25,7 +26,8 @@ import java.util.*
         Index("pumpSerial"),
         Index("temporaryId"),
         Index("referenceId"),
-        Index("timestamp")
+        Index("timestamp"),
+        Index("referenceId", "endTimestamp", "timestamp")
     ])
 data class TemporaryBasal(
     @PrimaryKey(autoGenerate = true)
@@ -44,6 +46,10 @@ data class TemporaryBasal(
     override var duration: Long
 ) : TraceableDBEntry, DBEntryWithTimeAndDuration {
 
+    // Derived from timestamp and duration on every write, persisted only to make "active at" queries index bounded
+    var endTimestamp: Long = 0
+        get() = intervalEnd
+
     init {
         require(duration > 0)
     }
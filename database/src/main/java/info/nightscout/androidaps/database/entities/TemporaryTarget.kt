@@ -10,6 +10,7 @@ import info.nightscout.androidaps.database.TABLE_TEMPORARY_TARGETS
 import info.nightscout.androidaps.database.embedments.InterfaceIDs
 import info.nightscout.androidaps.database.interfaces.DBEntryWithTimeAndDuration
 import info.nightscout.androidaps.database.interfaces.TraceableDBEntry
+import info.nightscout.androidaps.database.interfaces.intervalEnd
 import java.util.*
 
 @Entity(
@@ -24,7 +25,8 @@ import java.util.*
         Index("isValid"),
         Index("nightscoutId"),
         Index("referenceId"),
-        Index("timestamp")
+        Index("timestamp"),
+        Index("referenceId", "endTimestamp", "timestamp")
     ]
 )
 data class TemporaryTarget(
@@ -44,6 +46,10 @@ data class TemporaryTarget(
     override var duration: Long // in millis
 ) : TraceableDBEntry, DBEntryWithTimeAndDuration {
 
+    // Derived from timestamp and duration on every write, persisted only to make "active at" queries index bounded
+    var endTimestamp: Long = 0
+        get() = intervalEnd
+
     fun contentEqualsTo(other: TemporaryTarget): Boolean =
         timestamp == other.timestamp &&
             utcOffset == other.utcOffset &&
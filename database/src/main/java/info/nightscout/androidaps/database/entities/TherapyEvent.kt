@@ -10,6 +10,7 @@ import info.nightscout.androidaps.database.TABLE_THERAPY_EVENTS
 import info.nightscout.androidaps.database.embedments.InterfaceIDs
 import info.nightscout.androidaps.database.interfaces.DBEntryWithTimeAndDuration
 import info.nightscout.androidaps.database.interfaces.TraceableDBEntry
+import info.nightscout.androidaps.database.interfaces.intervalEnd
 import java.util.*
 
 @Entity(
@@ -25,7 +26,8 @@ import java.util.*
         Index("nightscoutId"),
         Index("isValid"),
         Index("referenceId"),
-        Index("timestamp")
+        Index("timestamp"),
+        Index("referenceId", "endTimestamp", "timestamp")
     ]
 )
 data class TherapyEvent(
@@ -48,6 +50,10 @@ data class TherapyEvent(
     var glucoseUnit: GlucoseUnit,
 ) : TraceableDBEntry, DBEntryWithTimeAndDuration {
 
+    // Derived from timestamp and duration on every write, persisted only to make "active at" queries index bounded
+    var endTimestamp: Long = 0
+        get() = intervalEnd
+
     private fun contentEqualsTo(other: TherapyEvent): Boolean =
         isValid == other.isValid &&
             timestamp == other.timestamp &&
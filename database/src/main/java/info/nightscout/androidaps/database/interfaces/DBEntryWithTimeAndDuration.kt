@@ -11,4 +11,10 @@ var DBEntryWithTimeAndDuration.end
         require(duration > 0)
     }
 
-fun DBEntryWithTimeAndDuration.getRemainingDuration(current: Long = System.currentTimeMillis()) = min(0L, end - current)
\ No newline at end of file
+fun DBEntryWithTimeAndDuration.getRemainingDuration(current: Long = System.currentTimeMillis()) = min(0L, end - current)
+
+/**
+ * End of interval which doesn't overflow for unknown (Long.MAX_VALUE) duration
+ */
+val DBEntryWithTimeAndDuration.intervalEnd: Long
+    get() = if (duration > Long.MAX_VALUE - timestamp) Long.MAX_VALUE else timestamp + duration
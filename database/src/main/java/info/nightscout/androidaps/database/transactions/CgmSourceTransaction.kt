@@ -1,5 +1,6 @@
 package info.nightscout.androidaps.database.transactions
 
+import info.nightscout.androidaps.database.daos.insertNewEntries
 import info.nightscout.androidaps.database.entities.GlucoseValue
 import info.nightscout.androidaps.database.entities.ProfileSwitch
 import info.nightscout.androidaps.database.entities.TherapyEvent
@@ -18,8 +19,23 @@ class CgmSourceTransaction(
 
     override fun run(): TransactionResult {
         val result = TransactionResult()
+        // current records of whole batch by one query
+        val stored = HashMap<Pair<Long, GlucoseValue.SourceSensor>, GlucoseValue>()
+        if (glucoseValues.isNotEmpty())
+            database.glucoseValueDao.findByTimestampRange(glucoseValues.minOf { it.timestamp }, glucoseValues.maxOf { it.timestamp })
+                .associateByTo(stored) { it.timestamp to it.sourceSensor }
+        // new records are inserted at once
+        val toInsert = LinkedHashMap<Pair<Long, GlucoseValue.SourceSensor>, GlucoseValue>()
+        val flush = {
+            database.glucoseValueDao.insertNewEntries(toInsert.values.toList())
+            stored.putAll(toInsert)
+            toInsert.clear()
+        }
         glucoseValues.forEach {
-            val current = database.glucoseValueDao.findByTimestampAndSensor(it.timestamp, it.sourceSensor)
+            val key = it.timestamp to it.sourceSensor
+            // the same value twice in batch, handle the second one against stored first one
+            if (toInsert.containsKey(key)) flush()
+            val current = stored[key]
             val glucoseValue = GlucoseValue(
                 timestamp = it.timestamp,
                 raw = it.raw,
@@ -38,23 +54,26 @@ class CgmSourceTransaction(
             when {
                 // new record, create new
                 current == null                                                                -> {
-                    database.glucoseValueDao.insertNewEntry(glucoseValue)
+                    toInsert[key] = glucoseValue
                     result.inserted.add(glucoseValue)
                 }
                 // different record, update
                 !current.contentEqualsTo(glucoseValue) && !syncer                              -> {
                     glucoseValue.id = current.id
                     database.glucoseValueDao.updateExistingEntry(glucoseValue)
+                    stored[key] = glucoseValue
                     result.updated.add(glucoseValue)
                 }
                 // update NS id if didn't exist and now provided
                 current.interfaceIDs.nightscoutId == null && it.nightscoutId != null && syncer -> {
                     glucoseValue.id = current.id
                     database.glucoseValueDao.updateExistingEntry(glucoseValue)
+                    stored[key] = glucoseValue
                     result.updated.add(glucoseValue)
                 }
             }
         }
+        if (toInsert.isNotEmpty()) flush()
         calibrations.forEach {
             if (database.therapyEventDao.findByTimestamp(TherapyEvent.Type.FINGER_STICK_BG_VALUE, it.timestamp) == null) {
                 val therapyEvent = TherapyEvent(
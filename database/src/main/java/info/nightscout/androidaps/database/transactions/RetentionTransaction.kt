@@ -0,0 +1,71 @@
+package info.nightscout.androidaps.database.transactions
+
+import info.nightscout.androidaps.database.TABLE_BOLUSES
+import info.nightscout.androidaps.database.TABLE_BOLUS_CALCULATOR_RESULTS
+import info.nightscout.androidaps.database.TABLE_CARBS
+import info.nightscout.androidaps.database.TABLE_DEVICE_STATUS
+import info.nightscout.androidaps.database.TABLE_EFFECTIVE_PROFILE_SWITCHES
+import info.nightscout.androidaps.database.TABLE_EXTENDED_BOLUSES
+import info.nightscout.androidaps.database.TABLE_GLUCOSE_VALUES
+import info.nightscout.androidaps.database.TABLE_OFFLINE_EVENTS
+import info.nightscout.androidaps.database.TABLE_PROFILE_SWITCHES
+import info.nightscout.androidaps.database.TABLE_TEMPORARY_BASALS
+import info.nightscout.androidaps.database.TABLE_TEMPORARY_TARGETS
+import info.nightscout.androidaps.database.TABLE_THERAPY_EVENTS
+import info.nightscout.androidaps.database.TABLE_TOTAL_DAILY_DOSES
+import info.nightscout.androidaps.database.data.RetentionPolicy
+
+/**
+ * Deletes one batch of records out of retention policy.
+ * Superseded versions go first so current rows are not referenced anymore when their turn comes.
+ * Short transactions don't block the loop, run it again until it returns 0.
+ *
+ * @return number of deleted rows
+ */
+class RetentionTransaction(
+    private val policy: RetentionPolicy,
+    private val batchSize: Int = BATCH_SIZE
+) : Transaction<Int>() {
+
+    override fun run(): Int {
+        var remaining = batchSize
+        fun delete(block: (limit: Int) -> Int) {
+            if (remaining > 0) remaining -= block(remaining)
+        }
+
+        with(policy) {
+            if (historicOlderThan > 0) {
+                delete { database.bolusDao.deleteHistoricOlderThan(historicOlderThan, syncedId(TABLE_BOLUSES), it) }
+                delete { database.bolusCalculatorResultDao.deleteHistoricOlderThan(historicOlderThan, syncedId(TABLE_BOLUS_CALCULATOR_RESULTS), it) }
+                delete { database.carbsDao.deleteHistoricOlderThan(historicOlderThan, syncedId(TABLE_CARBS), it) }
+                delete { database.effectiveProfileSwitchDao.deleteHistoricOlderThan(historicOlderThan, syncedId(TABLE_EFFECTIVE_PROFILE_SWITCHES), it) }
+                delete { database.extendedBolusDao.deleteHistoricOlderThan(historicOlderThan, syncedId(TABLE_EXTENDED_BOLUSES), it) }
+                delete { database.glucoseValueDao.deleteHistoricOlderThan(historicOlderThan, syncedId(TABLE_GLUCOSE_VALUES), it) }
+                delete { database.offlineEventDao.deleteHistoricOlderThan(historicOlderThan, syncedId(TABLE_OFFLINE_EVENTS), it) }
+                delete { database.profileSwitchDao.deleteHistoricOlderThan(historicOlderThan, syncedId(TABLE_PROFILE_SWITCHES), it) }
+                delete { database.temporaryBasalDao.deleteHistoricOlderThan(historicOlderThan, syncedId(TABLE_TEMPORARY_BASALS), it) }
+                delete { database.temporaryTargetDao.deleteHistoricOlderThan(historicOlderThan, syncedId(TABLE_TEMPORARY_TARGETS), it) }
+                delete { database.therapyEventDao.deleteHistoricOlderThan(historicOlderThan, syncedId(TABLE_THERAPY_EVENTS), it) }
+                delete { database.totalDailyDoseDao.deleteHistoricOlderThan(historicOlderThan, syncedId(TABLE_TOTAL_DAILY_DOSES), it) }
+            }
+            if (apsResultsOlderThan > 0) {
+                delete { database.apsResultDao.deleteHistoricOlderThan(apsResultsOlderThan, it) }
+                delete { database.apsResultDao.deleteOlderThan(apsResultsOlderThan, it) }
+            }
+            if (glucoseValuesOlderThan > 0) {
+                delete { database.glucoseValueDao.deleteHistoricOlderThan(glucoseValuesOlderThan, syncedId(TABLE_GLUCOSE_VALUES), it) }
+                delete { database.glucoseValueDao.deleteOlderThan(glucoseValuesOlderThan, syncedId(TABLE_GLUCOSE_VALUES), it) }
+            }
+            if (deviceStatusesOlderThan > 0)
+                delete { database.deviceStatusDao.deleteOlderThan(deviceStatusesOlderThan, syncedId(TABLE_DEVICE_STATUS), it) }
+            if (userEntriesOlderThan > 0)
+                delete { database.userEntryDao.deleteOlderThan(userEntriesOlderThan, it) }
+        }
+        return batchSize - remaining
+    }
+
+    companion object {
+
+        const val BATCH_SIZE = 1000
+    }
+}
@@ -0,0 +1,48 @@
+package info.nightscout.androidaps.database.transactions
+
+import info.nightscout.androidaps.database.entities.Bolus
+import info.nightscout.androidaps.database.entities.Carbs
+import info.nightscout.androidaps.database.entities.DeviceStatus
+import info.nightscout.androidaps.database.entities.GlucoseValue
+
+/**
+ * Stores NS ids of whole uploaded batch in one transaction
+ */
+class UpdateNsIdsTransaction(
+    val glucoseValues: List<GlucoseValue> = listOf(),
+    val boluses: List<Bolus> = listOf(),
+    val carbs: List<Carbs> = listOf(),
+    val deviceStatuses: List<DeviceStatus> = listOf()
+) : Transaction<Unit>() {
+
+    override fun run() {
+        for (glucoseValue in glucoseValues) {
+            val current = database.glucoseValueDao.findById(glucoseValue.id)
+            if (current != null && current.interfaceIDs.nightscoutId != glucoseValue.interfaceIDs.nightscoutId) {
+                current.interfaceIDs.nightscoutId = glucoseValue.interfaceIDs.nightscoutId
+                database.glucoseValueDao.updateExistingEntry(current)
+            }
+        }
+        for (bolus in boluses) {
+            val current = database.bolusDao.findById(bolus.id)
+            if (current != null && current.interfaceIDs.nightscoutId != bolus.interfaceIDs.nightscoutId) {
+                current.interfaceIDs.nightscoutId = bolus.interfaceIDs.nightscoutId
+                database.bolusDao.updateExistingEntry(current)
+            }
+        }
+        for (carb in carbs) {
+            val current = database.carbsDao.findById(carb.id)
+            if (current != null && current.interfaceIDs.nightscoutId != carb.interfaceIDs.nightscoutId) {
+                current.interfaceIDs.nightscoutId = carb.interfaceIDs.nightscoutId
+                database.carbsDao.updateExistingEntry(current)
+            }
+        }
+        for (deviceStatus in deviceStatuses) {
+            val current = database.deviceStatusDao.findById(deviceStatus.id)
+            if (current != null && current.interfaceIDs.nightscoutId != deviceStatus.interfaceIDs.nightscoutId) {
+                current.interfaceIDs.nightscoutId = deviceStatus.interfaceIDs.nightscoutId
+                database.deviceStatusDao.update(current)
+            }
+        }
+    }
+}
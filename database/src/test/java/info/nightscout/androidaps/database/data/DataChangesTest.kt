@@ -0,0 +1,93 @@
+package info.nightscout.androidaps.database.data
+
+import info.nightscout.androidaps.database.entities.Bolus
+import info.nightscout.androidaps.database.entities.GlucoseValue
+import info.nightscout.androidaps.database.entities.TemporaryBasal
+import info.nightscout.androidaps.database.interfaces.DBEntry
+import io.reactivex.rxjava3.schedulers.TestScheduler
+import io.reactivex.rxjava3.subjects.PublishSubject
+import org.junit.Assert
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+
+class DataChangesTest {
+
+    private val start = 1_600_000_000_000L
+    private val scheduler = TestScheduler()
+    private val changes = PublishSubject.create<List<DBEntry>>()
+
+    private fun bolus(i: Int) = Bolus(timestamp = start + i * 60_000L, amount = 0.1, type = Bolus.Type.SMB)
+    private fun tbr(i: Int) = TemporaryBasal(
+        timestamp = start + i * 60_000L, duration = 30 * 60_000L, rate = 120.0, isAbsolute = false, type = TemporaryBasal.Type.NORMAL
+    )
+
+    @Test
+    fun singleChangeIsNotDelayed() {
+        val feed = DataChanges.coalesce(changes, 500, TimeUnit.MILLISECONDS, scheduler).test()
+
+        changes.onNext(listOf(bolus(0)))
+
+        feed.assertValueCount(1)
+        Assert.assertEquals(start, feed.values()[0].oldestTimestamp(Bolus::class.java))
+
+        // window closes without changes, next one is immediate again
+        scheduler.advanceTimeBy(500, TimeUnit.MILLISECONDS)
+        changes.onNext(listOf(tbr(1)))
+        feed.assertValueCount(2)
+    }
+
+    @Test
+    fun importOfManyRowsIsOneBatch() {
+        val feed = DataChanges.coalesce(changes, 500, TimeUnit.MILLISECONDS, scheduler).test()
+
+        // history import: one transaction per row, newest first
+        for (i in 499 downTo 0) {
+            changes.onNext(listOf(if (i % 2 == 0) bolus(i) else tbr(i)))
+            scheduler.advanceTimeBy(0, TimeUnit.MILLISECONDS)
+        }
+        // first row is emitted immediately
+        feed.assertValueCount(1)
+        scheduler.advanceTimeBy(500, TimeUnit.MILLISECONDS)
+
+        feed.assertValueCount(2)
+        val batch = feed.values()[1]
+        Assert.assertEquals(499, batch.entries.size)
+        Assert.assertEquals(setOf(Bolus::class.java, TemporaryBasal::class.java), batch.types)
+        Assert.assertEquals(250, batch.of<Bolus>().size)
+        Assert.assertEquals(start, batch.oldestTimestamp(Bolus::class.java))
+        Assert.assertEquals(start + 60_000L, batch.oldestTimestamp(TemporaryBasal::class.java))
+        Assert.assertNull(batch.oldestTimestamp(GlucoseValue::class.java))
+        Assert.assertEquals(start, batch.oldestTimestamp())
+    }
+
+    @Test
+    fun continuousChangesAreNotDelayedMoreThanWindow() {
+        val feed = DataChanges.coalesce(changes, 500, TimeUnit.MILLISECONDS, scheduler).test()
+
+        for (i in 0 until 20) {
+            changes.onNext(listOf(bolus(i)))
+            scheduler.advanceTimeBy(100, TimeUnit.MILLISECONDS)
+        }
+
+        // immediate first change, then one batch per window
+        feed.assertValueCount(5)
+        Assert.assertEquals(1, feed.values()[0].entries.size)
+        Assert.assertTrue(feed.values().drop(1).all { it.entries.size <= 5 })
+        scheduler.advanceTimeBy(500, TimeUnit.MILLISECONDS)
+        Assert.assertEquals(20, feed.values().sumOf { it.entries.size })
+    }
+
+    @Test
+    fun emptyTransactionsAreIgnored() {
+        val feed = DataChanges.coalesce(changes, 500, TimeUnit.MILLISECONDS, scheduler).test()
+
+        changes.onNext(emptyList())
+        scheduler.advanceTimeBy(1, TimeUnit.SECONDS)
+        feed.assertNoValues()
+
+        feed.dispose()
+        changes.onNext(listOf(bolus(0)))
+        scheduler.advanceTimeBy(1, TimeUnit.SECONDS)
+        feed.assertNoValues()
+    }
+}
@@ -66,7 +66,7 @@ public class AppLayerMessage implements Comparable<AppLayerMessage> {
         }
         byte[] data = byteBuf.readBytes(byteBuf.getSize() - (message.inCRC ? 2 : 0));
         if (message.inCRC && Cryptograph.calculateCRC(data) != byteBuf.readUInt16LE()) throw new InvalidAppCRCException();
-        message.parse(ByteBuf.from(data));
+        message.parse(ByteBuf.wrap(data));
         return message;
     }
 
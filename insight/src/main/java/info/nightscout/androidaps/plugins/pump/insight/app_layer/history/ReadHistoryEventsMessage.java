@@ -24,7 +24,7 @@ public class ReadHistoryEventsMessage extends AppLayerMessage {
         int frameCount = byteBuf.readUInt16LE();
         for (int i = 0; i < frameCount; i++) {
             int length = byteBuf.readUInt16LE();
-            historyEvents.add(HistoryEvent.deserialize(ByteBuf.from(byteBuf.readBytes(length))));
+            historyEvents.add(HistoryEvent.deserialize(byteBuf.readSlice(length)));
         }
     }
 
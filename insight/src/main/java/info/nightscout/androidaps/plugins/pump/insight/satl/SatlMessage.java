@@ -110,7 +110,7 @@ public abstract class SatlMessage {
             message = clazz.newInstance();
         } catch (Exception ignored) {
         }
-        message.parse(ByteBuf.from(payload));
+        message.parse(ByteBuf.wrap(payload));
         message.setNonce(parsedNonce);
         message.setCommID(commId);
         return message;
@@ -140,7 +140,7 @@ public abstract class SatlMessage {
             message = clazz.newInstance();
         } catch (Exception ignored) {
         }
-        message.parse(ByteBuf.from(payload));
+        message.parse(ByteBuf.wrap(payload));
         message.setNonce(Nonce.fromProductionalBytes(nonce));
         message.setCommID(commId);
         return message;
@@ -3,57 +3,112 @@ package info.nightscout.androidaps.plugins.pump.insight.utils;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.nio.charset.StandardCharsets;
-
+import java.util.Arrays;
+
+/**
+ * Byte buffer with read and write index over fixed backing array
+ *
+ * Positions used by get methods are relative to read index, reading only moves the index.
+ * Consumed space is reclaimed by compacting unread bytes when a write would not fit.
+ * Slices returned by {@link #readSlice(int)} share the backing array and stay valid until
+ * the parent buffer is written or cleared.
+ */
 public class ByteBuf {
 
     private final byte[] bytes;
-    private int size = 0;
+    private final int offset;
+    private final int limit;
+    private int readIndex;
+    private int writeIndex;
 
     public ByteBuf(int length) {
-        bytes = new byte[length];
+        this(new byte[length], 0, 0, length);
+    }
+
+    private ByteBuf(byte[] bytes, int offset, int writeIndex, int limit) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.limit = limit;
+        this.readIndex = offset;
+        this.writeIndex = writeIndex;
     }
 
 
     public byte[] getBytes() {
-        byte[] bytes = new byte[size];
-        System.arraycopy(this.bytes, 0, bytes, 0, size);
-        return bytes;
+        return Arrays.copyOfRange(bytes, readIndex, writeIndex);
     }
 
     public void shift(int offset) {
-        System.arraycopy(bytes, offset, bytes, 0, bytes.length - offset);
-        size -= offset;
+        readIndex += offset;
+        if (readIndex >= writeIndex) {
+            // everything consumed, start from the beginning again
+            readIndex = this.offset;
+            writeIndex = this.offset;
+        }
+    }
+
+    private void ensureWritable(int length) {
+        if (writeIndex + length <= limit || readIndex == offset) return;
+        int size = getSize();
+        System.arraycopy(bytes, readIndex, bytes, offset, size);
+        readIndex = offset;
+        writeIndex = offset + size;
+    }
+
+    private void checkWritable(int length) {
+        ensureWritable(length);
+        if (writeIndex + length > limit) throw new ArrayIndexOutOfBoundsException(writeIndex + length - offset);
+    }
+
+    /**
+     * Index in backing array of position, reads must end at write index like writes end at limit
+     */
+    private int checkReadable(int position, int length) {
+        int from = readIndex + position;
+        if (position < 0 || from + length > writeIndex) throw new ArrayIndexOutOfBoundsException(position + length);
+        return from;
+    }
+
+    /**
+     * View of next length bytes sharing backing array, read index is moved behind them
+     */
+    public ByteBuf readSlice(int length) {
+        if (length > getSize()) throw new ArrayIndexOutOfBoundsException(length);
+        ByteBuf slice = new ByteBuf(bytes, readIndex, readIndex + length, readIndex + length);
+        readIndex += length;
+        return slice;
     }
 
     public byte getByte(int position) {
-        return bytes[position];
+        return bytes[checkReadable(position, 1)];
     }
 
     public byte getByte() {
-        return bytes[0];
+        return getByte(0);
     }
 
     public byte readByte() {
         byte b = getByte();
-        shift(1);
+        readIndex++;
         return b;
     }
 
     public void putByte(byte b) {
-        bytes[size] = b;
-        size += 1;
+        checkWritable(1);
+        bytes[writeIndex++] = b;
     }
 
 
     public void putBytes(byte b, int count) {
-        for (int i = 0; i < count; i++) bytes[size++] = b;
+        checkWritable(count);
+        Arrays.fill(bytes, writeIndex, writeIndex + count, b);
+        writeIndex += count;
     }
 
 
     public byte[] getBytes(int position, int length) {
-        byte[] copy = new byte[length];
-        System.arraycopy(bytes, position, copy, 0, length);
-        return copy;
+        int from = checkReadable(position, length);
+        return Arrays.copyOfRange(bytes, from, from + length);
     }
 
     public byte[] getBytes(int length) {
@@ -62,17 +117,22 @@ public class ByteBuf {
 
     public byte[] readBytes(int length) {
         byte[] copy = getBytes(length);
-        shift(length);
+        readIndex += length;
         return copy;
     }
 
     byte[] readBytes() {
-        return readBytes(size);
+        return readBytes(getSize());
+    }
+
+    private void putBytes(byte[] bytes, int position, int length) {
+        checkWritable(length);
+        System.arraycopy(bytes, position, this.bytes, writeIndex, length);
+        writeIndex += length;
     }
 
     public void putBytes(byte[] bytes, int length) {
-        System.arraycopy(bytes, 0, this.bytes, size, length);
-        size += length;
+        putBytes(bytes, 0, length);
     }
 
     public void putBytes(byte[] bytes) {
@@ -81,9 +141,10 @@ public class ByteBuf {
 
 
     private byte[] getBytesLE(int position, int length) {
+        int from = checkReadable(position, length);
         byte[] copy = new byte[length];
         for (int i = 0; i < length; i++)
-            copy[i] = bytes[length - 1 - i + position];
+            copy[i] = bytes[from + length - 1 - i];
         return copy;
     }
 
@@ -93,14 +154,15 @@ public class ByteBuf {
 
     public byte[] readBytesLE(int length) {
         byte[] copy = getBytesLE(length);
-        shift(length);
+        readIndex += length;
         return copy;
     }
 
     private void putBytesLE(byte[] bytes, int length) {
+        checkWritable(length);
         for (int i = 0; i < length; i++)
-            this.bytes[size + length - 1 - i] = bytes[i];
-        size += length;
+            this.bytes[writeIndex + length - 1 - i] = bytes[i];
+        writeIndex += length;
     }
 
     void putBytesLE(byte[] bytes) {
@@ -109,12 +171,12 @@ public class ByteBuf {
 
 
     public void putByteBuf(ByteBuf byteBuf) {
-        putBytes(byteBuf.getBytes(), byteBuf.getSize());
+        putBytes(byteBuf.bytes, byteBuf.readIndex, byteBuf.getSize());
     }
 
 
     private short getUInt8(int position) {
-        return (short) (bytes[position] & 0xFF);
+        return (short) (getByte(position) & 0xFF);
     }
 
     private short getUInt8() {
@@ -122,9 +184,7 @@ public class ByteBuf {
     }
 
     public short readUInt8() {
-        short value = getUInt8();
-        shift(1);
-        return value;
+        return (short) (readByte() & 0xFF);
     }
 
     public void putUInt8(short value) {
@@ -133,6 +193,7 @@ public class ByteBuf {
 
 
     public int getUInt16LE(int position) {
+        position = checkReadable(position, 2);
         return (bytes[position++] & 0xFF |
                 (bytes[position] & 0xFF) << 8);
     }
@@ -143,13 +204,14 @@ public class ByteBuf {
 
     public int readUInt16LE() {
         int i = getUInt16LE();
-        shift(2);
+        readIndex += 2;
         return i;
     }
 
     public void putUInt16LE(int i) {
-        putByte((byte) (i & 0xFF));
-        putByte((byte) ((i >> 8) & 0xFF));
+        checkWritable(2);
+        bytes[writeIndex++] = (byte) (i & 0xFF);
+        bytes[writeIndex++] = (byte) ((i >> 8) & 0xFF);
     }
 
 
@@ -165,7 +227,7 @@ public class ByteBuf {
 
     public double readUInt16Decimal() {
         double d = getUInt16Decimal();
-        shift(2);
+        readIndex += 2;
         return d;
     }
 
@@ -189,7 +251,7 @@ public class ByteBuf {
 
     public double readUInt32Decimal100() {
         double d = getUInt32Decimal100();
-        shift(4);
+        readIndex += 4;
         return d;
     }
 
@@ -213,7 +275,7 @@ public class ByteBuf {
 
     public double readUInt32Decimal1000() {
         double d = getUInt32Decimal1000();
-        shift(4);
+        readIndex += 4;
         return d;
     }
 
@@ -226,6 +288,7 @@ public class ByteBuf {
 
 
     private short getShort(int position) {
+        position = checkReadable(position, 2);
         return (short) (bytes[position++] << 8 |
                 bytes[position] & 0xFF);
     }
@@ -236,17 +299,19 @@ public class ByteBuf {
 
     public short readShort() {
         short s = getShort();
-        shift(2);
+        readIndex += 2;
         return s;
     }
 
     public void putShort(short s) {
-        putByte((byte) (s >> 8));
-        putByte((byte) s);
+        checkWritable(2);
+        bytes[writeIndex++] = (byte) (s >> 8);
+        bytes[writeIndex++] = (byte) s;
     }
 
 
     private long getUInt32LE(int position) {
+        position = checkReadable(position, 4);
         return ((long) bytes[position++] & 0xFF) |
                 ((long) bytes[position++] & 0xFF) << 8 |
                 ((long) bytes[position++] & 0xFF) << 16 |
@@ -259,20 +324,21 @@ public class ByteBuf {
 
     public long readUInt32LE() {
         long l = getUInt32LE();
-        shift(4);
+        readIndex += 4;
         return l;
     }
 
     public void putUInt32LE(long l) {
-        putByte((byte) (l & 0xFF));
-        putByte((byte) ((l >> 8) & 0xFF));
-        putByte((byte) ((l >> 16) & 0xFF));
-        putByte((byte) ((l >> 24) & 0xFF));
+        checkWritable(4);
+        bytes[writeIndex++] = (byte) (l & 0xFF);
+        bytes[writeIndex++] = (byte) ((l >> 8) & 0xFF);
+        bytes[writeIndex++] = (byte) ((l >> 16) & 0xFF);
+        bytes[writeIndex++] = (byte) ((l >> 24) & 0xFF);
     }
 
 
     private String getUTF16(int position, int stringLength) {
-        String string = new String(getBytes(position, stringLength * 2 + 2), StandardCharsets.UTF_16LE);
+        String string = new String(bytes, checkReadable(position, stringLength * 2 + 2), stringLength * 2 + 2, StandardCharsets.UTF_16LE);
         return string.substring(0, string.indexOf(new String(new char[]{0, 0})));
     }
 
@@ -282,7 +348,7 @@ public class ByteBuf {
 
     public String readUTF16(int stringLength) {
         String string = getUTF16(stringLength);
-        shift(stringLength * 2 + 2);
+        readIndex += stringLength * 2 + 2;
         return string;
     }
 
@@ -293,7 +359,7 @@ public class ByteBuf {
 
 
     private String getASCII(int position, int stringLength) {
-        String string = new String(getBytes(position, stringLength + 1), StandardCharsets.US_ASCII);
+        String string = new String(bytes, checkReadable(position, stringLength + 1), stringLength + 1, StandardCharsets.US_ASCII);
         return string.substring(0, string.indexOf(0));
     }
 
@@ -303,7 +369,7 @@ public class ByteBuf {
 
     public String readASCII(int stringLength) {
         String string = getASCII(stringLength);
-        shift(stringLength + 1);
+        readIndex += stringLength + 1;
         return string;
     }
 
@@ -323,7 +389,7 @@ public class ByteBuf {
 
     public boolean readBoolean() {
         boolean bool = getBoolean();
-        shift(2);
+        readIndex += 2;
         return bool;
     }
 
@@ -342,11 +408,19 @@ public class ByteBuf {
         return from(bytes, bytes.length);
     }
 
+    /**
+     * Buffer reading given array without copying it. Array must not be modified afterwards
+     */
+    public static ByteBuf wrap(byte[] bytes) {
+        return new ByteBuf(bytes, 0, bytes.length, bytes.length);
+    }
+
     public int getSize() {
-        return this.size;
+        return writeIndex - readIndex;
     }
 
     public void clear() {
-        shift(size);
+        readIndex = offset;
+        writeIndex = offset;
     }
 }
@@ -0,0 +1,66 @@
+package info.nightscout.androidaps.plugins.pump.insight.app_layer.history
+
+import info.nightscout.androidaps.plugins.pump.insight.app_layer.history.history_events.BolusDeliveredEvent
+import info.nightscout.androidaps.plugins.pump.insight.utils.ByteBuf
+import org.junit.Assert
+import org.junit.Test
+import org.mockito.Mockito
+
+class ReadHistoryEventsMessageTest {
+
+    private val eventLength = 30
+
+    // BCD encoded as sent by pump
+    private fun boc(value: Int): Byte = ((value / 10 shl 4) or (value % 10)).toByte()
+
+    private fun bolusDeliveredEvent(index: Int): ByteBuf = ByteBuf(eventLength).apply {
+        putUInt16LE(917)
+        putByte(boc(20)); putByte(boc(22)); putByte(boc(5)); putByte(boc(index % 28 + 1))
+        putByte(0)
+        putByte(boc(index % 24)); putByte(boc(index % 60)); putByte(boc(30))
+        putUInt32LE(index.toLong())
+        putUInt16LE(0)
+        putByte(0)
+        putByte(boc(index % 24)); putByte(boc(index % 60)); putByte(boc(0))
+        putUInt16Decimal(index % 100 / 10.0)
+        putUInt16Decimal(0.0)
+        putUInt16LE(0)
+        putUInt16LE(0)
+        putUInt16LE(index)
+    }
+
+    private fun batch(count: Int): ByteArray {
+        val byteBuf = ByteBuf(4 + count * (eventLength + 2))
+        byteBuf.putUInt16LE(0)
+        byteBuf.putUInt16LE(count)
+        for (i in 0 until count) {
+            byteBuf.putUInt16LE(eventLength)
+            byteBuf.putByteBuf(bolusDeliveredEvent(i))
+        }
+        return byteBuf.bytes
+    }
+
+    private fun parse(data: ByteArray): List<BolusDeliveredEvent> =
+        ReadHistoryEventsMessage().also { it.parse(ByteBuf.from(data)) }.historyEvents.map { it as BolusDeliveredEvent }
+
+    @Test
+    fun parsesBatch() {
+        val events = parse(batch(100))
+        Assert.assertEquals(100, events.size)
+        Assert.assertEquals(42L, events[42].eventPosition)
+        Assert.assertEquals(4.2, events[42].immediateAmount, 0.001)
+        Assert.assertEquals(42, events[42].bolusID)
+        Assert.assertEquals(18, events[42].startHour)
+        Assert.assertEquals((0L until 100L).toList(), events.map { it.eventPosition })
+    }
+
+    @Test
+    fun eventsAreReadFromSlicesWithoutCopying() {
+        val byteBuf = Mockito.spy(ByteBuf.wrap(batch(100)))
+        ReadHistoryEventsMessage().parse(byteBuf)
+        Mockito.verify(byteBuf, Mockito.times(100)).readSlice(eventLength)
+        Mockito.verify(byteBuf, Mockito.never()).readBytes(Mockito.anyInt())
+        Mockito.verify(byteBuf, Mockito.never()).getBytes(Mockito.anyInt(), Mockito.anyInt())
+        Assert.assertEquals(0, byteBuf.size)
+    }
+}
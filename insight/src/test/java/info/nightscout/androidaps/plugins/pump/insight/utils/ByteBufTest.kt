@@ -0,0 +1,84 @@
+package info.nightscout.androidaps.plugins.pump.insight.utils
+
+import org.junit.Assert
+import org.junit.Test
+import java.util.Random
+
+class ByteBufTest {
+
+    @Test
+    fun randomOperationsMatchQueueOfBytes() {
+        val random = Random(7)
+        val capacity = 64
+        val byteBuf = ByteBuf(capacity)
+        // unread bytes in order of writing
+        val expected = ArrayDeque<Byte>()
+        fun written(bytes: ByteArray) = bytes.forEach { expected.addLast(it) }
+        fun littleEndian(value: Long, length: Int) = ByteArray(length) { (value shr 8 * it).toByte() }
+        fun next(length: Int) = ByteArray(length) { expected.removeFirst() }
+        fun nextLittleEndian(length: Int) = next(length).foldIndexed(0L) { i, value, b -> value or (b.toLong() and 0xFF shl 8 * i) }
+        repeat(100_000) { step ->
+            val size = expected.size
+            val free = capacity - size
+            when (random.nextInt(14)) {
+                0    -> if (free >= 1) random.nextInt().toByte().let { byteBuf.putByte(it); written(byteArrayOf(it)) }
+                1    -> if (free >= 2) random.nextInt(65536).let { byteBuf.putUInt16LE(it); written(littleEndian(it.toLong(), 2)) }
+                2    -> if (free >= 4) random.nextInt().toLong().and(0xFFFFFFFFL).let { byteBuf.putUInt32LE(it); written(littleEndian(it, 4)) }
+                3    -> if (free >= 8) ByteArray(random.nextInt(9)).also { random.nextBytes(it) }.let { byteBuf.putBytes(it); written(it) }
+                4    -> if (free >= 2) random.nextBoolean().let { byteBuf.putBoolean(it); written(littleEndian(if (it) 75 else 180, 2)) }
+                5    -> if (size >= 1) Assert.assertEquals("$step", next(1)[0], byteBuf.readByte())
+                6    -> if (size >= 2) Assert.assertEquals("$step", nextLittleEndian(2).toInt(), byteBuf.readUInt16LE())
+                7    -> if (size >= 4) Assert.assertEquals("$step", nextLittleEndian(4), byteBuf.readUInt32LE())
+                8    -> if (size >= 2) Assert.assertEquals("$step", next(2).let { (it[0].toInt() shl 8 or (it[1].toInt() and 0xFF)).toShort() }, byteBuf.readShort())
+                9    -> random.nextInt(size + 1).let { Assert.assertArrayEquals("$step", next(it), byteBuf.readBytes(it)) }
+                10   -> random.nextInt(size + 1).let { Assert.assertArrayEquals("$step", next(it).reversedArray(), byteBuf.readBytesLE(it)) }
+                11   -> if (size >= 4) Assert.assertEquals("$step", nextLittleEndian(4) / 100.0, byteBuf.readUInt32Decimal100(), 0.0)
+                12   -> if (size >= 1) random.nextInt(size).let { Assert.assertEquals("$step", expected[it], byteBuf.getByte(it)) }
+                else -> random.nextInt(size + 1).let { byteBuf.shift(it); next(it) }
+            }
+            Assert.assertEquals("$step", expected.size, byteBuf.size)
+            Assert.assertArrayEquals("$step", expected.toByteArray(), byteBuf.bytes)
+        }
+    }
+
+    @Test
+    fun sliceSharesDataAndMovesReadIndex() {
+        val byteBuf = ByteBuf.wrap(byteArrayOf(1, 2, 3, 4, 5, 6))
+        byteBuf.shift(1)
+        val slice = byteBuf.readSlice(3)
+        Assert.assertEquals(3, slice.size)
+        Assert.assertArrayEquals(byteArrayOf(2, 3, 4), slice.bytes)
+        Assert.assertEquals(0x0302, slice.readUInt16LE())
+        Assert.assertEquals(4.toByte(), slice.readByte())
+        Assert.assertEquals(0, slice.size)
+        Assert.assertArrayEquals(byteArrayOf(5, 6), byteBuf.bytes)
+    }
+
+    @Test(expected = ArrayIndexOutOfBoundsException::class)
+    fun sliceCannotGrow() {
+        val slice = ByteBuf.wrap(byteArrayOf(1, 2, 3)).readSlice(2)
+        slice.putByte(0)
+    }
+
+    @Test(expected = ArrayIndexOutOfBoundsException::class)
+    fun sliceCannotReadBehindItsEnd() {
+        val slice = ByteBuf.wrap(byteArrayOf(1, 2, 3)).readSlice(2)
+        slice.readUInt16LE()
+        slice.readByte()
+    }
+
+    @Test(expected = ArrayIndexOutOfBoundsException::class)
+    fun sliceCannotCopyBehindItsEnd() {
+        ByteBuf.wrap(byteArrayOf(1, 2, 3)).readSlice(2).getBytes(1, 2)
+    }
+
+    @Test
+    fun consumedSpaceIsReused() {
+        val byteBuf = ByteBuf(4)
+        byteBuf.putUInt32LE(0x04030201)
+        Assert.assertEquals(1.toByte(), byteBuf.readByte())
+        Assert.assertEquals(2.toByte(), byteBuf.readByte())
+        byteBuf.putUInt16LE(0x0605)
+        Assert.assertArrayEquals(byteArrayOf(3, 4, 5, 6), byteBuf.bytes)
+    }
+}
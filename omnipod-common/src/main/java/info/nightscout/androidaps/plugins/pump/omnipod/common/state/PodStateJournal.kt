@@ -0,0 +1,332 @@
+package info.nightscout.androidaps.plugins.pump.omnipod.common.state
+
+import com.google.gson.JsonObject
+import com.google.gson.JsonParser
+import info.nightscout.shared.logging.AAPSLogger
+import info.nightscout.shared.logging.LTag
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.util.zip.CRC32
+
+/**
+ * Append-only store of pod state replacing whole state JSON written to SharedPreferences on every change
+ *
+ * State is a JSON object, only its top level fields which changed since last [store] are appended to journal.
+ * Journal is merged into snapshot after [snapshotThreshold] records.
+ * Changes of [store] critical fields are synced to disk before returning, others are synced
+ * with next critical change or after [syncInterval]. Without sync data survives app crash but not power loss.
+ * Changes which failed to be written are kept out of stored state, next [store] writes them again.
+ *
+ * snapshot: [MAGIC], generation (long), framed record with all fields
+ * journal: [MAGIC], generation (long), framed records
+ * framed record: payload length (int), CRC32 of payload (int), payload
+ * payload: count (int) + (type (byte), field name, field JSON) per field, removed field has no JSON
+ *
+ * Journal is replayed only over snapshot of the same generation, torn record at the end (crash during write) is dropped.
+ */
+class PodStateJournal(
+    private val directory: File,
+    private val aapsLogger: AAPSLogger,
+    private val syncInterval: Long = 60 * 1000L,
+    private val snapshotThreshold: Int = 500,
+    private val clock: () -> Long = { System.currentTimeMillis() }
+) {
+
+    private val snapshotFile = File(directory, "snapshot")
+    private val journalFile = File(directory, "journal")
+
+    private var fields: MutableMap<String, String>? = null
+    private var generation = 0L
+    private var journal: FileOutputStream? = null
+    private var records = 0
+    private var unsynced = false
+    private var lastSync = 0L
+
+    /**
+     * @return stored state or null if nothing is stored
+     */
+    @Synchronized
+    fun load(): JsonObject? {
+        val fields = loadedFields()
+        if (fields.isEmpty()) return null
+        return JsonObject().also { state -> fields.forEach { (name, json) -> state.add(name, JsonParser.parseString(json)) } }
+    }
+
+    /**
+     * Appends fields of [state] which differ from stored ones
+     *
+     * @param critical names of fields which must be on disk before returning
+     * @return changed fields and their JSON, null for removed ones
+     * @throws IOException when change of critical field is not on disk
+     */
+    @Synchronized
+    @Throws(IOException::class)
+    fun store(state: JsonObject, critical: Set<String> = emptySet()): Map<String, String?> {
+        val fields = loadedFields()
+        val changes = LinkedHashMap<String, String?>()
+        state.entrySet().forEach { (name, value) ->
+            val json = value.toString()
+            if (fields[name] != json) changes[name] = json
+        }
+        fields.keys.filter { !state.has(it) }.forEach { changes[it] = null }
+        if (changes.isEmpty()) return changes
+
+        val isCritical = changes.keys.any { it in critical }
+        try {
+            if (records >= snapshotThreshold) writeSnapshot(LinkedHashMap(fields).also { merge(it, changes) })
+            else {
+                appendRecord(changes)
+                if (isCritical || clock() - lastSync >= syncInterval) syncJournal()
+            }
+        } catch (e: IOException) {
+            aapsLogger.error(LTag.PUMP, "Failed to store Pod state", e)
+            // rewrite everything on next store, not stored changes are found again by comparing with fields
+            closeJournal()
+            records = snapshotThreshold
+            if (isCritical) throw e
+            return changes
+        }
+        merge(fields, changes)
+        return changes
+    }
+
+    /**
+     * Forces unsynced changes to disk
+     */
+    @Synchronized
+    fun sync() {
+        try {
+            syncJournal()
+        } catch (e: IOException) {
+            aapsLogger.error(LTag.PUMP, "Failed to sync Pod state", e)
+        }
+    }
+
+    @Synchronized
+    fun close() {
+        sync()
+        closeJournal()
+    }
+
+    private fun loadedFields(): MutableMap<String, String> =
+        fields ?: recover().also { fields = it }
+
+    private fun recover(): MutableMap<String, String> {
+        val created = directory.mkdirs()
+        val fields = LinkedHashMap<String, String>()
+        generation = 0L
+        try {
+            if (snapshotFile.exists()) DataInputStream(snapshotFile.inputStream().buffered()).use { input ->
+                readHeader(input)?.let { snapshotGeneration ->
+                    readRecord(input)?.let { record ->
+                        generation = snapshotGeneration
+                        apply(fields, record)
+                    }
+                }
+                    ?: aapsLogger.error(LTag.PUMP, "Pod state snapshot is corrupted")
+            }
+        } catch (e: IOException) {
+            aapsLogger.error(LTag.PUMP, "Failed to read Pod state snapshot", e)
+        }
+        records = 0
+        var validLength = 0L
+        try {
+            if (journalFile.exists()) DataInputStream(journalFile.inputStream().buffered()).use { input ->
+                if (readHeader(input) == generation) {
+                    validLength = HEADER_SIZE.toLong()
+                    while (true) {
+                        val record = readRecord(input) ?: break
+                        apply(fields, record)
+                        validLength += FRAME_SIZE + record.size
+                        records++
+                    }
+                }
+            }
+        } catch (e: IOException) {
+            aapsLogger.error(LTag.PUMP, "Failed to read Pod state journal", e)
+        }
+        if (journalFile.exists() && validLength < journalFile.length())
+            aapsLogger.warn(LTag.PUMP, "Pod state journal: dropping ${journalFile.length() - validLength} bytes after last complete record")
+        try {
+            if (created) syncDirectory(directory.parentFile)
+            openJournal(validLength)
+        } catch (e: IOException) {
+            aapsLogger.error(LTag.PUMP, "Failed to open Pod state journal", e)
+            closeJournal()
+            records = snapshotThreshold
+        }
+        return fields
+    }
+
+    /**
+     * Continues journal after last valid record or starts a new one
+     */
+    private fun openJournal(validLength: Long) {
+        if (validLength >= HEADER_SIZE) {
+            RandomAccessFile(journalFile, "rw").use { it.setLength(validLength) }
+            journal = FileOutputStream(journalFile, true)
+        } else {
+            journal = FileOutputStream(journalFile, false).also { output ->
+                output.write(header(generation))
+                output.fd.sync()
+            }
+            syncDirectory(directory)
+        }
+        lastSync = clock()
+    }
+
+    private fun syncJournal() {
+        if (!unsynced) return
+        journal?.fd?.sync()
+        unsynced = false
+        lastSync = clock()
+    }
+
+    private fun closeJournal() {
+        try {
+            journal?.close()
+        } catch (e: IOException) {
+            aapsLogger.error(LTag.PUMP, "Failed to close Pod state journal", e)
+        }
+        journal = null
+    }
+
+    private fun appendRecord(changes: Map<String, String?>) {
+        val output = journal ?: throw IOException("Journal is not open")
+        // single write so record is torn only by crash of the whole system
+        output.write(frame(encode(changes)))
+        records++
+        unsynced = true
+    }
+
+    /**
+     * New snapshot is synced and renamed over the old one before journal of new generation is started.
+     * After crash in between old journal is ignored because of its generation.
+     */
+    private fun writeSnapshot(fields: Map<String, String>) {
+        closeJournal()
+        val newGeneration = generation + 1
+        val tmp = File(directory, "snapshot.tmp")
+        FileOutputStream(tmp).use { output ->
+            output.write(header(newGeneration) + frame(encode(fields)))
+            output.fd.sync()
+        }
+        if (!tmp.renameTo(snapshotFile)) throw IOException("Failed to rename $tmp")
+        // rename is durable only after directory is synced
+        syncDirectory(directory)
+        generation = newGeneration
+        records = 0
+        unsynced = false
+        openJournal(0)
+    }
+
+    /**
+     * Makes created or renamed entries of [dir] durable
+     */
+    private fun syncDirectory(dir: File?) {
+        dir ?: return
+        try {
+            FileChannel.open(dir.toPath(), StandardOpenOption.READ).use { it.force(true) }
+        } catch (e: IOException) {
+            // not every file system allows to open directory, file data is synced anyway
+            aapsLogger.warn(LTag.PUMP, "Failed to sync $dir: ${e.message}")
+        }
+    }
+
+    private fun header(generation: Long): ByteArray =
+        ByteArrayOutputStream(HEADER_SIZE).also { bytes ->
+            DataOutputStream(bytes).run {
+                write(MAGIC)
+                writeLong(generation)
+            }
+        }.toByteArray()
+
+    private fun readHeader(input: DataInputStream): Long? =
+        try {
+            val magic = ByteArray(MAGIC.size)
+            input.readFully(magic)
+            if (magic.contentEquals(MAGIC)) input.readLong() else null
+        } catch (e: EOFException) {
+            null
+        }
+
+    private fun frame(payload: ByteArray): ByteArray =
+        ByteArrayOutputStream(FRAME_SIZE + payload.size).also { bytes ->
+            DataOutputStream(bytes).run {
+                writeInt(payload.size)
+                writeInt(crc(payload))
+                write(payload)
+            }
+        }.toByteArray()
+
+    /**
+     * @return payload or null at the end of file or at torn or corrupted record
+     */
+    private fun readRecord(input: DataInputStream): ByteArray? =
+        try {
+            val length = input.readInt()
+            val crc = input.readInt()
+            if (length < 0 || length > MAX_RECORD_SIZE) null
+            else ByteArray(length).also { input.readFully(it) }.takeIf { crc(it) == crc }
+        } catch (e: EOFException) {
+            null
+        }
+
+    private fun encode(changes: Map<String, String?>): ByteArray =
+        ByteArrayOutputStream().also { bytes ->
+            DataOutputStream(bytes).run {
+                writeInt(changes.size)
+                changes.forEach { (name, json) ->
+                    writeByte((if (json == null) REMOVE else SET).toInt())
+                    writeString(name)
+                    json?.let { writeString(it) }
+                }
+            }
+        }.toByteArray()
+
+    private fun apply(fields: MutableMap<String, String>, payload: ByteArray) {
+        DataInputStream(ByteArrayInputStream(payload)).run {
+            repeat(readInt()) {
+                when (readByte()) {
+                    SET    -> fields[readString()] = readString()
+                    REMOVE -> fields.remove(readString())
+                    else   -> throw IOException("Unknown Pod state record type")
+                }
+            }
+        }
+    }
+
+    private fun merge(fields: MutableMap<String, String>, changes: Map<String, String?>) =
+        changes.forEach { (name, json) -> if (json == null) fields.remove(name) else fields[name] = json }
+
+    private fun crc(payload: ByteArray): Int = CRC32().also { it.update(payload) }.value.toInt()
+
+    // writeUTF is limited to 64 kB
+    private fun DataOutputStream.writeString(value: String) {
+        val bytes = value.toByteArray(Charsets.UTF_8)
+        writeInt(bytes.size)
+        write(bytes)
+    }
+
+    private fun DataInputStream.readString(): String =
+        String(ByteArray(readInt()).also { readFully(it) }, Charsets.UTF_8)
+
+    companion object {
+
+        private val MAGIC = "PODSTAT1".toByteArray(Charsets.US_ASCII)
+        private val HEADER_SIZE = MAGIC.size + 8
+        private const val FRAME_SIZE = 8
+        private const val MAX_RECORD_SIZE = 1024 * 1024
+        private const val SET: Byte = 1
+        private const val REMOVE: Byte = 2
+    }
+}
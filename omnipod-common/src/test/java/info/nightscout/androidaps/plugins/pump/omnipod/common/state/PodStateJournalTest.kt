@@ -0,0 +1,189 @@
+package info.nightscout.androidaps.plugins.pump.omnipod.common.state
+
+import com.google.gson.JsonArray
+import com.google.gson.JsonObject
+import info.nightscout.shared.logging.AAPSLoggerTest
+import org.junit.Assert
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+
+class PodStateJournalTest {
+
+    @get:Rule val folder = TemporaryFolder()
+
+    private val aapsLogger = AAPSLoggerTest()
+    private val critical = setOf("messageSequenceNumber", "deliveryStatus")
+
+    private fun directory() = File(folder.root, "pod_state")
+    private fun journal(snapshotThreshold: Int = 500) = PodStateJournal(directory(), aapsLogger, snapshotThreshold = snapshotThreshold)
+
+    /**
+     * Similar to Dash pod state after activation
+     */
+    private fun podState(statusResponses: Int): JsonObject = JsonObject().apply {
+        addProperty("activationProgress", "COMPLETED")
+        addProperty("uniqueId", 1234567)
+        addProperty("bluetoothAddress", "00:11:22:33:44:55")
+        add("ltk", JsonArray().apply { repeat(16) { add(it) } })
+        addProperty("eapAkaSequenceNumber", 42 + statusResponses)
+        addProperty("messageSequenceNumber", statusResponses and 0x0f)
+        addProperty("sequenceNumberOfLastProgrammingCommand", 3)
+        addProperty("activationTime", 1_650_000_000_000L)
+        addProperty("timeZone", "Europe/Amsterdam")
+        addProperty("timeZoneOffset", 7_200_000)
+        addProperty("podStatus", "RUNNING_ABOVE_MIN_VOLUME")
+        addProperty("deliveryStatus", "BASAL_ACTIVE")
+        add("basalProgram", JsonObject().apply {
+            add("segments", JsonArray().apply {
+                repeat(24) { hour -> add(JsonObject().apply { addProperty("startSlotIndex", hour * 2); addProperty("endSlotIndex", hour * 2 + 2); addProperty("basalRateInHundredthUnitsPerHour", 85 + hour) }) }
+            })
+        })
+        add("firmwareVersion", JsonObject().apply { addProperty("major", 4); addProperty("minor", 10); addProperty("interim", 0) })
+        add("bleVersion", JsonObject().apply { addProperty("major", 1); addProperty("minor", 1); addProperty("interim", 0) })
+        addProperty("lotNumber", 135556289)
+        addProperty("podSequenceNumber", 681767)
+        addProperty("podLifeInHours", 80)
+        // changed by every status response
+        addProperty("lastUpdatedSystem", 1_650_000_000_000L + statusResponses * 180_000L)
+        addProperty("lastStatusResponseReceived", 5_000_000L + statusResponses * 180_000L)
+        addProperty("pulsesDelivered", 200 + statusResponses)
+        addProperty("pulsesRemaining", 1023)
+        addProperty("minutesSinceActivation", 60 + statusResponses * 3)
+        add("activeAlerts", JsonArray())
+    }
+
+    @Test
+    fun stateIsRestoredByNewInstance() {
+        val journal = journal()
+        Assert.assertNull(journal.load())
+
+        journal.store(podState(0), critical)
+        val changes = journal.store(podState(1), critical)
+        journal.close()
+
+        Assert.assertEquals(setOf("eapAkaSequenceNumber", "messageSequenceNumber", "lastUpdatedSystem", "lastStatusResponseReceived", "pulsesDelivered", "minutesSinceActivation"), changes.keys)
+        Assert.assertEquals(podState(1), journal().load())
+    }
+
+    @Test
+    fun removedFieldIsRemoved() {
+        val journal = journal()
+        journal.store(podState(0), critical)
+        val state = podState(1).apply { remove("deliveryStatus") }
+
+        val changes = journal.store(state, critical)
+
+        Assert.assertTrue(changes.containsKey("deliveryStatus"))
+        Assert.assertNull(changes["deliveryStatus"])
+        Assert.assertEquals(state, journal().load())
+    }
+
+    @Test
+    fun tornRecordIsDroppedAfterCrash() {
+        val journal = journal()
+        journal.store(podState(0), critical)
+        journal.store(podState(1), critical)
+        val journalFile = File(directory(), "journal")
+        val lengthAfterSecond = journalFile.length()
+        journal.store(podState(2), critical)
+        // crash in the middle of writing last record
+        RandomAccessFile(journalFile, "rw").use { it.setLength(journalFile.length() - 5) }
+
+        val recovered = journal()
+        Assert.assertEquals(podState(1), recovered.load())
+        Assert.assertEquals(lengthAfterSecond, journalFile.length())
+
+        // journal continues after last complete record
+        recovered.store(podState(3), critical)
+        Assert.assertEquals(podState(3), journal().load())
+    }
+
+    @Test
+    fun corruptedRecordIsDroppedAfterCrash() {
+        val journal = journal()
+        journal.store(podState(0), critical)
+        journal.store(podState(1), critical)
+        val journalFile = File(directory(), "journal")
+        // garbage written instead of last record
+        RandomAccessFile(journalFile, "rw").use { it.seek(journalFile.length() - 3); it.write(byteArrayOf(1, 2, 3)) }
+
+        Assert.assertEquals(podState(0), journal().load())
+    }
+
+    @Test
+    fun journalIsMergedToSnapshot() {
+        val journal = journal(snapshotThreshold = 3)
+        repeat(10) { journal.store(podState(it), critical) }
+
+        Assert.assertTrue(File(directory(), "snapshot").exists())
+        Assert.assertEquals(podState(9), journal(snapshotThreshold = 3).load())
+    }
+
+    @Test
+    fun oldJournalIsIgnoredAfterCrashDuringSnapshot() {
+        val journal = journal(snapshotThreshold = 3)
+        repeat(3) { journal.store(podState(it), critical) }
+        val journalFile = File(directory(), "journal")
+        val oldJournal = journalFile.readBytes()
+        // snapshot is written on next store
+        journal.store(podState(3), critical)
+        journal.close()
+        // crash after snapshot was renamed but before new journal was started
+        FileOutputStream(journalFile).use { it.write(oldJournal) }
+        // and unfinished snapshot of later state
+        File(directory(), "snapshot.tmp").writeBytes(byteArrayOf(1, 2, 3))
+
+        Assert.assertEquals(podState(3), journal(snapshotThreshold = 3).load())
+    }
+
+    @Test
+    fun failedChangeIsStoredByNextStore() {
+        val journal = journal(snapshotThreshold = 1)
+        journal.store(podState(0), critical)
+        // snapshot written by next store can't be created
+        val tmp = File(directory(), "snapshot.tmp").apply { mkdir() }
+
+        Assert.assertThrows(IOException::class.java) { journal.store(podState(1), critical) }
+        // not critical failure is only logged
+        val notCritical = podState(0).apply { addProperty("pulsesRemaining", 1000) }
+        Assert.assertEquals(setOf("pulsesRemaining"), journal.store(notCritical, critical).keys)
+
+        tmp.delete()
+        val changes = journal.store(podState(1), critical)
+        Assert.assertTrue(changes.keys.containsAll(setOf("messageSequenceNumber", "pulsesDelivered")))
+        Assert.assertEquals(podState(1), journal().load())
+    }
+
+    /**
+     * Status response every 3 min for a day compared to whole state JSON rewritten on each of them
+     * as SharedPreferences did
+     */
+    @Test
+    fun writeCost() {
+        val updates = 480
+        var blobBytes = 0L
+        for (i in 0 until updates) blobBytes += podState(i).toString().toByteArray().size
+
+        val journal = journal()
+        journal.store(podState(0), critical)
+        val journalFile = File(directory(), "journal")
+        val snapshotFile = File(directory(), "snapshot")
+        val initialBytes = journalFile.length()
+        // only status fields change, sequence numbers are rolled back to keep them out of the comparison
+        val sequenceNumbers = podState(0)
+        for (i in 1 until updates) {
+            val state = podState(i)
+            state.add("eapAkaSequenceNumber", sequenceNumbers.get("eapAkaSequenceNumber"))
+            state.add("messageSequenceNumber", sequenceNumbers.get("messageSequenceNumber"))
+            journal.store(state, critical)
+        }
+        val journalBytes = journalFile.length() - initialBytes + snapshotFile.length()
+
+        Assert.assertTrue("journal $journalBytes bytes, whole state $blobBytes bytes", journalBytes * 4 < blobBytes)
+    }
+}
@@ -1,11 +1,13 @@
 package info.nightscout.androidaps.plugins.pump.omnipod.dash.driver.pod.state
 
+import android.content.Context
 import android.os.SystemClock
 import com.google.gson.Gson
 import info.nightscout.androidaps.data.DetailedBolusInfo
 import info.nightscout.shared.logging.AAPSLogger
 import info.nightscout.shared.logging.LTag
 import info.nightscout.androidaps.plugins.bus.RxBus
+import info.nightscout.androidaps.plugins.pump.omnipod.common.state.PodStateJournal
 import info.nightscout.androidaps.plugins.pump.omnipod.dash.EventOmnipodDashPumpValuesChanged
 import info.nightscout.androidaps.plugins.pump.omnipod.dash.R
 import info.nightscout.androidaps.plugins.pump.omnipod.dash.driver.comm.Id
@@ -21,6 +23,8 @@ import info.nightscout.shared.sharedPreferences.SP
 import io.reactivex.rxjava3.core.Completable
 import io.reactivex.rxjava3.core.Maybe
 import io.reactivex.rxjava3.core.Single
+import java.io.File
+import java.io.IOException
 import java.io.Serializable
 import java.time.Duration
 import java.time.Instant
@@ -35,9 +39,12 @@ import javax.inject.Singleton
 class OmnipodDashPodStateManagerImpl @Inject constructor(
     private val logger: AAPSLogger,
     private val sharedPreferences: SP,
-    private val rxBus: RxBus
+    private val rxBus: RxBus,
+    context: Context
 ) : OmnipodDashPodStateManager {
 
+    private val gson = Gson()
+    private val journal = PodStateJournal(File(context.filesDir, JOURNAL_DIRECTORY), logger)
     private var podState: PodState
 
     init {
@@ -677,24 +684,41 @@ class OmnipodDashPodStateManagerImpl @Inject constructor(
     }
 
     private fun store() {
-        try {
-            val cleanPodState = podState.copy(ltk = byteArrayOf()) // do not log ltk
-            logger.debug(LTag.PUMPCOMM, "Storing Pod state: ${Gson().toJson(cleanPodState)}")
-
-            val serialized = Gson().toJson(podState)
-            sharedPreferences.putString(R.string.key_omnipod_dash_pod_state, serialized)
+        val changes = try {
+            journal.store(gson.toJsonTree(podState).asJsonObject, CRITICAL_FIELDS)
+        } catch (ex: IOException) {
+            // sequence numbers or keys lost on restart would make the pod reject commands, do not continue
+            throw IllegalStateException("Failed to store Pod state", ex)
         } catch (ex: Exception) {
             logger.error(LTag.PUMPCOMM, "Failed to store Pod state", ex)
+            return
         }
+        // do not log ltk
+        logger.debug(LTag.PUMPCOMM, "Storing Pod state: ${changes.mapValues { (name, json) -> if (name == "ltk") "<changed>" else json }}")
     }
 
     private fun load(): PodState {
+        try {
+            journal.load()?.let { return gson.fromJson(it, PodState::class.java) }
+        } catch (ex: Exception) {
+            logger.error(LTag.PUMPCOMM, "Failed to deserialize Pod state", ex)
+        }
+        // state stored by previous versions
         if (sharedPreferences.contains(R.string.key_omnipod_dash_pod_state)) {
             try {
-                return Gson().fromJson(
+                val podState = gson.fromJson(
                     sharedPreferences.getString(R.string.key_omnipod_dash_pod_state, ""),
                     PodState::class.java
                 )
+                try {
+                    journal.store(gson.toJsonTree(podState).asJsonObject, CRITICAL_FIELDS)
+                    journal.sync()
+                    sharedPreferences.remove(R.string.key_omnipod_dash_pod_state)
+                } catch (ex: IOException) {
+                    // keep old state to be migrated on next start
+                    logger.error(LTag.PUMPCOMM, "Failed to migrate Pod state", ex)
+                }
+                return podState
             } catch (ex: Exception) {
                 logger.error(LTag.PUMPCOMM, "Failed to deserialize Pod state", ex)
             }
@@ -753,4 +777,16 @@ class OmnipodDashPodStateManagerImpl @Inject constructor(
         var activeCommand: OmnipodDashPodStateManager.ActiveCommand? = null,
         var lastBolus: OmnipodDashPodStateManager.LastBolus? = null
     ) : Serializable
+
+    companion object {
+
+        private const val JOURNAL_DIRECTORY = "omnipod_dash_pod_state"
+
+        // must survive power loss: needed to talk to the pod or to know what it delivers
+        private val CRITICAL_FIELDS = setOf(
+            "activationProgress", "uniqueId", "bluetoothAddress", "ltk", "eapAkaSequenceNumber", "messageSequenceNumber",
+            "sequenceNumberOfLastProgrammingCommand", "activationTime", "timeZone", "timeZoneOffset",
+            "podStatus", "deliveryStatus", "basalProgram", "tempBasal", "activeCommand", "lastBolus"
+        )
+    }
 }
@@ -3,10 +3,10 @@ package info.nightscout.androidaps.plugins.pump.omnipod.eros.driver.manager;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
 import com.google.gson.JsonSerializer;
 
-import org.apache.commons.lang3.StringUtils;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.joda.time.Duration;
@@ -649,22 +649,27 @@ public abstract class ErosPodStateManager {
     }
 
     public void storePodState() {
-        String podState = gsonInstance.toJson(this.podState);
-        aapsLogger.debug(LTag.PUMP, "storePodState: storing podState: {}", podState);
-        storePodState(podState);
+        // empty object for no Pod state
+        storePodState(hasPodState() ? gsonInstance.toJsonTree(this.podState).getAsJsonObject() : new JsonObject());
     }
 
-    protected abstract void storePodState(String podState);
+    /**
+     * Called on every change, implementation should write only changed fields
+     */
+    protected abstract void storePodState(JsonObject podState);
 
-    protected abstract String readPodState();
+    /**
+     * @return stored Pod state or null if there is none or it is empty
+     */
+    protected abstract JsonObject readPodState();
 
     // Should be called after initializing the object
     public final void loadPodState() {
         podState = null;
 
-        String storedPodState = readPodState();
+        JsonObject storedPodState = readPodState();
 
-        if (StringUtils.isEmpty(storedPodState)) {
+        if (storedPodState == null) {
             aapsLogger.info(LTag.PUMP, "loadPodState: no Pod state was provided");
         } else {
             aapsLogger.info(LTag.PUMP, "loadPodState: serialized Pod state was provided: " + storedPodState);
@@ -1,12 +1,28 @@
 package info.nightscout.androidaps.plugins.pump.omnipod.eros.manager;
 
+import android.content.Context;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import info.nightscout.shared.logging.AAPSLogger;
+import info.nightscout.shared.logging.LTag;
 import info.nightscout.androidaps.plugins.bus.RxBus;
 import info.nightscout.androidaps.plugins.general.overview.events.EventDismissNotification;
 import info.nightscout.androidaps.plugins.general.overview.notifications.Notification;
+import info.nightscout.androidaps.plugins.pump.omnipod.common.state.PodStateJournal;
 import info.nightscout.androidaps.plugins.pump.omnipod.eros.definition.OmnipodErosStorageKeys;
 import info.nightscout.androidaps.plugins.pump.omnipod.eros.driver.manager.ErosPodStateManager;
 import info.nightscout.androidaps.plugins.pump.omnipod.eros.event.EventOmnipodErosActiveAlertsChanged;
@@ -17,24 +33,68 @@ import info.nightscout.shared.sharedPreferences.SP;
 
 @Singleton
 public class AapsErosPodStateManager extends ErosPodStateManager {
+    private static final String JOURNAL_DIRECTORY = "omnipod_eros_pod_state";
+
+    // must survive power loss: needed to talk to the pod or to know what it delivers
+    private static final Set<String> CRITICAL_FIELDS = new HashSet<>(Arrays.asList(
+            "address", "packetNumber", "messageNumber", "nonceState", "activationProgress", "podProgressStatus",
+            "lastDeliveryStatus", "suspended", "timeZone", "activatedAt", "basalSchedule", "basalCertain",
+            "lastBolusStartTime", "lastBolusAmount", "lastBolusDuration", "lastBolusCertain",
+            "tempBasalAmount", "tempBasalStartTime", "tempBasalDuration", "tempBasalCertain"
+    ));
+
+    private final AAPSLogger aapsLogger;
     private final SP sp;
     private final RxBus rxBus;
+    private final PodStateJournal journal;
 
     @Inject
-    public AapsErosPodStateManager(AAPSLogger aapsLogger, SP sp, RxBus rxBus) {
+    public AapsErosPodStateManager(AAPSLogger aapsLogger, SP sp, RxBus rxBus, Context context) {
         super(aapsLogger);
+        this.aapsLogger = aapsLogger;
         this.sp = sp;
         this.rxBus = rxBus;
+        this.journal = new PodStateJournal(new File(context.getFilesDir(), JOURNAL_DIRECTORY), aapsLogger);
     }
 
     @Override
-    protected String readPodState() {
-        return sp.getString(OmnipodErosStorageKeys.Preferences.POD_STATE, "");
+    protected JsonObject readPodState() {
+        JsonObject podState = journal.load();
+        if (podState != null) {
+            return podState;
+        }
+        // state stored by previous versions
+        String legacyPodState = sp.getString(OmnipodErosStorageKeys.Preferences.POD_STATE, "");
+        if (StringUtils.isEmpty(legacyPodState)) {
+            return null;
+        }
+        try {
+            podState = JsonParser.parseString(legacyPodState).getAsJsonObject();
+        } catch (Exception ex) {
+            aapsLogger.error(LTag.PUMP, "readPodState: could not parse Pod state: " + legacyPodState, ex);
+            return null;
+        }
+        try {
+            journal.store(podState, CRITICAL_FIELDS);
+            journal.sync();
+            sp.remove(OmnipodErosStorageKeys.Preferences.POD_STATE);
+        } catch (IOException ex) {
+            // keep old state to be migrated on next start
+            aapsLogger.error(LTag.PUMP, "readPodState: could not migrate Pod state", ex);
+        }
+        return podState;
     }
 
     @Override
-    protected void storePodState(String podState) {
-        sp.putString(OmnipodErosStorageKeys.Preferences.POD_STATE, podState);
+    protected void storePodState(JsonObject podState) {
+        Map<String, String> changes;
+        try {
+            changes = journal.store(podState, CRITICAL_FIELDS);
+        } catch (IOException ex) {
+            // nonce or message sequence lost on restart would make the pod reject commands, do not continue
+            throw new IllegalStateException("Failed to store Pod state", ex);
+        }
+        aapsLogger.debug(LTag.PUMP, "storePodState: storing changes: {}", changes);
     }
 
     @Override protected void onUncertainTbrRecovered() {
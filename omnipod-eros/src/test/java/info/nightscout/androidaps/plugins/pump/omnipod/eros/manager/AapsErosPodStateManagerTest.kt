@@ -1,7 +1,9 @@
 package info.nightscout.androidaps.plugins.pump.omnipod.eros.manager
 
+import android.content.Context
 import info.nightscout.androidaps.TestBase
 import info.nightscout.androidaps.plugins.bus.RxBus
+import info.nightscout.androidaps.plugins.pump.omnipod.eros.definition.OmnipodErosStorageKeys
 import info.nightscout.androidaps.plugins.pump.omnipod.eros.driver.definition.FirmwareVersion
 import info.nightscout.androidaps.plugins.pump.omnipod.eros.driver.definition.PodProgressStatus
 import info.nightscout.androidaps.utils.rx.TestAapsSchedulers
@@ -12,21 +14,34 @@ import org.joda.time.DateTimeZone
 import org.joda.time.Duration
 import org.junit.After
 import org.junit.Assert
+import org.junit.Before
+import org.junit.Rule
 import org.junit.Test
+import org.junit.rules.TemporaryFolder
 import org.mockito.Mock
+import org.mockito.Mockito.`when`
+import org.mockito.Mockito.never
+import org.mockito.Mockito.verify
 
 class AapsErosPodStateManagerTest : TestBase() {
 
     @Mock lateinit var sp: SP
+    @Mock lateinit var context: Context
+
+    @get:Rule val folder = TemporaryFolder()
 
     private val rxBus = RxBus(TestAapsSchedulers(), aapsLogger)
 
+    @Before fun prepare() {
+        `when`(context.filesDir).thenReturn(folder.root)
+    }
+
     @Test fun times() {
         val timeZone = DateTimeZone.UTC
         DateTimeZone.setDefault(timeZone)
         val now = DateTime(2020, 1, 1, 1, 2, 3, timeZone)
         DateTimeUtils.setCurrentMillisFixed(now.millis)
-        val podStateManager = AapsErosPodStateManager(aapsLogger, sp, rxBus)
+        val podStateManager = AapsErosPodStateManager(aapsLogger, sp, rxBus, context)
         podStateManager.initState(0x0)
         podStateManager.setInitializationParameters(
             0, 0, FirmwareVersion(1, 1, 1),
@@ -45,7 +60,7 @@ class AapsErosPodStateManagerTest : TestBase() {
         DateTimeZone.setDefault(timeZone)
         val now = DateTime(2020, 1, 1, 1, 2, 3, timeZone)
         DateTimeUtils.setCurrentMillisFixed(now.millis)
-        val podStateManager = AapsErosPodStateManager(aapsLogger, sp, rxBus)
+        val podStateManager = AapsErosPodStateManager(aapsLogger, sp, rxBus, context)
         podStateManager.initState(0x0)
         podStateManager.setInitializationParameters(
             0, 0, FirmwareVersion(1, 1, 1),
@@ -69,7 +84,7 @@ class AapsErosPodStateManagerTest : TestBase() {
         DateTimeZone.setDefault(timeZone)
         val now = DateTime(2020, 1, 1, 1, 2, 3, timeZone)
         DateTimeUtils.setCurrentMillisFixed(now.millis)
-        val podStateManager = AapsErosPodStateManager(aapsLogger, sp, rxBus)
+        val podStateManager = AapsErosPodStateManager(aapsLogger, sp, rxBus, context)
         podStateManager.initState(0x0)
         podStateManager.setInitializationParameters(
             0, 0, FirmwareVersion(1, 1, 1),
@@ -89,6 +104,45 @@ class AapsErosPodStateManagerTest : TestBase() {
         )
     }
 
+    @Test fun podStateIsRestoredAfterRestart() {
+        val timeZone = DateTimeZone.UTC
+        DateTimeZone.setDefault(timeZone)
+        val podStateManager = AapsErosPodStateManager(aapsLogger, sp, rxBus, context)
+        podStateManager.loadPodState()
+        podStateManager.initState(0x1f0e89f0)
+        podStateManager.setInitializationParameters(
+            0, 0, FirmwareVersion(1, 1, 1),
+            FirmwareVersion(2, 2, 2), timeZone, PodProgressStatus.ABOVE_FIFTY_UNITS
+        )
+        podStateManager.increaseMessageNumber()
+        podStateManager.storePodState()
+
+        val restarted = AapsErosPodStateManager(aapsLogger, sp, rxBus, context)
+        restarted.loadPodState()
+
+        Assert.assertEquals(0x1f0e89f0, restarted.address)
+        Assert.assertEquals(podStateManager.messageNumber, restarted.messageNumber)
+        Assert.assertEquals(PodProgressStatus.ABOVE_FIFTY_UNITS, restarted.podProgressStatus)
+        Assert.assertEquals(timeZone, restarted.timeZone)
+    }
+
+    @Test(expected = IllegalStateException::class) fun failedStoreOfCriticalStateThrows() {
+        // journal directory cannot be created
+        folder.newFile("omnipod_eros_pod_state")
+        val podStateManager = AapsErosPodStateManager(aapsLogger, sp, rxBus, context)
+        podStateManager.initState(0x1f0e89f0)
+    }
+
+    @Test fun legacyStateIsKeptWhenMigrationFails() {
+        folder.newFile("omnipod_eros_pod_state")
+        `when`(sp.getString(OmnipodErosStorageKeys.Preferences.POD_STATE, "")).thenReturn("{\"address\":521046512}")
+        val podStateManager = AapsErosPodStateManager(aapsLogger, sp, rxBus, context)
+        podStateManager.loadPodState()
+
+        Assert.assertEquals(0x1f0e89f0, podStateManager.address)
+        verify(sp, never()).remove(OmnipodErosStorageKeys.Preferences.POD_STATE)
+    }
+
     @After fun tearDown() {
         DateTimeUtils.setCurrentMillisSystem()
     }
@@ -9,20 +9,23 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
+import info.nightscout.androidaps.plugins.pump.common.hw.rileylink.ble.RileyLinkCommunicationException;
 import info.nightscout.androidaps.plugins.pump.common.hw.rileylink.ble.data.encoding.Encoding4b6b;
-import info.nightscout.androidaps.plugins.pump.common.hw.rileylink.ble.data.encoding.Encoding4b6bGeoff;
+import info.nightscout.androidaps.plugins.pump.common.hw.rileylink.ble.data.encoding.Encoding4b6bTable;
 import info.nightscout.androidaps.plugins.pump.common.hw.rileylink.ble.defs.RileyLinkEncodingType;
 import info.nightscout.androidaps.plugins.pump.common.hw.rileylink.data.BleAdvertisedData;
 import info.nightscout.androidaps.plugins.pump.common.hw.rileylink.data.RLHistoryItem;
 import info.nightscout.androidaps.plugins.pump.common.hw.rileylink.service.data.ServiceResult;
 import info.nightscout.androidaps.plugins.pump.common.hw.rileylink.service.data.ServiceTransport;
 import info.nightscout.androidaps.plugins.pump.common.hw.rileylink.service.tasks.ServiceTask;
+import info.nightscout.androidaps.plugins.pump.common.utils.CRC;
 
 /**
  * Created by andy on 17/05/2018.
@@ -35,7 +38,9 @@ public class RileyLinkUtil {
     private ServiceTask currentTask;
 
     private RileyLinkEncodingType encoding;
-    private Encoding4b6b encoding4b6b;
+    private Encoding4b6bTable encoding4b6b;
+    // reused by 4b6b encoding and decoding of radio packets
+    private byte[] codecBuffer = new byte[128];
 
     @Inject
     public RileyLinkUtil() {
@@ -50,7 +55,7 @@ public class RileyLinkUtil {
         this.encoding = encoding;
 
         if (encoding == RileyLinkEncodingType.FourByteSixByteLocal) {
-            this.encoding4b6b = new Encoding4b6bGeoff();
+            this.encoding4b6b = new Encoding4b6bTable();
         }
     }
 
@@ -154,4 +159,34 @@ public class RileyLinkUtil {
     public Encoding4b6b getEncoding4b6b() {
         return encoding4b6b;
     }
+
+
+    /**
+     * @return packet with CRC appended, 4b6b encoded and terminated by 0 as sent to RileyLink
+     */
+    public synchronized byte[] encode4b6bPacket(byte[] packet) {
+        byte[] withCRC = codecBuffer(packet.length + 1);
+        System.arraycopy(packet, 0, withCRC, 0, packet.length);
+        withCRC[packet.length] = CRC.crc8(packet);
+        // last byte stays 0
+        byte[] encoded = new byte[Encoding4b6bTable.encodedLength(packet.length + 1) + 1];
+        encoding4b6b.encode4b6b(withCRC, packet.length + 1, encoded);
+        return encoded;
+    }
+
+
+    /**
+     * @return decoded packet, received CRC is the last byte
+     */
+    public synchronized byte[] decode4b6bPacket(byte[] encoded) throws RileyLinkCommunicationException {
+        byte[] decoded = codecBuffer(Encoding4b6bTable.decodedLength(encoded.length));
+        int length = encoding4b6b.decode4b6b(encoded, encoded.length, decoded);
+        return Arrays.copyOf(decoded, length);
+    }
+
+
+    private byte[] codecBuffer(int length) {
+        if (codecBuffer.length < length) codecBuffer = new byte[length];
+        return codecBuffer;
+    }
 }
@@ -45,10 +45,7 @@ public class RadioPacket {
             }
 
             case FourByteSixByteLocal: {
-                byte[] withCRC = getWithCRC();
-
-                byte[] encoded = rileyLinkUtil.getEncoding4b6b().encode4b6b(withCRC);
-                return ByteUtil.concat(encoded, (byte) 0);
+                return rileyLinkUtil.encode4b6bPacket(pkt);
             }
 
             case FourByteSixByteRileyLink: {
@@ -106,7 +106,7 @@ public class RadioResponse {
                 break;
 
                 case FourByteSixByteLocal: {
-                    byte[] decodeThis = rileyLinkUtil.getEncoding4b6b().decode4b6b(encodedPayload);
+                    byte[] decodeThis = rileyLinkUtil.decode4b6bPacket(encodedPayload);
 
                     if (decodeThis != null && decodeThis.length > 2) {
                         decodedOK = true;
@@ -0,0 +1,118 @@
+package info.nightscout.androidaps.plugins.pump.common.hw.rileylink.ble.data.encoding;
+
+import java.util.Arrays;
+
+import info.nightscout.androidaps.plugins.pump.common.hw.rileylink.ble.RileyLinkCommunicationException;
+
+/**
+ * Table driven 4b6b codec working directly on byte arrays.
+ *
+ * Produces the same output as {@link Encoding4b6bGeoff}: every input byte is encoded to 12 bits,
+ * odd input length is finished with 0x5 nibble. Every byte value is translated by one lookup,
+ * there is no boxing and no intermediate lists. Methods taking output buffer don't allocate at all.
+ *
+ * Decoding error is rare, in that case Geoff's decoder is run again to produce the same error report.
+ */
+public class Encoding4b6bTable extends Encoding4b6bAbstract {
+
+    // byte value -> 12 bit code (high nibble code << 6 | low nibble code)
+    private static final short[] ENCODE = new short[256];
+    // 6 bit code -> nibble, -1 for invalid code
+    private static final byte[] DECODE = new byte[64];
+
+    static {
+        for (int i = 0; i < 256; i++)
+            ENCODE[i] = (short) (encode4b6bList[i >> 4] << 6 | encode4b6bList[i & 0x0f]);
+        Arrays.fill(DECODE, (byte) -1);
+        for (int i = 0; i < encode4b6bList.length; i++)
+            DECODE[encode4b6bList[i]] = (byte) i;
+    }
+
+    public static int encodedLength(int length) {
+        return (length * 3 + 1) / 2;
+    }
+
+    public static int decodedLength(int length) {
+        return length * 2 / 3;
+    }
+
+
+    @Override public byte[] encode4b6b(byte[] data) {
+        byte[] out = new byte[encodedLength(data.length)];
+        encode4b6b(data, data.length, out);
+        return out;
+    }
+
+
+    /**
+     * Encode first length bytes of data to out
+     *
+     * @return number of bytes written, out must have at least {@link #encodedLength(int)} bytes
+     */
+    public int encode4b6b(byte[] data, int length, byte[] out) {
+        int j = 0;
+        int i = 0;
+        // 2 bytes -> 24 bits -> 3 bytes
+        for (; i + 1 < length; i += 2) {
+            int bits = ENCODE[data[i] & 0xff] << 12 | ENCODE[data[i + 1] & 0xff];
+            out[j++] = (byte) (bits >> 16);
+            out[j++] = (byte) (bits >> 8);
+            out[j++] = (byte) bits;
+        }
+        if (i < length) {
+            // 12 bits + 0x5 marker of uneven packet boundary
+            int bits = ENCODE[data[i] & 0xff];
+            out[j++] = (byte) (bits >> 4);
+            out[j++] = (byte) ((bits & 0x0f) << 4 | 0x05);
+        }
+        return j;
+    }
+
+
+    @Override public byte[] decode4b6b(byte[] data) throws RileyLinkCommunicationException {
+        byte[] out = new byte[decodedLength(data.length)];
+        int length = decode4b6b(data, data.length, out);
+        return length == out.length ? out : Arrays.copyOf(out, length);
+    }
+
+
+    /**
+     * Decode first length bytes of data to out
+     *
+     * @return number of bytes written, out must have at least {@link #decodedLength(int)} bytes
+     */
+    public int decode4b6b(byte[] data, int length, byte[] out) throws RileyLinkCommunicationException {
+        int j = 0;
+        int i = 0;
+        boolean valid = true;
+        // 3 bytes -> 4 codes -> 2 bytes
+        for (; i + 2 < length; i += 3) {
+            int bits = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8 | data[i + 2] & 0xff;
+            int a = DECODE[bits >> 18];
+            int b = DECODE[bits >> 12 & 0x3f];
+            int c = DECODE[bits >> 6 & 0x3f];
+            int d = DECODE[bits & 0x3f];
+            valid &= (a | b | c | d) >= 0;
+            out[j++] = (byte) (a << 4 | b);
+            out[j++] = (byte) (c << 4 | d);
+        }
+        int remaining = length - i;
+        if (remaining == 2) {
+            // 16 bits -> 2 codes + 0x5 end marker
+            int bits = (data[i] & 0xff) << 8 | data[i + 1] & 0xff;
+            int a = DECODE[bits >> 10];
+            int b = DECODE[bits >> 4 & 0x3f];
+            valid &= (a | b) >= 0 && (bits & 0x0f) == 0x05;
+            out[j++] = (byte) (a << 4 | b);
+        } else if (remaining == 1) {
+            valid = false;
+        }
+        if (!valid) {
+            // Geoff throws with detailed report of coding errors
+            byte[] decoded = new Encoding4b6bGeoff().decode4b6b(Arrays.copyOf(data, length));
+            System.arraycopy(decoded, 0, out, 0, decoded.length);
+            return decoded.length;
+        }
+        return j;
+    }
+}
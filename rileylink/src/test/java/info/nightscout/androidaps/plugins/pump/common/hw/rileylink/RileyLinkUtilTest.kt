@@ -0,0 +1,29 @@
+package info.nightscout.androidaps.plugins.pump.common.hw.rileylink
+
+import info.nightscout.androidaps.plugins.pump.common.hw.rileylink.ble.data.encoding.Encoding4b6bGeoff
+import info.nightscout.androidaps.plugins.pump.common.hw.rileylink.ble.defs.RileyLinkEncodingType
+import info.nightscout.androidaps.plugins.pump.common.utils.ByteUtil
+import info.nightscout.androidaps.plugins.pump.common.utils.CRC
+import org.junit.Assert
+import org.junit.Test
+import java.util.*
+
+class RileyLinkUtilTest {
+
+    private val sut = RileyLinkUtil().also { it.setEncoding(RileyLinkEncodingType.FourByteSixByteLocal) }
+    private val geoff = Encoding4b6bGeoff()
+    private val random = Random(14L)
+
+    @Test
+    fun packetEncodingMatchesGeoff() {
+        // longer packets than initial buffer too
+        for (length in listOf(1, 2, 7, 64, 127, 300)) {
+            val packet = ByteArray(length).also { random.nextBytes(it) }
+            val withCRC = ByteUtil.concat(packet, CRC.crc8(packet))
+            val encoded = sut.encode4b6bPacket(packet)
+
+            Assert.assertArrayEquals(ByteUtil.concat(geoff.encode4b6b(withCRC), 0.toByte()), encoded)
+            Assert.assertArrayEquals(withCRC, sut.decode4b6bPacket(geoff.encode4b6b(withCRC)))
+        }
+    }
+}
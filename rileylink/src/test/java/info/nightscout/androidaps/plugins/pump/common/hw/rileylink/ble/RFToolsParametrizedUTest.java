@@ -13,6 +13,7 @@ import android.util.Log;
 import info.nightscout.androidaps.plugins.pump.common.hw.rileylink.ble.data.encoding.Encoding4b6bGeoff;
 import info.nightscout.androidaps.plugins.pump.common.hw.rileylink.ble.data.encoding.Encoding4b6bGo;
 import info.nightscout.androidaps.plugins.pump.common.hw.rileylink.ble.data.encoding.Encoding4b6bLoop;
+import info.nightscout.androidaps.plugins.pump.common.hw.rileylink.ble.data.encoding.Encoding4b6bTable;
 import info.nightscout.androidaps.plugins.pump.common.utils.ByteUtil;
 
 /**
@@ -353,6 +354,22 @@ public class RFToolsParametrizedUTest {
     }
 
 
+    @Test
+    public void tableEncode() {
+        Encoding4b6bTable encoder = new Encoding4b6bTable();
+
+        Assert.assertArrayEquals(encoded, encoder.encode4b6b(this.decoded));
+    }
+
+
+    @Test
+    public void tableDecode() throws Exception {
+        Encoding4b6bTable decoder = new Encoding4b6bTable();
+
+        Assert.assertArrayEquals(decoded, decoder.decode4b6b(this.encoded));
+    }
+
+
     private short[] createShortArray(byte[] data) {
 
         short[] outData = new short[data.length];
@@ -0,0 +1,52 @@
+package info.nightscout.androidaps.plugins.pump.common.hw.rileylink.ble.data.encoding
+
+import info.nightscout.androidaps.plugins.pump.common.hw.rileylink.ble.RileyLinkCommunicationException
+import org.junit.Ignore
+import org.junit.Test
+import java.util.*
+
+/**
+ * Compares speed of all 4b6b implementations on history page sized frames.
+ * Timing depends on machine, so it only prints results and is run manually.
+ */
+@Ignore("Benchmark, run manually")
+class Encoding4b6bBenchmark {
+
+    private val random = Random(46L)
+    private val frames = List(16) { ByteArray(1024).also { random.nextBytes(it) } }
+    private val runs = 200
+
+    private fun measure(block: (Int) -> Unit): Long {
+        repeat(runs / 10) { block(it % frames.size) } // warm up
+        val start = System.nanoTime()
+        repeat(runs) { block(it % frames.size) }
+        return (System.nanoTime() - start) / runs
+    }
+
+    private fun decodeIgnoringErrors(encoding: Encoding4b6b, encoded: ByteArray) {
+        try {
+            encoding.decode4b6b(encoded)
+        } catch (ignored: RileyLinkCommunicationException) {
+            // Go and Loop don't decode every frame, speed is still comparable
+        }
+    }
+
+    @Test
+    fun encodeAndDecode() {
+        val implementations = listOf(Encoding4b6bGeoff(), Encoding4b6bGo(), Encoding4b6bLoop(), Encoding4b6bTable())
+        for (encoding in implementations) {
+            val encodedFrames = frames.map { encoding.encode4b6b(it) }
+            val encode = measure { encoding.encode4b6b(frames[it]) }
+            val decode = measure { decodeIgnoringErrors(encoding, encodedFrames[it]) }
+            println("${encoding.javaClass.simpleName}: encode $encode ns/frame, decode $decode ns/frame")
+        }
+
+        val table = Encoding4b6bTable()
+        val encodedFrames = frames.map { table.encode4b6b(it) }
+        val encoded = ByteArray(Encoding4b6bTable.encodedLength(1024))
+        val decoded = ByteArray(1024)
+        val encode = measure { table.encode4b6b(frames[it], 1024, encoded) }
+        val decode = measure { table.decode4b6b(encodedFrames[it], encodedFrames[it].size, decoded) }
+        println("Encoding4b6bTable into buffers: encode $encode ns/frame, decode $decode ns/frame")
+    }
+}
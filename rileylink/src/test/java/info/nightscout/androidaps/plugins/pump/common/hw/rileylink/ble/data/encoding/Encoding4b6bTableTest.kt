@@ -0,0 +1,60 @@
+package info.nightscout.androidaps.plugins.pump.common.hw.rileylink.ble.data.encoding
+
+import info.nightscout.androidaps.plugins.pump.common.hw.rileylink.ble.RileyLinkCommunicationException
+import org.junit.Assert
+import org.junit.Test
+import java.util.*
+
+class Encoding4b6bTableTest {
+
+    private val table = Encoding4b6bTable()
+    private val geoff = Encoding4b6bGeoff()
+    private val random = Random(46L)
+
+    private fun randomBytes(length: Int) = ByteArray(length).also { random.nextBytes(it) }
+
+    @Test
+    fun sameResultAsGeoff() {
+        for (length in 0..300) {
+            val data = randomBytes(length)
+            val encoded = geoff.encode4b6b(data)
+            Assert.assertArrayEquals(encoded, table.encode4b6b(data))
+            Assert.assertArrayEquals(data, table.decode4b6b(encoded))
+            Assert.assertArrayEquals(geoff.decode4b6b(encoded), table.decode4b6b(encoded))
+        }
+    }
+
+    @Test
+    fun bufferVariantsDoNotNeedExactSize() {
+        val data = randomBytes(77)
+        val encodedBuffer = ByteArray(200)
+        val encodedLength = table.encode4b6b(data, data.size, encodedBuffer)
+        Assert.assertEquals(Encoding4b6bTable.encodedLength(data.size), encodedLength)
+        Assert.assertArrayEquals(geoff.encode4b6b(data), encodedBuffer.copyOf(encodedLength))
+
+        val decodedBuffer = ByteArray(200)
+        val decodedLength = table.decode4b6b(encodedBuffer, encodedLength, decodedBuffer)
+        Assert.assertEquals(data.size, decodedLength)
+        Assert.assertArrayEquals(data, decodedBuffer.copyOf(decodedLength))
+    }
+
+    @Test(expected = RileyLinkCommunicationException::class)
+    fun invalidCodeThrows() {
+        val encoded = table.encode4b6b(randomBytes(20))
+        encoded[7] = 0
+        table.decode4b6b(encoded)
+    }
+
+    @Test(expected = RileyLinkCommunicationException::class)
+    fun missingEndMarkerThrows() {
+        val encoded = table.encode4b6b(randomBytes(21))
+        encoded[encoded.size - 1] = (encoded[encoded.size - 1].toInt() and 0xf0).toByte()
+        table.decode4b6b(encoded)
+    }
+
+    @Test(expected = RileyLinkCommunicationException::class)
+    fun truncatedFrameThrows() {
+        val encoded = table.encode4b6b(randomBytes(20))
+        table.decode4b6b(encoded.copyOf(encoded.size - 2))
+    }
+}
@@ -9,10 +9,17 @@ interface AAPSLogger {
     fun debug(message: String)
     fun debug(enable: Boolean, tag: LTag, message: String)
     fun debug(tag: LTag, message: String)
+
+    /**
+     * Message is built only when [tag] is enabled
+     */
+    fun debug(tag: LTag, messageSupplier: () -> String)
     fun debug(tag: LTag, format: String, vararg arguments: Any?)
     fun warn(tag: LTag, message: String)
+    fun warn(tag: LTag, messageSupplier: () -> String)
     fun warn(tag: LTag, format: String, vararg arguments: Any?)
     fun info(tag: LTag, message: String)
+    fun info(tag: LTag, messageSupplier: () -> String)
     fun info(tag: LTag, format: String, vararg arguments: Any?)
     fun error(tag: LTag, message: String)
     fun error(tag: LTag, message: String, throwable: Throwable)
@@ -1,73 +1,103 @@
 package info.nightscout.shared.logging
 
+import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 
 /**
  * Created by adrian on 2019-12-27.
+ *
+ * Enabled state is read from flags precomputed in [L] and loggers are resolved once per [LTag].
+ * Caller info needs stack trace capture and is added only for tags which opt in.
  */
 
-class AAPSLoggerProduction constructor(val l: L) : AAPSLogger {
+class AAPSLoggerProduction constructor(
+    val l: L,
+    loggerProvider: (String) -> Logger = { LoggerFactory.getLogger(it) }
+) : AAPSLogger {
+
+    private val loggers: Array<Logger> = LTag.values().map { loggerProvider(it.tag) }.toTypedArray()
+
+    private fun logger(tag: LTag): Logger = loggers[tag.ordinal]
+
+    /* Needs to be inline to keep stack depth of caller. Don't remove even if IDE suggests it. */
+    @Suppress("NOTHING_TO_INLINE")
+    private inline fun marker(tag: LTag): String = if (l.isCallerInfoEnabled(tag)) stackLogMarker() else ""
 
     override fun debug(message: String) {
-        LoggerFactory.getLogger(LTag.CORE.tag).debug(stackLogMarker() + message)
+        logger(LTag.CORE).debug(marker(LTag.CORE) + message)
     }
 
     override fun debug(enable: Boolean, tag: LTag, message: String) {
-        if (enable && l.findByName(tag.tag).enabled)
-            LoggerFactory.getLogger(tag.tag).debug(stackLogMarker() + message)
+        if (enable && l.isEnabled(tag))
+            logger(tag).debug(marker(tag) + message)
     }
 
     override fun debug(tag: LTag, message: String) {
-        if (l.findByName(tag.tag).enabled)
-            LoggerFactory.getLogger(tag.tag).debug(stackLogMarker() + message)
+        if (l.isEnabled(tag))
+            logger(tag).debug(marker(tag) + message)
+    }
+
+    override fun debug(tag: LTag, messageSupplier: () -> String) {
+        if (l.isEnabled(tag))
+            logger(tag).debug(marker(tag) + messageSupplier())
     }
 
     override fun debug(tag: LTag, format: String, vararg arguments: Any?) {
-        if (l.findByName(tag.tag).enabled)
-            LoggerFactory.getLogger(tag.tag).debug(stackLogMarker() + format, arguments)
+        if (l.isEnabled(tag))
+            logger(tag).debug(marker(tag) + format, *arguments)
     }
 
     override fun warn(tag: LTag, message: String) {
-        if (l.findByName(tag.tag).enabled)
-            LoggerFactory.getLogger(tag.tag).warn(stackLogMarker() + message)
+        if (l.isEnabled(tag))
+            logger(tag).warn(marker(tag) + message)
+    }
+
+    override fun warn(tag: LTag, messageSupplier: () -> String) {
+        if (l.isEnabled(tag))
+            logger(tag).warn(marker(tag) + messageSupplier())
     }
 
     override fun warn(tag: LTag, format: String, vararg arguments: Any?) {
-        LoggerFactory.getLogger(tag.tag).warn(stackLogMarker() + format, arguments)
+        logger(tag).warn(marker(tag) + format, *arguments)
     }
 
     override fun info(tag: LTag, message: String) {
-        if (l.findByName(tag.tag).enabled)
-            LoggerFactory.getLogger(tag.tag).info(stackLogMarker() + message)
+        if (l.isEnabled(tag))
+            logger(tag).info(marker(tag) + message)
+    }
+
+    override fun info(tag: LTag, messageSupplier: () -> String) {
+        if (l.isEnabled(tag))
+            logger(tag).info(marker(tag) + messageSupplier())
     }
 
     override fun info(tag: LTag, format: String, vararg arguments: Any?) {
-        if (l.findByName(tag.tag).enabled)
-            LoggerFactory.getLogger(tag.tag).info(stackLogMarker() + format, arguments)
+        if (l.isEnabled(tag))
+            logger(tag).info(marker(tag) + format, *arguments)
     }
 
     override fun error(tag: LTag, message: String) {
-        LoggerFactory.getLogger(tag.tag).error(stackLogMarker() + message)
+        logger(tag).error(marker(tag) + message)
     }
 
     override fun error(message: String) {
-        LoggerFactory.getLogger(LTag.CORE.tag).error(stackLogMarker() + message)
+        logger(LTag.CORE).error(marker(LTag.CORE) + message)
     }
 
     override fun error(message: String, throwable: Throwable) {
-        LoggerFactory.getLogger(LTag.CORE.tag).error(stackLogMarker() + message, throwable)
+        logger(LTag.CORE).error(marker(LTag.CORE) + message, throwable)
     }
 
     override fun error(format: String, vararg arguments: Any?) {
-        LoggerFactory.getLogger(LTag.CORE.tag).error(stackLogMarker() + format, arguments)
+        logger(LTag.CORE).error(marker(LTag.CORE) + format, *arguments)
     }
 
     override fun error(tag: LTag, message: String, throwable: Throwable) {
-        LoggerFactory.getLogger(tag.tag).error(stackLogMarker() + message, throwable)
+        logger(tag).error(marker(tag) + message, throwable)
     }
 
     override fun error(tag: LTag, format: String, vararg arguments: Any?) {
-        LoggerFactory.getLogger(tag.tag).error(stackLogMarker() + format, arguments)
+        logger(tag).error(marker(tag) + format, *arguments)
     }
 }
 
@@ -75,4 +105,4 @@ fun StackTraceElement.toLogString(): String = "[${this.className.substringAfterL
 
 /* Needs to be inline. Don't remove even if IDE suggests it. */
 @Suppress("NOTHING_TO_INLINE")
-inline fun stackLogMarker() = Throwable().stackTrace[1].toLogString()
\ No newline at end of file
+inline fun stackLogMarker() = Throwable().stackTrace[1].toLogString()
@@ -18,6 +18,10 @@ class AAPSLoggerTest : AAPSLogger {
         println("DEBUG: : " + tag.tag + " " + message)
     }
 
+    override fun debug(tag: LTag, messageSupplier: () -> String) {
+        println("DEBUG: : " + tag.tag + " " + messageSupplier())
+    }
+
     override fun debug(tag: LTag, format: String, vararg arguments: Any?) {
         println("DEBUG: : " + tag.tag + " " + String.format(format, arguments))
     }
@@ -26,6 +30,10 @@ class AAPSLoggerTest : AAPSLogger {
         println("WARN: " + tag.tag + " " + message)
     }
 
+    override fun warn(tag: LTag, messageSupplier: () -> String) {
+        println("WARN: " + tag.tag + " " + messageSupplier())
+    }
+
     override fun warn(tag: LTag, format: String, vararg arguments: Any?) {
         println("INFO: : " + tag.tag + " " + String.format(format, arguments))
     }
@@ -34,6 +42,10 @@ class AAPSLoggerTest : AAPSLogger {
         println("INFO: " + tag.tag + " " + message)
     }
 
+    override fun info(tag: LTag, messageSupplier: () -> String) {
+        println("INFO: " + tag.tag + " " + messageSupplier())
+    }
+
     override fun info(tag: LTag, format: String, vararg arguments: Any?) {
         println("INFO: : " + tag.tag + " " + String.format(format, arguments))
     }
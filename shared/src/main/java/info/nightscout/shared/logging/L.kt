@@ -12,10 +12,32 @@ class L @Inject constructor(
 
     private var logElements: MutableList<LogElement> = ArrayList()
 
+    // indexed by LTag.ordinal, kept in sync with logElements so hot logging path doesn't search or touch SP
+    // arrays are replaced on change, never modified, so logging threads see the whole new state
+    @Volatile private var enabled = BooleanArray(LTag.values().size)
+    @Volatile private var callerInfo = BooleanArray(LTag.values().size)
+
     init {
-        LTag.values().forEach { logElements.add(LogElement(it, sp)) }
+        LTag.values().forEach { tag ->
+            val element = LogElement(tag, sp) { updateFlags(tag, it) }
+            logElements.add(element)
+            updateFlags(tag, element)
+        }
+    }
+
+    @Synchronized
+    private fun updateFlags(tag: LTag, element: LogElement) {
+        enabled = enabled.copyOf().also { it[tag.ordinal] = element.enabled }
+        callerInfo = callerInfo.copyOf().also { it[tag.ordinal] = element.callerInfo }
     }
 
+    fun isEnabled(tag: LTag): Boolean = enabled[tag.ordinal]
+
+    /**
+     * Prefix messages with calling class, method and line. Expensive, opt-in per tag
+     */
+    fun isCallerInfoEnabled(tag: LTag): Boolean = callerInfo[tag.ordinal]
+
     fun findByName(name: String): LogElement {
         for (element in logElements) {
             if (element.name == name) return element
@@ -38,14 +60,20 @@ class L @Inject constructor(
         var name: String
         var defaultValue: Boolean
         var enabled: Boolean
+        var callerInfo: Boolean
+        private var defaultCallerInfo = false
         private var requiresRestart = false
+        private val onChange: (LogElement) -> Unit
 
-        internal constructor(tag: LTag, sp: SP) {
+        internal constructor(tag: LTag, sp: SP, onChange: (LogElement) -> Unit) {
             this.sp = sp
             this.name = tag.tag
             this.defaultValue = tag.defaultValue
+            this.defaultCallerInfo = tag.callerInfo
             this.requiresRestart = tag.requiresRestart
+            this.onChange = onChange
             enabled = sp.getBoolean(getSPName(), defaultValue)
+            callerInfo = sp.getBoolean(getCallerInfoSPName(), defaultCallerInfo)
         }
 
         internal constructor(defaultValue: Boolean, sp: SP) {
@@ -53,17 +81,28 @@ class L @Inject constructor(
             name = "NONEXISTING"
             this.defaultValue = defaultValue
             enabled = defaultValue
+            callerInfo = false
+            onChange = {}
         }
 
         private fun getSPName(): String = "log_$name"
+        private fun getCallerInfoSPName(): String = "log_caller_$name"
 
         fun enable(enabled: Boolean) {
             this.enabled = enabled
             sp.putBoolean(getSPName(), enabled)
+            onChange(this)
+        }
+
+        fun enableCallerInfo(callerInfo: Boolean) {
+            this.callerInfo = callerInfo
+            sp.putBoolean(getCallerInfoSPName(), callerInfo)
+            onChange(this)
         }
 
         fun resetToDefault() {
             enable(defaultValue)
+            enableCallerInfo(defaultCallerInfo)
         }
     }
-}
\ No newline at end of file
+}
@@ -1,6 +1,6 @@
 package info.nightscout.shared.logging
 
-enum class LTag(val tag: String, val defaultValue : Boolean = true, val requiresRestart: Boolean = false) {
+enum class LTag(val tag: String, val defaultValue : Boolean = true, val requiresRestart: Boolean = false, val callerInfo: Boolean = false) {
     CORE("CORE"),
     APS("APS"),
     AUTOSENS("AUTOSENS", defaultValue = false),
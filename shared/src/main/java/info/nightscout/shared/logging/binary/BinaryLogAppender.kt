@@ -0,0 +1,59 @@
+package info.nightscout.shared.logging.binary
+
+import ch.qos.logback.classic.spi.ILoggingEvent
+import ch.qos.logback.classic.spi.ThrowableProxyUtil
+import ch.qos.logback.core.UnsynchronizedAppenderBase
+import java.io.File
+
+/**
+ * Logback appender replacing synchronous RollingFileAppender
+ *
+ * Event is converted to [LogRecord] on caller thread, formatting, compression and disk I/O
+ * happen on [BinaryLogSink] thread. Text is rendered only when logs are exported.
+ * Configured in logback.xml
+ */
+class BinaryLogAppender : UnsynchronizedAppenderBase<ILoggingEvent>() {
+
+    var directory: String? = null
+    var fileName = "AndroidAPS"
+    var maxFileSize: Long = 5L * 1024 * 1024
+    // days, as in logback's TimeBasedRollingPolicy
+    var maxHistory = 120
+    var queueSize = 8192
+
+    private var sink: BinaryLogSink? = null
+
+    override fun start() {
+        val dir = directory
+        if (dir == null) {
+            addError("No directory set for appender $name")
+            return
+        }
+        sink = BinaryLogSink(File(dir), fileName, maxFileSize, maxHistory, queueSize).also { it.start() }
+        super.start()
+    }
+
+    override fun stop() {
+        super.stop()
+        sink?.stop()
+        sink = null
+    }
+
+    override fun append(event: ILoggingEvent) {
+        sink?.log(
+            LogRecord(
+                timestamp = event.timeStamp,
+                level = event.level.levelStr[0],
+                logger = event.loggerName,
+                thread = event.threadName,
+                template = event.message ?: "null",
+                arguments = event.argumentArray?.let { arguments -> Array(arguments.size) { arguments[it]?.toString() ?: "null" } },
+                throwable = event.throwableProxy?.let { ThrowableProxyUtil.asString(it) }
+            )
+        )
+    }
+
+    fun flush() {
+        sink?.flush()
+    }
+}
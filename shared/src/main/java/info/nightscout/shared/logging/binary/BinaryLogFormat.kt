@@ -0,0 +1,243 @@
+package info.nightscout.shared.logging.binary
+
+import org.slf4j.helpers.MessageFormatter
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.io.RandomAccessFile
+import java.io.Writer
+import java.text.SimpleDateFormat
+import java.util.*
+import java.util.zip.DataFormatException
+import java.util.zip.Deflater
+import java.util.zip.Inflater
+
+/**
+ * Compact binary log file
+ *
+ * File starts with [MAGIC] followed by independent blocks:
+ * raw length (int), compressed length (int), deflated records.
+ * Each block has its own string table so logger, thread and template names are written once per block.
+ * Truncated last block (crash during write) is ignored on reading.
+ *
+ * Record: timestamp delta from previous record (varlong), level (byte), logger, thread, template (string refs),
+ * argument count (varint) + arguments (strings), throwable flag (byte) + stack trace (string)
+ */
+object BinaryLogFormat {
+
+    val MAGIC = "AAPSLOG1".toByteArray(Charsets.US_ASCII)
+
+    /**
+     * Encode and compress records as one block. Not thread safe, [deflater] is reused
+     */
+    fun writeBlock(out: OutputStream, records: List<LogRecord>, deflater: Deflater) {
+        val raw = encode(records)
+        deflater.reset()
+        deflater.setInput(raw)
+        deflater.finish()
+        val compressed = ByteArrayOutputStream(raw.size / 4 + 64)
+        val buffer = ByteArray(8192)
+        while (!deflater.finished()) {
+            val count = deflater.deflate(buffer)
+            compressed.write(buffer, 0, count)
+        }
+        val block = ByteArrayOutputStream(compressed.size() + 8)
+        DataOutputStream(block).run {
+            writeInt(raw.size)
+            writeInt(compressed.size())
+        }
+        compressed.writeTo(block)
+        // single write so block is not interleaved with anything else
+        out.write(block.toByteArray())
+    }
+
+    internal fun encode(records: List<LogRecord>): ByteArray {
+        val bytes = ByteArrayOutputStream(records.size * 64)
+        val out = DataOutputStream(bytes)
+        val strings = HashMap<String, Int>()
+        var lastTimestamp = 0L
+        for (record in records) {
+            writeVarLong(out, record.timestamp - lastTimestamp)
+            lastTimestamp = record.timestamp
+            out.writeByte(record.level.code)
+            writeRef(out, strings, record.logger)
+            writeRef(out, strings, record.thread)
+            writeRef(out, strings, record.template)
+            val arguments = record.arguments
+            writeVarLong(out, (arguments?.size ?: 0).toLong())
+            arguments?.forEach { writeString(out, it) }
+            if (record.throwable != null) {
+                out.writeByte(1)
+                writeString(out, record.throwable)
+            } else out.writeByte(0)
+        }
+        return bytes.toByteArray()
+    }
+
+    internal fun decode(raw: ByteArray): List<LogRecord> {
+        val input = DataInputStream(ByteArrayInputStream(raw))
+        val strings = ArrayList<String>()
+        val records = ArrayList<LogRecord>()
+        var lastTimestamp = 0L
+        while (input.available() > 0) {
+            lastTimestamp += readVarLong(input)
+            val level = input.readUnsignedByte().toChar()
+            val logger = readRef(input, strings)
+            val thread = readRef(input, strings)
+            val template = readRef(input, strings)
+            val argumentCount = readVarLong(input).toInt()
+            val arguments = if (argumentCount > 0) Array(argumentCount) { readString(input) } else null
+            val throwable = if (input.readByte().toInt() != 0) readString(input) else null
+            records.add(LogRecord(lastTimestamp, level, logger, thread, template, arguments, throwable))
+        }
+        return records
+    }
+
+    /**
+     * @return length of [MAGIC] and all complete blocks of [file], 0 if it's not binary log
+     */
+    @Throws(IOException::class)
+    fun completeLength(file: File): Long =
+        RandomAccessFile(file, "r").use { input ->
+            val magic = ByteArray(MAGIC.size)
+            if (input.length() < MAGIC.size) return 0
+            input.readFully(magic)
+            if (!magic.contentEquals(MAGIC)) return 0
+            var length = MAGIC.size.toLong()
+            while (length + 8 <= input.length()) {
+                input.seek(length + 4)
+                val compressedLength = input.readInt()
+                if (compressedLength < 0 || length + 8 + compressedLength > input.length()) break
+                length += 8 + compressedLength
+            }
+            length
+        }
+
+    /**
+     * Read all complete blocks of binary log
+     */
+    @Throws(IOException::class)
+    fun read(input: InputStream, consumer: (LogRecord) -> Unit) {
+        val data = DataInputStream(input)
+        val magic = ByteArray(MAGIC.size)
+        try {
+            data.readFully(magic)
+        } catch (e: EOFException) {
+            return
+        }
+        if (!magic.contentEquals(MAGIC)) throw IOException("Not a binary log")
+        val inflater = Inflater()
+        try {
+            while (true) {
+                val rawLength: Int
+                val compressed: ByteArray
+                try {
+                    rawLength = data.readInt()
+                    compressed = ByteArray(data.readInt())
+                    data.readFully(compressed)
+                } catch (e: EOFException) {
+                    return
+                }
+                inflater.reset()
+                inflater.setInput(compressed)
+                val raw = ByteArray(rawLength)
+                try {
+                    var offset = 0
+                    while (offset < rawLength && !inflater.finished()) offset += inflater.inflate(raw, offset, rawLength - offset)
+                } catch (e: DataFormatException) {
+                    return
+                }
+                decode(raw).forEach(consumer)
+            }
+        } finally {
+            inflater.end()
+        }
+    }
+
+    /**
+     * Render binary log to text in the same layout as former logback file appender
+     * `%d{HH:mm:ss.SSS} [%thread] %.-1level/%logger: %msg%n`
+     */
+    @Throws(IOException::class)
+    fun render(input: InputStream, writer: Writer) {
+        val timeFormat = SimpleDateFormat("HH:mm:ss.SSS", Locale.US)
+        val lineSeparator = System.lineSeparator()
+        read(input) { record ->
+            writer.write(timeFormat.format(Date(record.timestamp)))
+            writer.write(" [")
+            writer.write(record.thread)
+            writer.write("] ")
+            writer.write(record.level.toString())
+            writer.write("/")
+            writer.write(record.logger)
+            writer.write(": ")
+            writer.write(message(record))
+            writer.write(lineSeparator)
+            record.throwable?.let {
+                writer.write(it)
+                writer.write(lineSeparator)
+            }
+        }
+        writer.flush()
+    }
+
+    fun message(record: LogRecord): String =
+        if (record.arguments == null) record.template
+        else MessageFormatter.arrayFormat(record.template, record.arguments).message
+
+    private fun writeRef(out: DataOutputStream, strings: HashMap<String, Int>, value: String) {
+        val index = strings[value]
+        if (index != null) writeVarLong(out, index + 1L)
+        else {
+            strings[value] = strings.size
+            writeVarLong(out, 0)
+            writeString(out, value)
+        }
+    }
+
+    private fun readRef(input: DataInputStream, strings: ArrayList<String>): String {
+        val ref = readVarLong(input).toInt()
+        return if (ref == 0) readString(input).also { strings.add(it) } else strings[ref - 1]
+    }
+
+    // writeUTF is limited to 64k, some messages are larger
+    private fun writeString(out: DataOutputStream, value: String) {
+        val bytes = value.toByteArray(Charsets.UTF_8)
+        writeVarLong(out, bytes.size.toLong())
+        out.write(bytes)
+    }
+
+    private fun readString(input: DataInputStream): String {
+        val bytes = ByteArray(readVarLong(input).toInt())
+        input.readFully(bytes)
+        return String(bytes, Charsets.UTF_8)
+    }
+
+    // zigzag encoded, timestamps are not guaranteed to be monotonic between threads
+    private fun writeVarLong(out: DataOutputStream, value: Long) {
+        var v = (value shl 1) xor (value shr 63)
+        while (v and 0x7FL.inv() != 0L) {
+            out.writeByte(((v and 0x7F) or 0x80).toInt())
+            v = v ushr 7
+        }
+        out.writeByte(v.toInt())
+    }
+
+    private fun readVarLong(input: DataInputStream): Long {
+        var shift = 0
+        var result = 0L
+        while (true) {
+            val b = input.readUnsignedByte()
+            result = result or ((b and 0x7F).toLong() shl shift)
+            if (b and 0x80 == 0) break
+            shift += 7
+        }
+        return (result ushr 1) xor -(result and 1)
+    }
+}
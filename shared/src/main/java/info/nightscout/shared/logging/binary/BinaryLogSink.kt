@@ -0,0 +1,186 @@
+package info.nightscout.shared.logging.binary
+
+import android.util.Log
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.text.SimpleDateFormat
+import java.util.*
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.zip.Deflater
+
+/**
+ * Writes [LogRecord]s to [BinaryLogFormat] file on own thread
+ *
+ * Callers only enqueue to bounded buffer and never wait for disk. When buffer is full
+ * records are dropped and their count is logged with next batch.
+ * Batch is written when it's full, when error is logged or after [FLUSH_INTERVAL_MS].
+ *
+ * Current file is [baseName].bin. It's renamed to [baseName]._yyyy-MM-dd_HH-mm-ss_.bin
+ * daily, when bigger than [maxFileSize] and after write error (same as former SizeAndTimeBasedFNATP).
+ * File left by previous run is continued after its incomplete last block is cut off.
+ * Rolled files older than [maxHistory] days are deleted (same meaning as logback's maxHistory).
+ */
+class BinaryLogSink(
+    private val directory: File,
+    private val baseName: String,
+    private val maxFileSize: Long,
+    private val maxHistory: Int,
+    capacity: Int
+) {
+
+    private class Flush(val done: CountDownLatch = CountDownLatch(1))
+
+    private object Stop
+
+    private val queue = ArrayBlockingQueue<Any>(capacity)
+    private val dropped = AtomicInteger()
+    private val deflater = Deflater(Deflater.DEFAULT_COMPRESSION)
+    private var output: FileOutputStream? = null
+    private var fileDay: String? = null
+    private val dayFormat = SimpleDateFormat("yyyy-MM-dd", Locale.US)
+    private val thread = Thread({ run() }, "BinaryLogSink").also { it.isDaemon = true }
+
+    val currentFile: File get() = File(directory, "$baseName.bin")
+
+    fun start() {
+        thread.start()
+    }
+
+    fun log(record: LogRecord) {
+        if (!queue.offer(record)) dropped.incrementAndGet()
+    }
+
+    /**
+     * Write everything enqueued so far to disk. Blocks up to [timeoutMs]
+     */
+    fun flush(timeoutMs: Long = 5000) {
+        if (!thread.isAlive) return
+        val flush = Flush()
+        if (queue.offer(flush, timeoutMs, TimeUnit.MILLISECONDS)) flush.done.await(timeoutMs, TimeUnit.MILLISECONDS)
+    }
+
+    fun stop() {
+        if (!thread.isAlive) return
+        queue.offer(Stop, 5, TimeUnit.SECONDS)
+        thread.join(5000)
+    }
+
+    private fun run() {
+        val batch = ArrayList<LogRecord>(MAX_BATCH)
+        var batchStart = 0L
+        try {
+            recover()
+            while (true) {
+                val item =
+                    if (batch.isEmpty()) queue.take()
+                    else queue.poll(batchStart + FLUSH_INTERVAL_MS - System.currentTimeMillis(), TimeUnit.MILLISECONDS)
+                when (item) {
+                    null         -> write(batch)
+                    is LogRecord -> {
+                        if (batch.isEmpty()) batchStart = System.currentTimeMillis()
+                        batch.add(item)
+                        if (batch.size >= MAX_BATCH || item.level == 'E') write(batch)
+                    }
+
+                    is Flush     -> {
+                        write(batch)
+                        item.done.countDown()
+                    }
+
+                    Stop         -> {
+                        write(batch)
+                        return
+                    }
+                }
+            }
+        } catch (e: InterruptedException) {
+            write(batch)
+        } finally {
+            close()
+            deflater.end()
+        }
+    }
+
+    private fun write(batch: MutableList<LogRecord>) {
+        val droppedCount = dropped.getAndSet(0)
+        if (droppedCount > 0)
+            batch.add(LogRecord(System.currentTimeMillis(), 'W', "LOGGER", "BinaryLogSink", "{} log messages dropped", arrayOf(droppedCount.toString()), null))
+        if (batch.isEmpty()) return
+        try {
+            val day = dayFormat.format(Date(batch[0].timestamp))
+            if (fileDay != null && fileDay != day) roll()
+            val out = output ?: open()
+            if (fileDay == null) fileDay = day
+            BinaryLogFormat.writeBlock(out, batch, deflater)
+            if (out.channel.size() >= maxFileSize) roll()
+        } catch (e: IOException) {
+            // logging must never break the app, batch is lost
+            Log.e("BinaryLogSink", "Unable to write log", e)
+            roll()
+        }
+        batch.clear()
+    }
+
+    /**
+     * File left by previous run may end with incomplete block (killed during write).
+     * Cut it off so new blocks are readable, roll file which is not binary log
+     */
+    private fun recover() {
+        val file = currentFile
+        if (file.length() == 0L) return
+        try {
+            val length = BinaryLogFormat.completeLength(file)
+            if (length < BinaryLogFormat.MAGIC.size) {
+                roll()
+                return
+            }
+            fileDay = dayFormat.format(Date(file.lastModified()))
+            if (length < file.length()) RandomAccessFile(file, "rw").use { it.setLength(length) }
+        } catch (e: IOException) {
+            Log.e("BinaryLogSink", "Unable to recover log", e)
+            roll()
+        }
+    }
+
+    private fun open(): FileOutputStream {
+        directory.mkdirs()
+        val file = currentFile
+        val isNew = !file.exists() || file.length() == 0L
+        return FileOutputStream(file, true).also {
+            if (isNew) it.write(BinaryLogFormat.MAGIC)
+            output = it
+        }
+    }
+
+    private fun close() {
+        try {
+            output?.close()
+        } catch (ignored: IOException) {
+        }
+        output = null
+    }
+
+    private fun roll() {
+        close()
+        fileDay = null
+        val stamp = SimpleDateFormat("yyyy-MM-dd_HH-mm-ss", Locale.US).format(Date())
+        var target = File(directory, "${baseName}._${stamp}_.bin")
+        var index = 1
+        while (target.exists()) target = File(directory, "${baseName}._${stamp}_.${index++}.bin")
+        currentFile.renameTo(target)
+        val rolled = directory.listFiles { _, fileName -> fileName.startsWith("$baseName._") && fileName.endsWith(".bin") } ?: return
+        val oldest = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(maxHistory.toLong())
+        rolled.filter { it.lastModified() < oldest }.forEach { it.delete() }
+    }
+
+    companion object {
+
+        const val MAX_BATCH = 512
+        const val FLUSH_INTERVAL_MS = 1000L
+    }
+}
@@ -0,0 +1,16 @@
+package info.nightscout.shared.logging.binary
+
+/**
+ * Logging event captured on caller thread, everything is already converted to strings
+ *
+ * @param level first letter of level name as printed in text log (D, I, W, E, T)
+ */
+class LogRecord(
+    val timestamp: Long,
+    val level: Char,
+    val logger: String,
+    val thread: String,
+    val template: String,
+    val arguments: Array<String>?,
+    val throwable: String?
+)
@@ -0,0 +1,91 @@
+package info.nightscout.shared.logging
+
+import info.nightscout.shared.sharedPreferences.SP
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.mockito.ArgumentMatchers.anyBoolean
+import org.mockito.ArgumentMatchers.anyString
+import org.mockito.ArgumentMatchers.startsWith
+import org.mockito.Mockito
+import org.mockito.Mockito.`when`
+import org.slf4j.Logger
+
+class AAPSLoggerProductionTest {
+
+    private val sp: SP = Mockito.mock(SP::class.java)
+    private val logger: Logger = Mockito.mock(Logger::class.java)
+    private lateinit var l: L
+
+    @Before
+    fun prepare() {
+        // stored values are the defaults
+        `when`(sp.getBoolean(anyString(), anyBoolean())).thenAnswer { it.getArgument<Boolean>(1) }
+        l = L(sp)
+    }
+
+    @Test
+    fun flagsFollowLogElements() {
+        Assert.assertTrue(l.isEnabled(LTag.CORE))
+        Assert.assertFalse(l.isEnabled(LTag.AUTOSENS))
+        l.findByName(LTag.AUTOSENS.tag).enable(true)
+        Assert.assertTrue(l.isEnabled(LTag.AUTOSENS))
+        l.findByName(LTag.CORE.tag).enableCallerInfo(true)
+        Assert.assertTrue(l.isCallerInfoEnabled(LTag.CORE))
+        l.resetToDefaults()
+        Assert.assertFalse(l.isEnabled(LTag.AUTOSENS))
+        Assert.assertFalse(l.isCallerInfoEnabled(LTag.CORE))
+    }
+
+    @Test
+    fun disabledMessageIsNotBuilt() {
+        val aapsLogger = AAPSLoggerProduction(l) { logger }
+        var built = false
+        aapsLogger.debug(LTag.AUTOSENS) { built = true; "message" }
+        Assert.assertFalse(built)
+        Mockito.verifyNoInteractions(logger)
+
+        aapsLogger.debug(LTag.CORE) { built = true; "message" }
+        Assert.assertTrue(built)
+        Mockito.verify(logger).debug("message")
+    }
+
+    @Test
+    fun callerInfoOnlyWhenTagOptsIn() {
+        val aapsLogger = AAPSLoggerProduction(l) { logger }
+        aapsLogger.info(LTag.CORE, "plain")
+        Mockito.verify(logger).info("plain")
+
+        l.findByName(LTag.CORE.tag).enableCallerInfo(true)
+        aapsLogger.info(LTag.CORE, "marked")
+        Mockito.verify(logger).info(startsWith("[AAPSLoggerProductionTest.callerInfoOnlyWhenTagOptsIn():"))
+    }
+
+    @Test
+    fun disabledTagDoesNotInvokeSupplier() {
+        val aapsLogger = AAPSLoggerProduction(l) { logger }
+        val supplier: () -> String = { Assert.fail("supplier invoked for disabled tag"); "" }
+        aapsLogger.debug(LTag.AUTOSENS, supplier)
+        aapsLogger.info(LTag.AUTOSENS, supplier)
+        aapsLogger.warn(LTag.AUTOSENS, supplier)
+        Mockito.verifyNoInteractions(logger)
+    }
+
+    @Test
+    fun stackIsCapturedOnlyWithCallerInfo() {
+        val aapsLogger = AAPSLoggerProduction(l) { logger }
+        // message is passed unchanged, without marker nothing was taken from the stack
+        aapsLogger.debug(LTag.CORE, "plain")
+        aapsLogger.debug(LTag.CORE) { "supplied" }
+        aapsLogger.error(LTag.CORE, "error")
+        Mockito.verify(logger).debug("plain")
+        Mockito.verify(logger).debug("supplied")
+        Mockito.verify(logger).error("error")
+
+        l.findByName(LTag.CORE.tag).enableCallerInfo(true)
+        aapsLogger.debug(LTag.CORE) { "supplied" }
+        aapsLogger.error(LTag.CORE, "error")
+        Mockito.verify(logger).debug(startsWith("[AAPSLoggerProductionTest.stackIsCapturedOnlyWithCallerInfo():"))
+        Mockito.verify(logger).error(startsWith("[AAPSLoggerProductionTest.stackIsCapturedOnlyWithCallerInfo():"))
+    }
+}
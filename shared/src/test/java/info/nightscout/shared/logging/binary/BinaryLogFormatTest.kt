@@ -0,0 +1,139 @@
+package info.nightscout.shared.logging.binary
+
+import org.junit.Assert
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.StringWriter
+import java.text.SimpleDateFormat
+import java.util.*
+import java.util.concurrent.TimeUnit
+import java.util.zip.Deflater
+
+class BinaryLogFormatTest {
+
+    @get:Rule val folder = TemporaryFolder()
+
+    private val now = 1_600_000_000_000L
+
+    private fun records(count: Int): List<LogRecord> = List(count) { i ->
+        LogRecord(
+            timestamp = now + i * 37L,
+            level = if (i % 50 == 0) 'E' else 'D',
+            logger = if (i % 3 == 0) "AUTOSENS" else "PUMPCOMM",
+            thread = "thread-${i % 4}",
+            template = if (i % 2 == 0) "Processing bucket {} of {}" else "Sensitivity result: ratio=${1.0 + i / 1000.0}",
+            arguments = if (i % 2 == 0) arrayOf(i.toString(), count.toString()) else null,
+            throwable = if (i == 7) "java.lang.Exception: test\n\tat Test.method(Test.kt:1)" else null
+        )
+    }
+
+    private fun text(records: List<LogRecord>): String {
+        val timeFormat = SimpleDateFormat("HH:mm:ss.SSS", Locale.US)
+        val lineSeparator = System.lineSeparator()
+        return records.joinToString("") { record ->
+            "${timeFormat.format(Date(record.timestamp))} [${record.thread}] ${record.level}/${record.logger}: ${BinaryLogFormat.message(record)}$lineSeparator" +
+                (record.throwable?.let { it + lineSeparator } ?: "")
+        }
+    }
+
+    private fun binary(blocks: List<List<LogRecord>>): ByteArray {
+        val out = ByteArrayOutputStream()
+        out.write(BinaryLogFormat.MAGIC)
+        val deflater = Deflater()
+        blocks.forEach { BinaryLogFormat.writeBlock(out, it, deflater) }
+        deflater.end()
+        return out.toByteArray()
+    }
+
+    @Test
+    fun rendersSameTextAsPatternLayout() {
+        val records = records(1000)
+        val writer = StringWriter()
+        BinaryLogFormat.render(ByteArrayInputStream(binary(records.chunked(300))), writer)
+        Assert.assertEquals(text(records), writer.toString())
+        Assert.assertTrue(writer.toString().contains("Processing bucket 2 of 1000"))
+    }
+
+    @Test
+    fun truncatedBlockIsIgnored() {
+        val records = records(200)
+        val bytes = binary(listOf(records.subList(0, 100), records.subList(100, 200)))
+        val writer = StringWriter()
+        BinaryLogFormat.render(ByteArrayInputStream(bytes.copyOf(bytes.size - 10)), writer)
+        Assert.assertEquals(text(records.subList(0, 100)), writer.toString())
+    }
+
+    @Test
+    fun binaryIsSmallerThanText() {
+        val records = records(5000)
+        val binarySize = binary(records.chunked(BinaryLogSink.MAX_BATCH)).size
+        val textSize = text(records).toByteArray().size
+        Assert.assertTrue(binarySize * 3 < textSize)
+    }
+
+    @Test
+    fun sinkWritesAndRollsFiles() {
+        val directory = folder.newFolder("logs")
+        val sink = BinaryLogSink(directory, "AndroidAPS", 4096, 2, 1000)
+        sink.start()
+        // flush before buffer is full so nothing is dropped
+        records(3000).chunked(500).forEach { chunk ->
+            chunk.forEach { sink.log(it) }
+            sink.flush()
+        }
+        sink.stop()
+
+        val rolled = directory.listFiles { _, name -> name.startsWith("AndroidAPS._") }!!
+        Assert.assertTrue(rolled.size > 1)
+        // everything accepted by buffer is readable
+        var count = 0
+        directory.listFiles()!!.forEach { file -> file.inputStream().use { input -> BinaryLogFormat.read(input) { count++ } } }
+        Assert.assertTrue(count > 0)
+    }
+
+    @Test
+    fun sinkDeletesFilesOlderThanMaxHistoryDays() {
+        val directory = folder.newFolder("logs")
+        val old = File(directory, "AndroidAPS._2020-01-01_00-00-00_.bin").also { it.writeBytes(BinaryLogFormat.MAGIC) }
+        old.setLastModified(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(3))
+        val recent = File(directory, "AndroidAPS._2020-01-03_00-00-00_.bin").also { it.writeBytes(BinaryLogFormat.MAGIC) }
+        recent.setLastModified(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1))
+
+        val sink = BinaryLogSink(directory, "AndroidAPS", 4096, 2, 1000)
+        sink.start()
+        records(3000).forEach { sink.log(it) }
+        sink.flush()
+        sink.stop()
+
+        Assert.assertFalse(old.exists())
+        Assert.assertTrue(recent.exists())
+    }
+
+    @Test
+    fun restartContinuesFileAfterIncompleteBlock() {
+        val directory = folder.newFolder("logs")
+        val records = records(200)
+        val bytes = binary(listOf(records.subList(0, 100)))
+        // killed during write of second block
+        File(directory, "AndroidAPS.bin").run {
+            writeBytes(bytes + binary(listOf(records.subList(100, 150))).copyOfRange(BinaryLogFormat.MAGIC.size, 30))
+            setLastModified(now)
+        }
+        Assert.assertEquals(bytes.size.toLong(), BinaryLogFormat.completeLength(File(directory, "AndroidAPS.bin")))
+
+        val sink = BinaryLogSink(directory, "AndroidAPS", 1024 * 1024, 2, 1000)
+        sink.start()
+        records.subList(150, 200).forEach { sink.log(it) }
+        sink.flush()
+        sink.stop()
+
+        Assert.assertEquals(listOf("AndroidAPS.bin"), directory.list()!!.toList())
+        val writer = StringWriter()
+        File(directory, "AndroidAPS.bin").inputStream().use { BinaryLogFormat.render(it, writer) }
+        Assert.assertEquals(text(records.subList(0, 100) + records.subList(150, 200)), writer.toString())
+    }
+}